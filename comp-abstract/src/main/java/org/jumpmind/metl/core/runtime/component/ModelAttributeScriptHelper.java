@@ -426,30 +426,55 @@ public class ModelAttributeScriptHelper {
         return signatures.toArray(new String[signatures.size()]);
     }
 
+    /**
+     * Evaluates an expression once for a single value. Callers that evaluate
+     * the same expression for many rows should {@link #prepare} a helper once
+     * and then call {@link #eval(ModelAttributeScriptHelper, Message, EntityData, Object)}.
+     */
     public static Object eval(Message message, ComponentContext context, ModelAttribute attribute, Object value, Model model, ModelEntity entity,
             EntityData data, String expression) {
+        return eval(prepare(context, attribute, entity, model, expression), message, data, value);
+    }
+
+    /**
+     * Compiles an expression into a helper subclass whose eval() method
+     * returns the result of the expression. The helper keeps its per row state
+     * in fields, so it can be reused for every row that is handled by the
+     * calling component on the same thread.
+     */
+    public static ModelAttributeScriptHelper prepare(ComponentContext context, ModelAttribute attribute, ModelEntity entity, Model model,
+            String expression) {
         ScriptEngine engine = scriptEngine.get();
         if (engine == null) {
             engine = new GroovyScriptEngineImpl();
             scriptEngine.set(engine);
         }
-        engine.put("value", value);
-        engine.put("data", data);
         engine.put("entity", entity);
         engine.put("model", model);
         engine.put("attribute", attribute);
-        engine.put("message", message);
         engine.put("context", context);
 
         try {
             String importString = "import org.jumpmind.metl.core.runtime.component.ModelAttributeScriptHelper;\n";
             String code = String.format(
-                    "return new ModelAttributeScriptHelper(message, context, attribute, entity, model, data, value) { public Object eval() { return %s } }.eval()",
+                    "return new ModelAttributeScriptHelper(context, attribute, entity, model) { public Object eval() { return %s } }",
                     expression);
-            return engine.eval(importString + code);
+            return (ModelAttributeScriptHelper) engine.eval(importString + code);
         } catch (ScriptException e) {
-            throw new RuntimeException("Unable to evaluate groovy script.  Attribute ==> " + attribute.getName() + ".  Value ==> "
-                    + value.toString() + "." + e.getCause().getMessage(), e);
+            throw new RuntimeException("Unable to compile groovy script.  Attribute ==> " + (attribute != null ? attribute.getName() : null)
+                    + ".  Expression ==> " + expression + "." + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()), e);
+        }
+    }
+
+    public static Object eval(ModelAttributeScriptHelper helper, Message message, EntityData data, Object value) {
+        helper.setMessage(message);
+        helper.setData(data);
+        helper.setValue(value);
+        try {
+            return helper.eval();
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Unable to evaluate groovy script.  Attribute ==> "
+                    + (helper.attribute != null ? helper.attribute.getName() : null) + ".  Value ==> " + value + "." + e.getMessage(), e);
         }
     }
 
@@ -20,9 +20,12 @@
  */
 package org.jumpmind.metl.core.runtime.component;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
+import org.jumpmind.metl.core.model.ModelAttribute;
+import org.jumpmind.metl.core.runtime.EntityData;
 import org.junit.Test;
 
 public class ModelAttributeScriptHelperTest {
@@ -36,4 +39,15 @@ public class ModelAttributeScriptHelperTest {
         assertNotNull(helper.parsedate("yyyy-MM-dd", "0000-00-01"));
 
     }
+
+    @Test
+    public void testPreparedHelperIsReusedAcrossRows() {
+        ComponentContext context = new ComponentContext(null, null, null, null, null, null, null);
+        ModelAttribute attribute = new ModelAttribute();
+        attribute.setName("AMOUNT");
+        ModelAttributeScriptHelper helper = ModelAttributeScriptHelper.prepare(context, attribute, null, null, "parseInt() + 1");
+        assertEquals(2, ModelAttributeScriptHelper.eval(helper, null, new EntityData(), "1"));
+        assertEquals(11, ModelAttributeScriptHelper.eval(helper, null, new EntityData(), "10"));
+        assertEquals(1, ModelAttributeScriptHelper.eval(helper, null, new EntityData(), null));
+    }
 }
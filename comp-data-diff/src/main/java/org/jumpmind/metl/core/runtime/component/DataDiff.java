@@ -22,38 +22,22 @@ package org.jumpmind.metl.core.runtime.component;
 
 import static org.apache.commons.lang.StringUtils.isBlank;
 
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-
-import org.apache.commons.io.FileUtils;
-import org.h2.Driver;
-import org.jumpmind.db.model.Column;
-import org.jumpmind.db.model.IIndex;
-import org.jumpmind.db.model.IndexColumn;
-import org.jumpmind.db.model.Table;
-import org.jumpmind.db.platform.IDatabasePlatform;
-import org.jumpmind.db.platform.JdbcDatabasePlatformFactory;
-import org.jumpmind.db.sql.SqlTemplateSettings;
-import org.jumpmind.db.util.ResettableBasicDataSource;
+
 import org.jumpmind.metl.core.model.Component;
-import org.jumpmind.metl.core.model.ComponentAttributeSetting;
 import org.jumpmind.metl.core.model.ComponentEntitySetting;
-import org.jumpmind.metl.core.model.DataType;
 import org.jumpmind.metl.core.model.Model;
 import org.jumpmind.metl.core.model.ModelAttribute;
 import org.jumpmind.metl.core.model.ModelEntity;
-import org.jumpmind.metl.core.runtime.ControlMessage;
+import org.jumpmind.metl.core.runtime.EntityData;
 import org.jumpmind.metl.core.runtime.EntityData.ChangeType;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
 import org.jumpmind.metl.core.runtime.LogLevel;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.MisconfiguredException;
@@ -65,6 +49,7 @@ public class DataDiff extends AbstractComponentRuntime {
     public static String SOURCE_1 = "source.1";
     public static String SOURCE_2 = "source.2";
     public static String IN_MEMORY_COMPARE = "in.memory.compare";
+    public static String MEMORY_BUFFER_SIZE_MB = "memory.buffer.size.mb";
 
     public final static String ENTITY_ADD_ENABLED = "add.enabled";
 
@@ -84,19 +69,20 @@ public class DataDiff extends AbstractComponentRuntime {
 
     boolean inMemoryCompare = true;
 
-    IDatabasePlatform databasePlatform;
+    long memoryBufferSizeInBytes;
 
-    RdbmsWriter databaseWriter;
+    List<ModelEntity> entities;
 
-    String databaseName;
+    List<EntityDiff> diffs;
 
-    List<ModelEntity> entities;
+    Map<String, EntityDiff> diffsByAttributeId;
 
-    Throwable error;
+    long estimatedBytes;
+
+    boolean sortMerge;
 
     @Override
     public void start() {
-        error = null;
         TypedProperties properties = getTypedProperties();
         this.sourceStep1Id = properties.get(SOURCE_1);
         if (isBlank(sourceStep1Id)) {
@@ -110,6 +96,7 @@ public class DataDiff extends AbstractComponentRuntime {
         }
 
         this.inMemoryCompare = properties.is(IN_MEMORY_COMPARE);
+        this.memoryBufferSizeInBytes = properties.getLong(MEMORY_BUFFER_SIZE_MB, 128) * 1024 * 1024;
         this.rowsPerMessage = properties.getInt(ROWS_PER_MESSAGE);
         Component comp = context.getFlowStep().getComponent();
         comp.setOutputModel(comp.getInputModel());
@@ -133,277 +120,137 @@ public class DataDiff extends AbstractComponentRuntime {
                 return new Integer(orderValue1).compareTo(new Integer(orderValue2));
             }
         });
-    }
 
-    @Override
-    public void handle(Message message, ISendMessageCallback callback,
-            boolean unitOfWorkBoundaryReached) {
-        createDatabase();
-        loadIntoDatabase(message);
-        if (unitOfWorkBoundaryReached && error == null) {
-            calculateDiff(callback);
-        }
-    }
-
-    protected void calculateDiff(ISendMessageCallback callback) {
-        Map<ModelEntity, String> changeSqls = new HashMap<>();
-        Map<ModelEntity, String> addSqls = new HashMap<>();
-        Map<ModelEntity, String> delSqls = new HashMap<>();
-        Component component = context.getFlowStep().getComponent();
         for (ModelEntity entity : entities) {
-            StringBuilder addSql = new StringBuilder("select ");
-            StringBuilder chgSql = new StringBuilder(addSql);
-            StringBuilder delSql = new StringBuilder(addSql);
-            appendColumns(addSql, "curr.", entity);
-            appendColumns(delSql, "orig.", entity);
-            appendColumns(chgSql, "curr.", entity);
-
-            addSql.append(" from " + entity.getName() + "_2 curr left join " + entity.getName()
-                    + "_1 orig on ");
-            delSql.append(" from " + entity.getName() + "_1 orig left join " + entity.getName()
-                    + "_2 curr on ");
-            chgSql.append(" from " + entity.getName() + "_1 orig join " + entity.getName()
-                    + "_2 curr on ");
-            boolean secondPk = false;
-            for (ModelAttribute attribute : entity.getModelAttributes()) {
-                if (attribute.isPk()) {
-                    if (secondPk) {
-                        addSql.append(" and ");
-                        delSql.append(" and ");
-                        chgSql.append(" and ");
-                    }
-                    addSql.append("curr.").append(attribute.getName()).append("=").append("orig.")
-                            .append(attribute.getName());
-                    delSql.append("curr.").append(attribute.getName()).append("=").append("orig.")
-                            .append(attribute.getName());
-                    chgSql.append("curr.").append(attribute.getName()).append("=").append("orig.")
-                            .append(attribute.getName());
-                    secondPk = true;
-                }
-            }
-
-            addSql.append(" where ");
-            delSql.append(" where ");
-            chgSql.append(" where ");
-            secondPk = false;
-            boolean secondCol = false;
+            boolean hasPk = false;
             for (ModelAttribute attribute : entity.getModelAttributes()) {
-                if (attribute.isPk()) {
-                    if (secondPk) {
-                        addSql.append(" or ");
-                        delSql.append(" or ");
-                    }
-                    addSql.append("orig.").append(attribute.getName()).append(" is null");
-                    delSql.append("curr.").append(attribute.getName()).append(" is null");
-                    secondPk = true;
-                } else {
-                    ComponentAttributeSetting matchColumnSetting = component
-                            .getSingleAttributeSetting(attribute.getId(),
-                                    DataDiff.ATTRIBUTE_COMPARE_ENABLED);
-                    boolean matchColumn = matchColumnSetting != null
-                            ? Boolean.parseBoolean(matchColumnSetting.getValue()) : true;
-                    if (matchColumn) {
-                        if (secondCol) {
-                            chgSql.append(" or ");
-                        }
-                        chgSql.append("curr.").append(attribute.getName()).append(" != ")
-                                .append("orig.").append(attribute.getName());
-                        chgSql.append(" or ");
-                        chgSql.append("curr.").append(attribute.getName()).append(" is null and ")
-                                .append("orig.").append(attribute.getName())
-                                .append(" is not null ");
-                        chgSql.append(" or ");
-                        chgSql.append("curr.").append(attribute.getName())
-                                .append(" is not null and ").append("orig.")
-                                .append(attribute.getName()).append(" is null ");
-                        secondCol = true;
-                    }
-                }
+                hasPk |= attribute.isPk();
             }
-
-            //we only want to do a change compare if this entity has 
-            //cols to compare other than the primary key.
-            if (!entity.hasOnlyPrimaryKeys() && secondCol) {
-                changeSqls.put(entity, chgSql.toString());
-                log(LogLevel.INFO, "Generated diff sql for CHG: %s", chgSql);
+            if (!hasPk) {
+                throw new MisconfiguredException(
+                        "The %s entity needs at least one primary key attribute to match rows on", entity.getName());
             }
-            log(LogLevel.INFO, "Generated diff sql for ADD: %s", addSql);
-            log(LogLevel.INFO, "Generated diff sql for DEL: %s", delSql);
-            addSqls.put(entity, addSql.toString());
-            delSqls.put(entity, delSql.toString());
-
         }
+    }
 
-        RdbmsReader reader = new RdbmsReader();
-        reader.setDataSource(databasePlatform.getDataSource());
-        reader.setContext(context);
-        reader.setComponentDefinition(componentDefinition);
-        reader.setRowsPerMessage(rowsPerMessage);
-        reader.setThreadNumber(threadNumber);
-
-        for (ModelEntity entity : entities) {
-            ComponentEntitySetting add = component.getSingleEntitySetting(entity.getId(),
-                    DataDiff.ENTITY_ADD_ENABLED);
-            ComponentEntitySetting chg = component.getSingleEntitySetting(entity.getId(),
-                    DataDiff.ENTITY_CHG_ENABLED);
-            boolean addEnabled = add != null ? Boolean.parseBoolean(add.getValue()) : true;
-            boolean chgEnabled = chg != null ? Boolean.parseBoolean(chg.getValue()) : true;
-            if (addEnabled) {
-                reader.setSql(addSqls.get(entity));
-                reader.setEntityChangeType(ChangeType.ADD);
-                reader.handle(new ControlMessage(this.context.getFlowStep().getId()), callback,
-                        false);
-                info("Sent %d ADD records for %s", reader.getRowReadDuringHandle(),
-                        entity.getName());
-            }
-
-            if (chgEnabled && changeSqls.get(entity) != null) {
-                reader.setSql(changeSqls.get(entity));
-                reader.setEntityChangeType(ChangeType.CHG);
-                reader.handle(new ControlMessage(this.context.getFlowStep().getId()), callback,
-                        false);
-                info("Sent %d CHG records for %s", reader.getRowReadDuringHandle(),
-                        entity.getName());
-            }
-
+    @Override
+    public void handle(Message message, ISendMessageCallback callback,
+            boolean unitOfWorkBoundaryReached) {
+        createDiffs();
+        if (message instanceof EntityDataMessage) {
+            load((EntityDataMessage) message);
         }
-
-        for (int i = entities.size() - 1; i >= 0; i--) {
-            ModelEntity entity = entities.get(i);
-            ComponentEntitySetting del = component.getSingleEntitySetting(entity.getId(),
-                    DataDiff.ENTITY_DEL_ENABLED);
-            boolean delEnabled = del != null ? Boolean.parseBoolean(del.getValue()) : true;
-
-            if (delEnabled) {
-                reader.setSql(delSqls.get(entity));
-                reader.setEntityChangeType(ChangeType.DEL);
-                reader.handle(new ControlMessage(this.context.getFlowStep().getId()), callback,
-                        false);
-                info("Sent %d DEL records for %s", reader.getRowReadDuringHandle(),
-                        entity.getName());
+        if (unitOfWorkBoundaryReached) {
+            try {
+                calculateDiff(callback);
+            } finally {
+                closeDiffs();
             }
         }
+    }
 
-        ResettableBasicDataSource ds = databasePlatform.getDataSource();
-
-        ds.close();
+    @Override
+    public void stop() {
+        closeDiffs();
+    }
 
-        if (!inMemoryCompare) {
-            try {
-                Files.list(Paths.get(System.getProperty("h2.baseDir")))
-                        .filter(path -> path.toFile().getName().startsWith(databaseName))
-                        .forEach(path -> deleteDatabaseFile(path.toFile()));
-            } catch (IOException e) {
-                log.warn("Failed to delete file", e);
-            }
+    protected void calculateDiff(ISendMessageCallback callback) {
+        if (sortMerge) {
+            log(LogLevel.INFO, "Comparing rows by merging sorted rows because they did not fit in %d bytes of memory",
+                    memoryBufferSizeInBytes);
         }
 
-        databasePlatform = null;
-        databaseName = null;
-        databaseWriter = null;
-
-    }
+        for (EntityDiff diff : diffs) {
+            diff.diff();
+            send(diff.getAdds(), ChangeType.ADD, diff.entity, callback);
+            send(diff.getChanges(), ChangeType.CHG, diff.entity, callback);
+        }
 
-    protected void deleteDatabaseFile(File file) {
-        log(LogLevel.INFO, "Deleting database file: %s", file.getName());
-        FileUtils.deleteQuietly(file);
+        for (int i = diffs.size() - 1; i >= 0; i--) {
+            EntityDiff diff = diffs.get(i);
+            send(diff.getDeletes(), ChangeType.DEL, diff.entity, callback);
+        }
     }
 
-    protected void appendColumns(StringBuilder sql, String prefix, ModelEntity entity) {
-        for (ModelAttribute attribute : entity.getModelAttributes()) {
-
-            Component component = context.getFlowStep().getComponent();
-            ComponentAttributeSetting matchColumnSetting = component.getSingleAttributeSetting(
-                    attribute.getId(), DataDiff.ATTRIBUTE_COMPARE_ENABLED);
-            boolean matchColumn = matchColumnSetting != null
-                    ? Boolean.parseBoolean(matchColumnSetting.getValue()) : true;
-            if (matchColumn) {
-                sql.append(prefix).append(attribute.getName()).append(" /* ")
-                        .append(entity.getName()).append(".").append(attribute.getName())
-                        .append(" */").append(",");
+    protected void send(Iterator<EntityData> rows, ChangeType changeType, ModelEntity entity,
+            ISendMessageCallback callback) {
+        int count = 0;
+        ArrayList<EntityData> payload = new ArrayList<>();
+        while (rows.hasNext()) {
+            payload.add(rows.next());
+            count++;
+            if (payload.size() >= rowsPerMessage) {
+                callback.sendEntityDataMessage(null, payload);
+                payload = new ArrayList<>();
             }
         }
-        sql.replace(sql.length() - 1, sql.length(), "");
+        if (payload.size() > 0) {
+            callback.sendEntityDataMessage(null, payload);
+        }
+        if (count > 0) {
+            info("Sent %d %s records for %s", count, changeType, entity.getName());
+        }
     }
 
-    protected void loadIntoDatabase(Message message) {
+    /*
+     * A row is added to every entity that it has attributes for, the same
+     * way the rows would be written to a table per entity.
+     */
+    protected void load(EntityDataMessage message) {
         String originatingStepId = message.getHeader().getOriginatingStepId();
-        String tableSuffix = null;
+        int side;
         if (sourceStep1Id.equals(originatingStepId)) {
-            tableSuffix = "_1";
+            side = EntityDiff.ORIGINAL;
         } else if (sourceStep2Id.equals(originatingStepId)) {
-            tableSuffix = "_2";
+            side = EntityDiff.CURRENT;
+        } else {
+            return;
         }
 
-        if (databaseWriter == null) {
-            databaseWriter = new RdbmsWriter();
-            databaseWriter.setDatabasePlatform(databasePlatform);
-            databaseWriter.setComponentDefinition(componentDefinition);
-            databaseWriter.setReplaceRows(true);
-            databaseWriter.setContext(context);
-            databaseWriter.setThreadNumber(threadNumber);
+        for (EntityData row : message.getPayload()) {
+            getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
+            for (String attributeId : row.keySet()) {
+                EntityDiff diff = diffsByAttributeId.get(attributeId);
+                if (diff != null && diff.lastAdded != row) {
+                    estimatedBytes += diff.add(side, row);
+                }
+            }
         }
 
-        if (tableSuffix != null) {
-            databaseWriter.setTableSuffix(tableSuffix);
-            try {
-                databaseWriter.handle(message, null, false);
-            } finally {
-                error = databaseWriter.getError();
+        if (!inMemoryCompare && !sortMerge && estimatedBytes > memoryBufferSizeInBytes) {
+            sortMerge = true;
+            long memoryPerSide = memoryBufferSizeInBytes / (diffs.size() * 2);
+            for (EntityDiff diff : diffs) {
+                diff.toSortMerge(memoryPerSide);
             }
+            estimatedBytes = 0;
         }
     }
 
-    protected void createDatabase() {
-        if (databasePlatform == null) {
-            ResettableBasicDataSource ds = new ResettableBasicDataSource();
-            ds.setDriverClassName(Driver.class.getName());
-            ds.setMaxActive(1);
-            ds.setInitialSize(1);
-            ds.setMinIdle(1);
-            ds.setMaxIdle(1);
-            databaseName = UUID.randomUUID().toString();
-            if (inMemoryCompare) {
-                ds.setUrl("jdbc:h2:mem:" + databaseName);
-            } else {
-                ds.setUrl("jdbc:h2:file:./" + databaseName);
-            }
-            databasePlatform = JdbcDatabasePlatformFactory.createNewPlatformInstance(ds,
-                    new SqlTemplateSettings(), true, false);
-
-            Model inputModel = context.getFlowStep().getComponent().getInputModel();
-            List<ModelEntity> entities = inputModel.getModelEntities();
+    protected void createDiffs() {
+        if (diffs == null) {
+            Component component = context.getFlowStep().getComponent();
+            diffs = new ArrayList<>(entities.size());
+            diffsByAttributeId = new HashMap<>();
             for (ModelEntity entity : entities) {
-                Table table = new Table();
-                table.setName(entity.getName() + "_1");
-                List<ModelAttribute> attributes = entity.getModelAttributes();
-                for (ModelAttribute attribute : attributes) {
-                    DataType dataType = attribute.getDataType();
-                    Column column = new Column(attribute.getName());
-                    if (dataType.isNumeric()) {
-                        column.setTypeCode(Types.DECIMAL);
-                    } else if (dataType.isBoolean()) {
-                        column.setTypeCode(Types.BOOLEAN);
-                    } else if (dataType.isTimestamp()) {
-                        column.setTypeCode(Types.TIMESTAMP);
-                    } else if (dataType.isBinary()) {
-                        column.setTypeCode(Types.BLOB);
-                    } else {
-                        column.setTypeCode(Types.LONGVARCHAR);
-                    }
-
-                    column.setPrimaryKey(attribute.isPk());
-                    table.addColumn(column);
+                EntityDiff diff = new EntityDiff(component, entity);
+                diffs.add(diff);
+                for (ModelAttribute attribute : entity.getModelAttributes()) {
+                    diffsByAttributeId.put(attribute.getId(), diff);
                 }
-                alterCaseToMatchLogicalCase(table);
-                databasePlatform.createTables(false, false, table);
-
-                table.setName(entity.getName().toUpperCase() + "_2");
-                databasePlatform.createTables(false, false, table);
-
             }
+            estimatedBytes = 0;
+            sortMerge = false;
+        }
+    }
 
-            log(LogLevel.INFO, "Creating databasePlatform with the following url: %s", ds.getUrl());
+    protected void closeDiffs() {
+        if (diffs != null) {
+            for (EntityDiff diff : diffs) {
+                diff.close();
+            }
+            diffs = null;
+            diffsByAttributeId = null;
         }
     }
 
@@ -412,23 +259,4 @@ public class DataDiff extends AbstractComponentRuntime {
         return false;
     }
 
-    private void alterCaseToMatchLogicalCase(Table table) {
-        table.setName(table.getName().toUpperCase());
-
-        Column[] columns = table.getColumns();
-        for (Column column : columns) {
-            column.setName(column.getName().toUpperCase());
-        }
-
-        IIndex[] indexes = table.getIndices();
-        for (IIndex index : indexes) {
-            index.setName(index.getName().toUpperCase());
-
-            IndexColumn[] indexColumns = index.getColumns();
-            for (IndexColumn indexColumn : indexColumns) {
-                indexColumn.setName(indexColumn.getName().toUpperCase());
-            }
-        }
-    }
-
 }
@@ -0,0 +1,459 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.jumpmind.metl.core.runtime.EntityDataSorter.compareKeys;
+import static org.jumpmind.metl.core.runtime.EntityDataSorter.compareValues;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.jumpmind.exception.IoException;
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.ComponentAttributeSetting;
+import org.jumpmind.metl.core.model.ComponentEntitySetting;
+import org.jumpmind.metl.core.model.ModelAttribute;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityData.ChangeType;
+import org.jumpmind.metl.core.runtime.EntityDataSorter;
+import org.jumpmind.metl.core.runtime.EntityDataSpillReader;
+import org.jumpmind.metl.core.runtime.EntityDataSpillWriter;
+
+/**
+ * Holds the original and the current rows of one entity and works out which
+ * rows were added, changed and deleted. Rows are matched on the primary key
+ * attributes of the entity. A later row with the same key replaces an earlier
+ * one and a row with a change type of DEL removes it.
+ * <p>
+ * Rows are kept in hash maps and diffed by lookup until
+ * {@link #toSortMerge(long)} is called. After that rows go to an
+ * {@link EntityDataSorter} for each side that spills to disk, and the sorted
+ * sides are merged in a single pass by {@link #diff()}.
+ */
+class EntityDiff implements Closeable {
+
+    static final int ORIGINAL = 0;
+
+    static final int CURRENT = 1;
+
+    final ModelEntity entity;
+
+    final List<ModelAttribute> keyAttributes = new ArrayList<>();
+
+    final List<ModelAttribute> compareAttributes = new ArrayList<>();
+
+    final List<ModelAttribute> outputAttributes = new ArrayList<>();
+
+    final boolean addEnabled;
+
+    final boolean chgEnabled;
+
+    final boolean delEnabled;
+
+    List<Map<DiffKey, EntityData>> rows = Arrays.asList(new LinkedHashMap<>(), new LinkedHashMap<>());
+
+    EntityDataSorter[] sorters;
+
+    File[] results;
+
+    List<EntityDataSpillReader> readers = new ArrayList<>();
+
+    EntityData lastAdded;
+
+    EntityDiff(Component component, ModelEntity entity) {
+        this.entity = entity;
+        for (ModelAttribute attribute : entity.getModelAttributes()) {
+            ComponentAttributeSetting compareSetting = component.getSingleAttributeSetting(attribute.getId(),
+                    DataDiff.ATTRIBUTE_COMPARE_ENABLED);
+            boolean compare = compareSetting != null ? Boolean.parseBoolean(compareSetting.getValue()) : true;
+            if (attribute.isPk()) {
+                keyAttributes.add(attribute);
+            } else if (compare) {
+                compareAttributes.add(attribute);
+            }
+            if (compare) {
+                outputAttributes.add(attribute);
+            }
+        }
+        this.addEnabled = isEnabled(component, DataDiff.ENTITY_ADD_ENABLED);
+        this.chgEnabled = isEnabled(component, DataDiff.ENTITY_CHG_ENABLED) && compareAttributes.size() > 0
+                && !entity.hasOnlyPrimaryKeys();
+        this.delEnabled = isEnabled(component, DataDiff.ENTITY_DEL_ENABLED);
+    }
+
+    protected boolean isEnabled(Component component, String name) {
+        ComponentEntitySetting setting = component.getSingleEntitySetting(entity.getId(), name);
+        return setting != null ? Boolean.parseBoolean(setting.getValue()) : true;
+    }
+
+    /**
+     * @return the change in the estimated number of bytes held in memory
+     */
+    long add(int side, EntityData input) {
+        lastAdded = input;
+        EntityData row = new EntityData();
+        row.setChangeType(input.getChangeType());
+        for (ModelAttribute attribute : entity.getModelAttributes()) {
+            row.put(attribute.getId(), EntityDataSorter.toColumnValue(attribute.getDataType(), input.get(attribute.getId())));
+        }
+
+        if (sorters != null) {
+            sorters[side].add(row);
+            return 0;
+        }
+
+        Map<DiffKey, EntityData> sideRows = rows.get(side);
+        DiffKey key = new DiffKey(getKey(row));
+        if (row.getChangeType() == ChangeType.DEL) {
+            EntityData removed = sideRows.remove(key);
+            return removed != null ? -estimateSize(removed) : 0;
+        } else {
+            EntityData replaced = sideRows.put(key, row);
+            return estimateSize(row) - (replaced != null ? estimateSize(replaced) : 0);
+        }
+    }
+
+    void toSortMerge(long memoryLimitInBytes) {
+        if (sorters == null) {
+            sorters = new EntityDataSorter[2];
+            for (int side = ORIGINAL; side <= CURRENT; side++) {
+                sorters[side] = new EntityDataSorter(this::getKey, memoryLimitInBytes);
+                for (EntityData row : rows.get(side).values()) {
+                    sorters[side].add(row);
+                }
+            }
+            rows = null;
+        }
+    }
+
+    /**
+     * Merges the sorted sides and writes the added, changed and deleted rows
+     * to disk so they can be sent in the order the component sends them. Rows
+     * held in hash maps are diffed as they are read, so there is nothing to do
+     * for them.
+     */
+    void diff() {
+        if (sorters == null) {
+            return;
+        }
+
+        results = new File[3];
+        EntityDataSpillWriter[] writers = new EntityDataSpillWriter[3];
+        try {
+            for (int i = 0; i < writers.length; i++) {
+                results[i] = File.createTempFile("metl-diff", ".bin");
+                writers[i] = new EntityDataSpillWriter(results[i]);
+            }
+
+            LatestRows original = new LatestRows(sorters[ORIGINAL].iterator());
+            LatestRows current = new LatestRows(sorters[CURRENT].iterator());
+            while (original.row != null || current.row != null) {
+                int result;
+                if (original.row == null) {
+                    result = 1;
+                } else if (current.row == null) {
+                    result = -1;
+                } else {
+                    result = compareKeys(original.key, current.key);
+                    if (result == 0 && hasNull(original.key)) {
+                        result = -1;
+                    }
+                }
+
+                if (result < 0) {
+                    if (delEnabled) {
+                        writers[2].write(toOutput(original.row, ChangeType.DEL));
+                    }
+                    original.next();
+                } else if (result > 0) {
+                    if (addEnabled) {
+                        writers[0].write(toOutput(current.row, ChangeType.ADD));
+                    }
+                    current.next();
+                } else {
+                    if (chgEnabled && isChanged(original.row, current.row)) {
+                        writers[1].write(toOutput(current.row, ChangeType.CHG));
+                    }
+                    original.next();
+                    current.next();
+                }
+            }
+        } catch (IOException e) {
+            throw new IoException(e);
+        } finally {
+            for (EntityDataSpillWriter writer : writers) {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+            for (EntityDataSorter sorter : sorters) {
+                sorter.close();
+            }
+        }
+    }
+
+    Iterator<EntityData> getAdds() {
+        if (!addEnabled) {
+            return Collections.emptyIterator();
+        } else if (results != null) {
+            return read(results[0]);
+        } else {
+            Map<DiffKey, EntityData> original = rows.get(ORIGINAL);
+            return rows.get(CURRENT).entrySet().stream().filter(e -> !original.containsKey(e.getKey()))
+                    .map(e -> toOutput(e.getValue(), ChangeType.ADD)).iterator();
+        }
+    }
+
+    Iterator<EntityData> getChanges() {
+        if (!chgEnabled) {
+            return Collections.emptyIterator();
+        } else if (results != null) {
+            return read(results[1]);
+        } else {
+            Map<DiffKey, EntityData> original = rows.get(ORIGINAL);
+            return rows.get(CURRENT).entrySet().stream().filter(e -> {
+                EntityData originalRow = original.get(e.getKey());
+                return originalRow != null && isChanged(originalRow, e.getValue());
+            }).map(e -> toOutput(e.getValue(), ChangeType.CHG)).iterator();
+        }
+    }
+
+    Iterator<EntityData> getDeletes() {
+        if (!delEnabled) {
+            return Collections.emptyIterator();
+        } else if (results != null) {
+            return read(results[2]);
+        } else {
+            Map<DiffKey, EntityData> current = rows.get(CURRENT);
+            return rows.get(ORIGINAL).entrySet().stream().filter(e -> !current.containsKey(e.getKey()))
+                    .map(e -> toOutput(e.getValue(), ChangeType.DEL)).iterator();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (EntityDataSpillReader reader : readers) {
+            reader.close();
+        }
+        readers.clear();
+        if (sorters != null) {
+            for (EntityDataSorter sorter : sorters) {
+                sorter.close();
+            }
+        }
+        if (results != null) {
+            for (File file : results) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+        rows = null;
+        sorters = null;
+        results = null;
+        lastAdded = null;
+    }
+
+    protected Iterator<EntityData> read(File file) {
+        final EntityDataSpillReader reader = new EntityDataSpillReader(file);
+        readers.add(reader);
+        return new Iterator<EntityData>() {
+            EntityData next = reader.read();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public EntityData next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                EntityData row = next;
+                next = reader.read();
+                return row;
+            }
+        };
+    }
+
+    /*
+     * Rows match when the primary key values are equal. A null never matches,
+     * the same as a SQL join.
+     */
+    protected boolean isChanged(EntityData original, EntityData current) {
+        for (ModelAttribute attribute : compareAttributes) {
+            Object originalValue = original.get(attribute.getId());
+            Object currentValue = current.get(attribute.getId());
+            if ((originalValue == null) != (currentValue == null)
+                    || (originalValue != null && compareValues(originalValue, currentValue) != 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected EntityData toOutput(EntityData row, ChangeType changeType) {
+        EntityData output = new EntityData();
+        for (ModelAttribute attribute : outputAttributes) {
+            output.put(attribute.getId(), row.get(attribute.getId()));
+        }
+        output.setChangeType(changeType);
+        return output;
+    }
+
+    protected Object[] getKey(EntityData row) {
+        Object[] key = new Object[keyAttributes.size()];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = row.get(keyAttributes.get(i).getId());
+        }
+        return key;
+    }
+
+    protected static long estimateSize(EntityData row) {
+        return EntityDataSorter.estimateSize(row) + 64;
+    }
+
+    static boolean hasNull(Object[] key) {
+        for (Object value : key) {
+            if (value == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Walks rows sorted by key and stops at the last row of each key, which
+     * is the one that replaced the others. Keys whose last row was a delete
+     * are skipped.
+     */
+    class LatestRows {
+
+        final Iterator<EntityData> rows;
+
+        EntityData next;
+
+        Object[] nextKey;
+
+        EntityData row;
+
+        Object[] key;
+
+        LatestRows(Iterator<EntityData> rows) {
+            this.rows = rows;
+            pull();
+            next();
+        }
+
+        void next() {
+            while (next != null) {
+                EntityData latest = next;
+                Object[] latestKey = nextKey;
+                pull();
+                if (!hasNull(latestKey)) {
+                    while (next != null && compareKeys(latestKey, nextKey) == 0) {
+                        latest = next;
+                        pull();
+                    }
+                }
+                if (latest.getChangeType() != ChangeType.DEL) {
+                    row = latest;
+                    key = latestKey;
+                    return;
+                }
+            }
+            row = null;
+            key = null;
+        }
+
+        protected void pull() {
+            if (rows.hasNext()) {
+                next = rows.next();
+                nextKey = getKey(next);
+            } else {
+                next = null;
+                nextKey = null;
+            }
+        }
+    }
+
+    /**
+     * A primary key that is equal to another key when the values compare as
+     * equal, so that 1 and 1.0 are the same key. Numbers that are equal have
+     * the same double value, so that is what they are hashed on.
+     */
+    static class DiffKey {
+
+        final Object[] values;
+
+        final int hashCode;
+
+        DiffKey(Object[] values) {
+            this.values = values;
+            int hash = 1;
+            for (Object value : values) {
+                hash = 31 * hash + hashOf(value);
+            }
+            this.hashCode = hash;
+        }
+
+        static int hashOf(Object value) {
+            if (value instanceof Number) {
+                return Double.hashCode(((Number) value).doubleValue());
+            } else if (value instanceof java.util.Date) {
+                return Long.hashCode(((java.util.Date) value).getTime());
+            } else if (value instanceof byte[]) {
+                return Arrays.hashCode((byte[]) value);
+            } else {
+                return value != null ? value.hashCode() : 0;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            } else if (!(obj instanceof DiffKey)) {
+                return false;
+            }
+            DiffKey other = (DiffKey) obj;
+            return hashCode == other.hashCode && !hasNull(values) && !hasNull(other.values)
+                    && compareKeys(values, other.values) == 0;
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.ComponentAttributeSetting;
+import org.jumpmind.metl.core.model.ComponentEntitySetting;
+import org.jumpmind.metl.core.model.DataType;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttribute;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityData.ChangeType;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DataDiffTest {
+
+    Flow flow;
+
+    FlowStep step;
+
+    @Before
+    public void setup() throws Exception {
+        flow = TestUtils.createFlow("TestFlow", null);
+        Setting[] settings = new Setting[] { new Setting(DataDiff.SOURCE_1, "orig"), new Setting(DataDiff.SOURCE_2, "curr"),
+                new Setting(DataDiff.ROWS_PER_MESSAGE, "1000"), new Setting(DataDiff.IN_MEMORY_COMPARE, "true"),
+                new Setting(DataDiff.MEMORY_BUFFER_SIZE_MB, "128") };
+        Component component = TestUtils.createComponent("DataDiff", false, null, createInputModel(), null, null, null,
+                settings);
+        component.setEntitySettings(new ArrayList<ComponentEntitySetting>());
+        component.setAttributeSettings(new ArrayList<ComponentAttributeSetting>());
+        step = new FlowStep();
+        step.setComponent(component);
+        flow.getFlowSteps().add(step);
+    }
+
+    @Test
+    public void testDiffInMemory() {
+        assertDiff();
+    }
+
+    @Test
+    public void testDiffWithSortMerge() {
+        step.getComponent().put(DataDiff.IN_MEMORY_COMPARE, "false");
+        step.getComponent().put(DataDiff.MEMORY_BUFFER_SIZE_MB, "0");
+        assertDiff();
+    }
+
+    @Test
+    public void testDisabledSettings() {
+        Component component = step.getComponent();
+        component.addEntitySetting(new ComponentEntitySetting("parent", DataDiff.ENTITY_ADD_ENABLED, "false"));
+        component.addAttributeSetting(new ComponentAttributeSetting("parentName", DataDiff.ATTRIBUTE_COMPARE_ENABLED, "false"));
+        List<EntityData> rows = diff(new DataDiff());
+        assertEquals(4, rows.size());
+        assertEquals(row(ChangeType.ADD, "childId", new BigDecimal(3), "childValue", "new"), rows.get(0));
+        assertEquals(row(ChangeType.CHG, "childId", new BigDecimal(1), "childValue", "1.5"), rows.get(1));
+        assertEquals(row(ChangeType.DEL, "childId", new BigDecimal(2), "childValue", "two"), rows.get(2));
+        assertEquals(row(ChangeType.DEL, "parentId", new BigDecimal(3)), rows.get(3));
+    }
+
+    protected void assertDiff() {
+        List<EntityData> rows = diff(new DataDiff());
+        assertEquals(6, rows.size());
+        assertEquals(row(ChangeType.ADD, "parentId", new BigDecimal(4), "parentName", "four"), rows.get(0));
+        assertEquals(row(ChangeType.CHG, "parentId", new BigDecimal(2), "parentName", "TWO"), rows.get(1));
+        assertEquals(row(ChangeType.ADD, "childId", new BigDecimal(3), "childValue", "new"), rows.get(2));
+        assertEquals(row(ChangeType.CHG, "childId", new BigDecimal(1), "childValue", "1.5"), rows.get(3));
+        assertEquals(row(ChangeType.DEL, "childId", new BigDecimal(2), "childValue", "two"), rows.get(4));
+        assertEquals(row(ChangeType.DEL, "parentId", new BigDecimal(3), "parentName", "three"), rows.get(5));
+    }
+
+    protected List<EntityData> diff(DataDiff dataDiff) {
+        SendMessageCallback<ArrayList<EntityData>> target = new SendMessageCallback<ArrayList<EntityData>>();
+        dataDiff.setContext(new ComponentContext(null, step, flow, new ExecutionTrackerNoOp(), null, null, null));
+        dataDiff.start();
+
+        dataDiff.handle(message("orig", row(null, "parentId", 1, "parentName", "one"),
+                row(null, "parentId", "2", "parentName", "two"), row(null, "parentId", 3, "parentName", "three"),
+                row(null, "childId", 1L, "childValue", 1), row(null, "childId", 2, "childValue", "two")), target, false);
+        dataDiff.handle(message("curr", row(null, "parentId", "1.0", "parentName", "one"),
+                row(null, "parentId", 2, "parentName", "TWO"), row(null, "childId", 1, "childValue", "1.5"),
+                row(null, "parentId", 4, "parentName", "four"), row(null, "childId", 3, "childValue", "new")), target, false);
+        dataDiff.handle(message("curr", row(ChangeType.DEL, "childId", 5), row(null, "childId", 5, "childValue", "gone"),
+                row(ChangeType.DEL, "childId", 5)), target, true);
+
+        List<EntityData> rows = new ArrayList<EntityData>();
+        for (ArrayList<EntityData> payload : target.getPayloadList()) {
+            rows.addAll(payload);
+        }
+        return rows;
+    }
+
+    protected EntityDataMessage message(String stepId, EntityData... rows) {
+        EntityDataMessage message = new EntityDataMessage(stepId);
+        ArrayList<EntityData> payload = new ArrayList<EntityData>();
+        for (EntityData row : rows) {
+            payload.add(row);
+        }
+        message.setPayload(payload);
+        return message;
+    }
+
+    protected EntityData row(ChangeType changeType, Object... values) {
+        EntityData row = new EntityData();
+        for (int i = 0; i < values.length; i += 2) {
+            row.put((String) values[i], values[i + 1]);
+        }
+        if (changeType != null) {
+            row.setChangeType(changeType);
+        }
+        return row;
+    }
+
+    private static Model createInputModel() {
+        ModelEntity parent = new ModelEntity("parent", "PARENT");
+        parent.addModelAttribute(attribute("parentId", parent, "ID", DataType.INTEGER, true));
+        parent.addModelAttribute(attribute("parentName", parent, "NAME", DataType.VARCHAR, false));
+
+        ModelEntity child = new ModelEntity("child", "CHILD");
+        child.addModelAttribute(attribute("childId", child, "ID", DataType.BIGINT, true));
+        child.addModelAttribute(attribute("childValue", child, "VALUE", DataType.VARCHAR, false));
+
+        Model model = new Model();
+        model.getModelEntities().add(parent);
+        model.getModelEntities().add(child);
+        return model;
+    }
+
+    private static ModelAttribute attribute(String id, ModelEntity entity, String name, DataType dataType, boolean pk) {
+        ModelAttribute attribute = new ModelAttribute(id, entity.getId(), name);
+        attribute.setDataType(dataType);
+        attribute.setPk(pk);
+        return attribute;
+    }
+
+}
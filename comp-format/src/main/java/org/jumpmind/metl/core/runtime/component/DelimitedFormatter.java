@@ -129,8 +129,7 @@ public class DelimitedFormatter extends AbstractComponentRuntime {
                 for (AttributeFormat attribute : attributes) {
                     Object object = inputRow.get(attribute.getAttributeId());
                     if (isNotBlank(attribute.getFormatFunction())) {
-                        object = ModelAttributeScriptHelper.eval(inputMessage, context, attribute.getAttribute(), object, getInputModel(),
-                                attribute.getEntity(), inputRow, attribute.getFormatFunction());
+                        object = ModelAttributeScriptHelper.eval(attribute.getScriptHelper(), inputMessage, inputRow, object);
                     }
 
                     csvWriter.write(object != null ? object.toString() : null);
@@ -192,6 +191,7 @@ public class DelimitedFormatter extends AbstractComponentRuntime {
         String attributeId;
         int ordinal;
         String formatFunction;
+        ModelAttributeScriptHelper scriptHelper;
 
         public AttributeFormat(String attributeId, ModelEntity entity, ModelAttribute attribute) {
             this.attributeId = attributeId;
@@ -219,6 +219,13 @@ public class DelimitedFormatter extends AbstractComponentRuntime {
             this.formatFunction = formatFunction;
         }
 
+        public ModelAttributeScriptHelper getScriptHelper() {
+            if (scriptHelper == null) {
+                scriptHelper = ModelAttributeScriptHelper.prepare(context, attribute, entity, getInputModel(), formatFunction);
+            }
+            return scriptHelper;
+        }
+
         public ModelAttribute getAttribute() {
             return attribute;
         }
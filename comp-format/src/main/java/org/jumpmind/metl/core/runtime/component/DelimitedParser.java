@@ -142,8 +142,7 @@ public class DelimitedParser extends AbstractComponentRuntime {
                 for (AttributeFormat attribute : attributes) {
                     Object value = csvReader.get(attribute.getOrdinal() - 1);
                     if (isNotBlank(attribute.getFormatFunction())) {
-                        value = ModelAttributeScriptHelper.eval(inputMessage, context, attribute.getAttribute(), value, getOutputModel(), attribute.getEntity(),
-                                data, attribute.getFormatFunction());
+                        value = ModelAttributeScriptHelper.eval(attribute.getScriptHelper(), inputMessage, data, value);
                     }
 
                     data.put(attribute.getAttributeId(), value);
@@ -219,6 +218,8 @@ public class DelimitedParser extends AbstractComponentRuntime {
 
         String formatFunction;
 
+        ModelAttributeScriptHelper scriptHelper;
+
         public String getAttributeId() {
             return attributeId;
         }
@@ -239,6 +240,13 @@ public class DelimitedParser extends AbstractComponentRuntime {
             this.formatFunction = formatFunction;
         }
 
+        public ModelAttributeScriptHelper getScriptHelper() {
+            if (scriptHelper == null) {
+                scriptHelper = ModelAttributeScriptHelper.prepare(context, attribute, entity, getOutputModel(), formatFunction);
+            }
+            return scriptHelper;
+        }
+
         public ModelAttribute getAttribute() {
             return attribute;
         }
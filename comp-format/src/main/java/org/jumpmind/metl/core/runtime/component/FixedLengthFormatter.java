@@ -120,8 +120,7 @@ public class FixedLengthFormatter extends AbstractComponentRuntime {
         for (AttributeFormat attribute : attributesList) {
             Object value = inputRow.get(attribute.getAttributeId());
             if (isNotBlank(attribute.getFormatFunction())) {
-                value = ModelAttributeScriptHelper.eval(inputMessage, context, attribute.getAttribute(), value, getInputModel(), attribute.getEntity(),
-                        inputRow, attribute.getFormatFunction());
+                value = ModelAttributeScriptHelper.eval(attribute.getScriptHelper(), inputMessage, inputRow, value);
             }
             if (value != null) {
                 if (value.toString().length() > attribute.getLength()) {
@@ -174,6 +173,7 @@ public class FixedLengthFormatter extends AbstractComponentRuntime {
         int ordinal;
         int length;
         String formatFunction;
+        ModelAttributeScriptHelper scriptHelper;
 
         public AttributeFormat(ModelAttribute attribute, ModelEntity entity) {
             this.attribute = attribute;
@@ -208,6 +208,13 @@ public class FixedLengthFormatter extends AbstractComponentRuntime {
             return formatFunction;
         }
 
+        public ModelAttributeScriptHelper getScriptHelper() {
+            if (scriptHelper == null) {
+                scriptHelper = ModelAttributeScriptHelper.prepare(context, attribute, entity, getInputModel(), formatFunction);
+            }
+            return scriptHelper;
+        }
+
         public ModelAttribute getAttribute() {
             return attribute;
         }
@@ -110,8 +110,7 @@ public class FixedLengthParser extends AbstractComponentRuntime {
                 Object value = inputRow.substring(0, length).trim();
                 inputRow = inputRow.substring(length);
                 if (isNotBlank(attribute.getFormatFunction())) {
-                    value = ModelAttributeScriptHelper.eval(inputMessage, context, attribute.getAttribute(), value, getOutputModel(), attribute.getEntity(), data,
-                            attribute.getFormatFunction());
+                    value = ModelAttributeScriptHelper.eval(attribute.getScriptHelper(), inputMessage, data, value);
                 }
 
                 data.put(attribute.getAttributeId(), value);
@@ -160,6 +159,7 @@ public class FixedLengthParser extends AbstractComponentRuntime {
         int ordinal;
         int length;
         String formatFunction;
+        ModelAttributeScriptHelper scriptHelper;
 
         public AttributeFormat(ModelAttribute attribute, ModelEntity entity) {
             this.attribute = attribute;
@@ -194,6 +194,13 @@ public class FixedLengthParser extends AbstractComponentRuntime {
             return formatFunction;
         }
 
+        public ModelAttributeScriptHelper getScriptHelper() {
+            if (scriptHelper == null) {
+                scriptHelper = ModelAttributeScriptHelper.prepare(context, attribute, entity, getOutputModel(), formatFunction);
+            }
+            return scriptHelper;
+        }
+
         public ModelAttribute getAttribute() {
             return attribute;
         }
@@ -0,0 +1,181 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.apache.commons.lang.StringUtils.isNotBlank;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.springframework.jdbc.support.JdbcUtils;
+
+/**
+ * Decides once per query how each mapped column is read so that rows can be
+ * decoded without looking at the metadata again. Columns whose Java class is
+ * well known are read with the matching typed getter, which returns the same
+ * type as {@link JdbcUtils#getResultSetValue(ResultSet, int)} would. Anything
+ * else falls back to that method.
+ */
+class ColumnExtractionPlan {
+
+    static final int OBJECT = 0;
+    static final int STRING = 1;
+    static final int INTEGER = 2;
+    static final int LONG = 3;
+    static final int SHORT = 4;
+    static final int BIG_DECIMAL = 5;
+    static final int DOUBLE = 6;
+    static final int FLOAT = 7;
+    static final int BOOLEAN = 8;
+    static final int TIMESTAMP = 9;
+    static final int DATE = 10;
+    static final int TIME = 11;
+    static final int BYTES = 12;
+
+    final int[] columns;
+
+    final int[] types;
+
+    final String[] attributeIds;
+
+    final boolean trimColumns;
+
+    ColumnExtractionPlan(ResultSetMetaData meta, List<String> attributeIds, boolean trimColumns) throws SQLException {
+        this.trimColumns = trimColumns;
+        List<Integer> mappedColumns = new ArrayList<>();
+        for (int i = 0; i < attributeIds.size(); i++) {
+            if (isNotBlank(attributeIds.get(i))) {
+                mappedColumns.add(i + 1);
+            }
+        }
+        this.columns = new int[mappedColumns.size()];
+        this.types = new int[columns.length];
+        this.attributeIds = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = mappedColumns.get(i);
+            types[i] = typeOf(meta, columns[i]);
+            this.attributeIds[i] = attributeIds.get(columns[i] - 1);
+        }
+    }
+
+    static int typeOf(ResultSetMetaData meta, int column) {
+        try {
+            int sqlType = meta.getColumnType(column);
+            if (sqlType == Types.CLOB || sqlType == Types.NCLOB) {
+                return STRING;
+            } else if (sqlType == Types.BLOB) {
+                return BYTES;
+            }
+
+            String className = meta.getColumnClassName(column);
+            if (className == null) {
+                return OBJECT;
+            }
+            switch (className) {
+                case "java.lang.String":
+                case "java.sql.Clob":
+                    return STRING;
+                case "java.lang.Integer":
+                    return INTEGER;
+                case "java.lang.Long":
+                    return LONG;
+                case "java.lang.Short":
+                    return SHORT;
+                case "java.math.BigDecimal":
+                    return BIG_DECIMAL;
+                case "java.lang.Double":
+                    return DOUBLE;
+                case "java.lang.Float":
+                    return FLOAT;
+                case "java.lang.Boolean":
+                    return BOOLEAN;
+                case "java.sql.Timestamp":
+                    return TIMESTAMP;
+                case "java.sql.Date":
+                    return DATE;
+                case "java.sql.Time":
+                    return TIME;
+                case "[B":
+                case "java.sql.Blob":
+                    return BYTES;
+                default:
+                    return OBJECT;
+            }
+        } catch (SQLException e) {
+            /*
+             * Not every driver implements the metadata calls. The generic
+             * getter works for all of them.
+             */
+            return OBJECT;
+        }
+    }
+
+    void read(ResultSet rs, EntityData rowData) throws SQLException {
+        for (int i = 0; i < columns.length; i++) {
+            rowData.put(attributeIds[i], read(rs, columns[i], types[i]));
+        }
+    }
+
+    Object read(ResultSet rs, int column, int type) throws SQLException {
+        switch (type) {
+            case STRING:
+                String text = rs.getString(column);
+                return trimColumns && text != null ? text.trim() : text;
+            case INTEGER:
+                int intValue = rs.getInt(column);
+                return rs.wasNull() ? null : Integer.valueOf(intValue);
+            case LONG:
+                long longValue = rs.getLong(column);
+                return rs.wasNull() ? null : Long.valueOf(longValue);
+            case SHORT:
+                short shortValue = rs.getShort(column);
+                return rs.wasNull() ? null : Short.valueOf(shortValue);
+            case BIG_DECIMAL:
+                return rs.getBigDecimal(column);
+            case DOUBLE:
+                double doubleValue = rs.getDouble(column);
+                return rs.wasNull() ? null : Double.valueOf(doubleValue);
+            case FLOAT:
+                float floatValue = rs.getFloat(column);
+                return rs.wasNull() ? null : Float.valueOf(floatValue);
+            case BOOLEAN:
+                boolean booleanValue = rs.getBoolean(column);
+                return rs.wasNull() ? null : Boolean.valueOf(booleanValue);
+            case TIMESTAMP:
+                return rs.getTimestamp(column);
+            case DATE:
+                return rs.getDate(column);
+            case TIME:
+                return rs.getTime(column);
+            case BYTES:
+                return rs.getBytes(column);
+            default:
+                Object value = JdbcUtils.getResultSetValue(rs, column);
+                return trimColumns && value instanceof String ? ((String) value).trim() : value;
+        }
+    }
+
+}
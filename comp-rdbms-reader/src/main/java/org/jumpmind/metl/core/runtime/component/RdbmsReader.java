@@ -35,6 +35,10 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.jumpmind.db.sql.SqlException;
 import org.jumpmind.metl.core.model.Model;
@@ -48,8 +52,13 @@ import org.jumpmind.metl.core.runtime.LogLevel;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.MisconfiguredException;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
+import org.jumpmind.metl.core.runtime.resource.Datasource;
+import org.jumpmind.metl.core.runtime.resource.IResourceRuntime;
+import org.jumpmind.metl.core.util.ThreadUtils;
 import org.jumpmind.properties.TypedProperties;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.support.JdbcUtils;
@@ -75,6 +84,32 @@ public class RdbmsReader extends AbstractRdbmsComponentRuntime {
     
     public static final String SQL_STATEMENT = "SQL STATEMENT";    
 
+    public final static String FETCH_SIZE = "fetch.size";
+
+    public final static String PARTITION_MODE = "partition.mode";
+
+    public final static String PARTITION_COLUMN = "partition.column";
+
+    public final static String PARTITION_COUNT = "partition.count";
+
+    public final static String PARTITION_LIST = "partition.list";
+
+    public final static String PARTITION_THREADS = "partition.threads";
+
+    public static final String PARTITION_NONE = "NONE";
+
+    public static final String PARTITION_BY_RANGE = "RANGE";
+
+    public static final String PARTITION_BY_HASH = "HASH";
+
+    public static final String PARTITION_BY_LIST = "LIST";
+
+    /**
+     * Marks the spot in the where clause of a partitioned query where the
+     * condition that selects the rows of one partition goes.
+     */
+    public static final String PARTITION_TOKEN = "$(PARTITION)";
+
     List<String> sqls;
 
     String runWhen = PER_UNIT_OF_WORK;
@@ -92,6 +127,18 @@ public class RdbmsReader extends AbstractRdbmsComponentRuntime {
     int rowReadDuringHandle;
     
     String unitOfWork = COMPONENT_LIFETIME;
+
+    int fetchSize;
+
+    String partitionMode = PARTITION_NONE;
+
+    String partitionColumn;
+
+    int partitionCount = 4;
+
+    List<String> partitionConditions;
+
+    int partitionThreads = 4;
     
     @Override
     public void start() {
@@ -104,6 +151,60 @@ public class RdbmsReader extends AbstractRdbmsComponentRuntime {
         runWhen = properties.get(RUN_WHEN, runWhen);
         unitOfWork = properties.get(UNIT_OF_WORK, unitOfWork);
         queryTimeout = properties.getInt(QUERY_TIMEOUT, queryTimeout);
+        fetchSize = properties.getInt(FETCH_SIZE, 0);
+        IResourceRuntime resourceRuntime = getResourceRuntime();
+        if (fetchSize <= 0 && resourceRuntime != null && resourceRuntime.getResourceRuntimeSettings() != null) {
+            fetchSize = resourceRuntime.getResourceRuntimeSettings().getInt(Datasource.DB_FETCH_SIZE, 0);
+        }
+        partitionMode = properties.get(PARTITION_MODE, partitionMode);
+        partitionColumn = properties.get(PARTITION_COLUMN);
+        partitionCount = properties.getInt(PARTITION_COUNT, partitionCount);
+        partitionThreads = properties.getInt(PARTITION_THREADS, partitionThreads);
+        partitionConditions = new ArrayList<>();
+        String list = properties.get(PARTITION_LIST);
+        if (isNotBlank(list)) {
+            for (String condition : list.split("\\r?\\n")) {
+                if (isNotBlank(condition)) {
+                    partitionConditions.add(condition.trim());
+                }
+            }
+        }
+        validatePartitionSettings();
+    }
+
+    protected void validatePartitionSettings() {
+        if (!isPartitioned()) {
+            return;
+        }
+        if ((PARTITION_BY_RANGE.equals(partitionMode) || PARTITION_BY_HASH.equals(partitionMode)) && isBlank(partitionColumn)) {
+            throw new MisconfiguredException("A partition column is required to partition by %s", partitionMode.toLowerCase());
+        }
+        if (PARTITION_BY_LIST.equals(partitionMode) && partitionConditions.isEmpty()) {
+            throw new MisconfiguredException("A partition list is required to partition by list");
+        }
+        if (partitionCount < 1 || partitionThreads < 1) {
+            throw new MisconfiguredException("The partition count and the partition threads must be greater than zero");
+        }
+        boolean found = false;
+        for (String sql : sqls) {
+            found |= sql.contains(PARTITION_TOKEN);
+        }
+        if (!found) {
+            throw new MisconfiguredException("Add %s to the where clause of the SQL where the partition condition should go", PARTITION_TOKEN);
+        }
+    }
+
+    protected boolean isPartitioned() {
+        return partitionMode != null && !PARTITION_NONE.equals(partitionMode);
+    }
+
+    @Override
+    protected NamedParameterJdbcTemplate getJdbcTemplate() {
+        NamedParameterJdbcTemplate template = super.getJdbcTemplate();
+        if (fetchSize > 0) {
+            ((JdbcTemplate) template.getJdbcOperations()).setFetchSize(fetchSize);
+        }
+        return template;
     }
 
     @Override
@@ -137,41 +238,149 @@ public class RdbmsReader extends AbstractRdbmsComponentRuntime {
          * to it. If the reader is started by another component, then loop for
          * all records in the input message
          */
-        ArrayList<EntityData> outboundPayload = new ArrayList<EntityData>(); // =
-                                                                             // null;
+        /*
+         * Rows that are left over from one inbound record are carried over to
+         * the next. Every message that is sent gets a new payload, so a sent
+         * payload is never touched again.
+         */
+        ResultSetToEntityDataConverter resultSetToEntityDataConverter = null;
         for (int i = 0; i < inboundRecordCount; i++) {
             Object entity = inboundPayload != null && inboundPayload.hasNext() ? inboundPayload.next() : null;
-            ResultSetToEntityDataConverter resultSetToEntityDataConverter = new ResultSetToEntityDataConverter(inputMessage, callback,
-                    unitOfWorkBoundaryReached, outboundPayload);
+            resultSetToEntityDataConverter = new ResultSetToEntityDataConverter(inputMessage, callback,
+                    unitOfWorkBoundaryReached, resultSetToEntityDataConverter != null ? resultSetToEntityDataConverter.payload
+                            : new ArrayList<EntityData>());
             if (passInputRowsThrough) {
-                outboundPayload.add((EntityData) entity);
+                resultSetToEntityDataConverter.payload.add((EntityData) entity);
             }
             for (String sql : getSqls()) {
                 checkForInterruption();
-                String sqlToExecute = prepareSql(sql, inputMessage, entity);
-                Map<String, Object> paramMap = prepareParams(sqlToExecute, inputMessage, entity, runWhen);
-                log(LogLevel.INFO, "About to run: %s", sqlToExecute);
-                log(LogLevel.INFO, "Passing params: %s", paramMap);
-                resultSetToEntityDataConverter.setSqlToExecute(sqlToExecute);
-                template.query(sqlToExecute, paramMap, resultSetToEntityDataConverter);
+                if (isPartitioned() && sql.contains(PARTITION_TOKEN)) {
+                    sendLeftOverRows(resultSetToEntityDataConverter);
+                    readPartitions(sql, inputMessage, entity, template, callback);
+                } else {
+                    String sqlToExecute = prepareSql(sql, inputMessage, entity);
+                    Map<String, Object> paramMap = prepareParams(sqlToExecute, inputMessage, entity, runWhen);
+                    log(LogLevel.INFO, "About to run: %s", sqlToExecute);
+                    log(LogLevel.INFO, "Passing params: %s", paramMap);
+                    resultSetToEntityDataConverter.setSqlToExecute(sqlToExecute);
+                    template.query(sqlToExecute, paramMap, resultSetToEntityDataConverter);
+                }
                 if (unitOfWork.equalsIgnoreCase(SQL_STATEMENT)) {
-                    sendLeftOverRows(callback, outboundPayload);
+                    sendLeftOverRows(resultSetToEntityDataConverter);
                     callback.sendControlMessage();
                 }
             }
             if (unitOfWork.equalsIgnoreCase(SQL_SCRIPT)) {
-                sendLeftOverRows(callback, outboundPayload);
+                sendLeftOverRows(resultSetToEntityDataConverter);
                 callback.sendControlMessage();
             }
         }
-        sendLeftOverRows(callback, outboundPayload);
+        sendLeftOverRows(resultSetToEntityDataConverter);
         
     }
 
-    private void sendLeftOverRows(final ISendMessageCallback callback, ArrayList<EntityData> outboundPayload) {
-        if (outboundPayload != null && outboundPayload.size() > 0) {
-            callback.sendEntityDataMessage(null, outboundPayload);
-            outboundPayload.clear();
+    /**
+     * Runs the partitions of a query concurrently on connections from the
+     * data source. Each partition hands its rows over in batches of
+     * {@link #rowsPerMessage}, which are sent from this thread in the order
+     * they were read within a partition.
+     */
+    protected void readPartitions(String sql, Message inputMessage, Object entity, NamedParameterJdbcTemplate template,
+            ISendMessageCallback callback) {
+        List<ReadPartition> partitions = getPartitions(sql, inputMessage, entity, template);
+        int threads = Math.min(partitionThreads, partitions.size());
+        BlockingQueue<PartitionBatch> batches = new LinkedBlockingQueue<>(threads * 2);
+        ExecutorService executor = ThreadUtils.createFixedThreadPool("rdbms-reader-partition", partitions.size(), threads);
+        try {
+            for (ReadPartition partition : partitions) {
+                String sqlToExecute = prepareSql(partition.apply(sql), inputMessage, entity);
+                Map<String, Object> paramMap = prepareParams(sqlToExecute, inputMessage, entity, runWhen);
+                paramMap.putAll(partition.params);
+                log(LogLevel.INFO, "About to run partition %d: %s", partition.number, sqlToExecute);
+                log(LogLevel.INFO, "Passing params: %s", paramMap);
+                PartitionToEntityDataConverter converter = new PartitionToEntityDataConverter(batches);
+                converter.setSqlToExecute(sqlToExecute);
+                executor.execute(() -> {
+                    Throwable error = null;
+                    try {
+                        template.query(sqlToExecute, paramMap, converter);
+                        converter.sendPayload();
+                    } catch (Throwable ex) {
+                        error = ex;
+                    }
+                    try {
+                        batches.put(new PartitionBatch(null, error));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+
+            int running = partitions.size();
+            long ts = System.currentTimeMillis();
+            while (running > 0) {
+                checkForInterruption();
+                PartitionBatch batch = batches.poll(100, TimeUnit.MILLISECONDS);
+                if (batch == null) {
+                    continue;
+                } else if (batch.error instanceof RuntimeException) {
+                    throw (RuntimeException) batch.error;
+                } else if (batch.error instanceof Error) {
+                    throw (Error) batch.error;
+                } else if (batch.error != null) {
+                    throw new RuntimeException(batch.error);
+                } else if (batch.rows == null) {
+                    running--;
+                } else {
+                    rowReadDuringHandle += batch.rows.size();
+                    if (context.getDeployment() != null && context.getDeployment().asLogLevel() == LogLevel.DEBUG) {
+                        for (EntityData rowData : batch.rows) {
+                            logEntityAttributes(rowData);
+                        }
+                    }
+                    callback.sendEntityDataMessage(null, batch.rows);
+                }
+
+                long newTs = System.currentTimeMillis();
+                if (newTs - ts > 10000) {
+                    getExecutionTracker().updateStatistics(threadNumber, context);
+                    ts = newTs;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            checkForInterruption();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    protected List<ReadPartition> getPartitions(String sql, Message inputMessage, Object entity, NamedParameterJdbcTemplate template) {
+        if (PARTITION_BY_RANGE.equals(partitionMode)) {
+            String column = partitionColumn.substring(partitionColumn.lastIndexOf('.') + 1);
+            String boundsSql = prepareSql(String.format("select min(%1$s), max(%1$s) from (%2$s) metl_partition_bounds", column,
+                    sql.replace(PARTITION_TOKEN, "1=1")), inputMessage, entity);
+            Map<String, Object> paramMap = prepareParams(boundsSql, inputMessage, entity, runWhen);
+            log(LogLevel.INFO, "About to run: %s", boundsSql);
+            Object[] bounds = template.query(boundsSql, paramMap, (ResultSetExtractor<Object[]>) rs -> rs.next()
+                    ? new Object[] { JdbcUtils.getResultSetValue(rs, 1), JdbcUtils.getResultSetValue(rs, 2) } : new Object[2]);
+            log(LogLevel.INFO, "Partitioning %s from %s to %s", partitionColumn, bounds[0], bounds[1]);
+            return ReadPartition.range(partitionColumn, bounds[0], bounds[1], partitionCount);
+        } else if (PARTITION_BY_HASH.equals(partitionMode)) {
+            String productName = template.getJdbcOperations()
+                    .execute((ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName());
+            productName = productName != null ? productName.toLowerCase() : "";
+            boolean modOperator = productName.contains("sql server") || productName.contains("sybase")
+                    || productName.contains("adaptive server");
+            return ReadPartition.hash(partitionColumn, partitionCount, modOperator);
+        } else {
+            return ReadPartition.list(partitionConditions);
+        }
+    }
+
+    private void sendLeftOverRows(ResultSetToEntityDataConverter resultSetToEntityDataConverter) {
+        if (resultSetToEntityDataConverter != null && resultSetToEntityDataConverter.payload.size() > 0) {
+            resultSetToEntityDataConverter.sendPayload();
         } 
     }
     
@@ -460,6 +669,10 @@ public class RdbmsReader extends AbstractRdbmsComponentRuntime {
 
         ArrayList<EntityData> payload;
 
+        long ts;
+
+        boolean debug;
+
         public ResultSetToEntityDataConverter(Message inputMessage, ISendMessageCallback callback, boolean unitOfWorkLastMessage,
                 ArrayList<EntityData> payload) {
             this.inputMessage = inputMessage;
@@ -468,44 +681,46 @@ public class RdbmsReader extends AbstractRdbmsComponentRuntime {
             this.payload = payload;
         }
 
+        protected void sendPayload() {
+            callback.sendEntityDataMessage(null, payload);
+            payload = new ArrayList<EntityData>();
+        }
+
+        protected void rowRead(EntityData rowData) {
+            if (debug) {
+                logEntityAttributes(rowData);
+            }
+
+            if (++rowReadDuringHandle % 1000 == 0) {
+                long newTs = System.currentTimeMillis();
+                if (newTs - ts > 10000) {
+                    getExecutionTracker().updateStatistics(threadNumber, context);
+                    ts = newTs;
+                }
+            }
+        }
+
         @Override
         public ArrayList<EntityData> extractData(ResultSet rs) throws SQLException, DataAccessException {
             checkForInterruption();
             ResultSetMetaData meta = rs.getMetaData();
             Map<Integer, String> columnHints = getSqlColumnEntityHints(sqlToExecute);
             ArrayList<String> attributeIds = getAttributeIds(sqlToExecute, meta, columnHints);
-            long ts = System.currentTimeMillis();
+            ColumnExtractionPlan plan = new ColumnExtractionPlan(meta, attributeIds, trimColumns);
+            debug = context.getDeployment() != null && context.getDeployment().asLogLevel() == LogLevel.DEBUG;
+            ts = System.currentTimeMillis();
             while (rs.next()) {
                 if (outputRecCount++ % rowsPerMessage == 0 && payload != null && !payload.isEmpty()) {
-                    callback.sendEntityDataMessage(null, payload);
-                    payload.clear();
+                    sendPayload();
                 }
 
                 getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
 
                 EntityData rowData = new EntityData();
                 rowData.setChangeType(entityChangeType);
-                for (int i = 1; i <= meta.getColumnCount(); i++) {
-                    String attributeId = attributeIds.get(i - 1);
-                    if (isNotBlank(attributeId)) {
-                        Object value = JdbcUtils.getResultSetValue(rs, i);
-                        if (trimColumns && value instanceof String) {
-                            value = value.toString().trim();
-                        }
-                        rowData.put(attributeId, value);
-                    }
-                }
-                rowReadDuringHandle++;
+                plan.read(rs, rowData);
                 payload.add(rowData);
-                if (context.getDeployment() != null && context.getDeployment().asLogLevel() == LogLevel.DEBUG) {
-                    logEntityAttributes(rowData);
-                }
-
-                long newTs = System.currentTimeMillis();
-                if (newTs - ts > 10000) {
-                    getExecutionTracker().updateStatistics(threadNumber, context);
-                    ts = newTs;
-                }
+                rowRead(rowData);
             }
             return payload;
         }
@@ -515,6 +730,49 @@ public class RdbmsReader extends AbstractRdbmsComponentRuntime {
         }
     }
 
+    /*
+     * Runs on a partition thread. Rows are handed to the component thread
+     * which counts, logs and sends them.
+     */
+    class PartitionToEntityDataConverter extends ResultSetToEntityDataConverter {
+
+        BlockingQueue<PartitionBatch> batches;
+
+        public PartitionToEntityDataConverter(BlockingQueue<PartitionBatch> batches) {
+            super(null, null, false, new ArrayList<EntityData>());
+            this.batches = batches;
+        }
+
+        @Override
+        protected void sendPayload() {
+            if (payload.size() > 0) {
+                try {
+                    batches.put(new PartitionBatch(payload, null));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    checkForInterruption();
+                }
+                payload = new ArrayList<EntityData>();
+            }
+        }
+
+        @Override
+        protected void rowRead(EntityData rowData) {
+        }
+    }
+
+    static class PartitionBatch {
+
+        ArrayList<EntityData> rows;
+
+        Throwable error;
+
+        PartitionBatch(ArrayList<EntityData> rows, Throwable error) {
+            this.rows = rows;
+            this.error = error;
+        }
+    }
+
     public void setRunWhen(String runWhen) {
         this.runWhen = runWhen;
     }
@@ -0,0 +1,150 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jumpmind.metl.core.runtime.MisconfiguredException;
+
+/**
+ * A slice of a query that {@link RdbmsReader} runs concurrently with the other
+ * slices. The condition replaces the {@link RdbmsReader#PARTITION_TOKEN} in
+ * the SQL and its parameters are bound as named parameters.
+ */
+class ReadPartition {
+
+    static final String START_PARAM = "METL_PARTITION_START";
+
+    static final String END_PARAM = "METL_PARTITION_END";
+
+    final int number;
+
+    final String condition;
+
+    final Map<String, Object> params = new HashMap<>();
+
+    ReadPartition(int number, String condition) {
+        this.number = number;
+        this.condition = condition;
+    }
+
+    String apply(String sql) {
+        return sql.replace(RdbmsReader.PARTITION_TOKEN, condition);
+    }
+
+    /**
+     * Splits the values between min and max into ranges of about the same
+     * size. The first and last ranges are left open so that rows outside of
+     * the bounds and null keys are still read.
+     */
+    static List<ReadPartition> range(String column, Object min, Object max, int count) {
+        List<ReadPartition> partitions = new ArrayList<>(count);
+        if (min == null || max == null || count <= 1) {
+            partitions.add(new ReadPartition(0, "1=1"));
+            return partitions;
+        }
+
+        List<Object> bounds = new ArrayList<>(count - 1);
+        if (min instanceof Number && max instanceof Number) {
+            BigDecimal low = toBigDecimal((Number) min);
+            BigDecimal high = toBigDecimal((Number) max);
+            BigDecimal span = high.subtract(low);
+            boolean integral = low.scale() <= 0 && high.scale() <= 0;
+            BigDecimal step = integral ? span.add(BigDecimal.ONE).divide(BigDecimal.valueOf(count), 0, RoundingMode.CEILING)
+                    : span.divide(BigDecimal.valueOf(count), Math.max(low.scale(), high.scale()) + 4, RoundingMode.CEILING);
+            for (int i = 1; i < count; i++) {
+                bounds.add(low.add(step.multiply(BigDecimal.valueOf(i))));
+            }
+        } else if (min instanceof Date && max instanceof Date) {
+            long low = ((Date) min).getTime();
+            long high = ((Date) max).getTime();
+            long step = Math.max(1, (high - low + count) / count);
+            for (int i = 1; i < count; i++) {
+                bounds.add(new Timestamp(low + step * i));
+            }
+        } else {
+            throw new MisconfiguredException("The partition column %s must be a numeric or date column to be read by range", column);
+        }
+
+        for (int i = 0; i < count; i++) {
+            ReadPartition partition;
+            String start = START_PARAM + i;
+            String end = END_PARAM + i;
+            if (i == 0) {
+                partition = new ReadPartition(i, String.format("(%1$s < :%2$s or %1$s is null)", column, end));
+                partition.params.put(end, bounds.get(i));
+            } else if (i == count - 1) {
+                partition = new ReadPartition(i, String.format("%s >= :%s", column, start));
+                partition.params.put(start, bounds.get(i - 1));
+            } else {
+                partition = new ReadPartition(i, String.format("(%1$s >= :%2$s and %1$s < :%3$s)", column, start, end));
+                partition.params.put(start, bounds.get(i - 1));
+                partition.params.put(end, bounds.get(i));
+            }
+            partitions.add(partition);
+        }
+        return partitions;
+    }
+
+    /**
+     * Splits rows on the remainder of a numeric column. Null keys are read
+     * with the first partition.
+     */
+    static List<ReadPartition> hash(String column, int count, boolean modOperator) {
+        List<ReadPartition> partitions = new ArrayList<>(count);
+        String modulus = modOperator ? String.format("abs(%s %% %d)", column, count)
+                : String.format("abs(mod(%s, %d))", column, count);
+        for (int i = 0; i < count; i++) {
+            String condition = String.format("%s = %d", modulus, i);
+            if (i == 0) {
+                condition = String.format("(%s or %s is null)", condition, column);
+            }
+            partitions.add(new ReadPartition(i, condition));
+        }
+        return partitions;
+    }
+
+    static List<ReadPartition> list(List<String> conditions) {
+        List<ReadPartition> partitions = new ArrayList<>(conditions.size());
+        for (String condition : conditions) {
+            partitions.add(new ReadPartition(partitions.size(), "(" + condition + ")"));
+        }
+        return partitions;
+    }
+
+    static BigDecimal toBigDecimal(Number value) {
+        if (value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        } else if (value instanceof Double || value instanceof Float) {
+            return BigDecimal.valueOf(value.doubleValue());
+        } else {
+            return new BigDecimal(value.toString());
+        }
+    }
+
+}
@@ -1,10 +1,34 @@
 package org.jumpmind.metl.core.runtime.component;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.h2.jdbcx.JdbcDataSource;
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttribute;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.runtime.ControlMessage;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.utils.TestUtils;
 import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
 
 public class RdbmsReaderTest {
 
@@ -26,4 +50,107 @@ public class RdbmsReaderTest {
         assertEquals(hints.get(2), "COLB");
         assertEquals(hints.get(3), "COLC");
     }
+
+    @Test
+    public void testRangePartitions() {
+        List<ReadPartition> partitions = ReadPartition.range("o.ID", 1, 100L, 4);
+        assertEquals(4, partitions.size());
+        assertEquals("(o.ID < :METL_PARTITION_END0 or o.ID is null)", partitions.get(0).condition);
+        assertEquals(new BigDecimal(26), partitions.get(0).params.get("METL_PARTITION_END0"));
+        assertEquals("(o.ID >= :METL_PARTITION_START1 and o.ID < :METL_PARTITION_END1)", partitions.get(1).condition);
+        assertEquals(new BigDecimal(26), partitions.get(1).params.get("METL_PARTITION_START1"));
+        assertEquals(new BigDecimal(51), partitions.get(1).params.get("METL_PARTITION_END1"));
+        assertEquals("o.ID >= :METL_PARTITION_START3", partitions.get(3).condition);
+        assertEquals(new BigDecimal(76), partitions.get(3).params.get("METL_PARTITION_START3"));
+        assertEquals("select * from orders o where o.ID >= :METL_PARTITION_START3",
+                partitions.get(3).apply("select * from orders o where " + RdbmsReader.PARTITION_TOKEN));
+
+        partitions = ReadPartition.range("CREATED", new Timestamp(0), new Timestamp(999), 2);
+        assertEquals(new Timestamp(500), partitions.get(1).params.get("METL_PARTITION_START1"));
+
+        partitions = ReadPartition.range("ID", null, null, 4);
+        assertEquals(1, partitions.size());
+        assertEquals("1=1", partitions.get(0).condition);
+    }
+
+    @Test
+    public void testHashAndListPartitions() {
+        List<ReadPartition> partitions = ReadPartition.hash("ID", 3, false);
+        assertEquals(3, partitions.size());
+        assertEquals("(abs(mod(ID, 3)) = 0 or ID is null)", partitions.get(0).condition);
+        assertEquals("abs(mod(ID, 3)) = 2", partitions.get(2).condition);
+        assertEquals("abs(ID % 3) = 1", ReadPartition.hash("ID", 3, true).get(1).condition);
+
+        partitions = ReadPartition.list(Arrays.asList("REGION = 'EAST'", "REGION <> 'EAST'"));
+        assertEquals("(REGION <> 'EAST')", partitions.get(1).condition);
+    }
+
+    @Test
+    public void testColumnExtractionPlan() throws Exception {
+        ResultSetMetaData meta = mock(ResultSetMetaData.class);
+        when(meta.getColumnClassName(1)).thenReturn("java.lang.String");
+        when(meta.getColumnClassName(2)).thenReturn("java.lang.Integer");
+        when(meta.getColumnClassName(3)).thenReturn("java.lang.Integer");
+        when(meta.getColumnClassName(4)).thenReturn("java.math.BigDecimal");
+        when(meta.getColumnType(5)).thenReturn(Types.CLOB);
+        when(meta.getColumnClassName(6)).thenReturn("java.lang.String");
+
+        ColumnExtractionPlan plan = new ColumnExtractionPlan(meta, Arrays.asList("name", "id", "count", "amount", "notes", null), true);
+        assertEquals(5, plan.columns.length);
+        assertEquals(ColumnExtractionPlan.INTEGER, plan.types[1]);
+        assertEquals(ColumnExtractionPlan.STRING, plan.types[4]);
+
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getString(1)).thenReturn(" abc ");
+        when(rs.getInt(2)).thenReturn(7);
+        when(rs.getInt(3)).thenReturn(0);
+        when(rs.wasNull()).thenReturn(false, true);
+        when(rs.getBigDecimal(4)).thenReturn(new BigDecimal("1.50"));
+        when(rs.getString(5)).thenReturn("text");
+        EntityData row = new EntityData();
+        plan.read(rs, row);
+        assertEquals(5, row.size());
+        assertEquals("abc", row.get("name"));
+        assertEquals(7, row.get("id"));
+        assertNull(row.get("count"));
+        assertEquals(new BigDecimal("1.50"), row.get("amount"));
+        assertEquals("text", row.get("notes"));
+    }
+
+    @Test
+    public void testEverySentPayloadIsANewList() throws Exception {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:reader;DB_CLOSE_DELAY=-1");
+        JdbcTemplate template = new JdbcTemplate(dataSource);
+        template.execute("drop table if exists person");
+        template.execute("create table person (id int, name varchar(10))");
+        for (int i = 1; i <= 5; i++) {
+            template.update("insert into person values (?, ?)", i, "name" + i);
+        }
+
+        ModelEntity person = new ModelEntity("person", "PERSON");
+        person.addModelAttribute(new ModelAttribute("id", person.getId(), "ID"));
+        person.addModelAttribute(new ModelAttribute("name", person.getId(), "NAME"));
+        Model model = new Model();
+        model.getModelEntities().add(person);
+        Component component = TestUtils.createComponent(RdbmsReader.TYPE, false, null, null, model, null, null,
+                new Setting(RdbmsReader.SQL, "select id, name from person order by id"),
+                new Setting(RdbmsReader.ROWS_PER_MESSAGE, "2"));
+        RdbmsReader reader = new RdbmsReader();
+        reader.setContext(new ComponentContext(null, new FlowStep(component), null, new ExecutionTrackerNoOp(), null,
+                new HashMap<>(), null));
+        reader.start();
+        reader.dataSource = dataSource;
+
+        SendMessageCallback<ArrayList<EntityData>> callback = new SendMessageCallback<ArrayList<EntityData>>();
+        reader.handle(new ControlMessage("source"), callback, true);
+
+        List<ArrayList<EntityData>> payloads = callback.getPayloadList();
+        assertEquals(3, payloads.size());
+        assertEquals(2, payloads.get(0).size());
+        assertEquals(2, payloads.get(1).size());
+        assertEquals(1, payloads.get(2).size());
+        assertEquals(1, payloads.get(0).get(0).get("id"));
+        assertEquals(5, payloads.get(2).get(0).get("id"));
+    }
 }
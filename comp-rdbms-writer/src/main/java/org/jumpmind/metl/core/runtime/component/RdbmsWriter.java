@@ -78,6 +78,8 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
     public final static String TABLE_PREFIX = "table.prefix";
     public final static String AUTO_CREATE_TABLE = "table.auto.create";
     public final static String USE_CACHED_METADATA = "use.cached.table.metadata";
+    public final static String BATCH_SIZE = "batch.size";
+    public final static String COMMIT_INTERVAL = "commit.interval";
 
     boolean useCachedMetadata = false;
     boolean continueOnError = false;
@@ -94,7 +96,12 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
     int inboundEntityDataCount = 0;
     int totalStatementCount = 0;
     boolean batchMode = false;
+    int batchSize = 100;
+    int commitInterval = 0;
     IDatabasePlatform databasePlatform;
+    ISqlTransaction transaction;
+    int pendingRowCount = 0;
+    Map<String, Result> resultsBySql = new HashMap<>();
     List<TargetTableDefintion> targetTables;
     Throwable error;
     String lastPreparedDml;
@@ -117,6 +124,8 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
 
         TypedProperties properties = getTypedProperties();
         batchMode = properties.is(BATCH_MODE, batchMode);
+        batchSize = properties.getInt(BATCH_SIZE, batchSize);
+        commitInterval = properties.getInt(COMMIT_INTERVAL, commitInterval);
         useCachedMetadata = properties.is(USE_CACHED_METADATA, useCachedMetadata);
         replaceRows = properties.is(REPLACE);
         continueOnError = properties.is(CONTINUE_ON_ERROR, continueOnError);
@@ -145,6 +154,7 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
         
         statsMap = new HashMap<TargetTableDefintion, WriteStats>();
         lastStatsLogTime = System.currentTimeMillis();
+        pendingRowCount = 0;
     }
 
     @Override
@@ -152,19 +162,27 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
         return false;
     }
 
+    /*
+     * Rows are held until commit.interval rows have been received or the unit
+     * of work ends, so that rows for the same statement in several messages
+     * are written together in one transaction. A message that would change
+     * the order in which the held rows are written is only added after the
+     * held rows have been written.
+     */
     @Override
     public void handle(final Message inputMessage, final ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
+        results.clear();
+        resultsBySql.clear();
         if (inputMessage instanceof EntityDataMessage) {
-            results.clear();
-            lastPreparedDml = null;
-
             if (error == null) {
                 if (databasePlatform == null) {
                     if (getResourceRuntime() == null) {
                         throw new RuntimeException("The data source resource has not been configured.  Please configure it.");
                     }
                     DataSource dataSource = (DataSource) getResourceReference();
-                    databasePlatform = JdbcDatabasePlatformFactory.createNewPlatformInstance(dataSource, new SqlTemplateSettings(),
+                    SqlTemplateSettings settings = new SqlTemplateSettings();
+                    settings.setBatchSize(batchSize);
+                    databasePlatform = JdbcDatabasePlatformFactory.createNewPlatformInstance(dataSource, settings,
                             quoteIdentifiers, false);
                 }
                 if (targetTables == null) {
@@ -176,7 +194,7 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
                         Table table = resource != null ? resource.getTableFromCache(catalogName, schemaName, tableName) : null;
                         if (table == null || !useCachedMetadata) {
                             table = databasePlatform.getTableFromCache(catalogName, schemaName, tableName, true);
-                            if (resource != null) {
+                            if (resource != null && table != null) {
                                 resource.putTableInCache(catalogName, schemaName, tableName, table);
                             }
                         }
@@ -184,6 +202,9 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
                             table = createTableFromEntity(entity, tableName);
                             log(LogLevel.INFO, "Creating table: " + table.getName() + "  on db: " + databasePlatform.getDataSource().toString());
                             databasePlatform.createTables(false, false, table);
+                            if (resource != null) {
+                                resource.removeTableFromCache(catalogName, schemaName, tableName);
+                            }
                         }
                         if (table != null) {
                             targetTables.add(new TargetTableDefintion(entity, new TargetTable(DmlType.UPDATE, entity, table.copy()),
@@ -195,38 +216,53 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
 
                 ArrayList<EntityData> inputRows = ((EntityDataMessage) inputMessage).getPayload();
                 if (inputRows != null && inputRows.size() > 0) {
-                    ISqlTransaction transaction = databasePlatform.getSqlTemplate().startSqlTransaction();
-                    transaction.setInBatchMode(batchMode);
                     try {
-                        write(transaction, (EntityDataMessage)inputMessage, callback, unitOfWorkBoundaryReached);
-                        transaction.commit();
-                    } catch (Throwable ex) {
-                        error = ex;
-                        transaction.rollback();
-                        if (ex instanceof RuntimeException) {
-                            throw (RuntimeException) ex;
-                        } else {
-                            throw new RuntimeException(ex);
+                        if (pendingRowCount > 0 && !canAddToPendingRows(inputRows)) {
+                            writePendingRows();
                         }
-                    } finally {
-                        transaction.close();
+                        sortAndStoreRowsByTableAndOperation(inputRows);
+                        pendingRowCount += inputRows.size();
+                        if (pendingRowCount >= commitInterval) {
+                            writePendingRows();
+                            commit();
+                        }
+                    } catch (Throwable ex) {
+                        fail(ex);
                     }
                 }
-                if (callback != null && results.size() > 0) {
-                    callback.sendTextMessage(null, convertResultsToTextPayload(results));
-                }
             }
+        }
 
-            if (targetTables != null) {
-                for (TargetTableDefintion targetTable : targetTables) {
-                    targetTable.getDeleteTable().getRowValues().clear();
-                    targetTable.getInsertTable().getRowValues().clear();
-                    targetTable.getUpdateTable().getRowValues().clear();
-                }
+        if (unitOfWorkBoundaryReached) {
+            finishPendingRows();
+        }
+
+        if (callback != null && results.size() > 0) {
+            callback.sendTextMessage(null, convertResultsToTextPayload(results));
+        }
+    }
+
+    /*
+     * The step is stopped before the flow reports how it completed, so the
+     * rows that are still held are finished here. A flow that fails or is
+     * cancelled interrupts its components first, in which case the rows are
+     * rolled back. Otherwise the flow ended cleanly without reaching another
+     * unit of work boundary and the last rows are committed.
+     */
+    @Override
+    public void stop() {
+        try {
+            if (interrupted) {
+                rollback();
+            } else {
+                finishPendingRows();
             }
-        } 
+        } finally {
+            clearPendingRows();
+            super.stop();
+        }
     }
-    
+
     @Override
     public void flowCompleted(boolean cancelled) {
         writeStats(true);
@@ -234,8 +270,84 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
     
     @Override
     public void flowCompletedWithErrors(Throwable myError) {
+        rollback();
+        clearPendingRows();
         writeStats(true);
     }
+
+    private void finishPendingRows() {
+        if (error == null && (pendingRowCount > 0 || transaction != null)) {
+            try {
+                writePendingRows();
+                commit();
+            } catch (Throwable ex) {
+                fail(ex);
+            }
+        } else {
+            rollback();
+            clearPendingRows();
+        }
+    }
+
+    private void writePendingRows() {
+        if (pendingRowCount > 0) {
+            if (transaction == null) {
+                transaction = databasePlatform.getSqlTemplate().startSqlTransaction();
+                transaction.setInBatchMode(batchMode);
+                lastPreparedDml = null;
+            }
+            executeSqlByTableAndOperation(transaction);
+            clearPendingRows();
+            writeStats(false);
+        }
+    }
+
+    private void commit() {
+        if (transaction != null) {
+            try {
+                transaction.commit();
+            } finally {
+                transaction.close();
+                transaction = null;
+            }
+        }
+    }
+
+    private void rollback() {
+        if (transaction != null) {
+            try {
+                transaction.rollback();
+            } finally {
+                transaction.close();
+                transaction = null;
+            }
+        }
+    }
+
+    private void fail(Throwable ex) {
+        error = ex;
+        try {
+            rollback();
+        } finally {
+            clearPendingRows();
+        }
+        if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        } else {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void clearPendingRows() {
+        if (targetTables != null) {
+            for (TargetTableDefintion targetTable : targetTables) {
+                targetTable.getDeleteTable().getRowValues().clear();
+                targetTable.getInsertTable().getRowValues().clear();
+                targetTable.getUpdateTable().getRowValues().clear();
+            }
+        }
+        pendingRowCount = 0;
+    }
     
     protected Table createTableFromEntity(ModelEntity entity, String tableName) {
         Table table = new Table();
@@ -274,15 +386,18 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
             }
         }
 
+        return modelTable.getStatement().getValueArray(data.toArray(new Object[data.size()]),
+                getKeyValues(isUpdate, modelTable, inputRow));
+    }
+
+    private Object[] getKeyValues(boolean isUpdate, TargetTable modelTable, EntityData inputRow) {
         ArrayList<Object> keyValues = new ArrayList<Object>();
         for (TargetColumn modelColumn : modelTable.getKeyTargetColumns()) {
             if ((isUpdate && modelColumn.isUpdateEnabled()) || (!isUpdate && modelColumn.isInsertEnabled())) {
                 keyValues.add(inputRow.get(modelColumn.getModelAttribute().getId()));
             }
         }
-
-        return modelTable.getStatement().getValueArray(data.toArray(new Object[data.size()]),
-                keyValues.toArray(new Object[keyValues.size()]));
+        return keyValues.toArray(new Object[keyValues.size()]);
     }
 
     private void sortAndStoreRowsByTableAndOperation(List<EntityData> inputRows) {
@@ -291,13 +406,7 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
         int order = 0;
         for (EntityData inputRow : inputRows) {
             for (TargetTableDefintion targetTableDefinition : targetTables) {
-                if (inputRow.getChangeType() == ChangeType.DEL) {
-                    modelTable = targetTableDefinition.getDeleteTable();
-                } else if (updateFirst || inputRow.getChangeType() == ChangeType.CHG) {
-                    modelTable = targetTableDefinition.getUpdateTable();
-                } else if (inputRow.getChangeType() == ChangeType.ADD) {
-                    modelTable = targetTableDefinition.getInsertTable();
-                }
+                modelTable = getTargetTable(targetTableDefinition, inputRow, modelTable);
                 if (modelTable.shouldProcess(inputRow)) {
                     processedRow = true;
                     modelTable.getRowValues().add(inputRow);
@@ -326,6 +435,42 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
         Collections.sort(targetTables);
     }
 
+    private TargetTable getTargetTable(TargetTableDefintion targetTableDefinition, EntityData inputRow, TargetTable defaultTable) {
+        if (inputRow.getChangeType() == ChangeType.DEL) {
+            return targetTableDefinition.getDeleteTable();
+        } else if (updateFirst || inputRow.getChangeType() == ChangeType.CHG) {
+            return targetTableDefinition.getUpdateTable();
+        } else if (inputRow.getChangeType() == ChangeType.ADD) {
+            return targetTableDefinition.getInsertTable();
+        } else {
+            return defaultTable;
+        }
+    }
+
+    /*
+     * Held rows are written by table and then by operation. Rows can only be
+     * added to them if they use the same operation as the held rows of every
+     * table they are written to. Otherwise a delete could be moved in front
+     * of the insert it follows.
+     */
+    private boolean canAddToPendingRows(List<EntityData> inputRows) {
+        TargetTable modelTable = null;
+        for (EntityData inputRow : inputRows) {
+            for (TargetTableDefintion targetTableDefinition : targetTables) {
+                modelTable = getTargetTable(targetTableDefinition, inputRow, modelTable);
+                if (modelTable != null && modelTable.shouldProcess(inputRow)) {
+                    for (TargetTable targetTable : new TargetTable[] { targetTableDefinition.getDeleteTable(),
+                            targetTableDefinition.getUpdateTable(), targetTableDefinition.getInsertTable() }) {
+                        if (targetTable != modelTable && targetTable.getRowValues().size() > 0) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
     private void executeSqlByTableAndOperation(ISqlTransaction transaction) {
         for (TargetTableDefintion targetTableDefinition : targetTables) {
             WriteStats stats = getStats(targetTableDefinition);
@@ -345,19 +490,51 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
     }
 
     private void executeSqlDeletes(TargetTable targetTable, ISqlTransaction transaction, WriteStats stats) {
-        for (EntityData inputRow : targetTable.getRowValues()) {
-            Object[] rowData = getValues(false, targetTable, inputRow);
-            int count = executeSql(targetTable, transaction, rowData);
-            stats.deleteCount += count;
-        }
+        List<EntityData> rows = targetTable.getRowValues();
+        int count = executeRows(targetTable, transaction, rows);
+        addResult(targetTable, rows.size(), count);
+        stats.deleteCount += count;
     }
 
+    /*
+     * In batch mode the updates are run as one batch. The update count of the
+     * batch tells whether every row was updated or none were, in which case
+     * the insert fallback can be batched too. Otherwise only the rows that
+     * were not updated are run again one at a time to find out which ones
+     * need to fall back or fail.
+     */
     private void executeSqlChanges(TargetTableDefintion targetTableDefinition, ISqlTransaction transaction, WriteStats stats) {
+        TargetTable targetUpdateTable = targetTableDefinition.getUpdateTable();
+        TargetTable targetInsertTable = targetTableDefinition.getInsertTable();
+        List<EntityData> rows = targetUpdateTable.getRowValues();
+        if (batchMode && rows.size() > 0) {
+            int count = executeRows(targetUpdateTable, transaction, rows);
+            if (count == rows.size()) {
+                addResult(targetUpdateTable, rows.size(), count);
+                stats.updateCount += count;
+            } else if (count == 0 && insertFallback) {
+                addResult(targetUpdateTable, rows.size(), count);
+                count = executeRows(targetInsertTable, transaction, rows);
+                addResult(targetInsertTable, rows.size(), count);
+                stats.fallbackInsertCount += count;
+            } else {
+                addResult(targetUpdateTable, rows.size(), count);
+                stats.updateCount += count;
+                List<EntityData> missedRows = findMissingRows(targetUpdateTable, transaction, rows);
+                executeRowByRow(transaction, () -> executeSqlChangesByRow(targetTableDefinition, missedRows, transaction, stats));
+            }
+        } else {
+            executeSqlChangesByRow(targetTableDefinition, rows, transaction, stats);
+        }
+    }
+
+    private void executeSqlChangesByRow(TargetTableDefintion targetTableDefinition, List<EntityData> rows,
+            ISqlTransaction transaction, WriteStats stats) {
 
         TargetTable targetUpdateTable = targetTableDefinition.getUpdateTable();
         TargetTable targetInsertTable = targetTableDefinition.getInsertTable();
 
-        for (EntityData inputRow : targetUpdateTable.getRowValues()) {
+        for (EntityData inputRow : rows) {
             Object[] rowData = getValues(false, targetUpdateTable, inputRow);
             int count = executeSql(targetUpdateTable, transaction, rowData);
             stats.updateCount += count;
@@ -376,11 +553,45 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
         }
     }
 
+    /*
+     * Replacing rows in batch mode updates the rows first so that a batch of
+     * inserts does not fail on rows that already exist.
+     */
     private void executeSqlInserts(TargetTableDefintion targetTableDefinition, ISqlTransaction transaction, WriteStats stats) {
         TargetTable targetUpdateTable = targetTableDefinition.getUpdateTable();
         TargetTable targetInsertTable = targetTableDefinition.getInsertTable();
+        List<EntityData> rows = targetInsertTable.getRowValues();
+        if (batchMode && replaceRows && rows.size() > 0) {
+            int count = executeRows(targetUpdateTable, transaction, rows);
+            if (count == rows.size()) {
+                addResult(targetUpdateTable, rows.size(), count);
+                stats.fallbackUpdateCount += count;
+            } else if (count == 0) {
+                addResult(targetUpdateTable, rows.size(), count);
+                count = executeRows(targetInsertTable, transaction, rows);
+                addResult(targetInsertTable, rows.size(), count);
+                stats.insertCount += count;
+            } else {
+                addResult(targetUpdateTable, rows.size(), count);
+                stats.fallbackUpdateCount += count;
+                List<EntityData> missedRows = findMissingRows(targetUpdateTable, transaction, rows);
+                executeRowByRow(transaction, () -> executeSqlInsertsByRow(targetTableDefinition, missedRows, transaction, stats));
+            }
+        } else if (batchMode) {
+            int count = executeRows(targetInsertTable, transaction, rows);
+            addResult(targetInsertTable, rows.size(), count);
+            stats.insertCount += count;
+        } else {
+            executeSqlInsertsByRow(targetTableDefinition, rows, transaction, stats);
+        }
+    }
 
-        for (EntityData inputRow : targetInsertTable.getRowValues()) {
+    private void executeSqlInsertsByRow(TargetTableDefintion targetTableDefinition, List<EntityData> rows,
+            ISqlTransaction transaction, WriteStats stats) {
+        TargetTable targetUpdateTable = targetTableDefinition.getUpdateTable();
+        TargetTable targetInsertTable = targetTableDefinition.getInsertTable();
+
+        for (EntityData inputRow : rows) {
             try {
                 Object[] rowData = getValues(false, targetInsertTable, inputRow);
                 int count = executeSql(targetInsertTable, transaction, rowData);
@@ -390,6 +601,7 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
                     log.debug("Falling back to update");
                     Object[] rowData = getValues(false, targetUpdateTable, inputRow);
                     int count = execute(transaction, targetUpdateTable.getStatement(), new Object(), rowData);
+                    addResult(targetUpdateTable, 1, count);
                     stats.fallbackUpdateCount += count;
                 } else if (!continueOnError) {
                     throw e;
@@ -401,20 +613,82 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
     }
 
     private int executeSql(TargetTable targetTable, ISqlTransaction transaction, Object[] rowData) {
-
         int count = execute(transaction, targetTable.getStatement(), new Object(), rowData);
-        if (count > 0) {
-            results.add(new Result(targetTable.getStatement().getSql(), count));
-            totalStatementCount++;
-            getComponentStatistics().incrementNumberEntitiesProcessed(count);
+        addResult(targetTable, 1, count);
+        return count;
+    }
+
+    /**
+     * Adds all rows to the statement of the target table and flushes the
+     * batch.
+     * 
+     * @return the number of rows affected
+     */
+    private int executeRows(TargetTable targetTable, ISqlTransaction transaction, List<EntityData> rows) {
+        int count = 0;
+        for (EntityData inputRow : rows) {
+            count += execute(transaction, targetTable.getStatement(), new Object(), getValues(false, targetTable, inputRow));
+        }
+        long ts = System.currentTimeMillis();
+        try {
+            count += transaction.flush();
+        } finally {
+            sqlDuration += System.currentTimeMillis() - ts;
         }
         return count;
     }
 
-    private void write(ISqlTransaction transaction, EntityDataMessage inputMessage, ISendMessageCallback callback, boolean unitOfWorkLastMessage) {
-        sortAndStoreRowsByTableAndOperation(inputMessage.getPayload());
-        executeSqlByTableAndOperation(transaction);
-        writeStats(false);       
+    /**
+     * The update count of a batch is only known in total, so the rows that
+     * were not updated are found by counting the rows that have their keys.
+     * 
+     * @return the rows that do not exist in the target table
+     */
+    private List<EntityData> findMissingRows(TargetTable targetTable, ISqlTransaction transaction, List<EntityData> rows) {
+        List<EntityData> missingRows = new ArrayList<EntityData>();
+        String sql = targetTable.getCountStatement().getSql();
+        long ts = System.currentTimeMillis();
+        try {
+            for (EntityData inputRow : rows) {
+                if (transaction.queryForInt(sql, getKeyValues(false, targetTable, inputRow)) == 0) {
+                    missingRows.add(inputRow);
+                }
+            }
+        } finally {
+            sqlDuration += System.currentTimeMillis() - ts;
+        }
+        return missingRows;
+    }
+
+    private void executeRowByRow(ISqlTransaction transaction, Runnable runnable) {
+        transaction.setInBatchMode(false);
+        lastPreparedDml = null;
+        try {
+            runnable.run();
+        } finally {
+            transaction.setInBatchMode(batchMode);
+            lastPreparedDml = null;
+        }
+    }
+
+    /*
+     * Every row that is run is one statement, whether it was batched or not,
+     * while count is the number of rows the statements changed
+     */
+    private void addResult(TargetTable targetTable, int statementCount, int count) {
+        totalStatementCount += statementCount;
+        if (count > 0) {
+            String sql = targetTable.getStatement().getSql();
+            Result result = resultsBySql.get(sql);
+            if (result == null) {
+                result = new Result(sql, count);
+                resultsBySql.put(sql, result);
+                results.add(result);
+            } else {
+                result.numberRowsAffected += count;
+            }
+            getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber, count);
+        }
     }
 
     private void writeStats(boolean force) {
@@ -546,6 +820,14 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
         this.batchMode = batchMode;
     }
 
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setCommitInterval(int commitInterval) {
+        this.commitInterval = commitInterval;
+    }
+
     public void setFitToColumn(boolean fitToColumn) {
         this.fitToColumn = fitToColumn;
     }
@@ -644,6 +926,7 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
     class TargetTable {
         Table table;
         DmlStatement statement;
+        DmlStatement countStatement;
         List<TargetColumn> keyTargetColumns = new ArrayList<TargetColumn>();
         List<TargetColumn> targetColumns = new ArrayList<TargetColumn>();
         List<EntityData> rowValues = new ArrayList<EntityData>();
@@ -699,6 +982,13 @@ public class RdbmsWriter extends AbstractRdbmsComponentRuntime {
             return statement;
         }
 
+        public DmlStatement getCountStatement() {
+            if (countStatement == null) {
+                countStatement = databasePlatform.createDmlStatement(DmlType.COUNT, table, null);
+            }
+            return countStatement;
+        }
+
         public void setTable(Table table) {
             this.table = table;
         }
@@ -0,0 +1,123 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.apache.commons.lang.StringUtils.isBlank;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.jumpmind.db.platform.IDatabasePlatform;
+import org.jumpmind.db.platform.JdbcDatabasePlatformFactory;
+import org.jumpmind.db.sql.SqlTemplateSettings;
+import org.jumpmind.metl.core.model.Agent;
+import org.jumpmind.metl.core.model.AgentProjectVersionFlowDeployment;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Resource;
+import org.jumpmind.metl.core.plugin.XMLComponentDefinition;
+import org.jumpmind.metl.core.plugin.XMLSetting;
+import org.jumpmind.metl.core.runtime.IDeployedResourcesAware;
+import org.jumpmind.metl.core.runtime.flow.FlowRuntime;
+import org.jumpmind.metl.core.runtime.resource.IDatasourceRuntime;
+import org.jumpmind.metl.core.runtime.resource.IResourceRuntime;
+import org.jumpmind.properties.TypedProperties;
+import org.jumpmind.util.FormatUtils;
+
+/**
+ * Loads the metadata for the tables a writer that uses cached table metadata
+ * writes to when its flow is deployed. The tables are loaded in the
+ * background by the datasource so that writers that share a datasource warm
+ * its cache in parallel and the first run of the flow does not have to read
+ * the metadata table by table.
+ */
+public class RdbmsWriterDeploymentListener implements IComponentDeploymentListener, IDeployedResourcesAware {
+
+    Map<String, IResourceRuntime> deployedResources;
+
+    IDatabasePlatform databasePlatform;
+
+    @Override
+    public void onDeploy(Agent agent, AgentProjectVersionFlowDeployment agentProjectVersionFlowDeployment, FlowStep flowStep,
+            XMLComponentDefinition componentDefinition) {
+        TypedProperties properties = getTypedProperties(flowStep, componentDefinition);
+        Resource resource = flowStep.getComponent().getResource();
+        Model model = flowStep.getComponent().getInputModel();
+        if (!properties.is(RdbmsWriter.USE_CACHED_METADATA, false) || resource == null || model == null || deployedResources == null) {
+            return;
+        }
+        IResourceRuntime resourceRuntime = deployedResources.get(resource.getId());
+        if (!(resourceRuntime instanceof IDatasourceRuntime)) {
+            return;
+        }
+
+        IDatasourceRuntime datasource = (IDatasourceRuntime) resourceRuntime;
+        Map<String, String> parameters = FlowRuntime.getFlowParameters(agent, agentProjectVersionFlowDeployment);
+        String catalogName = FormatUtils.replaceTokens(properties.get(RdbmsWriter.CATALOG), parameters, true);
+        String schemaName = FormatUtils.replaceTokens(properties.get(RdbmsWriter.SCHEMA), parameters, true);
+        String tablePrefix = properties.get(RdbmsWriter.TABLE_PREFIX, "");
+        String tableSuffix = properties.get(RdbmsWriter.TABLE_SUFFIX, "");
+        final String catalog = isBlank(catalogName) ? null : catalogName;
+        final String schema = isBlank(schemaName) ? null : schemaName;
+        boolean quoteIdentifiers = properties.is(RdbmsWriter.QUOTE_IDENTIFIERS);
+        for (ModelEntity entity : model.getModelEntities()) {
+            final String tableName = (tablePrefix != null ? tablePrefix : "") + entity.getName() + (tableSuffix != null ? tableSuffix : "");
+            datasource.warmTableCache(catalog, schema, tableName, () -> getDatabasePlatform(datasource, quoteIdentifiers)
+                    .getTableFromCache(catalog, schema, tableName, true));
+        }
+    }
+
+    @Override
+    public void onUndeploy(Agent agent, AgentProjectVersionFlowDeployment agentProjectVersionFlowDeployment, FlowStep flowStep,
+            XMLComponentDefinition componentDefinition) {
+    }
+
+    @Override
+    public void setDeployedResources(Map<String, IResourceRuntime> deployedResources) {
+        this.deployedResources = deployedResources;
+    }
+
+    /*
+     * Creating a platform connects to the database, so it is done by the first
+     * load instead of holding up the deployment.
+     */
+    protected synchronized IDatabasePlatform getDatabasePlatform(IDatasourceRuntime datasource, boolean quoteIdentifiers) {
+        if (databasePlatform == null) {
+            DataSource dataSource = datasource.reference();
+            databasePlatform = JdbcDatabasePlatformFactory.createNewPlatformInstance(dataSource, new SqlTemplateSettings(),
+                    quoteIdentifiers, false);
+        }
+        return databasePlatform;
+    }
+
+    protected TypedProperties getTypedProperties(FlowStep flowStep, XMLComponentDefinition componentDefinition) {
+        List<XMLSetting> settings = componentDefinition != null ? componentDefinition.getSettings().getSetting() : null;
+        if (settings == null) {
+            settings = Collections.emptyList();
+        }
+        return flowStep.getComponent().toTypedProperties(settings);
+    }
+
+}
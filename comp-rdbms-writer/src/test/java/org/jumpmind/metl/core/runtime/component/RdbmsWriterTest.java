@@ -0,0 +1,314 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jumpmind.db.model.Column;
+import org.jumpmind.db.model.Table;
+import org.jumpmind.db.platform.IDatabasePlatform;
+import org.jumpmind.db.sql.DmlStatement;
+import org.jumpmind.db.sql.DmlStatement.DmlType;
+import org.jumpmind.db.sql.ISqlTemplate;
+import org.jumpmind.db.sql.ISqlTransaction;
+import org.jumpmind.db.sql.UniqueKeyException;
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.ComponentAttributeSetting;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttribute;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Resource;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityData.ChangeType;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.runtime.resource.IDatasourceRuntime;
+import org.jumpmind.metl.core.runtime.resource.IResourceRuntime;
+import org.jumpmind.metl.core.util.NameValue;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RdbmsWriterTest {
+
+    /*
+     * The PERSON table, by ID. Statements are applied as soon as they are
+     * added, and in batch mode their update counts are only returned by
+     * flush, like a JDBC batch.
+     */
+    Map<Object, Object> people;
+
+    ISqlTransaction transaction;
+
+    boolean inBatchMode;
+
+    String preparedSql;
+
+    int unflushedCount;
+
+    int updateCount;
+
+    @Before
+    public void setup() {
+        people = new HashMap<Object, Object>();
+        transaction = mock(ISqlTransaction.class);
+        doAnswer(invocation -> {
+            inBatchMode = (Boolean) invocation.getArguments()[0];
+            return null;
+        }).when(transaction).setInBatchMode(anyBoolean());
+        doAnswer(invocation -> {
+            preparedSql = (String) invocation.getArguments()[0];
+            return null;
+        }).when(transaction).prepare(anyString());
+        when(transaction.addRow(any(), any(Object[].class), any(int[].class))).thenAnswer(invocation -> {
+            int count = apply(preparedSql, (Object[]) invocation.getArguments()[1]);
+            if (inBatchMode) {
+                unflushedCount += count;
+                return 0;
+            }
+            return count;
+        });
+        when(transaction.flush()).thenAnswer(invocation -> {
+            int count = unflushedCount;
+            unflushedCount = 0;
+            return count;
+        });
+        when(transaction.queryForInt(eq("count"), anyVararg())).thenAnswer(invocation -> {
+            return people.containsKey(invocation.getArguments()[1]) ? 1 : 0;
+        });
+    }
+
+    @Test
+    public void testBatchInserts() {
+        RdbmsWriter writer = createWriter(new Setting(RdbmsWriter.BATCH_MODE, "true"));
+        writer.handle(message(person(ChangeType.ADD, 1, "One"), person(ChangeType.ADD, 2, "Two"), person(ChangeType.ADD, 3, "Three")),
+                null, true);
+        assertEquals(3, people.size());
+        assertEquals(3, writer.totalStatementCount);
+        assertEquals(3, writer.getComponentStatistics().getNumberEntitiesProcessed(0));
+        verify(transaction, times(1)).commit();
+    }
+
+    @Test
+    public void testBatchUpdatesFallBackToBatchInsertsWhenNoRowWasUpdated() {
+        RdbmsWriter writer = createWriter(new Setting(RdbmsWriter.BATCH_MODE, "true"), new Setting(RdbmsWriter.INSERT_FALLBACK, "true"));
+        writer.handle(message(person(ChangeType.CHG, 1, "One"), person(ChangeType.CHG, 2, "Two")), null, true);
+        assertEquals("One", people.get(1));
+        assertEquals("Two", people.get(2));
+        assertEquals(4, writer.totalStatementCount);
+        assertEquals(2, writer.getComponentStatistics().getNumberEntitiesProcessed(0));
+        verify(transaction, never()).setInBatchMode(false);
+    }
+
+    @Test
+    public void testBatchUpdatesFallBackRowByRowWhenSomeRowsWereUpdated() {
+        people.put(1, "Old");
+        RdbmsWriter writer = createWriter(new Setting(RdbmsWriter.BATCH_MODE, "true"), new Setting(RdbmsWriter.INSERT_FALLBACK, "true"));
+        writer.handle(message(person(ChangeType.CHG, 1, "One"), person(ChangeType.CHG, 2, "Two")), null, true);
+        assertEquals("One", people.get(1));
+        assertEquals("Two", people.get(2));
+        verify(transaction).setInBatchMode(false);
+        assertTrue(inBatchMode);
+        /* only the row that was not updated is run again */
+        assertEquals(3, updateCount);
+        assertEquals(4, writer.totalStatementCount);
+        assertEquals(2, writer.getComponentStatistics().getNumberEntitiesProcessed(0));
+    }
+
+    @Test
+    public void testBatchReplaceOnlyInsertsRowsThatWereNotUpdated() {
+        people.put(1, "Old");
+        RdbmsWriter writer = createWriter(new Setting(RdbmsWriter.BATCH_MODE, "true"), new Setting(RdbmsWriter.REPLACE, "true"));
+        writer.handle(message(person(ChangeType.ADD, 1, "One"), person(ChangeType.ADD, 2, "Two"), person(ChangeType.ADD, 3, "Three")),
+                null, true);
+        assertEquals("One", people.get(1));
+        assertEquals("Two", people.get(2));
+        assertEquals("Three", people.get(3));
+        assertEquals(3, updateCount);
+        assertEquals(5, writer.totalStatementCount);
+        assertEquals(3, writer.getComponentStatistics().getNumberEntitiesProcessed(0));
+        verify(transaction, times(1)).commit();
+    }
+
+    @Test
+    public void testBatchReplaceUpdatesExistingRowsBeforeInserting() {
+        people.put(1, "Old");
+        RdbmsWriter writer = createWriter(new Setting(RdbmsWriter.BATCH_MODE, "true"), new Setting(RdbmsWriter.REPLACE, "true"));
+        writer.handle(message(person(ChangeType.ADD, 1, "One"), person(ChangeType.ADD, 2, "Two")), null, true);
+        assertEquals("One", people.get(1));
+        assertEquals("Two", people.get(2));
+        assertEquals(2, writer.getComponentStatistics().getNumberEntitiesProcessed(0));
+    }
+
+    @Test
+    public void testHeldRowsAreCommittedAtTheUnitOfWorkBoundary() {
+        RdbmsWriter writer = createWriter(new Setting(RdbmsWriter.COMMIT_INTERVAL, "10"));
+        writer.handle(message(person(ChangeType.ADD, 1, "One")), null, false);
+        assertEquals(0, people.size());
+        writer.handle(message(person(ChangeType.ADD, 2, "Two")), null, true);
+        assertEquals(2, people.size());
+        verify(transaction, times(1)).commit();
+        writer.stop();
+        writer.flowCompleted(false);
+        verify(transaction, times(1)).commit();
+        verify(transaction, never()).rollback();
+    }
+
+    @Test
+    public void testHeldRowsAreCommittedWhenTheFlowEndsWithoutAUnitOfWorkBoundary() {
+        RdbmsWriter writer = createWriter(new Setting(RdbmsWriter.COMMIT_INTERVAL, "10"));
+        writer.handle(message(person(ChangeType.ADD, 1, "One")), null, false);
+        writer.handle(message(person(ChangeType.ADD, 2, "Two")), null, false);
+        assertEquals(0, people.size());
+        writer.stop();
+        writer.flowCompleted(false);
+        assertEquals(2, people.size());
+        verify(transaction, times(1)).commit();
+        verify(transaction, never()).rollback();
+    }
+
+    @Test
+    public void testHeldRowsAreRolledBackWhenStoppedBeforeTheUnitOfWorkBoundary() {
+        RdbmsWriter writer = createWriter(new Setting(RdbmsWriter.COMMIT_INTERVAL, "10"));
+        writer.handle(message(person(ChangeType.ADD, 1, "One")), null, false);
+        /* the delete has to wait for the held insert to be written */
+        writer.handle(message(person(ChangeType.DEL, 1, null)), null, false);
+        assertEquals(1, people.size());
+        /* a failed flow interrupts its components before they are stopped */
+        writer.interrupt();
+        writer.stop();
+        writer.flowCompletedWithErrors(new Exception());
+        verify(transaction, never()).commit();
+        verify(transaction).rollback();
+        assertEquals(1, people.size());
+    }
+
+    protected int apply(String sql, Object[] values) {
+        if (sql.equals("insert")) {
+            if (people.containsKey(values[0])) {
+                throw new UniqueKeyException(new SQLException("Duplicate key " + values[0]));
+            }
+            people.put(values[0], values[1]);
+            return 1;
+        } else if (sql.equals("update")) {
+            updateCount++;
+            if (people.containsKey(values[2])) {
+                people.put(values[2], values[1]);
+                return 1;
+            }
+            return 0;
+        } else {
+            return people.remove(values[0]) != null ? 1 : 0;
+        }
+    }
+
+    protected RdbmsWriter createWriter(Setting... settings) {
+        ModelEntity person = new ModelEntity("person", "PERSON");
+        ModelAttribute id = new ModelAttribute("person.id", person.getId(), "ID");
+        id.setPk(true);
+        person.addModelAttribute(id);
+        person.addModelAttribute(new ModelAttribute("person.name", person.getId(), "NAME"));
+        Model model = new Model();
+        model.getModelEntities().add(person);
+
+        Resource resource = new Resource("database");
+        Map<String, IResourceRuntime> deployedResources = new HashMap<String, IResourceRuntime>();
+        deployedResources.put(resource.getId(), mock(IDatasourceRuntime.class));
+        Component component = TestUtils.createComponent(RdbmsWriter.TYPE, false, resource, model, null, null,
+                new ArrayList<ComponentAttributeSetting>(), settings);
+
+        Table table = new Table("PERSON");
+        table.addColumn(new Column("ID", true));
+        table.addColumn(new Column("NAME", false));
+        ISqlTemplate sqlTemplate = mock(ISqlTemplate.class);
+        when(sqlTemplate.startSqlTransaction()).thenReturn(transaction);
+        IDatabasePlatform platform = mock(IDatabasePlatform.class);
+        when(platform.getSqlTemplate()).thenReturn(sqlTemplate);
+        when(platform.getTableFromCache(any(String.class), any(String.class), eq("PERSON"), anyBoolean())).thenReturn(table);
+        when(platform.createDmlStatement(any(DmlType.class), any(Table.class), (String) isNull())).thenAnswer(invocation -> {
+            return statement((DmlType) invocation.getArguments()[0]);
+        });
+
+        RdbmsWriter writer = new RdbmsWriter();
+        writer.setContext(new ComponentContext(null, new FlowStep(component), null, new ExecutionTrackerNoOp(), deployedResources,
+                null, null));
+        writer.databasePlatform = platform;
+        writer.start();
+        return writer;
+    }
+
+    protected static DmlStatement statement(DmlType dmlType) {
+        DmlStatement statement = mock(DmlStatement.class);
+        when(statement.getSql()).thenReturn(dmlType.name().toLowerCase());
+        when(statement.getValueArray(any(Object[].class), any(Object[].class))).thenAnswer(invocation -> {
+            Object[] columnValues = (Object[]) invocation.getArguments()[0];
+            Object[] keyValues = (Object[]) invocation.getArguments()[1];
+            if (dmlType == DmlType.DELETE) {
+                return keyValues;
+            } else if (dmlType == DmlType.UPDATE) {
+                Object[] values = new Object[columnValues.length + keyValues.length];
+                System.arraycopy(columnValues, 0, values, 0, columnValues.length);
+                System.arraycopy(keyValues, 0, values, columnValues.length, keyValues.length);
+                return values;
+            } else {
+                return columnValues;
+            }
+        });
+        return statement;
+    }
+
+    protected static EntityDataMessage message(EntityData... rows) {
+        EntityDataMessage message = new EntityDataMessage("");
+        ArrayList<EntityData> payload = new ArrayList<EntityData>();
+        for (EntityData row : rows) {
+            payload.add(row);
+        }
+        message.setPayload(payload);
+        return message;
+    }
+
+    protected static EntityData person(ChangeType changeType, Object id, String name) {
+        EntityData data = new EntityData(new NameValue("person.id", id), new NameValue("person.name", name));
+        data.setChangeType(changeType);
+        return data;
+    }
+
+}
@@ -24,6 +24,7 @@ import static org.apache.commons.lang.StringUtils.isNotBlank;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -32,10 +33,10 @@ import java.util.Set;
 
 import javax.script.Bindings;
 import javax.script.ScriptContext;
-import javax.script.ScriptEngine;
-import javax.script.ScriptException;
 
+import org.codehaus.groovy.control.CompilationFailedException;
 import org.codehaus.groovy.jsr223.GroovyScriptEngineImpl;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.jumpmind.exception.IoException;
 import org.jumpmind.metl.core.model.FlowStepLink;
 import org.jumpmind.metl.core.runtime.ControlMessage;
@@ -47,6 +48,10 @@ import org.jumpmind.metl.core.runtime.TextMessage;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
 import org.jumpmind.properties.TypedProperties;
 
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
+
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
@@ -60,7 +65,9 @@ public class ContentRouter extends AbstractComponentRuntime {
 
     List<Route> routes;
 
-    ScriptEngine scriptEngine;
+    List<CompiledRoute> compiledRoutes;
+
+    GroovyScriptEngineImpl scriptEngine;
 
     boolean onlyRouteFirstMatch;
 
@@ -90,6 +97,27 @@ public class ContentRouter extends AbstractComponentRuntime {
             } catch (Exception e) {
                 throw new IoException(e);
             }
+            compileRoutes();
+        }
+    }
+
+    protected void compileRoutes() {
+        Set<String> reservedNames = new HashSet<>(Arrays.asList("inputMessage", "text", "CHANGE_TYPE", "ENTITY_NAMES"));
+        if (context.getFlowParameters() != null) {
+            reservedNames.addAll(context.getFlowParameters().keySet());
+        }
+        GroovyClassLoader classLoader = scriptEngine.getClassLoader();
+        compiledRoutes = new ArrayList<>(routes.size());
+        for (Route route : routes) {
+            try {
+                Script script = InvokerHelper.createScript(classLoader.parseClass(route.getMatchExpression()), new Binding());
+                SimpleRouteExpression simpleExpression = SimpleRouteExpression.parse(route.getMatchExpression(), getInputModel(),
+                        reservedNames);
+                compiledRoutes.add(new CompiledRoute(route, script, simpleExpression));
+            } catch (CompilationFailedException e) {
+                throw new MisconfiguredException("Could not compile the route expression '%s'. %s", route.getMatchExpression(),
+                        e.getMessage());
+            }
         }
     }
 
@@ -121,29 +149,40 @@ public class ContentRouter extends AbstractComponentRuntime {
 
         for (EntityData entityData : inputDatas) {
             getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
-            bindEntityData(scriptEngine, inputMessage, entityData);
-            if (routes != null) {
-                for (Route route : routes) {
-                    try {
-                        if (Boolean.TRUE.equals(scriptEngine.eval(route.getMatchExpression()))) {
-                            ArrayList<EntityData> outboundPayload = outboundMessages.get(route.getTargetStepId());
-                            if (outboundPayload != null && outboundPayload.size() >= rowsPerMessage) {
-                                outboundMessages.remove(route.getTargetStepId());
-                                callback.sendEntityDataMessage(null, outboundPayload, route.getTargetStepId());
-                                targetStepsThatNeedControlMessages.add(route.getTargetStepId());
-                                outboundPayload = null;
-                            }
-                            if (outboundPayload == null) {
-                                outboundPayload = new ArrayList<EntityData>();
-                                outboundMessages.put(route.getTargetStepId(), outboundPayload);
-                            }
-                            outboundPayload.add(entityData.copy());
-                            if (onlyRouteFirstMatch) {
-                                break;
-                            }
+            Binding binding = null;
+            int matches = 0;
+            if (compiledRoutes != null) {
+                for (CompiledRoute compiledRoute : compiledRoutes) {
+                    Route route = compiledRoute.route;
+                    Boolean matched = compiledRoute.simpleExpression != null
+                            ? compiledRoute.simpleExpression.evaluate(inputMessage, entityData) : null;
+                    if (matched == null) {
+                        if (binding == null) {
+                            binding = new Binding(bindEntityData(scriptEngine, inputMessage, entityData));
+                        }
+                        matched = Boolean.TRUE.equals(compiledRoute.run(binding));
+                    }
+                    if (matched) {
+                        ArrayList<EntityData> outboundPayload = outboundMessages.get(route.getTargetStepId());
+                        if (outboundPayload != null && outboundPayload.size() >= rowsPerMessage) {
+                            outboundMessages.remove(route.getTargetStepId());
+                            callback.sendEntityDataMessage(null, outboundPayload, route.getTargetStepId());
+                            targetStepsThatNeedControlMessages.add(route.getTargetStepId());
+                            outboundPayload = null;
+                        }
+                        if (outboundPayload == null) {
+                            outboundPayload = new ArrayList<EntityData>();
+                            outboundMessages.put(route.getTargetStepId(), outboundPayload);
+                        }
+                        /*
+                         * Outbound messages are copied for targets that modify
+                         * them, so a row only needs its own copy when it is
+                         * routed more than once
+                         */
+                        outboundPayload.add(matches++ == 0 ? entityData : entityData.copy());
+                        if (onlyRouteFirstMatch) {
+                            break;
                         }
-                    } catch (ScriptException e) {
-                        throw new RuntimeException(e);
                     }
                 }
             }
@@ -159,18 +198,16 @@ public class ContentRouter extends AbstractComponentRuntime {
         Bindings bindings = scriptEngine.createBindings();
         bindHeadersAndFlowParameters(bindings, inputMessage);
         scriptEngine.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
-        if (routes != null) {
-            for (Route route : routes) {
-                try {
-                    if (Boolean.TRUE.equals(scriptEngine.eval(route.getMatchExpression()))) {
-                        callback.sendControlMessage(inputMessage.getHeader(), route.getTargetStepId());
-                        targetStepsThatNeedControlMessages.remove(route.getTargetStepId());
-                        if (onlyRouteFirstMatch) {
-                            break;
-                        }
+        Binding binding = new Binding(bindings);
+        if (compiledRoutes != null) {
+            for (CompiledRoute compiledRoute : compiledRoutes) {
+                Route route = compiledRoute.route;
+                if (Boolean.TRUE.equals(compiledRoute.run(binding))) {
+                    callback.sendControlMessage(inputMessage.getHeader(), route.getTargetStepId());
+                    targetStepsThatNeedControlMessages.remove(route.getTargetStepId());
+                    if (onlyRouteFirstMatch) {
+                        break;
                     }
-                } catch (ScriptException e) {
-                    throw new RuntimeException(e);
                 }
             }
         }
@@ -181,28 +218,25 @@ public class ContentRouter extends AbstractComponentRuntime {
         ArrayList<String> inputDatas = (ArrayList<String>) inputMessage.getPayload();
         for (String data : inputDatas) {
             getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
-            bindStringData(scriptEngine, inputMessage, data);
-            if (routes != null) {
-                for (Route route : routes) {
-                    try {
-                        if (Boolean.TRUE.equals(scriptEngine.eval(route.getMatchExpression()))) {
-                            ArrayList<String> outboundPayload = outboundMessages.get(route.getTargetStepId());
-                            if (outboundPayload == null) {
-                                outboundPayload = new ArrayList<String>();
-                                outboundMessages.put(route.getTargetStepId(), outboundPayload);
-                            }
-                            if (outboundPayload.size() >= rowsPerMessage) {
-                                outboundMessages.remove(route.getTargetStepId());
-                                callback.sendTextMessage(null, outboundPayload, route.getTargetStepId());
-                                targetStepsThatNeedControlMessages.add(route.getTargetStepId());
-                            }
-                            outboundPayload.add(data);
-                            if (onlyRouteFirstMatch) {
-                                break;
-                            }
+            Binding binding = new Binding(bindStringData(scriptEngine, inputMessage, data));
+            if (compiledRoutes != null) {
+                for (CompiledRoute compiledRoute : compiledRoutes) {
+                    Route route = compiledRoute.route;
+                    if (Boolean.TRUE.equals(compiledRoute.run(binding))) {
+                        ArrayList<String> outboundPayload = outboundMessages.get(route.getTargetStepId());
+                        if (outboundPayload == null) {
+                            outboundPayload = new ArrayList<String>();
+                            outboundMessages.put(route.getTargetStepId(), outboundPayload);
+                        }
+                        if (outboundPayload.size() >= rowsPerMessage) {
+                            outboundMessages.remove(route.getTargetStepId());
+                            callback.sendTextMessage(null, outboundPayload, route.getTargetStepId());
+                            targetStepsThatNeedControlMessages.add(route.getTargetStepId());
+                        }
+                        outboundPayload.add(data);
+                        if (onlyRouteFirstMatch) {
+                            break;
                         }
-                    } catch (ScriptException e) {
-                        throw new RuntimeException(e);
                     }
                 }
             }
@@ -215,6 +249,26 @@ public class ContentRouter extends AbstractComponentRuntime {
 
     }
 
+    static class CompiledRoute {
+
+        final Route route;
+
+        final Script script;
+
+        final SimpleRouteExpression simpleExpression;
+
+        CompiledRoute(Route route, Script script, SimpleRouteExpression simpleExpression) {
+            this.route = route;
+            this.script = script;
+            this.simpleExpression = simpleExpression;
+        }
+
+        Object run(Binding binding) {
+            script.setBinding(binding);
+            return script.run();
+        }
+    }
+
     static public class Route implements Serializable {
         
         private static final long serialVersionUID = 1L;
@@ -0,0 +1,363 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttribute;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.Message;
+
+/**
+ * Evaluates route expressions that only compare entity attributes, the change
+ * type and literals without going through the script engine. Comparisons may
+ * be joined with &amp;&amp; so that ranges can be expressed. For example:
+ *
+ * <pre>
+ * ORDER.STATUS == 'NEW' &amp;&amp; ORDER.AMOUNT &gt;= 100 &amp;&amp; ORDER.AMOUNT &lt; 1000
+ * </pre>
+ *
+ * Only values whose Groovy comparison semantics are known (strings, numbers,
+ * booleans and null) are compared. For anything else {@link #evaluate}
+ * returns null and the caller has to evaluate the script instead.
+ */
+class SimpleRouteExpression {
+
+    static final String CHANGE_TYPE = "CHANGE_TYPE";
+
+    static final Pattern TOKEN = Pattern.compile("\\s*(?:(&&)|(==|!=|<=|>=|<|>)|'([^'\\\\]*)'|\"([^\"\\\\$]*)\"|"
+            + "(-?\\d+(?:\\.\\d+)?)(?![\\w.])|([A-Za-z_]\\w*(?:\\.[A-Za-z_]\\w*)?))\\s*");
+
+    final List<Comparison> comparisons;
+
+    final Set<String> entityNames;
+
+    SimpleRouteExpression(List<Comparison> comparisons, Set<String> entityNames) {
+        this.comparisons = comparisons;
+        this.entityNames = entityNames;
+    }
+
+    /**
+     * @return null if the expression is not simple enough to be evaluated
+     *         without a script
+     */
+    static SimpleRouteExpression parse(String expression, Model model, Collection<String> reservedNames) {
+        if (expression == null || model == null) {
+            return null;
+        }
+        List<Object> tokens = new ArrayList<>();
+        Matcher matcher = TOKEN.matcher(expression);
+        int position = 0;
+        while (position < expression.length()) {
+            matcher.region(position, expression.length());
+            if (!matcher.lookingAt()) {
+                return null;
+            }
+            if (matcher.group(1) != null) {
+                tokens.add(Boolean.TRUE);
+            } else if (matcher.group(2) != null) {
+                tokens.add(Operator.of(matcher.group(2)));
+            } else if (matcher.group(3) != null || matcher.group(4) != null) {
+                tokens.add(new Literal(matcher.group(3) != null ? matcher.group(3) : matcher.group(4)));
+            } else if (matcher.group(5) != null) {
+                tokens.add(new Literal(toNumber(matcher.group(5))));
+            } else if (matcher.group(6) != null) {
+                tokens.add(matcher.group(6));
+            }
+            position = matcher.end();
+        }
+
+        Set<String> entityNames = new HashSet<>();
+        List<Comparison> comparisons = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); i += 4) {
+            boolean last = i + 3 == tokens.size();
+            if (i + 2 >= tokens.size() || (!last && (tokens.get(i + 3) != Boolean.TRUE || i + 4 == tokens.size()))) {
+                return null;
+            }
+            Operand left = toOperand(tokens.get(i), model, reservedNames, entityNames);
+            Object operator = tokens.get(i + 1);
+            Operand right = toOperand(tokens.get(i + 2), model, reservedNames, entityNames);
+            if (left == null || right == null || !(operator instanceof Operator)) {
+                return null;
+            }
+            comparisons.add(new Comparison(left, (Operator) operator, right));
+        }
+        return comparisons.size() > 0 ? new SimpleRouteExpression(comparisons, entityNames) : null;
+    }
+
+    /**
+     * @return the result of the expression or null if the row has to be
+     *         evaluated by the script
+     */
+    Boolean evaluate(Message message, EntityData data) {
+        for (String entityName : entityNames) {
+            if (message.getHeader().containsKey(entityName)) {
+                return null;
+            }
+        }
+        for (Comparison comparison : comparisons) {
+            Boolean result = comparison.evaluate(data);
+            if (result == null) {
+                return null;
+            } else if (!result) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static Operand toOperand(Object token, Model model, Collection<String> reservedNames, Set<String> entityNames) {
+        if (token instanceof Literal) {
+            return (Literal) token;
+        } else if (token instanceof String) {
+            String name = (String) token;
+            if (name.equals("true") || name.equals("false")) {
+                return new Literal(Boolean.valueOf(name));
+            } else if (name.equals("null")) {
+                return new Literal(null);
+            } else if (name.equals(CHANGE_TYPE)) {
+                return new ChangeTypeOperand();
+            }
+            int dot = name.indexOf('.');
+            if (dot > 0) {
+                String entityName = name.substring(0, dot);
+                String attributeName = name.substring(dot + 1);
+                ModelEntity entity = findEntity(model, entityName);
+                if (entity != null && !reservedNames.contains(entityName)) {
+                    ModelAttribute attribute = findAttribute(entity, attributeName);
+                    if (attribute != null) {
+                        entityNames.add(entityName);
+                        return new AttributeOperand(attribute.getId());
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Entities are bound to the script by name, so an expression can only be
+     * resolved to a single attribute when the names are unique.
+     */
+    static ModelEntity findEntity(Model model, String entityName) {
+        ModelEntity found = null;
+        for (ModelEntity entity : model.getModelEntities()) {
+            if (entity.getName().equals(entityName)) {
+                if (found != null) {
+                    return null;
+                }
+                found = entity;
+            }
+        }
+        return found;
+    }
+
+    static ModelAttribute findAttribute(ModelEntity entity, String attributeName) {
+        ModelAttribute found = null;
+        for (ModelAttribute attribute : entity.getModelAttributes()) {
+            if (attribute.getName().equals(attributeName)) {
+                if (found != null) {
+                    return null;
+                }
+                found = attribute;
+            }
+        }
+        return found;
+    }
+
+    static Number toNumber(String text) {
+        if (text.indexOf('.') >= 0) {
+            return new BigDecimal(text);
+        }
+        BigInteger value = new BigInteger(text);
+        return value.bitLength() < 64 ? (Number) value.longValue() : value;
+    }
+
+    static boolean isNumber(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+                || value instanceof BigDecimal || value instanceof BigInteger || value instanceof Double || value instanceof Float;
+    }
+
+    static boolean isFloatingPoint(Object value) {
+        return value instanceof Double || value instanceof Float;
+    }
+
+    static boolean isIntegral(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+    }
+
+    static BigDecimal toBigDecimal(Number value) {
+        if (value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        } else if (value instanceof BigInteger) {
+            return new BigDecimal((BigInteger) value);
+        } else {
+            return BigDecimal.valueOf(value.longValue());
+        }
+    }
+
+    /**
+     * Compares numbers the way Groovy does. Floating point wins over
+     * BigDecimal, which wins over the integral types.
+     */
+    static Integer compareNumbers(Number left, Number right) {
+        if (isFloatingPoint(left) || isFloatingPoint(right)) {
+            double l = left.doubleValue();
+            double r = right.doubleValue();
+            if (Double.isNaN(l) || Double.isNaN(r) || (l == 0 && r == 0)) {
+                return null;
+            }
+            return l < r ? -1 : (l > r ? 1 : 0);
+        } else if (isIntegral(left) && isIntegral(right)) {
+            return Long.compare(left.longValue(), right.longValue());
+        } else {
+            return toBigDecimal(left).compareTo(toBigDecimal(right));
+        }
+    }
+
+    static Boolean compare(Object left, Operator operator, Object right) {
+        if (left == null || right == null) {
+            if (operator == Operator.EQ) {
+                return left == right;
+            } else if (operator == Operator.NE) {
+                return left != right;
+            } else {
+                return null;
+            }
+        }
+
+        Integer result = null;
+        if (left instanceof String && right instanceof String) {
+            result = ((String) left).compareTo((String) right);
+        } else if (isNumber(left) && isNumber(right)) {
+            result = compareNumbers((Number) left, (Number) right);
+        } else if (left instanceof Boolean && right instanceof Boolean && (operator == Operator.EQ || operator == Operator.NE)) {
+            result = left.equals(right) ? 0 : 1;
+        }
+        return result != null ? operator.test(result) : null;
+    }
+
+    enum Operator {
+
+        EQ("=="), NE("!="), LT("<"), LE("<="), GT(">"), GE(">=");
+
+        final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        static Operator of(String symbol) {
+            for (Operator operator : values()) {
+                if (operator.symbol.equals(symbol)) {
+                    return operator;
+                }
+            }
+            return null;
+        }
+
+        boolean test(int comparison) {
+            switch (this) {
+                case EQ:
+                    return comparison == 0;
+                case NE:
+                    return comparison != 0;
+                case LT:
+                    return comparison < 0;
+                case LE:
+                    return comparison <= 0;
+                case GT:
+                    return comparison > 0;
+                default:
+                    return comparison >= 0;
+            }
+        }
+    }
+
+    interface Operand {
+        Object valueOf(EntityData data);
+    }
+
+    static class Literal implements Operand {
+
+        final Object value;
+
+        Literal(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object valueOf(EntityData data) {
+            return value;
+        }
+    }
+
+    static class ChangeTypeOperand implements Operand {
+        @Override
+        public Object valueOf(EntityData data) {
+            return data.getChangeType() != null ? data.getChangeType().name() : null;
+        }
+    }
+
+    static class AttributeOperand implements Operand {
+
+        final String attributeId;
+
+        AttributeOperand(String attributeId) {
+            this.attributeId = attributeId;
+        }
+
+        @Override
+        public Object valueOf(EntityData data) {
+            return data.get(attributeId);
+        }
+    }
+
+    static class Comparison {
+
+        final Operand left;
+
+        final Operator operator;
+
+        final Operand right;
+
+        Comparison(Operand left, Operator operator, Operand right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        Boolean evaluate(EntityData data) {
+            return compare(left.valueOf(data), operator, right.valueOf(data));
+        }
+    }
+
+}
@@ -21,6 +21,8 @@
 package org.jumpmind.metl.core.runtime.component;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -108,6 +110,59 @@ public class ContentRouterTest {
         assertEquals("Route to 2", datas.get(0).get("tt2colx"));
     }
     
+    @Test
+    public void testRouteByRange() throws Exception {
+        setRoutes(new Route("TEST_TABLE_1.COL2 >= 10 && TEST_TABLE_1.COL2 < 20", "Target 1"),
+                new Route("TEST_TABLE_1.COL2 >= 20", "Target 2"));
+        SendMessageCallback<ArrayList<EntityData>> target = route(new EntityData(new NameValue("tt1col2", 15)),
+                new EntityData(new NameValue("tt1col2", 25L)), new EntityData(new NameValue("tt1col2", null)));
+        assertEquals(2, target.getPayloadList().size());
+        assertEquals(15, target.getPayloadList().get(0).get(0).get("tt1col2"));
+        assertEquals(25L, target.getPayloadList().get(1).get(0).get("tt1col2"));
+    }
+
+    @Test
+    public void testRouteWithScriptExpression() throws Exception {
+        setRoutes(new Route("TEST_TABLE_1.COL1?.startsWith('Route')", "Target 1"),
+                new Route("ENTITY_NAMES.contains('TEST_TABLE_2')", "Target 2"));
+        SendMessageCallback<ArrayList<EntityData>> target = route(new EntityData(new NameValue("tt1col1", "Route to 1")),
+                new EntityData(new NameValue("tt2colx", "Route to 2")));
+        assertEquals(2, target.getPayloadList().size());
+        assertEquals("Route to 1", target.getPayloadList().get(0).get(0).get("tt1col1"));
+        assertEquals("Route to 2", target.getPayloadList().get(1).get(0).get("tt2colx"));
+    }
+
+    @Test
+    public void testRowIsOnlyCopiedWhenRoutedMoreThanOnce() throws Exception {
+        setRoutes(new Route("TEST_TABLE_1.COL1 == 'Route to 1'", "Target 1"),
+                new Route("TEST_TABLE_1.COL1 != null", "Target 2"));
+        EntityData both = new EntityData(new NameValue("tt1col1", "Route to 1"));
+        EntityData one = new EntityData(new NameValue("tt1col1", "Route to 2"));
+        SendMessageCallback<ArrayList<EntityData>> target = route(both, one);
+        List<EntityData> target1 = new ArrayList<EntityData>();
+        List<EntityData> target2 = new ArrayList<EntityData>();
+        for (int i = 0; i < target.getPayloadList().size(); i++) {
+            if (target.getTargetStepIds().get(i).contains("Target 1")) {
+                target1.addAll(target.getPayloadList().get(i));
+            } else {
+                target2.addAll(target.getPayloadList().get(i));
+            }
+        }
+        assertEquals(1, target1.size());
+        assertSame(both, target1.get(0));
+        assertNotSame(both, target2.get(0));
+        assertEquals(both, target2.get(0));
+        assertSame(one, target2.get(1));
+    }
+
+    protected void setRoutes(Route... routes) throws Exception {
+        List<Route> list = new ArrayList<Route>();
+        for (Route route : routes) {
+            list.add(route);
+        }
+        step.getComponent().put(ContentRouter.SETTING_CONFIG, new ObjectMapper().writeValueAsString(list));
+    }
+
     protected SendMessageCallback<ArrayList<EntityData>> route(EntityData...data) {
         SendMessageCallback<ArrayList<EntityData>> target = new SendMessageCallback<ArrayList<EntityData>>();
         ContentRouter router = new ContentRouter();
@@ -20,10 +20,20 @@
  */
 package org.jumpmind.metl.core.runtime.component;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.jumpmind.exception.IoException;
 import org.jumpmind.metl.core.model.Component;
 import org.jumpmind.metl.core.model.Model;
 import org.jumpmind.metl.core.runtime.EntityData;
@@ -50,6 +60,10 @@ public class SequenceGenerator extends AbstractRdbmsComponentRuntime {
     public final static String RESET_ATTRIBUTE = "reset.attribute";
 
     public final static String SEQUENCE_START_VALUE = "sequence.start.value";
+
+    public final static String HIGH_WATER_MARK_FILE = "high.water.mark.file";
+
+    public final static String HIGH_WATER_MARK_INTERVAL = "high.water.mark.interval";
     
     String sequenceAttributeId;
 
@@ -69,7 +83,9 @@ public class SequenceGenerator extends AbstractRdbmsComponentRuntime {
     
     Object fieldChangeValue = null;
     
-    static final Map<String, Long> sharedSequence = new HashMap<String, Long>();
+    static final ConcurrentHashMap<String, SharedSequence> sharedSequences = new ConcurrentHashMap<String, SharedSequence>();
+
+    SharedSequence sharedSequence;
 
     @Override
     public void start() {
@@ -119,27 +135,36 @@ public class SequenceGenerator extends AbstractRdbmsComponentRuntime {
                     "The sequence attribute must be a valid 'entity.attribute' in the input model.");
         }
 
-        synchronized (SequenceGenerator.class) {
-            
-            if (sql != null && !sql.isEmpty()) {            
-                final String sqlToExecute = FormatUtils.replaceTokens(this.sql, context.getFlowParameters(), true);
-                log(LogLevel.DEBUG, "About to run: " + sqlToExecute);
-                nonSharedSequenceNumber = getJdbcTemplate().queryForObject(sqlToExecute, context.getFlowParameters(), Long.class);
-                if (nonSharedSequenceNumber == null) {
-                    nonSharedSequenceNumber = 1l;
-                }
-                sequenceStartValue = nonSharedSequenceNumber;
-            } else {
-                nonSharedSequenceNumber = sequenceStartValue;                
+        if (shared) {
+            sharedSequence = sharedSequences.computeIfAbsent(sharedName, name -> new SharedSequence(name));
+            String highWaterMarkFile = getComponent().get(HIGH_WATER_MARK_FILE);
+            if (highWaterMarkFile != null && !highWaterMarkFile.trim().isEmpty()) {
+                sharedSequence.persistTo(new File(FormatUtils.replaceTokens(highWaterMarkFile.trim(), context.getFlowParameters(), true)),
+                        getComponent().getLong(HIGH_WATER_MARK_INTERVAL, 1000));
             }
+        }
 
-            if (shared) {
-                Long currentValue = sharedSequence.get(sharedName);
-                if (currentValue == null || currentValue < nonSharedSequenceNumber) {
-                    info("'%s' is setting the shared sequence '%s' to %d", getFlowStep().getName(), sharedName, nonSharedSequenceNumber);
-                    sharedSequence.put(sharedName, nonSharedSequenceNumber);
-                }
+        Long highWaterMark = shared ? sharedSequence.resumeFromHighWaterMark() : null;
+        if (highWaterMark != null) {
+            info("Resuming the shared sequence '%s' from its high water mark of %d", sharedName, highWaterMark);
+            nonSharedSequenceNumber = highWaterMark;
+            if (sequenceStartValue == null) {
+                sequenceStartValue = highWaterMark;
             }
+        } else if (sql != null && !sql.isEmpty()) {            
+            final String sqlToExecute = FormatUtils.replaceTokens(this.sql, context.getFlowParameters(), true);
+            log(LogLevel.DEBUG, "About to run: " + sqlToExecute);
+            nonSharedSequenceNumber = getJdbcTemplate().queryForObject(sqlToExecute, context.getFlowParameters(), Long.class);
+            if (nonSharedSequenceNumber == null) {
+                nonSharedSequenceNumber = 1l;
+            }
+            sequenceStartValue = nonSharedSequenceNumber;
+        } else {
+            nonSharedSequenceNumber = sequenceStartValue;                
+        }
+
+        if (shared && sharedSequence.advanceTo(nonSharedSequenceNumber)) {
+            info("'%s' is setting the shared sequence '%s' to %d", getFlowStep().getName(), sharedName, nonSharedSequenceNumber);
         }
     }
     
@@ -153,27 +178,44 @@ public class SequenceGenerator extends AbstractRdbmsComponentRuntime {
         if (inputMessage instanceof EntityDataMessage) {
             ArrayList<EntityData> outgoingPayload = new ArrayList<EntityData>();
             ArrayList<EntityData> payload = ((EntityDataMessage)inputMessage).getPayload();
-            for (EntityData entityData : payload) {
-                entityData = entityData.copy();
+            if (!resetOnAttributeChange) {
+                /*
+                 * Without resets the values of a message are consecutive, so
+                 * they are reserved as one block.
+                 */
                 long sequence;
                 if (shared) {
-                    synchronized (SequenceGenerator.class) {
-                        Long sequenceNumber = sharedSequence.get(sharedName);
+                    sequence = sharedSequence.reserve(payload.size());
+                } else {
+                    sequence = nonSharedSequenceNumber + 1;
+                    nonSharedSequenceNumber += payload.size();
+                }
+                for (EntityData entityData : payload) {
+                    entityData = entityData.copy();
+                    entityData.put(sequenceAttributeId, sequence++);
+                    getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
+                    outgoingPayload.add(entityData);
+                }
+            } else {
+                for (EntityData entityData : payload) {
+                    entityData = entityData.copy();
+                    long sequence;
+                    if (shared) {
                         if (resetNeeded(entityData)) {
-                            sequenceNumber = sequenceStartValue;
+                            sequence = sharedSequence.resetAndReserve(sequenceStartValue);
+                        } else {
+                            sequence = sharedSequence.reserve(1);
                         }
-                        sequence = ++sequenceNumber;
-                        sharedSequence.put(sharedName, sequenceNumber);                        
-                    }
-                } else {
-                    if (resetNeeded(entityData)) {
-                        nonSharedSequenceNumber = sequenceStartValue;
+                    } else {
+                        if (resetNeeded(entityData)) {
+                            nonSharedSequenceNumber = sequenceStartValue;
+                        }
+                        sequence = ++nonSharedSequenceNumber;
                     }
-                    sequence = ++nonSharedSequenceNumber;
+                    entityData.put(sequenceAttributeId, sequence);
+                    getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
+                    outgoingPayload.add(entityData);
                 }
-                entityData.put(sequenceAttributeId, sequence);
-                getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
-                outgoingPayload.add(entityData);
             }
             callback.sendEntityDataMessage(null, outgoingPayload);
         }
@@ -189,4 +231,157 @@ public class SequenceGenerator extends AbstractRdbmsComponentRuntime {
         fieldChangeValue = entityData.get(resetAttribute);
         return resetNeeded;
     }
+
+    /**
+     * A sequence that is shared by name across every flow on the agent. Values
+     * are reserved with a single atomic add. When a high water mark file is
+     * configured, a mark that is ahead of the last reserved value is saved
+     * every time the sequence passes the previous mark, so that a restart can
+     * resume from the mark without reusing values. The mark in the file is
+     * only used the first time the file is loaded.
+     */
+    static class SharedSequence {
+
+        static final Object FILE_LOCK = new Object();
+
+        final String name;
+
+        final AtomicLong value = new AtomicLong(Long.MIN_VALUE);
+
+        volatile File highWaterMarkFile;
+
+        volatile long highWaterMarkInterval;
+
+        volatile long highWaterMark = Long.MIN_VALUE;
+
+        Long loadedHighWaterMark;
+
+        SharedSequence(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the first of the reserved values
+         */
+        long reserve(int count) {
+            long last = value.addAndGet(count);
+            reserved(last);
+            return last - count + 1;
+        }
+
+        /**
+         * Sets the sequence back to the value and reserves the value after it
+         * in one step, so that no other flow can reserve that value in between.
+         * 
+         * @return the reserved value
+         */
+        long resetAndReserve(long newValue) {
+            long last = newValue + 1;
+            long current = value.get();
+            while (!value.compareAndSet(current, last)) {
+                current = value.get();
+            }
+            reserved(last);
+            return last;
+        }
+
+        void reserved(long last) {
+            if (highWaterMarkFile != null && last >= highWaterMark) {
+                saveHighWaterMark(last);
+            }
+        }
+
+        /**
+         * Moves the sequence forward to the value if it is behind it.
+         * 
+         * @return true if the sequence was moved
+         */
+        boolean advanceTo(long newValue) {
+            long current = value.get();
+            while (current < newValue) {
+                if (value.compareAndSet(current, newValue)) {
+                    return true;
+                }
+                current = value.get();
+            }
+            return false;
+        }
+
+        void persistTo(File file, long interval) {
+            synchronized (FILE_LOCK) {
+                highWaterMarkInterval = Math.max(interval, 1);
+                if (!file.equals(highWaterMarkFile)) {
+                    Properties marks = loadHighWaterMarks(file);
+                    String mark = marks.getProperty(name);
+                    highWaterMark = mark != null ? Long.parseLong(mark) : Long.MIN_VALUE;
+                    loadedHighWaterMark = mark != null ? highWaterMark : null;
+                    highWaterMarkFile = file;
+                }
+            }
+        }
+
+        /**
+         * Moves the sequence forward to the mark that was loaded from the high
+         * water mark file. Later calls return null so that executions that
+         * follow in the same process continue from the sequence instead of
+         * skipping ahead to the next mark every time.
+         * 
+         * @return the value the sequence resumes from or null if there was no
+         *         mark to resume from
+         */
+        Long resumeFromHighWaterMark() {
+            synchronized (FILE_LOCK) {
+                Long mark = loadedHighWaterMark;
+                if (mark == null) {
+                    return null;
+                }
+                loadedHighWaterMark = null;
+                advanceTo(mark);
+                return Math.max(mark, value.get());
+            }
+        }
+
+        void saveHighWaterMark(long last) {
+            synchronized (FILE_LOCK) {
+                if (last >= highWaterMark) {
+                    long mark = last + highWaterMarkInterval;
+                    Properties marks = loadHighWaterMarks(highWaterMarkFile);
+                    marks.setProperty(name, Long.toString(mark));
+                    storeHighWaterMarks(highWaterMarkFile, marks);
+                    highWaterMark = mark;
+                }
+            }
+        }
+
+        static Properties loadHighWaterMarks(File file) {
+            Properties marks = new Properties();
+            if (file.exists()) {
+                try (InputStream is = new FileInputStream(file)) {
+                    marks.load(is);
+                } catch (IOException e) {
+                    throw new IoException(e);
+                }
+            }
+            return marks;
+        }
+
+        /*
+         * The marks are written to a temporary file that replaces the old one
+         * so that a crash never leaves a partly written file behind.
+         */
+        static void storeHighWaterMarks(File file, Properties marks) {
+            File parent = file.getAbsoluteFile().getParentFile();
+            try {
+                parent.mkdirs();
+                File temp = File.createTempFile(file.getName(), ".tmp", parent);
+                try (OutputStream os = new FileOutputStream(temp)) {
+                    marks.store(os, "Sequence high water marks");
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new IoException(e);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,224 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttribute;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.runtime.component.SequenceGenerator.SharedSequence;
+import org.jumpmind.metl.core.util.NameValue;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SequenceGeneratorTest {
+
+    File highWaterMarkFile;
+
+    @Before
+    public void setup() throws Exception {
+        highWaterMarkFile = File.createTempFile("sequence", ".properties");
+        highWaterMarkFile.delete();
+    }
+
+    @After
+    public void cleanup() {
+        highWaterMarkFile.delete();
+        SequenceGenerator.sharedSequences.clear();
+    }
+
+    @Test
+    public void testConcurrentReservesDoNotOverlap() throws Exception {
+        final SharedSequence sequence = new SharedSequence("test");
+        sequence.advanceTo(0);
+        final Set<Long> values = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        runConcurrently(8, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 1000; i++) {
+                    long first = sequence.reserve(3);
+                    for (long value = first; value < first + 3; value++) {
+                        values.add(value);
+                    }
+                }
+            }
+        });
+        assertEquals(24000, values.size());
+        assertEquals(24000, sequence.value.get());
+    }
+
+    @Test
+    public void testResetAndReserveIsAtomic() throws Exception {
+        final SharedSequence sequence = new SharedSequence("test");
+        sequence.advanceTo(0);
+        final Set<Long> resetValues = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        runConcurrently(8, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 1000; i++) {
+                    if (i % 2 == 0) {
+                        resetValues.add(sequence.resetAndReserve(100));
+                    } else {
+                        sequence.reserve(1);
+                    }
+                }
+            }
+        });
+        assertEquals(Collections.singleton(101l), resetValues);
+    }
+
+    @Test
+    public void testHighWaterMarkIsSavedAheadOfTheSequence() {
+        SharedSequence sequence = new SharedSequence("test");
+        sequence.persistTo(highWaterMarkFile, 10);
+        sequence.advanceTo(0);
+        sequence.reserve(5);
+        assertEquals("15", SharedSequence.loadHighWaterMarks(highWaterMarkFile).getProperty("test"));
+        sequence.reserve(9);
+        assertEquals("15", SharedSequence.loadHighWaterMarks(highWaterMarkFile).getProperty("test"));
+        sequence.reserve(1);
+        assertEquals("25", SharedSequence.loadHighWaterMarks(highWaterMarkFile).getProperty("test"));
+    }
+
+    @Test
+    public void testHighWaterMarkIsOnlyResumedFromOnce() {
+        Properties marks = new Properties();
+        marks.setProperty("test", "50");
+        SharedSequence.storeHighWaterMarks(highWaterMarkFile, marks);
+
+        SharedSequence sequence = new SharedSequence("test");
+        sequence.persistTo(highWaterMarkFile, 10);
+        assertEquals(Long.valueOf(50), sequence.resumeFromHighWaterMark());
+        assertEquals(51, sequence.reserve(1));
+        sequence.persistTo(highWaterMarkFile, 10);
+        assertNull(sequence.resumeFromHighWaterMark());
+    }
+
+    @Test
+    public void testHighWaterMarkDoesNotMoveTheSequenceBack() {
+        Properties marks = new Properties();
+        marks.setProperty("test", "50");
+        SharedSequence.storeHighWaterMarks(highWaterMarkFile, marks);
+
+        SharedSequence sequence = new SharedSequence("test");
+        sequence.advanceTo(70);
+        sequence.persistTo(highWaterMarkFile, 10);
+        assertEquals(Long.valueOf(70), sequence.resumeFromHighWaterMark());
+        assertEquals(71, sequence.reserve(1));
+    }
+
+    @Test
+    public void testExecutionsInTheSameProcessDoNotSkipValues() {
+        assertEquals("1 2 3", generate(1, 2, 3));
+        assertEquals("4 5", generate(1, 2));
+        assertEquals("6", generate(1));
+    }
+
+    @Test
+    public void testRestartResumesFromTheHighWaterMark() {
+        assertEquals("1 2 3", generate(1, 2, 3));
+        SequenceGenerator.sharedSequences.clear();
+        assertEquals("104 105", generate(1, 2));
+        assertEquals("106", generate(1));
+    }
+
+    protected String generate(Object... ids) {
+        ModelEntity entity = new ModelEntity("person", "PERSON");
+        entity.addModelAttribute(new ModelAttribute("person.id", entity.getId(), "ID"));
+        Model model = new Model();
+        model.getModelEntities().add(entity);
+        Component component = TestUtils.createComponent(SequenceGenerator.TYPE, false, null, model, model, null, null,
+                new Setting(SequenceGenerator.SEQ_ATTRIBUTE, "PERSON.ID"), new Setting(SequenceGenerator.SHARED, "true"),
+                new Setting(SequenceGenerator.SHARED_NAME, "test"), new Setting(SequenceGenerator.SEQUENCE_START_VALUE, "0"),
+                new Setting(SequenceGenerator.HIGH_WATER_MARK_FILE, highWaterMarkFile.getAbsolutePath()),
+                new Setting(SequenceGenerator.HIGH_WATER_MARK_INTERVAL, "100"));
+        Flow flow = TestUtils.createFlow("TestFlow", null);
+        FlowStep step = new FlowStep(component);
+        flow.getFlowSteps().add(step);
+
+        SequenceGenerator generator = new SequenceGenerator();
+        generator.setContext(new ComponentContext(null, step, flow, new ExecutionTrackerNoOp(), null,
+                Collections.<String, String> emptyMap(), null));
+        generator.start();
+        EntityDataMessage message = new EntityDataMessage("");
+        ArrayList<EntityData> payload = new ArrayList<EntityData>();
+        for (Object id : ids) {
+            payload.add(new EntityData(new NameValue("person.id", id)));
+        }
+        message.setPayload(payload);
+        SendMessageCallback<ArrayList<EntityData>> callback = new SendMessageCallback<ArrayList<EntityData>>();
+        generator.handle(message, callback, true);
+        generator.stop();
+
+        StringBuilder values = new StringBuilder();
+        for (List<EntityData> rows : callback.getPayloadList()) {
+            for (EntityData row : rows) {
+                values.append(values.length() > 0 ? " " : "").append(row.get("person.id"));
+            }
+        }
+        return values.toString();
+    }
+
+    protected void runConcurrently(int threadCount, final Runnable runnable) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    runnable.run();
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+}
@@ -20,38 +20,27 @@
  */
 package org.jumpmind.metl.core.runtime.component;
 
-import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 
-import org.apache.commons.lang.ObjectUtils;
-import org.h2.Driver;
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.ComponentAttributeSetting;
 import org.jumpmind.metl.core.model.Model;
 import org.jumpmind.metl.core.model.ModelAttribute;
 import org.jumpmind.metl.core.model.ModelEntity;
-import org.jumpmind.metl.core.runtime.ControlMessage;
 import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityData.ChangeType;
 import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.EntityDataSorter;
 import org.jumpmind.metl.core.runtime.LogLevel;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
 import org.jumpmind.properties.TypedProperties;
-import org.jumpmind.db.model.Column;
-import org.jumpmind.db.model.IIndex;
-import org.jumpmind.db.model.IndexColumn;
-import org.jumpmind.db.model.Table;
-import org.jumpmind.db.platform.IDatabasePlatform;
-import org.jumpmind.db.platform.JdbcDatabasePlatformFactory;
-import org.jumpmind.db.sql.SqlTemplateSettings;
-import org.jumpmind.db.util.ResettableBasicDataSource;
-import org.jumpmind.metl.core.model.Component;
-import org.jumpmind.metl.core.model.ComponentAttributeSetting;
-import org.jumpmind.metl.core.model.DataType;
 
 public class Sorter extends AbstractComponentRuntime {
 
@@ -63,30 +52,39 @@ public class Sorter extends AbstractComponentRuntime {
 
     public final static String ATTRIBUTE_SORTER_ENABLED = "sort.enabled";
 
+    public final static String MEMORY_BUFFER_SIZE_MB = "memory.buffer.size.mb";
+
     int rowsPerMessage;
 
-    IDatabasePlatform databasePlatform;
+    long memoryBufferSizeInBytes;
 
-    RdbmsWriter databaseWriter;
-    
     String sortAttributeId;
 
     ArrayList<ComponentAttributeSetting> sortKeyAttributeIdList = new ArrayList<>();
     
-    List<EntityData> sortedRecords = new ArrayList<EntityData>();
-    
     List<ModelEntity> entities;
 
-    String databaseName;
+    Map<String, Integer> entityIndexByAttributeId;
+
+    List<List<ModelAttribute>> sortAttributesByEntity;
+
+    List<List<ModelAttribute>> pkAttributesByEntity;
+
+    int entityKeyLength;
+
+    int pkKeyLength;
+
+    EntityDataSorter sorter;
+
+    EntityDataSorter changeSorter;
 
-    Throwable error;
-    
     boolean entitySort = true;
     
     @Override
     public void start() {
         TypedProperties properties = getTypedProperties();
         rowsPerMessage = properties.getInt(ROWS_PER_MESSAGE);
+        memoryBufferSizeInBytes = properties.getLong(MEMORY_BUFFER_SIZE_MB, 128) * 1024 * 1024;
         String sortAttribute = properties.get(SORT_ATTRIBUTE);
         Model inputModel = this.getComponent().getInputModel();
         Component component = context.getFlowStep().getComponent();
@@ -131,8 +129,50 @@ public class Sorter extends AbstractComponentRuntime {
         	throw new IllegalStateException(
         			"Sort attribute must be a valid 'entity.attribute' in the input model. "
         			+ "Or at least one attribute must be specified to sort on in the component editor.");
-        }        
+        }
+
+        if (!entitySort) {
+            buildEntitySortKeys(inputModel);
+        }
     }
+
+    /*
+     * Rows are sent one entity at a time in model order, and each entity is
+     * ordered by its own sort attributes. The key of a row is the index of its
+     * entity followed by the values of the entity's sort attributes. Values
+     * are compared by the type of their attribute, so numeric attributes sort
+     * as numbers and text attributes sort as text.
+     */
+    protected void buildEntitySortKeys(Model inputModel) {
+        entityIndexByAttributeId = new HashMap<>();
+        sortAttributesByEntity = new ArrayList<>(entities.size());
+        pkAttributesByEntity = new ArrayList<>(entities.size());
+        int maxSortAttributes = 0;
+        int maxPkAttributes = 0;
+        for (int i = 0; i < entities.size(); i++) {
+            List<ModelAttribute> sortAttributes = new ArrayList<>();
+            List<ModelAttribute> pkAttributes = new ArrayList<>();
+            for (ModelAttribute attribute : entities.get(i).getModelAttributes()) {
+                entityIndexByAttributeId.put(attribute.getId(), i);
+                if (attribute.isPk()) {
+                    pkAttributes.add(attribute);
+                }
+            }
+            pkAttributesByEntity.add(pkAttributes);
+            maxPkAttributes = Math.max(maxPkAttributes, pkAttributes.size());
+            for (ComponentAttributeSetting setting : sortKeyAttributeIdList) {
+                ModelAttribute attribute = inputModel.getAttributeById(setting.getAttributeId());
+                if (attribute != null && attribute.getEntityId().equals(entities.get(i).getId())) {
+                    sortAttributes.add(attribute);
+                }
+            }
+            sortAttributesByEntity.add(sortAttributes);
+            maxSortAttributes = Math.max(maxSortAttributes, sortAttributes.size());
+        }
+        entityKeyLength = maxSortAttributes + 1;
+        pkKeyLength = maxPkAttributes + 1;
+    }
+
     
     @Override
     public boolean supportsStartupMessages() {
@@ -141,227 +181,202 @@ public class Sorter extends AbstractComponentRuntime {
 
     @Override
     public void handle(Message inputMessage, ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
-    	if (inputMessage instanceof EntityDataMessage) {
-            if (!entitySort) {
-	            createDatabase();
-	            loadIntoDatabase(inputMessage);
+        if (inputMessage instanceof EntityDataMessage) {
+            if (sorter == null) {
+                sorter = new EntityDataSorter(entitySort ? this::getAttributeSortKey : this::getEntitySortKey, memoryBufferSizeInBytes);
+            }
+            ArrayList<EntityData> payload = ((EntityDataMessage) inputMessage).getPayload();
+            if (entitySort) {
+                for (EntityData record : payload) {
+                    getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
+                    sorter.add(record);
+                }
+            } else {
+                /*
+                 * Deletes, then changes, then adds, which is the order the
+                 * rows of a message were written to the sort table in
+                 */
+                for (ChangeType changeType : new ChangeType[] { ChangeType.DEL, ChangeType.CHG, ChangeType.ADD }) {
+                    for (EntityData record : payload) {
+                        if ((record.getChangeType() != null ? record.getChangeType() : ChangeType.ADD) == changeType) {
+                            getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
+                            addByEntity(record);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (unitOfWorkBoundaryReached && sorter != null) {
+            try {
+                applyChanges();
+                sendSortedRecords(callback);
+            } finally {
+                close();
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        close();
+    }
+
+    protected void close() {
+        if (changeSorter != null) {
+            changeSorter.close();
+            changeSorter = null;
+        }
+        if (sorter != null) {
+            sorter.close();
+            sorter = null;
+        }
+    }
+
+    /*
+     * Rows of an entity with a primary key are first sorted by their key so
+     * that the rows for a key can be applied in the order they arrived. The
+     * row that is left for each key is then sorted like any other row.
+     */
+    protected void applyChanges() {
+        if (changeSorter != null) {
+            Iterator<EntityData> rows = changeSorter.iterator(this::applyChange);
+            while (rows.hasNext()) {
+                sorter.add(rows.next());
+            }
+        }
+    }
+
+    /*
+     * A later add replaces the row with the same key, a change updates it and
+     * a delete removes it
+     */
+    protected EntityData applyChange(EntityData current, EntityData record) {
+        if (record.getChangeType() == ChangeType.DEL) {
+            return null;
+        } else if (record.getChangeType() == ChangeType.CHG && current == null) {
+            throw new IllegalStateException(
+                    String.format("Failed to apply a change because no row with the same primary key was received.  Row values %s", record));
+        } else {
+            return asAdded(record);
+        }
+    }
+
+    protected EntityData asAdded(EntityData record) {
+        if (record.getChangeType() != ChangeType.ADD) {
+            record = record.copy();
+            record.setChangeType(ChangeType.ADD);
+        }
+        return record;
+    }
+
+    protected void sendSortedRecords(ISendMessageCallback callback) {
+        if (sorter.getSpillCount() > 0) {
+            log(LogLevel.INFO, "Sorting %d records using %d sorted runs on disk", sorter.getRowCount(), sorter.getSpillCount());
+        }
+        ArrayList<EntityData> dataToSend = new ArrayList<EntityData>();
+        int currentEntityIndex = -1;
+        for (EntityData record : sorter) {
+            int entityIndex = entitySort ? 0 : getEntityIndex(record);
+            if (dataToSend.size() > 0 && (dataToSend.size() >= rowsPerMessage || entityIndex != currentEntityIndex)) {
+                callback.sendEntityDataMessage(null, dataToSend);
+                dataToSend = new ArrayList<EntityData>();
+            }
+            currentEntityIndex = entityIndex;
+            dataToSend.add(record);
+        }
+
+        if (dataToSend.size() > 0) {
+            callback.sendEntityDataMessage(null, dataToSend);
+        }
+    }
+
+    /*
+     * Each entity in a row is sorted on its own, so a row with attributes
+     * from more than one entity is split. Attributes that are not in the
+     * input model are dropped.
+     */
+    protected void addByEntity(EntityData record) {
+        int entityIndex = -1;
+        boolean split = false;
+        for (String attributeId : record.keySet()) {
+            Integer index = entityIndexByAttributeId.get(attributeId);
+            if (index == null || (entityIndex >= 0 && index != entityIndex)) {
+                split = true;
+                break;
+            }
+            entityIndex = index;
+        }
+
+        if (!split) {
+            if (entityIndex >= 0) {
+                addEntityRecord(entityIndex, record);
             }
-            
-            ArrayList<EntityData> payload = ((EntityDataMessage)inputMessage).getPayload();
-            for (int i = 0; i < payload.size(); i++) {
-                getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
-                
-                if (entitySort) {
-                	EntityData record = payload.get(i);
-                	sortedRecords.add(record);
+        } else {
+            Map<Integer, EntityData> recordByEntity = new HashMap<>();
+            for (Map.Entry<String, Object> entry : record.entrySet()) {
+                Integer index = entityIndexByAttributeId.get(entry.getKey());
+                if (index != null) {
+                    EntityData entityRecord = recordByEntity.get(index);
+                    if (entityRecord == null) {
+                        entityRecord = new EntityData();
+                        entityRecord.setChangeType(record.getChangeType());
+                        recordByEntity.put(index, entityRecord);
+                    }
+                    entityRecord.put(entry.getKey(), entry.getValue());
                 }
             }
-    	}
-
-    	if (unitOfWorkBoundaryReached && error == null) {
-    		if (entitySort) {
-    			ArrayList<EntityData> dataToSend = new ArrayList<EntityData>();
-    			
-    			sort();
-
-    			for (EntityData record : sortedRecords) {
-    				if (dataToSend.size() >= rowsPerMessage) {
-    					callback.sendEntityDataMessage(null, dataToSend);
-    					dataToSend = new ArrayList<EntityData>();
-    				}
-    				dataToSend.add(record);
-    			}
-
-    			sortedRecords.clear();
-
-    			if (dataToSend != null && dataToSend.size() > 0) {
-    				callback.sendEntityDataMessage(null, dataToSend);
-    			}
-    		} else {
-    			sortData(callback);
-    		}
-    	}
+            for (Map.Entry<Integer, EntityData> entityRecord : recordByEntity.entrySet()) {
+                addEntityRecord(entityRecord.getKey(), entityRecord.getValue());
+            }
+        }
+    }
+
+    /*
+     * Rows of an entity without a primary key have nothing to match on, so
+     * deletes are dropped and changes are added like any other row
+     */
+    protected void addEntityRecord(int entityIndex, EntityData record) {
+        if (pkAttributesByEntity.get(entityIndex).size() > 0) {
+            if (changeSorter == null) {
+                changeSorter = new EntityDataSorter(this::getPrimaryKey, memoryBufferSizeInBytes);
+            }
+            changeSorter.add(record);
+        } else if (record.getChangeType() != ChangeType.DEL) {
+            sorter.add(asAdded(record));
+        }
+    }
+
+    protected int getEntityIndex(EntityData record) {
+        return entityIndexByAttributeId.get(record.keySet().iterator().next());
+    }
+
+    protected Object[] getPrimaryKey(EntityData record) {
+        int entityIndex = getEntityIndex(record);
+        Object[] key = new Object[pkKeyLength];
+        key[0] = entityIndex;
+        List<ModelAttribute> pkAttributes = pkAttributesByEntity.get(entityIndex);
+        for (int i = 0; i < pkAttributes.size(); i++) {
+            ModelAttribute attribute = pkAttributes.get(i);
+            key[i + 1] = EntityDataSorter.toColumnValue(attribute.getDataType(), record.get(attribute.getId()));
+        }
+        return key;
+    }
+
+    protected Object[] getAttributeSortKey(EntityData record) {
+        return new Object[] { record.get(sortAttributeId) };
     }
 
-    private void sort() {
-    	Collections.sort(sortedRecords, new Comparator<EntityData>() {
-    		@Override
-    		public int compare(EntityData o1, EntityData o2) {
-    			Object obj1 = o1.get(sortAttributeId);
-    			Object obj2 = o2.get(sortAttributeId);
-    			if ((obj1 instanceof Comparable || obj1 == null)
-    					&& (obj2 instanceof Comparable || obj2 == null)) {
-    				return ObjectUtils.compare((Comparable<?>) obj1, (Comparable<?>) obj2);
-    			} else {
-    				String str1 = obj1 != null ? obj1.toString() : null;
-    				String str2 = obj2 != null ? obj2.toString() : null;
-    				return ObjectUtils.compare(str1, str2);
-    			}
-    		}
-    	});
+    protected Object[] getEntitySortKey(EntityData record) {
+        int entityIndex = getEntityIndex(record);
+        Object[] key = new Object[entityKeyLength];
+        key[0] = entityIndex;
+        List<ModelAttribute> sortAttributes = sortAttributesByEntity.get(entityIndex);
+        for (int i = 0; i < sortAttributes.size(); i++) {
+            ModelAttribute attribute = sortAttributes.get(i);
+            key[i + 1] = EntityDataSorter.toColumnValue(attribute.getDataType(), record.get(attribute.getId()));
+        }
+        return key;
     }
 
-	private void sortData(ISendMessageCallback callback) {
-		Map<ModelEntity, String> sqls = new HashMap<>();
-		boolean addOrderBy = false;
-		for (ModelEntity entity : entities) {
-			StringBuilder sql = new StringBuilder("select ");
-			appendColumns(sql, entity);
-			sql.append(" from " + entity.getName() + "_1 ");
-			
-			// check to see if any one attribute of the entity is flagged to sort by before adding the 'order by' clause 
-			for (ComponentAttributeSetting componentAttribute : sortKeyAttributeIdList) {
-				for (ModelAttribute attribute : entity.getModelAttributes()) {
-					if (componentAttribute.getAttributeId().equals(attribute.getId())) {
-						addOrderBy = true;
-						break;
-					}
-				}
-				if (addOrderBy) {
-					break;
-				}
-			}
-			
-			if (addOrderBy) {
-				sql.append(" order by ");
-				appendSortColumns(sql, entity);
-			}
-			
-			log(LogLevel.INFO, "Generated sort sql: %s", sql);
-			sqls.put(entity, sql.toString());
-			addOrderBy = false;
-		}
-		
-		RdbmsReader reader = new RdbmsReader();
-		reader.setDataSource(databasePlatform.getDataSource());
-		reader.setContext(context);
-		reader.setComponentDefinition(componentDefinition);
-		reader.setRowsPerMessage(rowsPerMessage);
-		reader.setThreadNumber(threadNumber);
-		
-		for (ModelEntity entity : entities) {
-			reader.setSql(sqls.get(entity));
-			reader.handle(new ControlMessage(this.context.getFlowStep().getId()), callback, false);
-			info("Read %d  records for %s", reader.getRowReadDuringHandle(), entity.getName());
-		}
-		
-		ResettableBasicDataSource ds = databasePlatform.getDataSource();
-		
-		ds.close();
-		
-		databasePlatform = null;
-		databaseName = null;
-		databaseWriter = null;
-	}
-
-	
-	protected void appendColumns(StringBuilder sql, ModelEntity entity) {
-		for (ModelAttribute attribute : entity.getModelAttributes()) {
-			sql.append(attribute.getName()).append(" /* ")
-				.append(entity.getName()).append(".").append(attribute.getName())
-				.append(" */").append(",");
-		}
-		sql.replace(sql.length() - 1, sql.length(), "");
-	}
-
-
-	protected void appendSortColumns(StringBuilder sql, ModelEntity entity) {
-		for (ComponentAttributeSetting componentAttribute : sortKeyAttributeIdList) {
-			for (ModelAttribute attribute : entity.getModelAttributes()) {
-				if (componentAttribute.getAttributeId().equals(attribute.getId())) {
-					sql.append(attribute.getName()).append(",");
-					break;
-				}
-			}
-		}
-		sql.replace(sql.length() - 1, sql.length(), "");
-	}
-
-	protected void loadIntoDatabase(Message message) {
-		String tableSuffix = "_1";
-		
-		if (databaseWriter == null) {
-			databaseWriter = new RdbmsWriter();
-			databaseWriter.setDatabasePlatform(databasePlatform);
-			databaseWriter.setComponentDefinition(componentDefinition);
-			databaseWriter.setReplaceRows(true);
-			databaseWriter.setContext(context);
-			databaseWriter.setThreadNumber(threadNumber);
-		}
-		
-		if (tableSuffix != null) {
-			databaseWriter.setTableSuffix(tableSuffix);
-			try {
-				databaseWriter.handle(message, null, false);
-			} finally {
-				error = databaseWriter.getError();
-			}
-		}
-	}
-
-	protected void createDatabase() {
-		if (databasePlatform == null) {
-			ResettableBasicDataSource ds = new ResettableBasicDataSource();
-			ds.setDriverClassName(Driver.class.getName());
-			ds.setMaxActive(1);
-			ds.setInitialSize(1);
-			ds.setMinIdle(1);
-			ds.setMaxIdle(1);
-			databaseName = UUID.randomUUID().toString();
-			ds.setUrl("jdbc:h2:mem:" + databaseName);
-			databasePlatform = JdbcDatabasePlatformFactory.createNewPlatformInstance(ds,
-					new SqlTemplateSettings(), true, false);
-			
-			Model inputModel = context.getFlowStep().getComponent().getInputModel();
-			List<ModelEntity> entities = inputModel.getModelEntities();
-			for (ModelEntity entity : entities) {
-				Table table = new Table();
-				table.setName(entity.getName() + "_1");
-				List<ModelAttribute> attributes = entity.getModelAttributes();
-				for (ModelAttribute attribute : attributes) {
-					DataType dataType = attribute.getDataType();
-					Column column = new Column(attribute.getName());
-					if (dataType.isNumeric()) {
-						column.setTypeCode(Types.DECIMAL);
-					} else if (dataType.isBoolean()) {
-						column.setTypeCode(Types.BOOLEAN);
-					} else if (dataType.isTimestamp()) {
-						column.setTypeCode(Types.TIMESTAMP);
-					} else if (dataType.isBinary()) {
-						column.setTypeCode(Types.BLOB);
-					} else {
-						column.setTypeCode(Types.LONGVARCHAR);
-					}
-					
-					column.setPrimaryKey(attribute.isPk());
-					table.addColumn(column);
-				}
-				
-				alterCaseToMatchLogicalCase(table);
-				databasePlatform.createTables(false, false, table);
-			}
-			
-			log(LogLevel.INFO, "Creating databasePlatform with the following url: %s", ds.getUrl());
-		}
-	}
-
-
-	private void alterCaseToMatchLogicalCase(Table table) {
-		table.setName(table.getName().toUpperCase());
-		
-		Column[] columns = table.getColumns();
-		for (Column column : columns) {
-			column.setName(column.getName().toUpperCase());
-		}
-		
-		IIndex[] indexes = table.getIndices();
-		for (IIndex index : indexes) {
-			index.setName(index.getName().toUpperCase());
-			
-			IndexColumn[] indexColumns = index.getColumns();
-			for (IndexColumn indexColumn : indexColumns) {
-				indexColumn.setName(indexColumn.getName().toUpperCase());
-			}
-		}
-	}
 }
@@ -0,0 +1,169 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.ComponentAttributeSetting;
+import org.jumpmind.metl.core.model.DataType;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttribute;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityData.ChangeType;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.util.NameValue;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Test;
+
+public class SorterTest {
+
+    @Test
+    public void testRowsWithTheSamePrimaryKeyAreReplaced() {
+        Sorter sorter = createSorter("128");
+        SendMessageCallback<ArrayList<EntityData>> callback = new SendMessageCallback<ArrayList<EntityData>>();
+        sorter.handle(message(person(ChangeType.ADD, 1, "Zed"), person(ChangeType.ADD, 2, "Amy")), callback, false);
+        sorter.handle(message(person(ChangeType.ADD, "1", "Bob")), callback, true);
+        assertPeople(callback, "2:Amy", "1:Bob");
+    }
+
+    @Test
+    public void testChangesAndDeletesAreApplied() {
+        Sorter sorter = createSorter("128");
+        SendMessageCallback<ArrayList<EntityData>> callback = new SendMessageCallback<ArrayList<EntityData>>();
+        sorter.handle(message(person(ChangeType.ADD, 1, "Zed"), person(ChangeType.ADD, 2, "Amy"), person(ChangeType.ADD, 3, "Cat")),
+                callback, false);
+        sorter.handle(message(person(ChangeType.CHG, 1, "Abe"), person(ChangeType.DEL, 2, null)), callback, true);
+        assertPeople(callback, "1:Abe", "3:Cat");
+        for (EntityData row : callback.getPayloadList().get(0)) {
+            assertEquals(ChangeType.ADD, row.getChangeType());
+        }
+    }
+
+    @Test
+    public void testChangesAndDeletesAreAppliedAcrossSpilledRuns() {
+        Sorter sorter = createSorter("0");
+        SendMessageCallback<ArrayList<EntityData>> callback = new SendMessageCallback<ArrayList<EntityData>>();
+        sorter.handle(message(person(ChangeType.ADD, 1, "Zed"), person(ChangeType.ADD, 2, "Amy")), callback, false);
+        sorter.handle(message(person(ChangeType.ADD, 3, "Cat"), person(ChangeType.CHG, 1, "Abe")), callback, false);
+        sorter.handle(message(person(ChangeType.DEL, 2, null), person(ChangeType.ADD, 2, "Dee")), callback, false);
+        sorter.handle(message(person(ChangeType.DEL, 3, null)), callback, true);
+        assertPeople(callback, "1:Abe", "2:Dee");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testChangeToMissingRowFails() {
+        Sorter sorter = createSorter("128");
+        sorter.handle(message(person(ChangeType.CHG, 1, "Abe")), new SendMessageCallback<ArrayList<EntityData>>(), true);
+    }
+
+    @Test
+    public void testRowsWithoutPrimaryKeyAreNotMatched() {
+        Sorter sorter = createSorter("128");
+        SendMessageCallback<ArrayList<EntityData>> callback = new SendMessageCallback<ArrayList<EntityData>>();
+        sorter.handle(message(note(ChangeType.ADD, "b"), note(ChangeType.CHG, "a"), note(ChangeType.DEL, "c"), note(ChangeType.ADD, "b")),
+                callback, true);
+        assertEquals(1, callback.getPayloadList().size());
+        List<EntityData> rows = callback.getPayloadList().get(0);
+        assertEquals(3, rows.size());
+        assertEquals("a", rows.get(0).get("note.text"));
+        assertEquals(ChangeType.ADD, rows.get(0).getChangeType());
+        assertEquals("b", rows.get(1).get("note.text"));
+        assertEquals("b", rows.get(2).get("note.text"));
+    }
+
+    protected void assertPeople(SendMessageCallback<ArrayList<EntityData>> callback, String... expected) {
+        List<String> actual = new ArrayList<String>();
+        for (List<EntityData> payload : callback.getPayloadList()) {
+            for (EntityData row : payload) {
+                actual.add(row.get("person.id") + ":" + row.get("person.name"));
+            }
+        }
+        assertEquals(Arrays.asList(expected), actual);
+    }
+
+    protected Sorter createSorter(String memoryBufferSizeInMb) {
+        ModelEntity person = new ModelEntity("person", "PERSON");
+        ModelAttribute id = new ModelAttribute("person.id", person.getId(), "ID");
+        id.setDataType(DataType.INTEGER);
+        id.setPk(true);
+        person.addModelAttribute(id);
+        ModelAttribute name = new ModelAttribute("person.name", person.getId(), "NAME");
+        name.setDataType(DataType.VARCHAR);
+        person.addModelAttribute(name);
+
+        ModelEntity note = new ModelEntity("note", "NOTE");
+        ModelAttribute text = new ModelAttribute("note.text", note.getId(), "TEXT");
+        text.setDataType(DataType.VARCHAR);
+        note.addModelAttribute(text);
+
+        Model model = new Model();
+        model.getModelEntities().add(person);
+        model.getModelEntities().add(note);
+
+        List<ComponentAttributeSetting> attributeSettings = new ArrayList<ComponentAttributeSetting>();
+        attributeSettings.add(new ComponentAttributeSetting(name.getId(), Sorter.SORTER_ATTRIBUTE_ORDINAL, "1"));
+        attributeSettings.add(new ComponentAttributeSetting(text.getId(), Sorter.SORTER_ATTRIBUTE_ORDINAL, "1"));
+
+        Component component = TestUtils.createComponent(Sorter.TYPE, false, null, model, model, null, attributeSettings,
+                new Setting(Sorter.ROWS_PER_MESSAGE, "10"), new Setting(Sorter.MEMORY_BUFFER_SIZE_MB, memoryBufferSizeInMb));
+        Flow flow = TestUtils.createFlow("TestFlow", null);
+        FlowStep step = new FlowStep(component);
+        flow.getFlowSteps().add(step);
+
+        Sorter sorter = new Sorter();
+        sorter.setContext(new ComponentContext(null, step, flow, new ExecutionTrackerNoOp(), null, null, null));
+        sorter.start();
+        return sorter;
+    }
+
+    protected static EntityDataMessage message(EntityData... rows) {
+        EntityDataMessage message = new EntityDataMessage("");
+        ArrayList<EntityData> payload = new ArrayList<EntityData>();
+        for (EntityData row : rows) {
+            payload.add(row);
+        }
+        message.setPayload(payload);
+        return message;
+    }
+
+    protected static EntityData person(ChangeType changeType, Object id, String name) {
+        EntityData data = new EntityData(new NameValue("person.id", id), new NameValue("person.name", name));
+        data.setChangeType(changeType);
+        return data;
+    }
+
+    protected static EntityData note(ChangeType changeType, String text) {
+        EntityData data = new EntityData(new NameValue("note.text", text));
+        data.setChangeType(changeType);
+        return data;
+    }
+
+}
@@ -127,7 +127,7 @@ public class SqlExecutor extends AbstractRdbmsComponentRuntime {
                 log(LogLevel.INFO, "About to run: %s", sqlToExecute);
                 log(LogLevel.INFO, "Passing params: %s", paramMap);
                 resultCount = template.update(sqlToExecute, paramMap);  
-                getComponentStatistics().incrementNumberEntitiesProcessed(resultCount);
+                getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber, resultCount);
                 sqlCount++;
             }            
         }        
@@ -20,6 +20,7 @@
  */
 package org.jumpmind.metl.core.runtime.component;
 
+import static org.apache.commons.lang.StringUtils.isBlank;
 import static org.apache.commons.lang.StringUtils.isNotBlank;
 
 import java.io.BufferedWriter;
@@ -28,10 +29,22 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.IOUtils;
 import org.jumpmind.exception.IoException;
@@ -40,12 +53,14 @@ import org.jumpmind.metl.core.runtime.ControlMessage;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.TextMessage;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
+import org.jumpmind.metl.core.runtime.resource.HttpDirectory;
+import org.jumpmind.metl.core.runtime.resource.HttpResponseException;
 import org.jumpmind.metl.core.runtime.resource.IDirectory;
 import org.jumpmind.metl.core.runtime.resource.IOutputStreamWithResponse;
 //import org.jumpmind.metl.core.runtime.resource.Http;
-//import org.jumpmind.metl.core.runtime.resource.HttpDirectory;
 //import org.jumpmind.metl.core.runtime.resource.HttpOutputStream;
 import org.jumpmind.metl.core.runtime.resource.IResourceRuntime;
+import org.jumpmind.metl.core.util.ThreadUtils;
 import org.jumpmind.properties.TypedProperties;
 import org.jumpmind.util.FormatUtils;
 
@@ -66,6 +81,22 @@ public class Web extends AbstractComponentRuntime {
     public static final String HTTP_PARAMETERS = "http.parameters";
     
     public static final String PARAMETER_REPLACEMENT = "parameter.replacement";
+
+    public static final String MAX_REQUESTS_IN_FLIGHT = "max.requests.in.flight";
+
+    public static final String MAX_REQUESTS_PER_SECOND = "max.requests.per.second";
+
+    public static final String RETRY_COUNT = "retry.count";
+
+    public static final String RETRY_BACKOFF_MS = "retry.backoff.ms";
+
+    public static final String RETRY_NON_IDEMPOTENT = "retry.non.idempotent";
+
+    public static final String RESPONSE_ORDER = "response.order";
+
+    public static final String RESPONSE_ORDER_INPUT = "INPUT ORDER";
+
+    public static final String RESPONSE_ORDER_COMPLETION = "COMPLETION ORDER";
     
     String runWhen;
     
@@ -80,6 +111,20 @@ public class Web extends AbstractComponentRuntime {
     Map<String,String> httpParameters;
     
     boolean parameterReplacement;
+
+    int maxRequestsInFlight;
+
+    int retryCount;
+
+    long retryBackoffMs;
+
+    boolean retryNonIdempotent;
+
+    boolean responsesInCompletionOrder;
+
+    RequestRateLimiter rateLimiter;
+
+    ExecutorService executor;
     
     @Override
     public void start() {
@@ -92,6 +137,24 @@ public class Web extends AbstractComponentRuntime {
         bodyText = component.get(BODY_TEXT);
         runWhen = getComponent().get(RUN_WHEN, PER_MESSAGE);
         parameterReplacement = component.getBoolean(PARAMETER_REPLACEMENT, false);
+        maxRequestsInFlight = component.getInt(MAX_REQUESTS_IN_FLIGHT, 1);
+        retryCount = component.getInt(RETRY_COUNT, 0);
+        retryBackoffMs = component.getLong(RETRY_BACKOFF_MS, 1000);
+        retryNonIdempotent = component.getBoolean(RETRY_NON_IDEMPOTENT, false);
+        responsesInCompletionOrder = RESPONSE_ORDER_COMPLETION.equals(component.get(RESPONSE_ORDER, RESPONSE_ORDER_INPUT));
+        int maxRequestsPerSecond = component.getInt(MAX_REQUESTS_PER_SECOND, 0);
+        if (maxRequestsPerSecond > 0) {
+            rateLimiter = new RequestRateLimiter(maxRequestsPerSecond);
+        }
+        if (maxRequestsInFlight > 1) {
+            executor = ThreadUtils.createFixedThreadPool("web-request", maxRequestsInFlight, maxRequestsInFlight);
+            int keepAliveConnections = Integer.getInteger("http.maxConnections", 5);
+            if (maxRequestsInFlight > keepAliveConnections) {
+                log.warn("{} requests can be in flight, but only {} idle connections per host are kept alive.  "
+                        + "Set the http.maxConnections system property to reuse more connections",
+                        maxRequestsInFlight, keepAliveConnections);
+            }
+        }
     }
     
     @Override
@@ -116,6 +179,7 @@ public class Web extends AbstractComponentRuntime {
 			}
 
 			if (inputPayload != null) {
+				InFlightRequests inFlightRequests = executor != null ? new InFlightRequests(inputPayload.size()) : null;
 				try {
 				    String path = resolveParamsAndHeaders(relativePath,inputMessage);
 					for (String requestContent : inputPayload) {
@@ -123,47 +187,141 @@ public class Web extends AbstractComponentRuntime {
 						if (parameterReplacement) {
 							requestContent = resolveParamsAndHeaders(requestContent, inputMessage);
 						}
-						
+
                         if (isNotBlank(requestContent)) {
                             info("sending content to %s", path);
-                            OutputStream os = streamable
-                                    .getOutputStream(path, false, false, false, httpHeaders, httpParameters);
-                            BufferedWriter writer = new BufferedWriter(
-                                    new OutputStreamWriter(os, DEFAULT_CHARSET));
-                            try {
-                                writer.write(requestContent);
-                            } finally {
-                                writer.close();
-                                if (os instanceof IOutputStreamWithResponse) {
-                                    String response = ((IOutputStreamWithResponse) os).getResponse();
-                                    if (response != null) {
-                                        outputPayload.add(response);
-                                    }
-                                }
-                            }
                         } else {
                             info("getting content from %s", path);
-                            InputStream is = streamable.getInputStream(path, false, false, httpHeaders, httpParameters);
-                            try {
-                                String response = IOUtils.toString(is);
-                                if (response != null) {
-                                    outputPayload.add(response);
-                                }
-                            } finally {
-                                IOUtils.closeQuietly(is);
+                        }
+
+                        if (inFlightRequests != null) {
+                            inFlightRequests.submit(streamable, path, requestContent);
+                        } else {
+                            String response = sendWithRetries(streamable, path, requestContent);
+                            if (response != null) {
+                                outputPayload.add(response);
                             }
                         }
 					}
 
+					if (inFlightRequests != null) {
+					    outputPayload = inFlightRequests.finish();
+					}
+
 					if (outputPayload.size() > 0) {
 						callback.sendTextMessage(null, outputPayload);
 					}
 				} catch (IOException e) {
 					throw new IoException(String.format("Error writing to %s ", streamable), e);
+				} catch (InterruptedException e) {
+				    Thread.currentThread().interrupt();
+				    throw new CancellationException();
+				} finally {
+				    if (inFlightRequests != null) {
+				        inFlightRequests.cancel();
+				    }
 				}
 			}
 		}
 	}
+
+    @Override
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        super.stop();
+    }
+
+    /**
+     * Sends a request, waiting for a permit from the rate limiter before each
+     * attempt. Requests that fail because of a network error or a response
+     * code that says the server is busy are retried with an exponential
+     * backoff. A request that is not idempotent is only retried when it is
+     * known that the server did not process it, unless
+     * {@link #RETRY_NON_IDEMPOTENT} is set.
+     */
+    protected String sendWithRetries(IDirectory streamable, String path, String requestContent)
+            throws IOException, InterruptedException {
+        boolean idempotent = retryNonIdempotent || isIdempotent(streamable, requestContent);
+        for (int attempt = 0;; attempt++) {
+            if (rateLimiter != null) {
+                rateLimiter.acquire();
+            }
+            try {
+                return send(streamable, path, requestContent);
+            } catch (IOException | IoException e) {
+                if (attempt >= retryCount || !isRetryable(e, idempotent)) {
+                    throw e;
+                }
+                long backoff = retryBackoffMs * (1L << Math.min(attempt, 16));
+                log.warn("Request to {} failed: {}.  Retrying in {}ms", path, e.getMessage(), backoff);
+                Thread.sleep(backoff);
+            }
+        }
+    }
+
+    /**
+     * A 408 or 429 response, or a connection that could not be opened, means
+     * the server did not process the request. A server error or any other
+     * network error, like a read timeout, may happen after it did, so those
+     * are only retried for idempotent requests.
+     */
+    protected boolean isRetryable(Exception e, boolean idempotent) {
+        if (e instanceof HttpResponseException) {
+            int responseCode = ((HttpResponseException) e).getResponseCode();
+            return responseCode == 408 || responseCode == 429 || (idempotent && responseCode >= 500);
+        } else {
+            Throwable cause = e instanceof IOException ? e : e.getCause();
+            if (cause instanceof ConnectException || cause instanceof NoRouteToHostException
+                    || cause instanceof UnknownHostException) {
+                return true;
+            }
+            return idempotent && cause instanceof IOException && !(cause instanceof MalformedURLException);
+        }
+    }
+
+    /**
+     * Requests with a body are treated as not idempotent, because the
+     * connection sends them as a POST when the method is GET.
+     */
+    protected boolean isIdempotent(IDirectory streamable, String requestContent) {
+        String method = streamable instanceof HttpDirectory ? ((HttpDirectory) streamable).getHttpMethod() : null;
+        return isBlank(requestContent) && (HttpDirectory.HTTP_METHOD_GET.equals(method)
+                || HttpDirectory.HTTP_METHOD_PUT.equals(method) || HttpDirectory.HTTP_METHOD_DELETE.equals(method));
+    }
+
+    /**
+     * The response streams are always read to the end and closed so the
+     * connection goes back to the JVM's keep-alive cache and is reused by the
+     * next request to the same host.
+     */
+    protected String send(IDirectory streamable, String path, String requestContent) throws IOException {
+        if (isNotBlank(requestContent)) {
+            OutputStream os = streamable
+                    .getOutputStream(path, false, false, false, httpHeaders, httpParameters);
+            BufferedWriter writer = new BufferedWriter(
+                    new OutputStreamWriter(os, DEFAULT_CHARSET));
+            try {
+                writer.write(requestContent);
+            } finally {
+                writer.close();
+            }
+            if (os instanceof IOutputStreamWithResponse) {
+                return ((IOutputStreamWithResponse) os).getResponse();
+            } else {
+                return null;
+            }
+        } else {
+            InputStream is = streamable.getInputStream(path, false, false, httpHeaders, httpParameters);
+            try {
+                return IOUtils.toString(is);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+    }
 	
     private Map<String, String> getHttpHeaderConfigEntries(Message inputMessage) {
         String headersText = resolveParamsAndHeaders(properties.get(HTTP_HEADERS), inputMessage);
@@ -210,4 +368,133 @@ public class Web extends AbstractComponentRuntime {
             }
         }
     }
+
+    /**
+     * Keeps up to {@link #maxRequestsInFlight} requests running on the
+     * executor. The responses are collected on the component thread in the
+     * order they complete and are put back in input order unless
+     * {@link #RESPONSE_ORDER_COMPLETION} was selected.
+     */
+    class InFlightRequests {
+
+        final CompletionService<RequestResponse> completionService = new ExecutorCompletionService<>(executor);
+
+        final List<Future<RequestResponse>> futures = new ArrayList<>();
+
+        final String[] responsesByIndex;
+
+        final ArrayList<String> completedResponses = new ArrayList<>();
+
+        int inFlight;
+
+        InFlightRequests(int size) {
+            responsesByIndex = new String[size];
+        }
+
+        void submit(IDirectory streamable, String path, String requestContent) throws IOException, InterruptedException {
+            while (inFlight >= maxRequestsInFlight) {
+                take();
+            }
+            int index = futures.size();
+            futures.add(completionService
+                    .submit(() -> new RequestResponse(index, sendWithRetries(streamable, path, requestContent))));
+            inFlight++;
+        }
+
+        ArrayList<String> finish() throws IOException, InterruptedException {
+            while (inFlight > 0) {
+                take();
+            }
+            if (responsesInCompletionOrder) {
+                return completedResponses;
+            } else {
+                ArrayList<String> responses = new ArrayList<>(responsesByIndex.length);
+                for (String response : responsesByIndex) {
+                    if (response != null) {
+                        responses.add(response);
+                    }
+                }
+                return responses;
+            }
+        }
+
+        void cancel() {
+            for (Future<RequestResponse> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        protected void take() throws IOException, InterruptedException {
+            Future<RequestResponse> future = null;
+            while (future == null) {
+                checkForInterruption();
+                future = completionService.poll(100, TimeUnit.MILLISECONDS);
+            }
+            inFlight--;
+            try {
+                RequestResponse response = future.get();
+                if (responsesInCompletionOrder) {
+                    if (response.content != null) {
+                        completedResponses.add(response.content);
+                    }
+                } else {
+                    responsesByIndex[response.index] = response.content;
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw new RuntimeException(cause);
+                }
+            }
+        }
+    }
+
+    static class RequestResponse {
+
+        final int index;
+
+        final String content;
+
+        RequestResponse(int index, String content) {
+            this.index = index;
+            this.content = content;
+        }
+    }
+
+    /**
+     * Spaces requests evenly so that no more than the configured number of
+     * requests per second are started by this component thread, no matter how
+     * many of them are in flight.
+     */
+    static class RequestRateLimiter {
+
+        final long intervalNanos;
+
+        long nextPermitNanos = System.nanoTime();
+
+        RequestRateLimiter(int permitsPerSecond) {
+            this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / permitsPerSecond;
+        }
+
+        void acquire() throws InterruptedException {
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (nextPermitNanos - now < 0) {
+                    nextPermitNanos = now;
+                }
+                waitNanos = nextPermitNanos - now;
+                nextPermitNanos += intervalNanos;
+            }
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+    }
 }
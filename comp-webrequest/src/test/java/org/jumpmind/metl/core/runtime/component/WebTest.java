@@ -0,0 +1,265 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.jumpmind.exception.IoException;
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Folder;
+import org.jumpmind.metl.core.model.Resource;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.runtime.TextMessage;
+import org.jumpmind.metl.core.runtime.resource.Http;
+import org.jumpmind.metl.core.runtime.resource.HttpDirectory;
+import org.jumpmind.metl.core.runtime.resource.HttpResponseException;
+import org.jumpmind.metl.core.runtime.resource.IResourceRuntime;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.jumpmind.properties.TypedProperties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class WebTest {
+
+    HttpServer server;
+
+    Resource resource;
+
+    Map<String, IResourceRuntime> deployedResources;
+
+    Set<Integer> clientPorts = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+
+    AtomicInteger inFlight = new AtomicInteger();
+
+    AtomicInteger maxInFlight = new AtomicInteger();
+
+    /**
+     * Echoes the request body. A body of the form "delay:status:failures"
+     * waits delay ms and answers with the status code for the first number of
+     * failures attempts.
+     */
+    @Before
+    public void setup() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/echo", (exchange) -> respond(exchange));
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        startHttp("5000");
+    }
+
+    protected void startHttp(String timeout) {
+        resource = new Resource();
+        resource.setName("Test Http");
+        resource.setType(Http.TYPE);
+        resource.setFolder(TestUtils.createFolder("Test Folder Resource"));
+        resource.setId("Test Http");
+        TypedProperties properties = new TypedProperties();
+        properties.put(Http.URL, "http://localhost:" + server.getAddress().getPort());
+        properties.put(Http.HTTP_METHOD, HttpDirectory.HTTP_METHOD_POST);
+        properties.put(Http.HTTP_TIMEOUT, timeout);
+        Http http = new Http();
+        http.start(resource, properties);
+        deployedResources = new HashMap<>();
+        deployedResources.put(resource.getId(), http);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testSequentialRequests() throws Exception {
+        List<String> responses = send(createWeb(), "0:200:0", "10:200:0", "0:200:0");
+        assertEquals(3, responses.size());
+        assertEquals("0:200:0", responses.get(0).trim());
+        assertEquals(1, maxInFlight.get());
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    public void testConcurrentRequestsInInputOrder() throws Exception {
+        List<String> requests = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            requests.add(((i % 4) * 20) + ":200:" + i);
+        }
+        List<String> responses = send(createWeb(new Setting(Web.MAX_REQUESTS_IN_FLIGHT, "4")),
+                requests.toArray(new String[requests.size()]));
+        assertEquals(requests.size(), responses.size());
+        for (int i = 0; i < requests.size(); i++) {
+            assertEquals(requests.get(i), responses.get(i).trim());
+        }
+        assertTrue(maxInFlight.get() > 1);
+        assertTrue(maxInFlight.get() <= 4);
+        assertTrue(clientPorts.size() < requests.size());
+    }
+
+    @Test
+    public void testConcurrentRequestsInCompletionOrder() throws Exception {
+        List<String> responses = send(
+                createWeb(new Setting(Web.MAX_REQUESTS_IN_FLIGHT, "2"),
+                        new Setting(Web.RESPONSE_ORDER, Web.RESPONSE_ORDER_COMPLETION)),
+                "300:200:0", "0:200:1", "0:200:2");
+        assertEquals(3, responses.size());
+        assertEquals("300:200:0", responses.get(2).trim());
+    }
+
+    @Test
+    public void testRetries() throws Exception {
+        Web web = createWeb(new Setting(Web.MAX_REQUESTS_IN_FLIGHT, "2"), new Setting(Web.RETRY_COUNT, "2"),
+                new Setting(Web.RETRY_BACKOFF_MS, "10"), new Setting(Web.RETRY_NON_IDEMPOTENT, "true"));
+        List<String> responses = send(web, "0:503:2", "0:429:1");
+        assertEquals(2, responses.size());
+        assertEquals(3, attempts.get("0:503:2").get());
+        assertEquals(2, attempts.get("0:429:1").get());
+
+        try {
+            send(web, "0:400:1");
+            fail("Expected the request to fail");
+        } catch (HttpResponseException e) {
+            assertEquals(400, e.getResponseCode());
+        }
+        assertEquals(1, attempts.get("0:400:1").get());
+    }
+
+    @Test
+    public void testPostIsOnlyRetriedWhenNotProcessed() throws Exception {
+        Web web = createWeb(new Setting(Web.RETRY_COUNT, "2"), new Setting(Web.RETRY_BACKOFF_MS, "10"));
+        List<String> responses = send(web, "0:429:1");
+        assertEquals(1, responses.size());
+        assertEquals(2, attempts.get("0:429:1").get());
+
+        try {
+            send(web, "0:503:1");
+            fail("Expected the request to fail");
+        } catch (HttpResponseException e) {
+            assertEquals(503, e.getResponseCode());
+        }
+        assertEquals(1, attempts.get("0:503:1").get());
+    }
+
+    @Test
+    public void testPostThatTimesOutIsNotRetried() throws Exception {
+        startHttp("200");
+        try {
+            send(createWeb(new Setting(Web.RETRY_COUNT, "2"), new Setting(Web.RETRY_BACKOFF_MS, "10")), "1000:200:0");
+            fail("Expected the request to time out");
+        } catch (IoException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+        Thread.sleep(300);
+        assertEquals(1, attempts.get("1000:200:0").get());
+
+        try {
+            send(createWeb(new Setting(Web.RETRY_COUNT, "2"), new Setting(Web.RETRY_BACKOFF_MS, "10"),
+                    new Setting(Web.RETRY_NON_IDEMPOTENT, "true")), "900:200:0");
+            fail("Expected the request to time out");
+        } catch (IoException e) {
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+        assertEquals(3, attempts.get("900:200:0").get());
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        long ts = System.currentTimeMillis();
+        send(createWeb(new Setting(Web.MAX_REQUESTS_IN_FLIGHT, "4"), new Setting(Web.MAX_REQUESTS_PER_SECOND, "20")),
+                "0:200:0", "0:200:1", "0:200:2", "0:200:3", "0:200:4", "0:200:5", "0:200:6", "0:200:7", "0:200:8",
+                "0:200:9", "0:200:10");
+        assertTrue(System.currentTimeMillis() - ts >= 450);
+    }
+
+    protected List<String> send(Web web, String... requests) {
+        TextMessage message = new TextMessage("originating step id");
+        message.setPayload(new ArrayList<>(Arrays.asList(requests)));
+        SendMessageCallback<ArrayList<String>> callback = new SendMessageCallback<>();
+        web.handle(message, callback, true);
+        return callback.getPayloadList().isEmpty() ? Collections.emptyList() : callback.getPayloadList().get(0);
+    }
+
+    protected Web createWeb(Setting... settings) {
+        List<Setting> componentSettings = new ArrayList<>();
+        componentSettings.add(new Setting(Web.RELATIVE_PATH, "/echo"));
+        Collections.addAll(componentSettings, settings);
+        Folder folder = TestUtils.createFolder("Test Folder");
+        Flow flow = TestUtils.createFlow("TestFlow", folder);
+        Component component = TestUtils.createComponent(Web.TYPE, false, resource, null, null, null, null,
+                componentSettings.toArray(new Setting[componentSettings.size()]));
+        FlowStep step = new FlowStep(component);
+        step.setFlowId(flow.getId());
+        Web web = new Web();
+        web.create(null, new ComponentContext(null, step, flow, new ExecutionTrackerNoOp(), deployedResources, null, null), 1);
+        web.start();
+        return web;
+    }
+
+    protected void respond(HttpExchange exchange) throws IOException {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        int current = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(current, Math::max);
+        try {
+            String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8.name());
+            String[] parts = body.split(":");
+            int attempt = attempts.computeIfAbsent(body, (key) -> new AtomicInteger()).incrementAndGet();
+            Thread.sleep(Long.parseLong(parts[0]));
+            int status = attempt <= Integer.parseInt(parts[2]) ? Integer.parseInt(parts[1]) : 200;
+            byte[] response = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, response.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+}
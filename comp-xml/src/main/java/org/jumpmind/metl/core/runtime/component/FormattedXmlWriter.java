@@ -0,0 +1,371 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.NamespaceSupport;
+
+/**
+ * Writes SAX events straight to a {@link Writer} with the same layout that
+ * the JDOM Pretty, Compact and Raw formats gave a whole document, so a
+ * transform result can be formatted without building a tree of it first.
+ * Only the text of an element that is still open is held in memory.
+ */
+class FormattedXmlWriter extends DefaultHandler implements LexicalHandler {
+
+    static final String LINE_SEPARATOR = "\r\n";
+
+    static final String INDENT = "  ";
+
+    final Writer writer;
+
+    final boolean pretty;
+
+    final boolean compact;
+
+    final boolean omitXmlDeclaration;
+
+    final List<OpenElement> elements = new ArrayList<OpenElement>();
+
+    final StringBuilder text = new StringBuilder();
+
+    final Map<String, String> prefixMappings = new TreeMap<String, String>();
+
+    final NamespaceSupport namespaces = new NamespaceSupport();
+
+    boolean startTagOpen;
+
+    FormattedXmlWriter(Writer writer, String xmlFormat, boolean omitXmlDeclaration) {
+        this.writer = writer;
+        this.pretty = !XsltProcessor.COMPACT_FORMAT.equals(xmlFormat) && !XsltProcessor.RAW_FORMAT.equals(xmlFormat);
+        this.compact = XsltProcessor.COMPACT_FORMAT.equals(xmlFormat);
+        this.omitXmlDeclaration = omitXmlDeclaration;
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        if (!omitXmlDeclaration) {
+            write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            write(LINE_SEPARATOR);
+        }
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        if (!pretty) {
+            write(LINE_SEPARATOR);
+        }
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        prefixMappings.put(prefix, uri);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+        startContent();
+        write("<");
+        write(qName);
+        writeNamespaces(qName, uri, attributes);
+        for (int i = 0; i < attributes.getLength(); i++) {
+            String name = attributes.getQName(i);
+            if (!name.equals("xmlns") && !name.startsWith("xmlns:")) {
+                write(" ");
+                write(name);
+                write("=\"");
+                write(escape(attributes.getValue(i), true));
+                write("\"");
+            }
+        }
+        elements.add(new OpenElement(qName));
+        startTagOpen = true;
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        OpenElement element = elements.remove(elements.size() - 1);
+        if (element.hasContent) {
+            writeText(elements.size());
+            if (pretty) {
+                newLine(elements.size());
+            }
+            write("</" + element.name + ">");
+        } else {
+            String value = pretty ? trim(text) : compact ? normalize(text) : text.toString();
+            text.setLength(0);
+            if (value.length() == 0) {
+                write(" />");
+            } else {
+                write(">");
+                write(escape(value, false));
+                write("</" + element.name + ">");
+            }
+        }
+        startTagOpen = false;
+        namespaces.popContext();
+        endContent();
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (elements.size() > 0) {
+            text.append(ch, start, length);
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        characters(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+        startContent();
+        write("<?" + target + (data == null || data.length() == 0 ? "" : " " + data) + "?>");
+        endContent();
+    }
+
+    @Override
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        startContent();
+        write("<!--" + new String(ch, start, length) + "-->");
+        endContent();
+    }
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId) {
+    }
+
+    @Override
+    public void endDTD() {
+    }
+
+    @Override
+    public void startEntity(String name) {
+    }
+
+    @Override
+    public void endEntity(String name) {
+    }
+
+    @Override
+    public void startCDATA() {
+    }
+
+    @Override
+    public void endCDATA() {
+    }
+
+    /**
+     * Called before an element, comment or processing instruction is
+     * written. Once an element has anything but text in it, the text before
+     * each child is written out and Pretty puts every child on its own line.
+     */
+    protected void startContent() throws SAXException {
+        if (elements.size() > 0) {
+            OpenElement parent = elements.get(elements.size() - 1);
+            closeStartTag();
+            writeText(elements.size() - 1);
+            parent.hasContent = true;
+            if (pretty) {
+                newLine(elements.size());
+            }
+        }
+    }
+
+    protected void endContent() throws SAXException {
+        if (pretty && elements.size() == 0) {
+            write(LINE_SEPARATOR);
+        }
+    }
+
+    protected void closeStartTag() throws SAXException {
+        if (startTagOpen) {
+            write(">");
+            startTagOpen = false;
+        }
+    }
+
+    protected void writeText(int depth) throws SAXException {
+        String value = pretty ? trim(text) : compact ? normalize(text) : text.toString();
+        text.setLength(0);
+        if (value.length() > 0) {
+            closeStartTag();
+            if (pretty) {
+                newLine(depth + 1);
+            }
+            write(escape(value, false));
+        }
+    }
+
+    protected void newLine(int depth) throws SAXException {
+        write(LINE_SEPARATOR);
+        for (int i = 0; i < depth; i++) {
+            write(INDENT);
+        }
+    }
+
+    /**
+     * Declares the namespaces that are not in scope yet: the element's own
+     * namespace first and the rest in prefix order.
+     */
+    protected void writeNamespaces(String qName, String uri, Attributes attributes) throws SAXException {
+        String prefix = prefixOf(qName);
+        prefixMappings.put(prefix, uri == null ? "" : uri);
+        for (int i = 0; i < attributes.getLength(); i++) {
+            String attributePrefix = prefixOf(attributes.getQName(i));
+            if (attributePrefix.length() > 0 && !attributePrefix.equals("xmlns")) {
+                prefixMappings.put(attributePrefix, attributes.getURI(i));
+            }
+        }
+        List<String> declarations = new ArrayList<String>();
+        String elementUri = prefixMappings.remove(prefix);
+        if (!isInScope(prefix, elementUri)) {
+            declarations.add(prefix);
+            declarations.add(elementUri);
+        }
+        for (Map.Entry<String, String> mapping : prefixMappings.entrySet()) {
+            if (!isInScope(mapping.getKey(), mapping.getValue())) {
+                declarations.add(mapping.getKey());
+                declarations.add(mapping.getValue());
+            }
+        }
+        prefixMappings.clear();
+        namespaces.pushContext();
+        for (int i = 0; i < declarations.size(); i += 2) {
+            String declaredPrefix = declarations.get(i);
+            String declaredUri = declarations.get(i + 1);
+            namespaces.declarePrefix(declaredPrefix, declaredUri);
+            write(declaredPrefix.length() == 0 ? " xmlns=\"" : " xmlns:" + declaredPrefix + "=\"");
+            write(escape(declaredUri, true));
+            write("\"");
+        }
+    }
+
+    protected boolean isInScope(String prefix, String uri) {
+        if (prefix.equals("xml")) {
+            return true;
+        }
+        String current = namespaces.getURI(prefix);
+        return uri.equals(current == null ? "" : current) && (current != null || prefix.length() == 0);
+    }
+
+    protected void write(String value) throws SAXException {
+        try {
+            writer.write(value);
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    protected static String prefixOf(String qName) {
+        int index = qName.indexOf(':');
+        return index < 0 ? "" : qName.substring(0, index);
+    }
+
+    protected static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    protected static String trim(CharSequence value) {
+        int start = 0;
+        int end = value.length();
+        while (start < end && isWhitespace(value.charAt(start))) {
+            start++;
+        }
+        while (end > start && isWhitespace(value.charAt(end - 1))) {
+            end--;
+        }
+        return value.subSequence(start, end).toString();
+    }
+
+    protected static String normalize(CharSequence value) {
+        StringBuilder normalized = new StringBuilder(value.length());
+        boolean space = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (isWhitespace(c)) {
+                space = normalized.length() > 0;
+            } else {
+                if (space) {
+                    normalized.append(' ');
+                    space = false;
+                }
+                normalized.append(c);
+            }
+        }
+        return normalized.toString();
+    }
+
+    protected static String escape(String value, boolean attribute) {
+        StringBuilder escaped = new StringBuilder(value.length() + 16);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '&') {
+                escaped.append("&amp;");
+            } else if (c == '<') {
+                escaped.append("&lt;");
+            } else if (c == '>') {
+                escaped.append("&gt;");
+            } else if (c == '\r') {
+                escaped.append("&#xD;");
+            } else if (c == '\n') {
+                escaped.append(attribute ? "&#xA;" : LINE_SEPARATOR);
+            } else if (c == '"' && attribute) {
+                escaped.append("&quot;");
+            } else if (c == '\t' && attribute) {
+                escaped.append("&#x9;");
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                escaped.append("&#x").append(Integer.toHexString(Character.toCodePoint(c, value.charAt(++i)))).append(';');
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    static class OpenElement {
+
+        final String name;
+
+        boolean hasContent;
+
+        OpenElement(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -24,11 +24,15 @@ import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Stack;
 
+import javax.xml.stream.XMLOutputFactory;
+
 import org.apache.commons.lang.StringUtils;
 import org.jdom2.Attribute;
 import org.jdom2.Document;
@@ -45,6 +49,7 @@ import org.jdom2.xpath.XPathHelper;
 import org.jumpmind.metl.core.model.ComponentAttributeSetting;
 import org.jumpmind.metl.core.model.ComponentEntitySetting;
 import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttribute;
 import org.jumpmind.metl.core.runtime.ControlMessage;
 import org.jumpmind.metl.core.runtime.EntityData;
 import org.jumpmind.metl.core.runtime.EntityDataMessage;
@@ -75,6 +80,8 @@ public class XmlFormatter extends AbstractXMLComponentRuntime {
 
     public final static String XML_FORMATTER_TEMPLATE = "xml.formatter.template";
 
+    public final static String XML_FORMATTER_STREAMING = "xml.formatter.streaming";
+
     boolean ignoreNamespace = true;
 
     String xmlFormat;
@@ -93,6 +100,14 @@ public class XmlFormatter extends AbstractXMLComponentRuntime {
 
     String runWhen;
 
+    boolean streaming;
+
+    XmlTemplatePlan templatePlan;
+
+    XmlTemplateWriter templateWriter;
+
+    XMLOutputFactory outputFactory;
+
     @Override
     public void start() {
         super.start();
@@ -104,8 +119,17 @@ public class XmlFormatter extends AbstractXMLComponentRuntime {
         messagesToProcess = new ArrayList<Message>();
         inputModel = getComponent().getInputModel();
         templateDoc = getTemplateDoc();
-        entityAttributeDtls = fillEntityAttributeDetails(templateDoc);
+        Map<String, DocElement> entityDetails = fillEntityDetails(templateDoc);
+        Map<String, DocElement> attributeDetails = fillAttributeDetails(templateDoc);
+        entityAttributeDtls = new HashMap<String, DocElement>();
+        entityAttributeDtls.putAll(entityDetails);
+        entityAttributeDtls.putAll(attributeDetails);
         runWhen = getComponent().get(RUN_WHEN, PER_MESSAGE);
+        streaming = properties.is(XML_FORMATTER_STREAMING, false);
+        if (streaming) {
+            templatePlan = createTemplatePlan(entityDetails, attributeDetails);
+            outputFactory = XMLOutputFactory.newInstance();
+        }
     }
 
     @Override
@@ -117,18 +141,84 @@ public class XmlFormatter extends AbstractXMLComponentRuntime {
     public void handle(Message inputMessage, ISendMessageCallback callback,
             boolean unitOfWorkBoundaryReached) {
 
-        if (!(inputMessage instanceof ControlMessage)) {
-            messagesToProcess.add(inputMessage);
+        boolean documentComplete = (PER_UNIT_OF_WORK.equals(runWhen) && inputMessage instanceof ControlMessage)
+                || (!PER_UNIT_OF_WORK.equals(runWhen)
+                        && !(inputMessage instanceof ControlMessage));
+
+        if (streaming) {
+            if (!(inputMessage instanceof ControlMessage)) {
+                streamMsgEntities(inputMessage);
+            }
+            if (documentComplete) {
+                getTemplateWriter().finish();
+            }
+            sendStreamedXml(callback);
+            if (documentComplete) {
+                templateWriter = null;
+            }
+        } else {
+            if (!(inputMessage instanceof ControlMessage)) {
+                messagesToProcess.add(inputMessage);
+            }
+
+            if (documentComplete) {
+                createXml(callback);
+                messagesToProcess.clear();
+            }
         }
+    }
 
-        if ((PER_UNIT_OF_WORK.equals(runWhen) && inputMessage instanceof ControlMessage)
-                || (!PER_UNIT_OF_WORK.equals(runWhen)
-                        && !(inputMessage instanceof ControlMessage))) {
-            createXml(callback);
-            messagesToProcess.clear();
+    private void streamMsgEntities(Message msg) {
+        XmlTemplateWriter writer = getTemplateWriter();
+        ArrayList<EntityData> inputRows = ((EntityDataMessage) msg).getPayload();
+        Set<String> entityIds = new LinkedHashSet<String>();
+        for (EntityData inputRow : inputRows) {
+            writer.updateStaticValues(inputRow);
+            for (String attributeId : inputRow.keySet()) {
+                ModelAttribute attribute = inputModel.getAttributeById(attributeId);
+                if (attribute != null) {
+                    entityIds.add(attribute.getEntityId());
+                }
+            }
+            for (String entityId : entityIds) {
+                writer.writeEntity(entityId, inputRow);
+            }
+            entityIds.clear();
+            getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
+        }
+    }
+
+    private void sendStreamedXml(ISendMessageCallback callback) {
+        String xml = getTemplateWriter().takeOutput();
+        if (xml.length() > 0) {
+            ArrayList<String> outboundPayload = new ArrayList<String>(1);
+            outboundPayload.add(xml);
+            callback.sendTextMessage(null, outboundPayload);
         }
     }
 
+    private XmlTemplateWriter getTemplateWriter() {
+        if (templateWriter == null) {
+            templateWriter = new XmlTemplateWriter(templatePlan, outputFactory, getFormat(), nullHandling);
+        }
+        return templateWriter;
+    }
+
+    private XmlTemplatePlan createTemplatePlan(Map<String, DocElement> entityDetails,
+            Map<String, DocElement> attributeDetails) {
+        Map<String, Element> entityElements = new HashMap<String, Element>();
+        for (Entry<String, DocElement> entry : entityDetails.entrySet()) {
+            entityElements.put(entry.getKey(), entry.getValue().xmlElement);
+        }
+        Map<String, Object> attributeNodes = new HashMap<String, Object>();
+        for (Entry<String, DocElement> entry : attributeDetails.entrySet()) {
+            DocElement docElement = entry.getValue();
+            attributeNodes.put(entry.getKey(),
+                    docElement.xmlElement != null ? docElement.xmlElement : docElement.xmlAttribute);
+        }
+        return new XmlTemplatePlan(templateDoc, entityElements, attributeNodes);
+    }
+
     private void createXml(ISendMessageCallback callback) {
 
         Document generatedXml = new Document();
@@ -139,19 +229,21 @@ public class XmlFormatter extends AbstractXMLComponentRuntime {
             processMsgEntities(parentStack, msg, generatedXml);
         }
         XMLOutputter xmlOutputter = new XMLOutputter();
-        Format format = null;
-        if (xmlFormat.equals(COMPACT_FORMAT)) {
-            format = Format.getCompactFormat();
-        } else if (xmlFormat.equals(RAW_FORMAT)) {
-            format = Format.getRawFormat();
-        } else {
-            format = Format.getPrettyFormat();
-        }
-        xmlOutputter.setFormat(format);
+        xmlOutputter.setFormat(getFormat());
         outboundPayload.add(xmlOutputter.outputString(generatedXml));
         callback.sendTextMessage(null, outboundPayload);
     }
 
+    private Format getFormat() {
+        if (COMPACT_FORMAT.equals(xmlFormat)) {
+            return Format.getCompactFormat();
+        } else if (RAW_FORMAT.equals(xmlFormat)) {
+            return Format.getRawFormat();
+        } else {
+            return Format.getPrettyFormat();
+        }
+    }
+
     private void processMsgEntities(Stack<DocElement> parentStack, Message msg,
             Document generatedXml) {
 
@@ -406,14 +498,6 @@ public class XmlFormatter extends AbstractXMLComponentRuntime {
         }
     }
 
-    private Map<String, DocElement> fillEntityAttributeDetails(Document templateDoc) {
-
-        Map<String, DocElement> entityAttributeLevels = new HashMap<String, DocElement>();
-        entityAttributeLevels.putAll(fillEntityDetails(templateDoc));
-        entityAttributeLevels.putAll(fillAttributeDetails(templateDoc));
-        return entityAttributeLevels;
-    }
-
     private Map<String, DocElement> fillAttributeDetails(Document templateDoc) {
 
         Map<String, DocElement> attributeLevels = new HashMap<String, DocElement>();
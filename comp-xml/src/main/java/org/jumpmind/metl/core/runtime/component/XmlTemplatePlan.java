@@ -0,0 +1,233 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jdom2.Attribute;
+import org.jdom2.Comment;
+import org.jdom2.Content;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.Namespace;
+import org.jdom2.Text;
+import org.jumpmind.metl.core.runtime.MisconfiguredException;
+
+/**
+ * A template for the {@link XmlFormatter} that has been compiled into a tree
+ * of the elements to emit. The XPath expressions of the entities and
+ * attributes are evaluated once when the plan is built, so that the
+ * {@link XmlTemplateWriter} can write each entity without searching the
+ * template or the generated document.
+ * <p>
+ * Elements are marked as slots when they are entity elements or contain
+ * one. Slots are where entities are written as they arrive. Everything else
+ * is static content that is written from the template.
+ */
+class XmlTemplatePlan {
+
+    static final Namespace XSI_NAMESPACE = Namespace.getNamespace("xsi", "http://www.w3.org/2001/XMLSchema-instance");
+
+    final PlanElement root;
+
+    final Map<String, PlanElement> entities = new HashMap<>();
+
+    XmlTemplatePlan(Document templateDoc, Map<String, Element> entityElements, Map<String, Object> attributeNodes) {
+        Map<Element, PlanElement> planElements = new IdentityHashMap<>();
+        root = compile(templateDoc.getRootElement(), null, 0, planElements);
+
+        for (Map.Entry<String, Object> entry : attributeNodes.entrySet()) {
+            Object node = entry.getValue();
+            if (node instanceof Element) {
+                PlanElement element = planElements.get(node);
+                if (element != null) {
+                    element.attributeId = entry.getKey();
+                }
+            } else if (node instanceof Attribute) {
+                PlanElement element = planElements.get(((Attribute) node).getParent());
+                if (element != null) {
+                    for (PlanAttribute attribute : element.attributes) {
+                        if (attribute.attribute == node) {
+                            attribute.attributeId = entry.getKey();
+                        }
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<String, Element> entry : entityElements.entrySet()) {
+            PlanElement element = planElements.get(entry.getValue());
+            if (element == null) {
+                continue;
+            }
+            if (element.parent == null) {
+                throw new MisconfiguredException(
+                        "The entity %s is mapped to the root element.  It cannot be repeated in a streamed document",
+                        entry.getKey());
+            }
+            element.entityId = entry.getKey();
+            entities.put(entry.getKey(), element);
+        }
+
+        for (PlanElement entity : entities.values()) {
+            if (entity.parent.entityId == null) {
+                entity.parent.entityParent = true;
+            }
+            for (PlanElement element = entity; element.parent != null && !element.slot; element = element.parent) {
+                element.slot = true;
+                element.parent.firstSlot = Math.min(element.parent.firstSlot, element.index);
+            }
+        }
+    }
+
+    protected PlanElement compile(Element element, PlanElement parent, int index, Map<Element, PlanElement> planElements) {
+        PlanElement planElement = new PlanElement(element, parent, index);
+        planElements.put(element, planElement);
+        for (Content content : element.getContent()) {
+            if (content instanceof Element) {
+                planElement.hasElementChildren = true;
+                planElement.children.add(compile((Element) content, planElement, planElement.children.size(), planElements));
+            } else if (content instanceof Text) {
+                planElement.children.add(new PlanText(((Text) content).getText(), false));
+            } else if (content instanceof Comment) {
+                planElement.children.add(new PlanText(((Comment) content).getText(), true));
+            }
+        }
+        planElement.firstSlot = planElement.children.size();
+        return planElement;
+    }
+
+    static class PlanElement {
+
+        final String prefix;
+
+        final String name;
+
+        final String namespaceUri;
+
+        final List<Namespace> namespacesIntroduced;
+
+        final boolean xsiInScope;
+
+        final List<PlanAttribute> attributes;
+
+        final List<Object> children = new ArrayList<>();
+
+        final PlanElement parent;
+
+        final int index;
+
+        final List<PlanElement> ancestors;
+
+        boolean hasElementChildren;
+
+        /* the model attribute whose value replaces the content of the element */
+        String attributeId;
+
+        /* the model entity that is written at this element */
+        String entityId;
+
+        /* an entity element or an element that contains one */
+        boolean slot;
+
+        /*
+         * the parent of an entity that is not an entity itself is written
+         * without its attributes and static content, which is what the
+         * formatter always did
+         */
+        boolean entityParent;
+
+        /* the index of the first child that is a slot */
+        int firstSlot;
+
+        PlanElement(Element element, PlanElement parent, int index) {
+            this.prefix = element.getNamespacePrefix();
+            this.name = element.getName();
+            this.namespaceUri = element.getNamespaceURI();
+            this.parent = parent;
+            this.index = index;
+
+            List<Namespace> namespaces = new ArrayList<>();
+            for (Namespace namespace : element.getNamespacesIntroduced()) {
+                if (!namespace.equals(Namespace.XML_NAMESPACE) && !(parent == null && namespace.equals(Namespace.NO_NAMESPACE))) {
+                    namespaces.add(namespace);
+                }
+            }
+            this.namespacesIntroduced = namespaces.isEmpty() ? Collections.<Namespace> emptyList() : namespaces;
+            Namespace xsi = element.getNamespace(XSI_NAMESPACE.getPrefix());
+            this.xsiInScope = xsi != null && xsi.getURI().equals(XSI_NAMESPACE.getURI());
+
+            List<PlanAttribute> attributes = new ArrayList<>();
+            for (Attribute attribute : element.getAttributes()) {
+                attributes.add(new PlanAttribute(attribute));
+            }
+            this.attributes = attributes.isEmpty() ? Collections.<PlanAttribute> emptyList() : attributes;
+
+            List<PlanElement> ancestors = new ArrayList<>();
+            for (PlanElement ancestor = parent; ancestor != null; ancestor = ancestor.parent) {
+                ancestors.add(0, ancestor);
+            }
+            this.ancestors = ancestors;
+        }
+    }
+
+    static class PlanAttribute {
+
+        final Attribute attribute;
+
+        final String prefix;
+
+        final String name;
+
+        final String namespaceUri;
+
+        final String value;
+
+        /* the model attribute whose value replaces the value of the attribute */
+        String attributeId;
+
+        PlanAttribute(Attribute attribute) {
+            this.attribute = attribute;
+            this.prefix = attribute.getNamespacePrefix();
+            this.name = attribute.getName();
+            this.namespaceUri = attribute.getNamespaceURI();
+            this.value = attribute.getValue();
+        }
+    }
+
+    static class PlanText {
+
+        final String text;
+
+        final boolean comment;
+
+        PlanText(String text, boolean comment) {
+            this.text = text;
+            this.comment = comment;
+        }
+    }
+
+}
@@ -0,0 +1,364 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.jumpmind.metl.core.runtime.component.XmlTemplatePlan.XSI_NAMESPACE;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.jdom2.Namespace;
+import org.jdom2.Text;
+import org.jdom2.output.Format;
+import org.jdom2.output.Format.TextMode;
+import org.jumpmind.exception.IoException;
+import org.jumpmind.metl.core.runtime.component.XmlTemplatePlan.PlanAttribute;
+import org.jumpmind.metl.core.runtime.component.XmlTemplatePlan.PlanElement;
+import org.jumpmind.metl.core.runtime.component.XmlTemplatePlan.PlanText;
+
+/**
+ * Writes one XML document from an {@link XmlTemplatePlan} with StAX. Only the
+ * path from the root to the entity that was written last is kept open, so
+ * the memory that is used depends on how deep the template is and not on how
+ * many entities are written.
+ * <p>
+ * Static content that comes before a slot is written when the first entity
+ * for the slot arrives. Static content that comes after it is written when
+ * an entity for a later slot arrives or when the document is finished. Model
+ * attributes that are mapped to static content use the last value that was
+ * seen for them.
+ * <p>
+ * The text that has been written is collected with {@link #takeOutput()}.
+ * The chunks always end between two elements. When the format is indented
+ * the line separator that would start a chunk is left off, because each
+ * chunk is usually written out as a line of its own.
+ */
+class XmlTemplateWriter {
+
+    final XmlTemplatePlan plan;
+
+    final String nullHandling;
+
+    final String lineSeparator;
+
+    final String indent;
+
+    final TextMode textMode;
+
+    final StringWriter buffer = new StringWriter();
+
+    final XMLStreamWriter writer;
+
+    final List<Frame> frames = new ArrayList<>();
+
+    final Map<String, Object> staticValues = new HashMap<>();
+
+    boolean started;
+
+    boolean firstChunk = true;
+
+    XmlTemplateWriter(XmlTemplatePlan plan, XMLOutputFactory outputFactory, Format format, String nullHandling) {
+        this.plan = plan;
+        this.nullHandling = nullHandling;
+        this.lineSeparator = format.getLineSeparator();
+        this.indent = format.getIndent();
+        this.textMode = format.getTextMode();
+        try {
+            this.writer = outputFactory.createXMLStreamWriter(buffer);
+        } catch (XMLStreamException e) {
+            throw new IoException(e);
+        }
+    }
+
+    void updateStaticValues(Map<String, Object> row) {
+        staticValues.putAll(row);
+    }
+
+    /**
+     * @return false if the entity is not mapped to an element of the template
+     */
+    boolean writeEntity(String entityId, Map<String, Object> row) {
+        PlanElement entity = plan.entities.get(entityId);
+        if (entity == null) {
+            return false;
+        }
+        try {
+            List<PlanElement> ancestors = entity.ancestors;
+            int depth = 0;
+            while (depth < frames.size() && depth < ancestors.size() && frames.get(depth).element == ancestors.get(depth)) {
+                depth++;
+            }
+            while (frames.size() > depth) {
+                closeFrame();
+            }
+            for (int i = depth; i < ancestors.size(); i++) {
+                openFrame(ancestors.get(i), null);
+            }
+            openFrame(entity, row);
+            advance(frames.get(frames.size() - 1), entity.firstSlot, frames.size());
+            return true;
+        } catch (XMLStreamException e) {
+            throw new IoException(e);
+        }
+    }
+
+    void finish() {
+        try {
+            if (!started) {
+                startDocument();
+            }
+            while (!frames.isEmpty()) {
+                closeFrame();
+            }
+            writer.writeEndDocument();
+            writer.flush();
+        } catch (XMLStreamException e) {
+            throw new IoException(e);
+        }
+    }
+
+    String takeOutput() {
+        try {
+            writer.flush();
+        } catch (XMLStreamException e) {
+            throw new IoException(e);
+        }
+        StringBuffer text = buffer.getBuffer();
+        String output = text.toString();
+        text.setLength(0);
+        if (!firstChunk && indent != null && output.startsWith(lineSeparator)) {
+            output = output.substring(lineSeparator.length());
+        }
+        if (output.length() > 0) {
+            firstChunk = false;
+        }
+        return output;
+    }
+
+    protected void startDocument() throws XMLStreamException {
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeCharacters(lineSeparator);
+        started = true;
+    }
+
+    /**
+     * @param values
+     *            the values for an entity element or null to use the values
+     *            of the enclosing element
+     */
+    protected void openFrame(PlanElement element, Map<String, Object> values) throws XMLStreamException {
+        int depth = frames.size();
+        if (depth == 0) {
+            if (!started) {
+                startDocument();
+            }
+            values = values != null ? values : staticValues;
+        } else {
+            Frame parent = frames.get(depth - 1);
+            advance(parent, element.index, depth);
+            values = values != null ? values : parent.values;
+            indent(depth);
+        }
+        writeStartElement(element, false);
+        if (!element.entityParent) {
+            writeAttributes(element, values, false);
+        }
+        frames.add(new Frame(element, values));
+    }
+
+    protected void closeFrame() throws XMLStreamException {
+        Frame frame = frames.remove(frames.size() - 1);
+        int depth = frames.size();
+        if (!frame.element.entityParent) {
+            writeChildren(frame.element, frame.cursor, frame.element.children.size(), frame.values, depth + 1);
+        }
+        if (frame.element.hasElementChildren) {
+            indent(depth);
+        }
+        writer.writeEndElement();
+    }
+
+    /*
+     * Writes the static content of an open element up to a slot. The cursor
+     * stays on the slot so the next entity for the slot is written there too.
+     */
+    protected void advance(Frame frame, int index, int depth) throws XMLStreamException {
+        if (index > frame.cursor) {
+            if (!frame.element.entityParent) {
+                writeChildren(frame.element, frame.cursor, index, frame.values, depth);
+            }
+            frame.cursor = index;
+        }
+    }
+
+    protected void writeChildren(PlanElement element, int from, int to, Map<String, Object> values, int depth)
+            throws XMLStreamException {
+        for (int i = from; i < to; i++) {
+            Object child = element.children.get(i);
+            if (child instanceof PlanElement) {
+                PlanElement childElement = (PlanElement) child;
+                if (!childElement.slot) {
+                    writeStatic(childElement, values, depth);
+                }
+            } else {
+                PlanText text = (PlanText) child;
+                if (text.comment) {
+                    if (element.hasElementChildren) {
+                        indent(depth);
+                    }
+                    writer.writeComment(text.text);
+                } else {
+                    String value = format(text.text);
+                    if (value != null) {
+                        if (element.hasElementChildren) {
+                            indent(depth);
+                        }
+                        writer.writeCharacters(value);
+                    }
+                }
+            }
+        }
+    }
+
+    protected void writeStatic(PlanElement element, Map<String, Object> values, int depth) throws XMLStreamException {
+        boolean hasValue = element.attributeId != null && values.containsKey(element.attributeId);
+        Object value = hasValue ? values.get(element.attributeId) : null;
+        boolean nil = false;
+        if (hasValue && value == null) {
+            if (XmlFormatter.NULL_HANDLING_REMOVE.equals(nullHandling)) {
+                return;
+            }
+            nil = XmlFormatter.NULL_HANDLING_XML_NIL.equalsIgnoreCase(nullHandling);
+        }
+
+        String text = value != null ? value.toString() : null;
+        boolean empty = text != null ? text.length() == 0 : !hasContent(element);
+        indent(depth);
+        writeStartElement(element, empty);
+        writeAttributes(element, values, nil);
+        if (!empty) {
+            if (text != null) {
+                writer.writeCharacters(text);
+            } else {
+                writeChildren(element, 0, element.children.size(), values, depth + 1);
+                if (element.hasElementChildren) {
+                    indent(depth);
+                }
+            }
+            writer.writeEndElement();
+        }
+    }
+
+    protected void writeStartElement(PlanElement element, boolean empty) throws XMLStreamException {
+        if (empty) {
+            writer.writeEmptyElement(element.prefix, element.name, element.namespaceUri);
+        } else {
+            writer.writeStartElement(element.prefix, element.name, element.namespaceUri);
+        }
+        for (Namespace namespace : element.namespacesIntroduced) {
+            if (namespace.getPrefix().length() == 0) {
+                writer.writeDefaultNamespace(namespace.getURI());
+            } else {
+                writer.writeNamespace(namespace.getPrefix(), namespace.getURI());
+            }
+        }
+    }
+
+    protected void writeAttributes(PlanElement element, Map<String, Object> values, boolean nil) throws XMLStreamException {
+        for (PlanAttribute attribute : element.attributes) {
+            Object value = attribute.attributeId != null ? values.get(attribute.attributeId) : null;
+            String text = value != null ? value.toString() : attribute.value;
+            if (attribute.prefix.length() == 0) {
+                writer.writeAttribute(attribute.name, text);
+            } else {
+                writer.writeAttribute(attribute.prefix, attribute.namespaceUri, attribute.name, text);
+            }
+        }
+        if (nil) {
+            if (!element.xsiInScope) {
+                writer.writeNamespace(XSI_NAMESPACE.getPrefix(), XSI_NAMESPACE.getURI());
+            }
+            writer.writeAttribute(XSI_NAMESPACE.getPrefix(), XSI_NAMESPACE.getURI(), "nil", "true");
+        }
+    }
+
+    protected boolean hasContent(PlanElement element) {
+        for (Object child : element.children) {
+            if (child instanceof PlanElement || ((PlanText) child).comment || format(((PlanText) child).text) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the text the way the format writes it or null if the format
+     *         leaves it out
+     */
+    protected String format(String text) {
+        switch (textMode) {
+            case TRIM:
+                text = text.trim();
+                break;
+            case NORMALIZE:
+                text = Text.normalizeString(text);
+                break;
+            case TRIM_FULL_WHITE:
+                text = text.trim().length() == 0 ? "" : text;
+                break;
+            default:
+                break;
+        }
+        return text.length() > 0 ? text : null;
+    }
+
+    protected void indent(int depth) throws XMLStreamException {
+        if (indent != null) {
+            StringBuilder text = new StringBuilder(lineSeparator);
+            for (int i = 0; i < depth; i++) {
+                text.append(indent);
+            }
+            writer.writeCharacters(text.toString());
+        }
+    }
+
+    static class Frame {
+
+        final PlanElement element;
+
+        final Map<String, Object> values;
+
+        int cursor;
+
+        Frame(PlanElement element, Map<String, Object> values) {
+            this.element = element;
+            this.values = values;
+        }
+    }
+
+}
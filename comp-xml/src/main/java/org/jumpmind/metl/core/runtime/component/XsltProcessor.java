@@ -20,7 +20,6 @@
  */
 package org.jumpmind.metl.core.runtime.component;
 
-import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
@@ -30,15 +29,17 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+
 import org.apache.commons.lang.StringUtils;
-import org.jdom2.Document;
-import org.jdom2.Element;
-import org.jdom2.input.SAXBuilder;
-import org.jdom2.input.sax.XMLReaders;
-import org.jdom2.output.Format;
-import org.jdom2.output.XMLOutputter;
-import org.jdom2.transform.XSLTransformer;
-import org.jumpmind.metl.core.model.DataType;
 import org.jumpmind.metl.core.model.Model;
 import org.jumpmind.metl.core.model.ModelAttribute;
 import org.jumpmind.metl.core.model.ModelEntity;
@@ -49,6 +50,11 @@ import org.jumpmind.metl.core.runtime.LogLevel;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
 import org.jumpmind.properties.TypedProperties;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
 
 public class XsltProcessor extends AbstractComponentRuntime {
 
@@ -83,6 +89,10 @@ public class XsltProcessor extends AbstractComponentRuntime {
     boolean omitXmlDeclaration = false;
     
     String xmlFormat;
+
+    Templates templates;
+
+    String templatesXml;
     
     @Override
     public void start() {
@@ -95,6 +105,11 @@ public class XsltProcessor extends AbstractComponentRuntime {
         if (StringUtils.isBlank(stylesheet.getValue())) {
             throw new RuntimeException("The XSLT stylesheet is blank.  Edit the component and set a stylesheet.");
         }
+        String stylesheetXml = useParameterReplacement ? resolveFlowParams(stylesheet.getValue()) : stylesheet.getValue();
+        if (!stylesheetXml.contains("$(")) {
+            templates = compileStylesheet(stylesheetXml);
+            templatesXml = stylesheetXml;
+        }
     }
     
     @Override
@@ -109,12 +124,9 @@ public class XsltProcessor extends AbstractComponentRuntime {
 
             ArrayList<String> outputPayload = new ArrayList<String>();
 
-            String batchXml = getBatchXml(getComponent().getInputModel(), inputRows, outputAllAttributes);
-            String stylesheetXml = stylesheet.getValue();
-            if (useParameterReplacement) {
-                stylesheetXml = resolveParamsAndHeaders(stylesheetXml, inputMessage);
-            }
-            String outputXml = getTransformedXml(batchXml, stylesheetXml, xmlFormat, omitXmlDeclaration);
+            Source source = new SAXSource(new BatchXmlReader(getComponent().getInputModel(), inputRows, outputAllAttributes),
+                    new InputSource());
+            String outputXml = transform(getTemplates(inputMessage), source, xmlFormat, omitXmlDeclaration);
             outputPayload.add(outputXml);
 
             log(LogLevel.DEBUG, outputPayload.toString());
@@ -123,61 +135,34 @@ public class XsltProcessor extends AbstractComponentRuntime {
         }
     }
 
-    public static String getBatchXml(Model model, ArrayList<EntityData> inputRows, boolean outputAllAttributes) {
-        SimpleDateFormat df = new SimpleDateFormat(DATE_FORMAT);
-        Element root = new Element("batch");
-        Document doc = new Document(root);
-
-        for (ModelEntity entity : getModelEntities(model, inputRows)) {
-            Element entityElement = new Element("entity");
-            entityElement.setAttribute("name", entity.getName());
-            root.addContent(entityElement);
-
-            for (EntityData entityData : inputRows) {
-                List<ModelAttribute> attributes = null;
-                if (outputAllAttributes) {
-                    attributes = entity.getModelAttributes();
-                } else {
-                    attributes = getModelAttributes(model, entity.getId(), entityData.keySet());
-                }
-
-                Element recordElement = new Element("record");
-                if (attributes.size() > 0) {
-                    entityElement.addContent(recordElement);
-                }
-
-                for (ModelAttribute attribute : attributes) {
-                    if (attribute != null && attribute.getEntityId().equals(entity.getId())) {
-                        Element attributeElement = new Element("attribute");
-                        attributeElement.setAttribute("name", attribute.getName());                       
-                        Object object = entityData.get(attribute.getId());
-                        String value = null;
-                        DataType type = attribute.getDataType();
-                        
-                        if (object != null) {
-                            if (type.isTimestamp() && object instanceof Date) {
-                                value = df.format(object);
-                            } else {
-                                value = object.toString();
-                            }
-                        }
-                        attributeElement.setAttribute("value", value == null ? "" : value);
-                        recordElement.addContent(attributeElement);
-                    }
-                }
-            }
+    /**
+     * The stylesheet is only compiled again when parameter replacement
+     * changes it.
+     */
+    protected Templates getTemplates(Message inputMessage) {
+        String stylesheetXml = stylesheet.getValue();
+        if (useParameterReplacement) {
+            stylesheetXml = resolveParamsAndHeaders(stylesheetXml, inputMessage);
         }
-        
-        StringWriter writer = new StringWriter();
-        XMLOutputter xmlOutput = new XMLOutputter();
-        xmlOutput.setFormat(Format.getPrettyFormat());
+        if (templates == null || !stylesheetXml.equals(templatesXml)) {
+            templates = compileStylesheet(stylesheetXml);
+            templatesXml = stylesheetXml;
+        }
+        return templates;
+    }
+
+    /**
+     * Writes out the batch document that the rows are transformed from, for
+     * the XSLT editor to show.
+     */
+    public static String getBatchXml(Model model, ArrayList<EntityData> inputRows, boolean outputAllAttributes) {
         try {
-            xmlOutput.output(doc, writer);
-            writer.close();
-        } catch (IOException e) {
+            return transform(TransformerFactory.newInstance().newTransformer(),
+                    new SAXSource(new BatchXmlReader(model, inputRows, outputAllAttributes), new InputSource()), PRETTY_FORMAT,
+                    false);
+        } catch (TransformerConfigurationException e) {
             throw new RuntimeException(e);
         }
-        return writer.toString();
     }
 
     protected static List<ModelEntity> getModelEntities(Model model, ArrayList<EntityData> inputRows) {
@@ -208,32 +193,129 @@ public class XsltProcessor extends AbstractComponentRuntime {
     }
 
     public static String getTransformedXml(String inputXml, String stylesheetXml, String xmlFormat, boolean omitXmlDeclaration) {
+        return transform(compileStylesheet(stylesheetXml), new StreamSource(new StringReader(inputXml)), xmlFormat,
+                omitXmlDeclaration);
+    }
+
+    public static Templates compileStylesheet(String stylesheetXml) {
+        try {
+            return TransformerFactory.newInstance().newTemplates(new StreamSource(new StringReader(stylesheetXml)));
+        } catch (TransformerConfigurationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static String transform(Templates templates, Source source, String xmlFormat, boolean omitXmlDeclaration) {
+        try {
+            return transform(templates.newTransformer(), source, xmlFormat, omitXmlDeclaration);
+        } catch (TransformerConfigurationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The result is written as it is produced by a {@link FormattedXmlWriter}
+     * in the same Pretty, Compact and Raw layouts that the JDOM formats gave
+     * the whole output document.
+     */
+    protected static String transform(Transformer transformer, Source source, String xmlFormat, boolean omitXmlDeclaration) {
         StringWriter writer = new StringWriter();
-        SAXBuilder builder = new SAXBuilder();
-        builder.setXMLReaderFactory(XMLReaders.NONVALIDATING);
-        builder.setFeature("http://xml.org/sax/features/validation", false);
+        FormattedXmlWriter xmlWriter = new FormattedXmlWriter(writer, xmlFormat, omitXmlDeclaration);
+        SAXResult result = new SAXResult(xmlWriter);
+        result.setLexicalHandler(xmlWriter);
         try {
-            Document inputDoc = builder.build(new StringReader(inputXml));
-            StringReader reader = new StringReader(stylesheetXml);
-            XSLTransformer transformer = new XSLTransformer(reader);
-            Document outputDoc = transformer.transform(inputDoc);
-            XMLOutputter xmlOutput = new XMLOutputter();
-            Format format = null;
-            if (xmlFormat.equals(COMPACT_FORMAT)) {
-                format = Format.getCompactFormat();
-            } else if (xmlFormat.equals(RAW_FORMAT)) {
-                format = Format.getRawFormat();
-            } else {
-                format = Format.getPrettyFormat();
-            }
-            
-            format.setOmitDeclaration(omitXmlDeclaration);
-            xmlOutput.setFormat(format);
-            xmlOutput.output(outputDoc, writer);
-            writer.close();
-        } catch (Exception e) {
+            transformer.transform(source, result);
+        } catch (TransformerException e) {
             throw new RuntimeException(e);
         }
         return writer.toString();
     }
+
+    /**
+     * Produces the batch document as SAX events, so the rows are transformed
+     * without writing the document out and parsing it again.
+     */
+    static class BatchXmlReader extends XMLFilterImpl {
+
+        static final String NAMESPACES = "http://xml.org/sax/features/namespaces";
+
+        final Model model;
+
+        final ArrayList<EntityData> inputRows;
+
+        final boolean outputAllAttributes;
+
+        BatchXmlReader(Model model, ArrayList<EntityData> inputRows, boolean outputAllAttributes) {
+            this.model = model;
+            this.inputRows = inputRows;
+            this.outputAllAttributes = outputAllAttributes;
+        }
+
+        @Override
+        public boolean getFeature(String name) {
+            return NAMESPACES.equals(name);
+        }
+
+        @Override
+        public void setFeature(String name, boolean value) {
+        }
+
+        @Override
+        public void parse(String systemId) throws SAXException {
+            parse(new InputSource(systemId));
+        }
+
+        @Override
+        public void parse(InputSource input) throws SAXException {
+            SimpleDateFormat df = new SimpleDateFormat(DATE_FORMAT);
+            ContentHandler handler = getContentHandler();
+            handler.startDocument();
+            startElement(handler, "batch", null, null);
+            for (ModelEntity entity : getModelEntities(model, inputRows)) {
+                startElement(handler, "entity", entity.getName(), null);
+                for (EntityData entityData : inputRows) {
+                    List<ModelAttribute> attributes = null;
+                    if (outputAllAttributes) {
+                        attributes = entity.getModelAttributes();
+                    } else {
+                        attributes = getModelAttributes(model, entity.getId(), entityData.keySet());
+                    }
+
+                    if (attributes.size() > 0) {
+                        startElement(handler, "record", null, null);
+                        for (ModelAttribute attribute : attributes) {
+                            if (attribute != null && attribute.getEntityId().equals(entity.getId())) {
+                                Object object = entityData.get(attribute.getId());
+                                String value = null;
+                                if (object != null) {
+                                    if (attribute.getDataType().isTimestamp() && object instanceof Date) {
+                                        value = df.format(object);
+                                    } else {
+                                        value = object.toString();
+                                    }
+                                }
+                                startElement(handler, "attribute", attribute.getName(), value == null ? "" : value);
+                                handler.endElement("", "attribute", "attribute");
+                            }
+                        }
+                        handler.endElement("", "record", "record");
+                    }
+                }
+                handler.endElement("", "entity", "entity");
+            }
+            handler.endElement("", "batch", "batch");
+            handler.endDocument();
+        }
+
+        protected void startElement(ContentHandler handler, String element, String name, String value) throws SAXException {
+            AttributesImpl attributes = new AttributesImpl();
+            if (name != null) {
+                attributes.addAttribute("", "name", "name", "CDATA", name);
+            }
+            if (value != null) {
+                attributes.addAttribute("", "value", "value", "CDATA", value);
+            }
+            handler.startElement("", element, element, attributes);
+        }
+    }
 }
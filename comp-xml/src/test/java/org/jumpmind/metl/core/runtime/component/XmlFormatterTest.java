@@ -0,0 +1,204 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.ComponentAttributeSetting;
+import org.jumpmind.metl.core.model.ComponentEntitySetting;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Folder;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttribute;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.runtime.ControlMessage;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.runtime.Message;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Test;
+
+public class XmlFormatterTest {
+
+    static final String TEMPLATE = "<ns:persons xmlns:ns='urn:test' version='1'>\n" 
+            + "    <ns:header><ns:source>crm</ns:source><ns:count/></ns:header>\n"
+            + "    <ns:people>\n"
+            + "        <ns:person id=''>\n" 
+            + "            <ns:name><ns:first/><ns:last/></ns:name>\n"
+            + "            <ns:gender/>\n" 
+            + "            <ns:status>active</ns:status>\n"
+            + "        </ns:person>\n" 
+            + "    </ns:people>\n" 
+            + "    <ns:footer>end</ns:footer>\n"
+            + "</ns:persons>";
+
+    @Test
+    public void testStreamedDocumentMatchesBuiltDocument() throws Exception {
+        String expected = format(createXml(false, XmlFormatter.COMPACT_FORMAT, XmlFormatter.PER_MESSAGE,
+                XmlFormatter.NULL_HANDLING_EMPTY, createMessage(row("1", "Ann", "Lee", "F"))).get(0));
+        List<String> actual = createXml(true, XmlFormatter.COMPACT_FORMAT, XmlFormatter.PER_MESSAGE,
+                XmlFormatter.NULL_HANDLING_EMPTY, createMessage(row("1", "Ann", "Lee", "F")));
+        assertEquals(1, actual.size());
+        assertEquals(expected, format(actual.get(0)));
+    }
+
+    @Test
+    public void testStreamedDocumentIsWrittenAsEntitiesArrive() throws Exception {
+        List<String> chunks = createXml(true, XmlFormatter.PRETTY_FORMAT, XmlFormatter.PER_UNIT_OF_WORK,
+                XmlFormatter.NULL_HANDLING_EMPTY, createMessage(row("1", "Ann", "Lee", "F"), row("2", "Bob", "Ray", "M")),
+                createMessage(row("3", "Cy", "Fox", "M")), new ControlMessage("fake step id"));
+        assertEquals(3, chunks.size());
+        assertTrue(chunks.get(0).contains("Bob"));
+        assertTrue(!chunks.get(0).contains("Cy"));
+        assertTrue(chunks.get(1).contains("Cy"));
+        assertTrue(chunks.get(2).contains("footer"));
+
+        String lineSeparator = Format.getPrettyFormat().getLineSeparator();
+        String xml = String.join(lineSeparator, chunks);
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + lineSeparator
+                + "<ns:persons xmlns:ns=\"urn:test\" version=\"1\">" + lineSeparator
+                + "  <ns:header>" + lineSeparator
+                + "    <ns:source>crm</ns:source>" + lineSeparator
+                + "    <ns:count>3</ns:count>" + lineSeparator
+                + "  </ns:header>" + lineSeparator
+                + "  <ns:people>" + lineSeparator
+                + person("1", "Ann", "Lee", "F", lineSeparator)
+                + person("2", "Bob", "Ray", "M", lineSeparator)
+                + person("3", "Cy", "Fox", "M", lineSeparator)
+                + "  </ns:people>" + lineSeparator
+                + "  <ns:footer>end</ns:footer>" + lineSeparator
+                + "</ns:persons>", xml);
+    }
+
+    @Test
+    public void testStreamedNullHandling() throws Exception {
+        String xml = createXml(true, XmlFormatter.COMPACT_FORMAT, XmlFormatter.PER_MESSAGE,
+                XmlFormatter.NULL_HANDLING_XML_NIL, createMessage(row("1", "Ann", null, "F"))).get(0);
+        assertTrue(xml, xml.contains("<ns:last xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:nil=\"true\"/>"));
+
+        xml = createXml(true, XmlFormatter.COMPACT_FORMAT, XmlFormatter.PER_MESSAGE, XmlFormatter.NULL_HANDLING_REMOVE,
+                createMessage(row("1", "Ann", null, "F"))).get(0);
+        assertTrue(xml, !xml.contains("last"));
+        assertTrue(xml, xml.contains("<ns:first>Ann</ns:first>"));
+    }
+
+    protected String person(String id, String first, String last, String gender, String lineSeparator) {
+        return "    <ns:person id=\"" + id + "\">" + lineSeparator 
+                + "      <ns:name>" + lineSeparator 
+                + "        <ns:first>" + first + "</ns:first>" + lineSeparator 
+                + "        <ns:last>" + last + "</ns:last>" + lineSeparator
+                + "      </ns:name>" + lineSeparator 
+                + "      <ns:gender>" + gender + "</ns:gender>" + lineSeparator
+                + "      <ns:status>active</ns:status>" + lineSeparator 
+                + "    </ns:person>" + lineSeparator;
+    }
+
+    protected String format(String xml) throws Exception {
+        XMLOutputter outputter = new XMLOutputter(Format.getCompactFormat());
+        return outputter.outputString(new SAXBuilder().build(new StringReader(xml)));
+    }
+
+    protected List<String> createXml(boolean streaming, String xmlFormat, String runWhen, String nullHandling,
+            Message... messages) {
+        XmlFormatter formatter = new XmlFormatter();
+        formatter.setContext(new ComponentContext(null, createFlowStep(streaming, xmlFormat, runWhen, nullHandling), null,
+                new ExecutionTrackerNoOp(), null, null, null));
+        formatter.start();
+        SendMessageCallback<ArrayList<String>> callback = new SendMessageCallback<ArrayList<String>>();
+        for (Message message : messages) {
+            formatter.handle(message, callback, true);
+        }
+        List<String> xml = new ArrayList<String>();
+        for (ArrayList<String> payload : callback.getPayloadList()) {
+            xml.addAll(payload);
+        }
+        return xml;
+    }
+
+    protected EntityData row(String id, String first, String last, String gender) {
+        EntityData data = new EntityData();
+        data.put("id", id);
+        data.put("first", first);
+        data.put("last", last);
+        data.put("gender", gender);
+        data.put("count", "3");
+        return data;
+    }
+
+    protected Message createMessage(EntityData... rows) {
+        EntityDataMessage message = new EntityDataMessage("fake step id");
+        ArrayList<EntityData> payload = new ArrayList<EntityData>();
+        for (EntityData row : rows) {
+            payload.add(row);
+        }
+        message.setPayload(payload);
+        return message;
+    }
+
+    protected FlowStep createFlowStep(boolean streaming, String xmlFormat, String runWhen, String nullHandling) {
+        Folder folder = TestUtils.createFolder("Test Folder");
+        Flow flow = TestUtils.createFlow("TestFlow", folder);
+        List<ComponentEntitySetting> entitySettings = new ArrayList<ComponentEntitySetting>();
+        entitySettings.add(new ComponentEntitySetting("person", XmlFormatter.XML_FORMATTER_XPATH, "/persons/people/person"));
+        List<ComponentAttributeSetting> attributeSettings = new ArrayList<ComponentAttributeSetting>();
+        attributeSettings.add(new ComponentAttributeSetting("id", XmlFormatter.XML_FORMATTER_XPATH, "/persons/people/person/@id"));
+        attributeSettings.add(new ComponentAttributeSetting("first", XmlFormatter.XML_FORMATTER_XPATH, "/persons/people/person/name/first"));
+        attributeSettings.add(new ComponentAttributeSetting("last", XmlFormatter.XML_FORMATTER_XPATH, "/persons/people/person/name/last"));
+        attributeSettings.add(new ComponentAttributeSetting("gender", XmlFormatter.XML_FORMATTER_XPATH, "/persons/people/person/gender"));
+        attributeSettings.add(new ComponentAttributeSetting("count", XmlFormatter.XML_FORMATTER_XPATH, "/persons/header/count"));
+        Component component = TestUtils.createComponent(XmlFormatter.TYPE, false, null, createInputModel(), null,
+                entitySettings, attributeSettings,
+                new Setting(XmlFormatter.XML_FORMATTER_TEMPLATE, TEMPLATE),
+                new Setting(XmlFormatter.XML_FORMATTER_STREAMING, Boolean.toString(streaming)),
+                new Setting(XmlFormatter.XML_FORMAT, xmlFormat),
+                new Setting(XmlFormatter.NULL_HANDLING, nullHandling),
+                new Setting(XmlFormatter.IGNORE_NAMESPACE, "true"),
+                new Setting(XmlFormatter.RUN_WHEN, runWhen));
+        FlowStep step = new FlowStep(component);
+        step.setFlowId(flow.getId());
+        return step;
+    }
+
+    protected Model createInputModel() {
+        ModelEntity person = new ModelEntity("person", "PERSON");
+        person.addModelAttribute(new ModelAttribute("id", person.getId(), "ID"));
+        person.addModelAttribute(new ModelAttribute("first", person.getId(), "FIRST_NAME"));
+        person.addModelAttribute(new ModelAttribute("last", person.getId(), "LAST_NAME"));
+        person.addModelAttribute(new ModelAttribute("gender", person.getId(), "GENDER"));
+        person.addModelAttribute(new ModelAttribute("count", person.getId(), "PERSON_COUNT"));
+        Model model = new Model();
+        model.getModelEntities().add(person);
+        return model;
+    }
+
+}
@@ -0,0 +1,238 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.xml.transform.Templates;
+
+import org.jdom2.Document;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.jdom2.transform.XSLTransformer;
+
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.DataType;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Folder;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttribute;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.runtime.Message;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Test;
+
+public class XsltProcessorTest {
+
+    static final String STYLESHEET = "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>\n"
+            + "  <xsl:template match='/batch'>\n"
+            + "    <people>\n"
+            + "      <xsl:for-each select='entity/record'>\n"
+            + "        <person id='{attribute[@name=\"ID\"]/@value}'>\n"
+            + "          <name><xsl:value-of select='attribute[@name=\"NAME\"]/@value'/></name>\n"
+            + "          <born><xsl:value-of select='attribute[@name=\"BORN\"]/@value'/></born>\n"
+            + "        </person>\n"
+            + "      </xsl:for-each>\n"
+            + "    </people>\n"
+            + "  </xsl:template>\n"
+            + "</xsl:stylesheet>";
+
+    static final String[] DOCUMENTS = {
+            "<a>x<b>y</b>z</a>",
+            "<a>  x  \n  y  </a>",
+            "<a><!--c--></a>",
+            "<!--top--><?pi data?><a>x<!--c-->y<?pi?></a>",
+            "<a>\n  <b> y </b>\n  <c></c>\t<d>  </d>\n</a>",
+            "<a x='1 &amp; &lt;2&gt; &quot;q&quot; &apos;s&apos; &#9;&#10;&#13;'>a &amp; b &lt; c ]]&gt; &quot;q&quot;&#13;\u00e9&#x1F600;</a>",
+            "<p:a xmlns:p='urn:p' xmlns='urn:d' xmlns:q='urn:q' q:x='1' y='2'><b xmlns:r='urn:r'><q:c/><c xmlns=''/></b><p:d/></p:a>",
+            "<a><![CDATA[ x < y ]]></a>" };
+
+    @Test
+    public void testTransformMatchesTheBatchXmlTransform() {
+        ArrayList<EntityData> rows = new ArrayList<EntityData>();
+        rows.add(row("1", "Ann", new Date(0)));
+        rows.add(row("2", "Bob & Co", null));
+        for (String xmlFormat : new String[] { XsltProcessor.PRETTY_FORMAT, XsltProcessor.COMPACT_FORMAT }) {
+            String expected = XsltProcessor.getTransformedXml(XsltProcessor.getBatchXml(createInputModel(), rows, true), STYLESHEET,
+                    xmlFormat, false);
+            Message message = createMessage(rows.toArray(new EntityData[rows.size()]));
+            assertEquals(expected, transform(xmlFormat, message).get(0));
+        }
+        String xml = transform(XsltProcessor.COMPACT_FORMAT, createMessage(rows.toArray(new EntityData[rows.size()]))).get(0);
+        assertTrue(xml, xml.contains("<person id=\"2\"><name>Bob &amp; Co</name><born /></person>"));
+    }
+
+    @Test
+    public void testBatchXml() {
+        ArrayList<EntityData> rows = new ArrayList<EntityData>();
+        rows.add(row("1", "Ann", null));
+        rows.add(row("2", null, null));
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n"
+                + "<batch>\r\n"
+                + "  <entity name=\"PERSON\">\r\n"
+                + "    <record>\r\n"
+                + "      <attribute name=\"ID\" value=\"1\" />\r\n"
+                + "      <attribute name=\"NAME\" value=\"Ann\" />\r\n"
+                + "      <attribute name=\"BORN\" value=\"\" />\r\n"
+                + "    </record>\r\n"
+                + "    <record>\r\n"
+                + "      <attribute name=\"ID\" value=\"2\" />\r\n"
+                + "      <attribute name=\"NAME\" value=\"\" />\r\n"
+                + "      <attribute name=\"BORN\" value=\"\" />\r\n"
+                + "    </record>\r\n"
+                + "  </entity>\r\n"
+                + "</batch>\r\n", XsltProcessor.getBatchXml(createInputModel(), rows, true));
+    }
+
+    @Test
+    public void testFormatsMatchTheJdomFormats() throws Exception {
+        String identity = "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+                + "<xsl:template match='/'><xsl:copy-of select='node()'/></xsl:template></xsl:stylesheet>";
+        for (String document : DOCUMENTS) {
+            for (String xmlFormat : new String[] { XsltProcessor.PRETTY_FORMAT, XsltProcessor.COMPACT_FORMAT, XsltProcessor.RAW_FORMAT }) {
+                for (boolean omitXmlDeclaration : new boolean[] { false, true }) {
+                    Document outputDoc = new XSLTransformer(new StringReader(identity))
+                            .transform(new SAXBuilder().build(new StringReader(document)));
+                    assertEquals(document, outputString(outputDoc, xmlFormat, omitXmlDeclaration),
+                            XsltProcessor.getTransformedXml(document, identity, xmlFormat, omitXmlDeclaration));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFormatsMatchTheJdomTransform() throws Exception {
+        ArrayList<EntityData> rows = new ArrayList<EntityData>();
+        rows.add(row("1", "  Ann\n  Lee ", new Date(0)));
+        rows.add(row("2", "Bob & Co", null));
+        String batchXml = XsltProcessor.getBatchXml(createInputModel(), rows, true);
+        for (String xmlFormat : new String[] { XsltProcessor.PRETTY_FORMAT, XsltProcessor.COMPACT_FORMAT, XsltProcessor.RAW_FORMAT }) {
+            for (boolean omitXmlDeclaration : new boolean[] { false, true }) {
+                Document outputDoc = new XSLTransformer(new StringReader(STYLESHEET))
+                        .transform(new SAXBuilder().build(new StringReader(batchXml)));
+                assertEquals(outputString(outputDoc, xmlFormat, omitXmlDeclaration),
+                        XsltProcessor.getTransformedXml(batchXml, STYLESHEET, xmlFormat, omitXmlDeclaration));
+            }
+        }
+    }
+
+    @Test
+    public void testStylesheetIsCompiledOnce() {
+        XsltProcessor processor = createProcessor(XsltProcessor.COMPACT_FORMAT);
+        processor.start();
+        Templates templates = processor.templates;
+        SendMessageCallback<ArrayList<String>> callback = new SendMessageCallback<ArrayList<String>>();
+        processor.handle(createMessage(row("1", "Ann", null)), callback, true);
+        processor.handle(createMessage(row("2", "Bob", null)), callback, true);
+        assertSame(templates, processor.templates);
+        assertEquals(2, callback.getPayloadList().size());
+    }
+
+    protected String outputString(Document document, String xmlFormat, boolean omitXmlDeclaration) {
+        Format format = XsltProcessor.COMPACT_FORMAT.equals(xmlFormat) ? Format.getCompactFormat()
+                : XsltProcessor.RAW_FORMAT.equals(xmlFormat) ? Format.getRawFormat() : Format.getPrettyFormat();
+        format.setOmitDeclaration(omitXmlDeclaration);
+        return new XMLOutputter(format).outputString(document);
+    }
+
+    protected List<String> transform(String xmlFormat, Message... messages) {
+        XsltProcessor processor = createProcessor(xmlFormat);
+        processor.start();
+        SendMessageCallback<ArrayList<String>> callback = new SendMessageCallback<ArrayList<String>>();
+        for (Message message : messages) {
+            processor.handle(message, callback, true);
+        }
+        List<String> xml = new ArrayList<String>();
+        for (ArrayList<String> payload : callback.getPayloadList()) {
+            xml.addAll(payload);
+        }
+        return xml;
+    }
+
+    protected XsltProcessor createProcessor(String xmlFormat) {
+        XsltProcessor processor = new XsltProcessor();
+        processor.setContext(new ComponentContext(null, createFlowStep(xmlFormat), null, new ExecutionTrackerNoOp(),
+                null, new HashMap<String, String>(), null));
+        return processor;
+    }
+
+    protected EntityData row(String id, String name, Date born) {
+        EntityData data = new EntityData();
+        data.put("id", id);
+        data.put("name", name);
+        data.put("born", born);
+        return data;
+    }
+
+    protected Message createMessage(EntityData... rows) {
+        EntityDataMessage message = new EntityDataMessage("fake step id");
+        ArrayList<EntityData> payload = new ArrayList<EntityData>();
+        for (EntityData row : rows) {
+            payload.add(row);
+        }
+        message.setPayload(payload);
+        return message;
+    }
+
+    protected FlowStep createFlowStep(String xmlFormat) {
+        Folder folder = TestUtils.createFolder("Test Folder");
+        Flow flow = TestUtils.createFlow("TestFlow", folder);
+        Component component = TestUtils.createComponent(XsltProcessor.TYPE, false, null, createInputModel(), null, null, null,
+                new Setting(XsltProcessor.XSLT_PROCESSOR_STYLESHEET, STYLESHEET),
+                new Setting(XsltProcessor.XML_FORMAT, xmlFormat),
+                new Setting(XsltProcessor.OUTPUT_ALL_ATTRIBUTES, "true"),
+                new Setting(XsltProcessor.PARAMETER_REPLACEMENT, "true"));
+        FlowStep step = new FlowStep(component);
+        step.setFlowId(flow.getId());
+        return step;
+    }
+
+    protected Model createInputModel() {
+        ModelEntity person = new ModelEntity("person", "PERSON");
+        person.addModelAttribute(attribute("id", person, "ID", DataType.VARCHAR));
+        person.addModelAttribute(attribute("name", person, "NAME", DataType.VARCHAR));
+        person.addModelAttribute(attribute("born", person, "BORN", DataType.TIMESTAMP));
+        Model model = new Model();
+        model.getModelEntities().add(person);
+        return model;
+    }
+
+    protected ModelAttribute attribute(String id, ModelEntity entity, String name, DataType type) {
+        ModelAttribute attribute = new ModelAttribute(id, entity.getId(), name);
+        attribute.setDataType(type);
+        return attribute;
+    }
+
+}
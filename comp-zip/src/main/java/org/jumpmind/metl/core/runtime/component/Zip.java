@@ -112,7 +112,7 @@ public class Zip extends AbstractComponentRuntime {
     	if (inputMessage instanceof TextMessage) {
             List<String> files = ((TextMessage)inputMessage).getPayload();
             fileNames.addAll(files);
-            getComponentStatistics().incrementNumberEntitiesProcessed(files.size());
+            getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber, files.size());
         }
         
         if (inputMessage instanceof ControlMessage) {
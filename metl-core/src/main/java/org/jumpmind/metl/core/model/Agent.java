@@ -58,6 +58,8 @@ public class Agent extends AbstractNamedObject {
     boolean showResourcesInExploreView;
     
     int execThreadCount = 10;
+    
+    boolean virtualThreads;
 
     public Agent(String name) {
         this();
@@ -229,5 +231,13 @@ public class Agent extends AbstractNamedObject {
     public int getExecThreadCount() {
         return execThreadCount;
     }
+    
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+    
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
 
 }
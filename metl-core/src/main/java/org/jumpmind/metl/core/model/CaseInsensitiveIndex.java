@@ -0,0 +1,83 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.model;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A lookup table that matches keys the way equalsIgnoreCase does. The exact
+ * key is tried first so that the common case does not have to lower case the
+ * key. When two values share a key the first one that was added wins, which
+ * is the same result a linear scan would return.
+ * <p>
+ * The index can remember the list it was built from and the key version of
+ * its owner, so that owners can tell when the list was replaced, had elements
+ * added or removed, or had the id or name of an element changed. It should be
+ * published through a volatile field once it has been filled.
+ */
+class CaseInsensitiveIndex<T> {
+
+    final List<?> source;
+
+    final int keyVersion;
+
+    final int sourceSize;
+
+    final Map<String, T> byKey;
+
+    final Map<String, T> byLowerCaseKey;
+
+    CaseInsensitiveIndex(int expectedSize) {
+        this(null, 0, expectedSize);
+    }
+
+    CaseInsensitiveIndex(List<?> source, int keyVersion, int expectedSize) {
+        this.source = source;
+        this.keyVersion = keyVersion;
+        this.sourceSize = source != null ? source.size() : 0;
+        this.byKey = new HashMap<>(expectedSize * 2);
+        this.byLowerCaseKey = new HashMap<>(expectedSize * 2);
+    }
+
+    boolean isBuiltFrom(List<?> list, int keyVersion) {
+        return source == list && sourceSize == (list != null ? list.size() : 0) && this.keyVersion == keyVersion;
+    }
+
+    void put(String key, T value) {
+        if (key != null && byLowerCaseKey.putIfAbsent(key.toLowerCase(), value) == null) {
+            byKey.put(key, value);
+        }
+    }
+
+    T get(String key) {
+        if (key == null) {
+            return null;
+        }
+        T value = byKey.get(key);
+        if (value == null) {
+            value = byLowerCaseKey.get(key.toLowerCase());
+        }
+        return value;
+    }
+
+}
@@ -51,6 +51,10 @@ public class Model extends AbstractNamedObject implements IAuditable {
 
     boolean deleted = false;
 
+    transient volatile Index index;
+
+    transient volatile int keyVersion;
+
     public Model() {
         this.modelEntities = new ArrayList<ModelEntity>();
     }
@@ -99,56 +103,139 @@ public class Model extends AbstractNamedObject implements IAuditable {
     }
 
     public ModelEntity getEntityById(String entityId) {
-        for (ModelEntity entity : modelEntities) {
-            if (entity.getId().equalsIgnoreCase(entityId)) {
-                return entity;
-            }
-        }
-        return null;
+        return getIndex().entitiesById.get(entityId);
     }
 
     public ModelEntity getEntityByName(String entityName) {
-        for (ModelEntity entity : modelEntities) {
-            if (entity.getName().equalsIgnoreCase(entityName)) {
-                return entity;
-            }
-        }
-        return null;
+        return getIndex().entitiesByName.get(entityName);
     }
 
     public ModelAttribute getAttributeById(String attributeId) {
-        for (ModelEntity entity : modelEntities) {
-            for (ModelAttribute modelAttribute : entity.getModelAttributes()) {
-                if (modelAttribute.getId().equalsIgnoreCase(attributeId)) {
-                    return modelAttribute;
-                }
-            }
+        ModelAttribute attribute = getIndex().attributesById.get(attributeId);
+        if (attribute == null && rebuildIndexIfStale()) {
+            attribute = getIndex().attributesById.get(attributeId);
         }
-        return null;
+        return attribute;
     }
 
     public ModelAttribute getAttributeByName(String entityName, String attributeName) {
         ModelEntity entity = getEntityByName(entityName);
         if (entity != null) {
-            for (ModelAttribute modelAttribute : entity.getModelAttributes()) {
-                if (modelAttribute.getName().equalsIgnoreCase(attributeName)) {
-                    return modelAttribute;
-                }
-            }
+            return entity.getModelAttributeByName(attributeName);
         }
         return null;
     }
 
     public List<ModelAttribute> getAttributesByName(String attributeName) {
-        List<ModelAttribute> attributes = new ArrayList<ModelAttribute>();
-        for (ModelEntity entity : modelEntities) {
-            for (ModelAttribute modelAttribute : entity.getModelAttributes()) {
-                if (modelAttribute.getName().equalsIgnoreCase(attributeName)) {
-                    attributes.add(modelAttribute);
+        List<ModelAttribute> attributes = getIndex().attributesByName.get(attributeName);
+        if (attributes == null && rebuildIndexIfStale()) {
+            attributes = getIndex().attributesByName.get(attributeName);
+        }
+        return attributes != null ? new ArrayList<ModelAttribute>(attributes) : new ArrayList<ModelAttribute>();
+    }
+
+    /*
+     * The index is built the first time the model is searched rather than when
+     * the model is loaded, because the designer keeps editing models in place
+     * after they are loaded. It is rebuilt when entities are replaced, added or
+     * removed, or when the id or name of one of this model's entities or
+     * attributes was set since it was built. Attributes that are added to an
+     * entity are picked up when a lookup misses.
+     */
+    protected Index getIndex() {
+        Index current = index;
+        if (current == null || current.modelEntities != modelEntities || current.entityCount != modelEntities.size()
+                || current.keyVersion != keyVersion) {
+            current = new Index(this);
+            index = current;
+        }
+        return current;
+    }
+
+    void keysChanged() {
+        keyVersion++;
+    }
+
+    protected boolean rebuildIndexIfStale() {
+        Index current = index;
+        if (current != null && !current.isBuiltFrom(modelEntities)) {
+            index = null;
+            return true;
+        }
+        return false;
+    }
+
+    static class Index {
+
+        final List<ModelEntity> modelEntities;
+
+        final int entityCount;
+
+        final int keyVersion;
+
+        final CaseInsensitiveIndex<ModelEntity> entitiesById;
+
+        final CaseInsensitiveIndex<ModelEntity> entitiesByName;
+
+        final CaseInsensitiveIndex<ModelAttribute> attributesById;
+
+        final CaseInsensitiveIndex<List<ModelAttribute>> attributesByName;
+
+        final List<?>[] attributeLists;
+
+        final int[] attributeCounts;
+
+        Index(Model model) {
+            List<ModelEntity> modelEntities = model.modelEntities;
+            int attributeCount = 0;
+            for (ModelEntity entity : modelEntities) {
+                attributeCount += entity.getModelAttributes().size();
+            }
+            this.modelEntities = modelEntities;
+            this.entityCount = modelEntities.size();
+            this.keyVersion = model.keyVersion;
+            this.entitiesById = new CaseInsensitiveIndex<>(modelEntities.size());
+            this.entitiesByName = new CaseInsensitiveIndex<>(modelEntities.size());
+            this.attributesById = new CaseInsensitiveIndex<>(attributeCount);
+            this.attributesByName = new CaseInsensitiveIndex<>(attributeCount);
+            this.attributeLists = new List<?>[modelEntities.size()];
+            this.attributeCounts = new int[modelEntities.size()];
+            for (int i = 0; i < modelEntities.size(); i++) {
+                ModelEntity entity = modelEntities.get(i);
+                entity.model = model;
+                entitiesById.put(entity.getId(), entity);
+                entitiesByName.put(entity.getName(), entity);
+                List<ModelAttribute> modelAttributes = entity.getModelAttributes();
+                attributeLists[i] = modelAttributes;
+                attributeCounts[i] = modelAttributes.size();
+                for (ModelAttribute modelAttribute : modelAttributes) {
+                    modelAttribute.entity = entity;
+                    attributesById.put(modelAttribute.getId(), modelAttribute);
+                    String name = modelAttribute.getName();
+                    if (name != null) {
+                        List<ModelAttribute> attributes = attributesByName.get(name);
+                        if (attributes == null) {
+                            attributes = new ArrayList<>(1);
+                            attributesByName.put(name, attributes);
+                        }
+                        attributes.add(modelAttribute);
+                    }
+                }
+            }
+        }
+
+        boolean isBuiltFrom(List<ModelEntity> modelEntities) {
+            if (this.modelEntities != modelEntities || entityCount != modelEntities.size()) {
+                return false;
+            }
+            for (int i = 0; i < modelEntities.size(); i++) {
+                List<ModelAttribute> modelAttributes = modelEntities.get(i).getModelAttributes();
+                if (attributeLists[i] != modelAttributes || attributeCounts[i] != modelAttributes.size()) {
+                    return false;
                 }
             }
+            return true;
         }
-        return attributes;
     }
 
     public List<ModelEntity> getModelEntities() {
@@ -157,6 +244,7 @@ public class Model extends AbstractNamedObject implements IAuditable {
 
     public void setModelEntities(List<ModelEntity> modelEntities) {
         this.modelEntities = modelEntities;
+        this.index = null;
     }
 
     public void setProjectVersionId(String projectVersionId) {
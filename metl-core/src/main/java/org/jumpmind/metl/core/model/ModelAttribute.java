@@ -38,6 +38,8 @@ public class ModelAttribute extends AbstractNamedObject implements IAuditable, C
     
     boolean pk;
 
+    transient ModelEntity entity;
+
     public ModelAttribute() {    	
     }
     
@@ -69,6 +71,24 @@ public class ModelAttribute extends AbstractNamedObject implements IAuditable, C
 
 	public void setName(String name) {
 		this.name = name;
+		keysChanged();
+	}
+
+	@Override
+	public void setId(String id) {
+		super.setId(id);
+		keysChanged();
+	}
+
+	/*
+	 * Only the entity that indexed this attribute, and the model of that
+	 * entity, have to rebuild their indexes when the id or name changes.
+	 */
+	void keysChanged() {
+		ModelEntity owner = entity;
+		if (owner != null) {
+			owner.keysChanged();
+		}
 	}
 
 	public DataType getDataType() {
@@ -35,6 +35,12 @@ public class ModelEntity extends AbstractNamedObject implements IAuditable {
     
     String description;
 
+    transient volatile CaseInsensitiveIndex<ModelAttribute> attributesByName;
+
+    transient volatile int keyVersion;
+
+    transient Model model;
+
     public ModelEntity() {
         modelAttributes = new ArrayList<ModelAttribute>();
     }
@@ -55,20 +61,31 @@ public class ModelEntity extends AbstractNamedObject implements IAuditable {
 
     public void addModelAttribute(ModelAttribute modelAttribute) {
         modelAttribute.setAttributeOrder(modelAttributes.size());
+        modelAttribute.entity = this;
         this.modelAttributes.add(modelAttribute);
     }
 
     public void removeModelAttribute(ModelAttribute modelAttribute) {
         this.modelAttributes.remove(modelAttribute);
+        keysChanged();
     }
 
     public ModelAttribute getModelAttributeByName(String name) {
-        for (ModelAttribute modelAttribute : modelAttributes) {
-            if (modelAttribute.getName().equalsIgnoreCase(name)) {
-                return modelAttribute;
+        return getAttributeNameIndex().get(name);
+    }
+
+    protected CaseInsensitiveIndex<ModelAttribute> getAttributeNameIndex() {
+        CaseInsensitiveIndex<ModelAttribute> index = attributesByName;
+        int version = keyVersion;
+        if (index == null || !index.isBuiltFrom(modelAttributes, version)) {
+            index = new CaseInsensitiveIndex<>(modelAttributes, version, modelAttributes.size());
+            for (ModelAttribute modelAttribute : modelAttributes) {
+                modelAttribute.entity = this;
+                index.put(modelAttribute.getName(), modelAttribute);
             }
+            attributesByName = index;
         }
-        return null;
+        return index;
     }
 
     public String getModelId() {
@@ -85,6 +102,26 @@ public class ModelEntity extends AbstractNamedObject implements IAuditable {
 
     public void setName(String name) {
         this.name = name;
+        keysChanged();
+    }
+
+    @Override
+    public void setId(String id) {
+        super.setId(id);
+        keysChanged();
+    }
+
+    /*
+     * Called when the id or name of this entity or one of its attributes
+     * changes, so that this entity and the model that indexed it rebuild
+     * their indexes. Indexes of other models are left alone.
+     */
+    void keysChanged() {
+        keyVersion++;
+        Model owner = model;
+        if (owner != null) {
+            owner.keysChanged();
+        }
     }
     
     public String getDescription() {
@@ -25,6 +25,8 @@ import static org.apache.commons.lang.StringUtils.isNotBlank;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -42,6 +44,7 @@ import org.jumpmind.db.model.Table;
 import org.jumpmind.db.platform.IDatabasePlatform;
 import org.jumpmind.db.sql.ISqlRowMapper;
 import org.jumpmind.db.sql.ISqlTemplate;
+import org.jumpmind.db.sql.ISqlTransaction;
 import org.jumpmind.db.sql.Row;
 import org.jumpmind.db.sql.mapper.StringMapper;
 import org.jumpmind.metl.core.model.Execution;
@@ -186,6 +189,76 @@ public class ExecutionService extends AbstractService implements IExecutionServi
         }
     }
 
+    /**
+     * Updates the steps in one batch. Drivers may report a batched update as
+     * succeeded without a row count, so when the counts add up to less than
+     * the number of steps, the steps that are not in the table yet are looked
+     * up and saved one by one.
+     */
+    @Override
+    public void updateExecutionSteps(List<ExecutionStep> steps) {
+        if (steps.size() == 0) {
+            return;
+        }
+        int[] types = new int[] { Types.VARCHAR, Types.BIGINT, Types.BIGINT, Types.BIGINT, Types.BIGINT, Types.BIGINT,
+                Types.TIMESTAMP, Types.TIMESTAMP, Types.BIGINT, Types.BIGINT, Types.CHAR };
+        Date lastUpdateTime = new Date();
+        int count = 0;
+        ISqlTransaction transaction = databasePlatform.getSqlTemplate().startSqlTransaction();
+        try {
+            transaction.setInBatchMode(true);
+            transaction.prepare(String.format(
+                    "update %1$s_execution_step set status=?, messages_received=?, messages_produced=?, payload_received=?, "
+                            + "payload_produced=?, entities_processed=?, start_time=?, end_time=?, handle_duration=?, queue_duration=? "
+                            + "where id=?",
+                    tablePrefix));
+            for (ExecutionStep step : steps) {
+                step.setLastUpdateTime(lastUpdateTime);
+                count += transaction.addRow(step,
+                        new Object[] { step.getStatus(), step.getMessagesReceived(), step.getMessagesProduced(),
+                                step.getPayloadReceived(), step.getPayloadProduced(), step.getEntitiesProcessed(),
+                                toTimestamp(step.getStartTime()), toTimestamp(step.getEndTime()), step.getHandleDuration(),
+                                step.getQueueDuration(), step.getId() },
+                        types);
+            }
+            count += transaction.flush();
+            transaction.commit();
+        } catch (RuntimeException e) {
+            transaction.rollback();
+            throw e;
+        } finally {
+            transaction.close();
+        }
+
+        if (count < steps.size()) {
+            Set<String> existingIds = findExecutionStepIds(steps);
+            for (ExecutionStep step : steps) {
+                if (!existingIds.contains(step.getId())) {
+                    save(step);
+                }
+            }
+        }
+    }
+
+    protected Set<String> findExecutionStepIds(List<ExecutionStep> steps) {
+        Set<String> ids = new HashSet<String>();
+        ISqlTemplate template = databasePlatform.getSqlTemplate();
+        for (int i = 0; i < steps.size(); i += 100) {
+            List<ExecutionStep> chunk = steps.subList(i, Math.min(i + 100, steps.size()));
+            Object[] args = new Object[chunk.size()];
+            for (int j = 0; j < args.length; j++) {
+                args[j] = chunk.get(j).getId();
+            }
+            ids.addAll(template.query(String.format("select id from %1$s_execution_step where id in (%2$s)", tablePrefix,
+                    StringUtils.repeat("?", ",", args.length)), new StringMapper(), args));
+        }
+        return ids;
+    }
+
+    protected static Timestamp toTimestamp(Date date) {
+        return date != null ? new Timestamp(date.getTime()) : null;
+    }
+
     public void markAbandoned(String agentId) {
         ISqlTemplate template = databasePlatform.getSqlTemplate();
         int count = template.update(
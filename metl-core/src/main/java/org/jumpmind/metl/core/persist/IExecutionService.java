@@ -34,6 +34,12 @@ public interface IExecutionService {
 
     public void save(AbstractObject object);
 
+    /**
+     * Updates the progress of execution steps that have already been saved in
+     * one batch. Steps that were not found are saved one at a time.
+     */
+    public void updateExecutionSteps(List<ExecutionStep> steps);
+
     public List<Execution> findExecutions(Map<String, Object> params, int limit);
 
     public Execution findExecution(String id);
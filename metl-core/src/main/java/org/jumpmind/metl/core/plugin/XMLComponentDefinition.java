@@ -96,6 +96,22 @@ public class XMLComponentDefinition extends XMLAbstractDefinition {
     @XmlAttribute(required = false)
     protected boolean inputOutputModelsMatch;
 
+    /**
+     * Components that never modify the payload of an inbound message can
+     * declare that here. The defensive payload copy is skipped when the
+     * sender hands off its output and every target of a message is read
+     * only.
+     */
+    @XmlAttribute(required = false)
+    protected boolean readOnlyInput;
+
+    /**
+     * Components that send a new payload with every message and never touch
+     * it or its rows again after sending it can declare that here.
+     */
+    @XmlAttribute(required = false)
+    protected boolean handsOffOutput;
+
     @XmlAttribute(required = false)
     protected boolean showInputModel = false;
 
@@ -135,6 +151,22 @@ public class XMLComponentDefinition extends XMLAbstractDefinition {
         this.inputOutputModelsMatch = inputOutputModelsMatch;
     }
 
+    public boolean isReadOnlyInput() {
+        return readOnlyInput;
+    }
+
+    public void setReadOnlyInput(boolean readOnlyInput) {
+        this.readOnlyInput = readOnlyInput;
+    }
+
+    public boolean isHandsOffOutput() {
+        return handsOffOutput;
+    }
+
+    public void setHandsOffOutput(boolean handsOffOutput) {
+        this.handsOffOutput = handsOffOutput;
+    }
+
     public MessageType getInputMessageType() {
         return inputMessageType;
     }
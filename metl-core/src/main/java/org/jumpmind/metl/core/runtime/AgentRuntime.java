@@ -34,6 +34,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledFuture;
 
@@ -66,6 +67,7 @@ import org.jumpmind.metl.core.runtime.component.IComponentDeploymentListener;
 import org.jumpmind.metl.core.runtime.component.IComponentRuntimeFactory;
 import org.jumpmind.metl.core.runtime.component.Results;
 import org.jumpmind.metl.core.runtime.flow.FlowRuntime;
+import org.jumpmind.metl.core.runtime.flow.FlowRuntimeTemplate;
 import org.jumpmind.metl.core.runtime.resource.IResourceRuntime;
 import org.jumpmind.metl.core.runtime.web.IHttpRequestMappingRegistry;
 import org.jumpmind.metl.core.util.LogUtils;
@@ -118,6 +120,8 @@ public class AgentRuntime {
 
     Map<AgentDeployment, List<FlowRuntime>> runningFlows = Collections.synchronizedMap(new HashMap<>());
 
+    Map<AgentDeployment, FlowRuntimeTemplate> flowRuntimeTemplates = new ConcurrentHashMap<>();
+
     public AgentRuntime(Agent agent, IOperationsService operationsService, IConfigurationService configurationService,
             IExecutionService executionService, IComponentRuntimeFactory componentFactory, IDefinitionFactory definitionFactory,
             IHttpRequestMappingRegistry httpRequestMappingRegistry) {
@@ -170,7 +174,16 @@ public class AgentRuntime {
             }
             final String namePrefix = LogUtils.normalizeName(agentName);
 
-            this.flowStepsExecutionThreads = ThreadUtils.createUnboundedThreadPool(namePrefix);
+            /*
+             * Every running flow step holds a thread for as long as the flow
+             * runs. Virtual threads keep that cheap when many flows run at
+             * once.
+             */
+            if (agent.isVirtualThreads()) {
+                this.flowStepsExecutionThreads = ThreadUtils.createVirtualThreadPool(namePrefix);
+            } else {
+                this.flowStepsExecutionThreads = ThreadUtils.createUnboundedThreadPool(namePrefix);
+            }
 
             this.flowExecutionScheduler = new ThreadPoolTaskScheduler();
             this.flowExecutionScheduler.setDaemon(true);
@@ -312,6 +325,9 @@ public class AgentRuntime {
                 doComponentDeploymentEvent(agentProjectVersionFlowDeployment,
                         (l, f, s, c) -> l.onDeploy(agent, agentProjectVersionFlowDeployment, s, c));
 
+                flowRuntimeTemplates.put(deployment, new FlowRuntimeTemplate(agentProjectVersionFlowDeployment, definitionFactory,
+                        configurationService));
+
                 if (deployment.asStartType() == StartType.SCHEDULED_CRON) {
                     String cron = deployment.getStartExpression();
                     log.info("Scheduling '{}' on '{}' with a cron expression of '{}'  The next run time should be at: {}",
@@ -452,6 +468,9 @@ public class AgentRuntime {
                     if (listener instanceof IHttpRequestMappingRegistryAware) {
                         ((IHttpRequestMappingRegistryAware) listener).setHttpRequestMappingRegistry(httpRequestMappingRegistry);
                     }
+                    if (listener instanceof IDeployedResourcesAware) {
+                        ((IDeployedResourcesAware) listener).setDeployedResources(deployedResources);
+                    }
                     method.run(listener, flow, flowStep, componentDefintion);
                 } catch (Exception e) {
                     throw new RuntimeException(e);
@@ -466,10 +485,33 @@ public class AgentRuntime {
 
     public FlowRuntime createFlowRuntime(String userId, AgentDeployment deployment, Map<String, String> runtimeParameters) throws Exception {
         String executionId = createExecutionId();
-        return new FlowRuntime(executionId, userId, findDeployed(deployment), agent, componentRuntimeFactory, definitionFactory,
-                flowStepsExecutionThreads, operationsService, configurationService, executionService, deployedResources, null, globalSettings,
-                runtimeParameters);
+        return createFlowRuntime(executionId, userId, findDeployed(deployment), null, runtimeParameters);
+    }
+
+    protected FlowRuntime createFlowRuntime(String executionId, String userId, AgentProjectVersionFlowDeployment deployment,
+            List<Notification> notifications, Map<String, String> runtimeParameters) {
+        if (agent.isAutoRefresh()) {
+            return new FlowRuntime(executionId, userId, deployment, agent, componentRuntimeFactory, definitionFactory,
+                    flowStepsExecutionThreads, operationsService, configurationService, executionService, deployedResources,
+                    notifications, globalSettings, runtimeParameters);
+        } else {
+            return new FlowRuntime(executionId, userId, getFlowRuntimeTemplate(deployment), agent, componentRuntimeFactory,
+                    definitionFactory, flowStepsExecutionThreads, configurationService, executionService, deployedResources,
+                    notifications, globalSettings, runtimeParameters);
+        }
+    }
 
+    /*
+     * Templates are prepared when a flow is deployed. One is prepared here if
+     * the flow was deployed some other way or has been replaced since.
+     */
+    protected FlowRuntimeTemplate getFlowRuntimeTemplate(AgentProjectVersionFlowDeployment deployment) {
+        FlowRuntimeTemplate template = flowRuntimeTemplates.get(deployment.getAgentDeployment());
+        if (template == null || !template.isPreparedFrom(deployment)) {
+            template = new FlowRuntimeTemplate(deployment, definitionFactory, configurationService);
+            flowRuntimeTemplates.put(deployment.getAgentDeployment(), template);
+        }
+        return template;
     }
 
     public Results execute(String userId, AgentDeployment deployment, Map<String, String> runtimeParameters) throws Exception {
@@ -543,6 +585,7 @@ public class AgentRuntime {
                     (l, f, s, c) -> l.onUndeploy(agent, agentProjectVersionFlowDeployment, s, c));
             stop(deployment, null);
         }
+        flowRuntimeTemplates.remove(deployment);
         operationsService.delete(deployment);
         agent.getAgentDeployments().remove(deployment);
     }
@@ -604,9 +647,7 @@ public class AgentRuntime {
             try {
                 log.info("Deployment '{}' is running on the '{}' agent", deployment.getName(), agent.getName());
                 List<Notification> notifications = operationsService.findNotificationsForDeployment(deployment.getAgentDeployment());
-                flowRuntime = new FlowRuntime(executionId, userId, deployment, agent, componentRuntimeFactory, definitionFactory,
-                        flowStepsExecutionThreads, operationsService, configurationService, executionService, deployedResources,
-                        notifications, globalSettings, runtimeParameters);
+                flowRuntime = createFlowRuntime(executionId, userId, deployment, notifications, runtimeParameters);
                 addToRunning(deployment.getAgentDeployment(), flowRuntime);
                 flowRuntime.execute();
             } catch (Exception e) {
@@ -20,19 +20,75 @@
  */
 package org.jumpmind.metl.core.runtime;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
 import org.jumpmind.metl.core.util.NameValue;
 import org.jumpmind.util.LinkedCaseInsensitiveMap;
 
-public class EntityData extends LinkedCaseInsensitiveMap<Object> {
+/**
+ * A row of attribute values keyed by attribute id. Keys are case insensitive.
+ * <p>
+ * Keys are given ordinals by a shared {@link EntityDataIndex} and each row
+ * stores its values in an array that only has a slot for the keys it holds,
+ * so a row costs one array instead of the entries of two hash maps. The
+ * ordinal of the key in each slot is kept alongside. Rows that put their keys
+ * in ordinal order, which is the usual case for rows built from the same
+ * model, share one array for that and find a slot without searching. Entries
+ * iterate in the order the keys were first put into the row.
+ */
+public class EntityData extends AbstractMap<String, Object> implements Serializable, Cloneable {
 
     private static final long serialVersionUID = 1L;
 
+    /*
+     * Marks a key that was explicitly put with a null value. An empty slot
+     * means the key is not present.
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    private static final Object[] EMPTY = new Object[0];
+
+    private static final int[] NO_ORDINALS = new int[0];
+
     public enum ChangeType {
         ADD, CHG, DEL
     };
 
     ChangeType changeType = ChangeType.ADD;
 
+    transient EntityDataIndex index;
+
+    transient Object[] data = EMPTY;
+
+    /*
+     * The ordinal of the key in each slot. While the keys were put in ordinal
+     * order this is an array shared through the index. Otherwise it is copied
+     * before it is changed unless this row owns it.
+     */
+    transient int[] ordinals = NO_ORDINALS;
+
+    transient boolean ordinalsInOrder = true;
+
+    transient boolean ownsOrdinals;
+
+    transient int slots;
+
+    transient int size;
+
+    transient LinkedCaseInsensitiveMap<Object> overflow;
+
+    transient Set<Map.Entry<String, Object>> entrySet;
+
     public EntityData() {
     }
 
@@ -56,4 +112,299 @@ public class EntityData extends LinkedCaseInsensitiveMap<Object> {
         this.changeType = changeType;
     }
 
+    protected int slotOf(Object key) {
+        if (index != null && key instanceof String) {
+            int ordinal = index.ordinalOf((String) key);
+            if (ordinal >= 0) {
+                return slotOf(ordinal);
+            }
+        }
+        return -1;
+    }
+
+    protected int slotOf(int ordinal) {
+        if (ordinal < slots && ordinals[ordinal] == ordinal) {
+            return ordinal;
+        }
+        for (int slot = 0; slot < slots; slot++) {
+            if (ordinals[slot] == ordinal) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    protected int addSlot(int ordinal) {
+        int slot = slots;
+        if (slot == data.length) {
+            data = Arrays.copyOf(data, slot + Math.max(slot >> 1, 2));
+        }
+        if (ordinalsInOrder && ordinal == slot) {
+            if (ordinals.length <= slot) {
+                ordinals = index.identity(slot + 1);
+            }
+        } else {
+            if (!ownsOrdinals || ordinals.length <= slot) {
+                ordinals = Arrays.copyOf(ordinals, data.length);
+                ownsOrdinals = true;
+            }
+            ordinalsInOrder = false;
+            ordinals[slot] = ordinal;
+        }
+        slots++;
+        return slot;
+    }
+
+    @Override
+    public int size() {
+        return size + (overflow != null ? overflow.size() : 0);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        int slot = slotOf(key);
+        if (slot >= 0 && data[slot] != null) {
+            return true;
+        } else {
+            return overflow != null && overflow.containsKey(key);
+        }
+    }
+
+    @Override
+    public Object get(Object key) {
+        int slot = slotOf(key);
+        if (slot >= 0 && data[slot] != null) {
+            return unwrap(data[slot]);
+        } else {
+            return overflow != null ? overflow.get(key) : null;
+        }
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        if (index == null) {
+            index = EntityDataIndex.forKey(key);
+        }
+        int ordinal = index.ordinalOf(key);
+        if (ordinal < 0) {
+            ordinal = index.add(key);
+        }
+        if (ordinal < 0) {
+            if (overflow == null) {
+                overflow = new LinkedCaseInsensitiveMap<Object>();
+            }
+            return overflow.put(key, value);
+        }
+        int slot = slotOf(ordinal);
+        if (slot < 0) {
+            slot = addSlot(ordinal);
+        }
+        Object old = data[slot];
+        data[slot] = value != null ? value : NULL_VALUE;
+        if (old == null) {
+            size++;
+        }
+        return unwrap(old);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int slot = slotOf(key);
+        if (slot >= 0 && data[slot] != null) {
+            Object old = data[slot];
+            data[slot] = null;
+            size--;
+            return unwrap(old);
+        } else {
+            return overflow != null ? overflow.remove(key) : null;
+        }
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(data, null);
+        size = 0;
+        overflow = null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    @Override
+    public Object clone() {
+        try {
+            EntityData clone = (EntityData) super.clone();
+            clone.data = data.length > 0 ? data.clone() : EMPTY;
+            clone.entrySet = null;
+            clone.ownsOrdinals = false;
+            ownsOrdinals = false;
+            if (overflow != null) {
+                clone.overflow = new LinkedCaseInsensitiveMap<Object>();
+                clone.overflow.putAll(overflow);
+            }
+            return clone;
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object unwrap(Object value) {
+        return value == NULL_VALUE ? null : value;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size());
+        for (Map.Entry<String, Object> entry : entrySet()) {
+            out.writeObject(entry.getKey());
+            out.writeObject(entry.getValue());
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        data = EMPTY;
+        ordinals = NO_ORDINALS;
+        ordinalsInOrder = true;
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            put((String) in.readObject(), in.readObject());
+        }
+    }
+
+    class EntrySet extends AbstractSet<Map.Entry<String, Object>> {
+
+        @Override
+        public Iterator<Map.Entry<String, Object>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return EntityData.this.size();
+        }
+
+        @Override
+        public void clear() {
+            EntityData.this.clear();
+        }
+    }
+
+    class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+
+        int next = -1;
+
+        int current = -1;
+
+        Iterator<Map.Entry<String, Object>> overflowIterator;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            next++;
+            while (next < slots && data[next] == null) {
+                next++;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next < slots) {
+                return true;
+            } else {
+                if (overflowIterator == null && overflow != null) {
+                    overflowIterator = overflow.entrySet().iterator();
+                }
+                return overflowIterator != null && overflowIterator.hasNext();
+            }
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (next < slots) {
+                current = next;
+                advance();
+                return new Entry(current);
+            } else if (hasNext()) {
+                current = -1;
+                return overflowIterator.next();
+            } else {
+                throw new NoSuchElementException();
+            }
+        }
+
+        @Override
+        public void remove() {
+            if (current >= 0) {
+                if (data[current] == null) {
+                    throw new IllegalStateException();
+                }
+                data[current] = null;
+                size--;
+            } else if (overflowIterator != null) {
+                overflowIterator.remove();
+            } else {
+                throw new IllegalStateException();
+            }
+        }
+    }
+
+    class Entry implements Map.Entry<String, Object> {
+
+        final int slot;
+
+        Entry(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public String getKey() {
+            return index.keyAt(ordinals[slot]);
+        }
+
+        @Override
+        public Object getValue() {
+            return unwrap(data[slot]);
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object old = data[slot];
+            data[slot] = value != null ? value : NULL_VALUE;
+            if (old == null) {
+                size++;
+            }
+            return unwrap(old);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            Object key = getKey();
+            Object value = getValue();
+            return key.equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Object value = getValue();
+            return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+
 }
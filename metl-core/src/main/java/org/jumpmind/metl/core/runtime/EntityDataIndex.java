@@ -0,0 +1,194 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns ordinals to {@link EntityData} keys so that rows can store their
+ * values in an array instead of a hash map. The index for a row is resolved by
+ * the first key that is put into it, and keys that are seen for the first time
+ * are appended. Only that first key is registered, so an index holds the keys
+ * of rows that start with the same attribute of the same model and does not
+ * pick up the keys of unrelated models that happen to share a later key.
+ * <p>
+ * Lookups are case insensitive and lock free. Appending a key is synchronized
+ * and copies the lookup tables, which is cheap because the set of keys used
+ * by a model is small and stable.
+ * <p>
+ * Only rows hold an index strongly. Once no row uses an index it is garbage
+ * collected and its keys are removed from the registry, so a long running
+ * agent does not keep the keys of every model it has ever seen.
+ */
+public final class EntityDataIndex {
+
+    /*
+     * An index is not allowed to grow without bounds when keys are generated
+     * dynamically. Keys past the limit are stored in a per row overflow map.
+     */
+    static final int MAX_KEYS = 4096;
+
+    static final Map<String, IndexReference> indexByKey = new ConcurrentHashMap<>();
+
+    static final ReferenceQueue<EntityDataIndex> collected = new ReferenceQueue<>();
+
+    private final IndexReference reference = new IndexReference(this);
+
+    private volatile Lookup lookup = new Lookup();
+
+    private volatile int[] identity = new int[0];
+
+    EntityDataIndex() {
+    }
+
+    public static EntityDataIndex forKey(String key) {
+        EntityDataIndex index = get(key);
+        if (index == null) {
+            index = get(key.toLowerCase());
+            if (index == null) {
+                synchronized (indexByKey) {
+                    expungeCollected();
+                    index = get(key.toLowerCase());
+                    if (index == null) {
+                        index = new EntityDataIndex();
+                        index.add(key);
+                        index.register(key);
+                        index.register(key.toLowerCase());
+                    }
+                }
+            }
+        }
+        return index;
+    }
+
+    static EntityDataIndex get(String key) {
+        IndexReference reference = indexByKey.get(key);
+        return reference != null ? reference.get() : null;
+    }
+
+    static void expungeCollected() {
+        Reference<? extends EntityDataIndex> reference = collected.poll();
+        while (reference != null) {
+            final Reference<? extends EntityDataIndex> expunged = reference;
+            indexByKey.values().removeIf(r -> r == expunged);
+            reference = collected.poll();
+        }
+    }
+
+    public int ordinalOf(String key) {
+        Lookup current = lookup;
+        Integer ordinal = current.ordinalByKey.get(key);
+        if (ordinal == null) {
+            ordinal = current.ordinalByLowerCaseKey.get(key.toLowerCase());
+        }
+        return ordinal != null ? ordinal : -1;
+    }
+
+    public String keyAt(int ordinal) {
+        return lookup.keys[ordinal];
+    }
+
+    public int size() {
+        return lookup.keys.length;
+    }
+
+    /**
+     * @return the ordinal of the key or -1 if the index is full
+     */
+    public synchronized int add(String key) {
+        int ordinal = ordinalOf(key);
+        if (ordinal < 0 && lookup.keys.length < MAX_KEYS) {
+            Lookup next = new Lookup(lookup, key);
+            ordinal = next.keys.length - 1;
+            lookup = next;
+        }
+        return ordinal;
+    }
+
+    /**
+     * Returns an array of at least the given length that holds each ordinal at
+     * its own position. Rows that hold their keys in ordinal order share it
+     * instead of keeping their own ordinals. The array is never changed once
+     * it is handed out.
+     */
+    int[] identity(int length) {
+        int[] current = identity;
+        if (current.length < length) {
+            synchronized (this) {
+                current = identity;
+                if (current.length < length) {
+                    current = new int[Math.min(Math.max(length, current.length * 2), MAX_KEYS)];
+                    for (int i = 0; i < current.length; i++) {
+                        current[i] = i;
+                    }
+                    identity = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /*
+     * Replaces an entry whose index was collected but not expunged yet
+     */
+    private void register(String key) {
+        indexByKey.merge(key, reference, (existing, added) -> existing.get() != null ? existing : added);
+    }
+
+    static class IndexReference extends WeakReference<EntityDataIndex> {
+
+        IndexReference(EntityDataIndex index) {
+            super(index, collected);
+        }
+    }
+
+    static class Lookup {
+
+        final String[] keys;
+
+        final Map<String, Integer> ordinalByKey;
+
+        final Map<String, Integer> ordinalByLowerCaseKey;
+
+        Lookup() {
+            this.keys = new String[0];
+            this.ordinalByKey = new HashMap<>();
+            this.ordinalByLowerCaseKey = new HashMap<>();
+        }
+
+        Lookup(Lookup previous, String key) {
+            int ordinal = previous.keys.length;
+            this.keys = Arrays.copyOf(previous.keys, ordinal + 1);
+            this.keys[ordinal] = key;
+            this.ordinalByKey = new HashMap<>(previous.ordinalByKey);
+            this.ordinalByKey.put(key, ordinal);
+            this.ordinalByLowerCaseKey = new HashMap<>(previous.ordinalByLowerCaseKey);
+            this.ordinalByLowerCaseKey.put(key.toLowerCase(), ordinal);
+        }
+    }
+
+}
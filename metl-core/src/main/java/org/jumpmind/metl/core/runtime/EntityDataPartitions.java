@@ -0,0 +1,86 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import org.jumpmind.exception.IoException;
+
+/**
+ * Spills {@link EntityData} rows to a fixed number of temporary files that are
+ * picked by a hash, so that rows with the same key end up in the same file
+ * and each file can be processed on its own once everything was written.
+ * Rows are read back in the order they were written. Closing removes the
+ * files.
+ */
+public class EntityDataPartitions implements Closeable {
+
+    final EntityDataSpillWriter[] writers;
+
+    long rowCount;
+
+    public EntityDataPartitions(int partitionCount) {
+        writers = new EntityDataSpillWriter[partitionCount];
+        try {
+            for (int i = 0; i < writers.length; i++) {
+                writers[i] = new EntityDataSpillWriter(File.createTempFile("metl-partition", ".bin"));
+            }
+        } catch (IOException e) {
+            close();
+            throw new IoException(e);
+        }
+    }
+
+    public void write(int hash, EntityData data) {
+        writers[(hash & Integer.MAX_VALUE) % writers.length].write(data);
+        rowCount++;
+    }
+
+    public int getPartitionCount() {
+        return writers.length;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Finishes writing to the partition and opens it for reading. The caller
+     * must close the reader.
+     */
+    public EntityDataSpillReader read(int partition) {
+        writers[partition].close();
+        return new EntityDataSpillReader(writers[partition].getFile());
+    }
+
+    @Override
+    public void close() {
+        for (EntityDataSpillWriter writer : writers) {
+            if (writer != null) {
+                writer.close();
+                writer.getFile().delete();
+            }
+        }
+    }
+
+}
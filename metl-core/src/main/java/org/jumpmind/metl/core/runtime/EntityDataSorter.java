@@ -0,0 +1,480 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+import org.jumpmind.exception.IoException;
+import org.jumpmind.metl.core.model.DataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sorts {@link EntityData} rows by keys that are extracted once per row. Rows
+ * are sorted in memory until their estimated size reaches the memory limit.
+ * After that sorted runs are written to temporary files and merged when the
+ * rows are read back. The sort is stable.
+ * <p>
+ * Keys are compared position by position with {@link #compareValues}. Rows
+ * are added with {@link #add}, read back once with {@link #iterator} or
+ * {@link #iterator(BinaryOperator)} and the sorter must be closed to remove
+ * its temporary files.
+ */
+public class EntityDataSorter implements Closeable, Iterable<EntityData> {
+
+    final static Logger log = LoggerFactory.getLogger(EntityDataSorter.class);
+
+    final Function<EntityData, Object[]> keyExtractor;
+
+    final long memoryLimitInBytes;
+
+    final Comparator<SortEntry> comparator = new Comparator<SortEntry>() {
+        @Override
+        public int compare(SortEntry o1, SortEntry o2) {
+            return compareKeys(o1.key, o2.key);
+        }
+    };
+
+    List<SortEntry> entries = new ArrayList<>();
+
+    long estimatedBytes;
+
+    List<File> runs = new ArrayList<>();
+
+    List<EntityDataSpillReader> readers = new ArrayList<>();
+
+    long rowCount;
+
+    public EntityDataSorter(Function<EntityData, Object[]> keyExtractor, long memoryLimitInBytes) {
+        this.keyExtractor = keyExtractor;
+        this.memoryLimitInBytes = memoryLimitInBytes;
+    }
+
+    public void add(EntityData data) {
+        entries.add(new SortEntry(keyExtractor.apply(data), data));
+        estimatedBytes += estimateSize(data);
+        rowCount++;
+        if (estimatedBytes >= memoryLimitInBytes && entries.size() > 1) {
+            spill();
+        }
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public int getSpillCount() {
+        return runs.size();
+    }
+
+    /**
+     * Sorts the rows that have been added and returns them in order. The rows
+     * that were spilled to disk are merged with the rows still in memory.
+     */
+    @Override
+    public Iterator<EntityData> iterator() {
+        final Iterator<SortEntry> i = entryIterator();
+        return new Iterator<EntityData>() {
+            @Override
+            public boolean hasNext() {
+                return i.hasNext();
+            }
+
+            @Override
+            public EntityData next() {
+                return i.next().data;
+            }
+        };
+    }
+
+    /**
+     * Returns the sorted rows with the rows that share a key combined into
+     * one. The combiner is handed the rows of a key in the order they were
+     * added, together with the row built from the rows before them. That row
+     * is null for the first row of a key, or after the combiner removed the
+     * row by returning null. Keys that end up with no row are skipped.
+     */
+    public Iterator<EntityData> iterator(final BinaryOperator<EntityData> combiner) {
+        final Iterator<SortEntry> i = entryIterator();
+        return new Iterator<EntityData>() {
+
+            SortEntry pending = i.hasNext() ? i.next() : null;
+
+            EntityData next = combineNext();
+
+            EntityData combineNext() {
+                while (pending != null) {
+                    Object[] key = pending.key;
+                    EntityData combined = null;
+                    do {
+                        combined = combiner.apply(combined, pending.data);
+                        pending = i.hasNext() ? i.next() : null;
+                    } while (pending != null && compareKeys(key, pending.key) == 0);
+                    if (combined != null) {
+                        return combined;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public EntityData next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                EntityData data = next;
+                next = combineNext();
+                return data;
+            }
+        };
+    }
+
+    protected Iterator<SortEntry> entryIterator() {
+        Collections.sort(entries, comparator);
+        if (runs.size() == 0) {
+            return entries.iterator();
+        } else {
+            log.debug("Merging {} sorted runs of {} rows", runs.size() + 1, rowCount);
+            return new MergeIterator();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (EntityDataSpillReader reader : readers) {
+            try {
+                reader.close();
+            } catch (Exception e) {
+                log.debug("Failed to close sort run", e);
+            }
+        }
+        readers.clear();
+        for (File file : runs) {
+            if (!file.delete()) {
+                log.debug("Failed to delete sort run {}", file.getAbsolutePath());
+            }
+        }
+        runs.clear();
+        entries = new ArrayList<>();
+        estimatedBytes = 0;
+        rowCount = 0;
+    }
+
+    protected void spill() {
+        Collections.sort(entries, comparator);
+        File file;
+        try {
+            file = File.createTempFile("metl-sort", ".bin");
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+        runs.add(file);
+        log.debug("Spilling {} sorted rows to {}", entries.size(), file.getAbsolutePath());
+        try (EntityDataSpillWriter writer = new EntityDataSpillWriter(file)) {
+            for (SortEntry entry : entries) {
+                writer.write(entry.data);
+            }
+        }
+        entries = new ArrayList<>();
+        estimatedBytes = 0;
+    }
+
+    public static int compareKeys(Object[] key1, Object[] key2) {
+        for (int i = 0; i < key1.length; i++) {
+            int result = compareValues(key1[i], key2[i]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Compares two values with nulls first. Numbers are compared by value
+     * regardless of their type and dates by time. Values of different kinds
+     * are ordered by kind (numbers, text, dates, booleans, binary, everything
+     * else) so that the order stays consistent when a column holds mixed
+     * types.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public static int compareValues(Object value1, Object value2) {
+        if (value1 == value2) {
+            return 0;
+        } else if (value1 == null) {
+            return -1;
+        } else if (value2 == null) {
+            return 1;
+        }
+        int kind1 = kindOf(value1);
+        int kind2 = kindOf(value2);
+        if (kind1 != kind2) {
+            return Integer.compare(kind1, kind2);
+        }
+        switch (kind1) {
+            case 0:
+                return compareNumbers((Number) value1, (Number) value2);
+            case 1:
+                return ((String) value1).compareTo((String) value2);
+            case 2:
+                return ((java.util.Date) value1).compareTo((java.util.Date) value2);
+            case 3:
+                return ((Boolean) value1).compareTo((Boolean) value2);
+            case 4:
+                return compareBytes((byte[]) value1, (byte[]) value2);
+            default:
+                if (value1 instanceof Comparable && value1.getClass().equals(value2.getClass())) {
+                    return ((Comparable) value1).compareTo(value2);
+                }
+                int result = value1.getClass().getName().compareTo(value2.getClass().getName());
+                return result != 0 ? result : value1.toString().compareTo(value2.toString());
+        }
+    }
+
+    static int kindOf(Object value) {
+        if (value instanceof Number) {
+            return 0;
+        } else if (value instanceof String) {
+            return 1;
+        } else if (value instanceof java.util.Date) {
+            return 2;
+        } else if (value instanceof Boolean) {
+            return 3;
+        } else if (value instanceof byte[]) {
+            return 4;
+        } else {
+            return 5;
+        }
+    }
+
+    static int compareBytes(byte[] bytes1, byte[] bytes2) {
+        int length = Math.min(bytes1.length, bytes2.length);
+        for (int i = 0; i < length; i++) {
+            int result = Integer.compare(bytes1[i] & 0xFF, bytes2[i] & 0xFF);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(bytes1.length, bytes2.length);
+    }
+
+    static int compareNumbers(Number number1, Number number2) {
+        if (isIntegral(number1) && isIntegral(number2)) {
+            return Long.compare(number1.longValue(), number2.longValue());
+        } else if ((number1 instanceof Double || number1 instanceof Float) && (number2 instanceof Double || number2 instanceof Float)) {
+            return Double.compare(number1.doubleValue(), number2.doubleValue());
+        } else {
+            return toBigDecimal(number1).compareTo(toBigDecimal(number2));
+        }
+    }
+
+    static boolean isIntegral(Number number) {
+        return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte;
+    }
+
+    static BigDecimal toBigDecimal(Number number) {
+        if (number instanceof BigDecimal) {
+            return (BigDecimal) number;
+        } else if (number instanceof BigInteger) {
+            return new BigDecimal((BigInteger) number);
+        } else if (isIntegral(number)) {
+            return BigDecimal.valueOf(number.longValue());
+        } else {
+            double value = number.doubleValue();
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                return value > 0 ? BigDecimal.valueOf(Double.MAX_VALUE) : BigDecimal.valueOf(-Double.MAX_VALUE);
+            }
+            return new BigDecimal(number.toString());
+        }
+    }
+
+    /**
+     * Converts a value to the type a database column of the given data type
+     * would hand back so that values compare the same way they would in SQL.
+     * Numbers become {@link BigDecimal}, booleans and timestamps are parsed
+     * from text and anything that is not binary is compared as text. Values
+     * that cannot be converted are returned as they are.
+     */
+    public static Object toColumnValue(DataType dataType, Object value) {
+        if (value == null || dataType == null) {
+            return value;
+        } else if (dataType.isNumeric()) {
+            if (value instanceof Number) {
+                return toBigDecimal((Number) value);
+            } else if (value instanceof String) {
+                try {
+                    return new BigDecimal(((String) value).trim());
+                } catch (NumberFormatException e) {
+                    return value;
+                }
+            }
+            return value;
+        } else if (dataType.isBoolean()) {
+            if (value instanceof String) {
+                String text = ((String) value).trim();
+                return text.equalsIgnoreCase("true") || text.equals("1");
+            }
+            return value;
+        } else if (dataType.isTimestamp()) {
+            if (value instanceof String) {
+                try {
+                    return java.sql.Timestamp.valueOf(((String) value).trim());
+                } catch (IllegalArgumentException e) {
+                    return value;
+                }
+            }
+            return value;
+        } else if (dataType.isBinary()) {
+            return value;
+        } else {
+            return value.toString();
+        }
+    }
+
+    /**
+     * A rough estimate of the heap used by a row that is good enough to
+     * decide when to spill.
+     */
+    public static long estimateSize(EntityData data) {
+        long size = 64 + data.size() * 16;
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            size += estimateSize(entry.getValue());
+        }
+        return size;
+    }
+
+    public static long estimateSize(Object value) {
+        if (value instanceof String) {
+            return 40 + ((String) value).length() * 2;
+        } else if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        } else if (value instanceof BigDecimal || value instanceof BigInteger) {
+            return 64;
+        } else if (value != null) {
+            return 24;
+        } else {
+            return 0;
+        }
+    }
+
+    static class SortEntry {
+
+        final Object[] key;
+
+        final EntityData data;
+
+        SortEntry(Object[] key, EntityData data) {
+            this.key = key;
+            this.data = data;
+        }
+    }
+
+    class RunCursor {
+
+        final int run;
+
+        final EntityDataSpillReader reader;
+
+        final Iterator<SortEntry> memory;
+
+        SortEntry current;
+
+        RunCursor(int run, EntityDataSpillReader reader, Iterator<SortEntry> memory) {
+            this.run = run;
+            this.reader = reader;
+            this.memory = memory;
+        }
+
+        boolean advance() {
+            if (reader != null) {
+                EntityData data = reader.read();
+                current = data != null ? new SortEntry(keyExtractor.apply(data), data) : null;
+            } else {
+                current = memory.hasNext() ? memory.next() : null;
+            }
+            return current != null;
+        }
+    }
+
+    class MergeIterator implements Iterator<SortEntry> {
+
+        final PriorityQueue<RunCursor> queue;
+
+        MergeIterator() {
+            queue = new PriorityQueue<>(runs.size() + 1, new Comparator<RunCursor>() {
+                @Override
+                public int compare(RunCursor o1, RunCursor o2) {
+                    int result = compareKeys(o1.current.key, o2.current.key);
+                    return result != 0 ? result : Integer.compare(o1.run, o2.run);
+                }
+            });
+            for (int i = 0; i < runs.size(); i++) {
+                EntityDataSpillReader reader = new EntityDataSpillReader(runs.get(i));
+                readers.add(reader);
+                RunCursor cursor = new RunCursor(i, reader, null);
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+            RunCursor cursor = new RunCursor(runs.size(), null, entries.iterator());
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public SortEntry next() {
+            RunCursor cursor = queue.poll();
+            if (cursor == null) {
+                throw new NoSuchElementException();
+            }
+            SortEntry entry = cursor.current;
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+            return entry;
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import static org.jumpmind.metl.core.runtime.EntityDataSpillWriter.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jumpmind.exception.IoException;
+import org.jumpmind.metl.core.runtime.EntityData.ChangeType;
+
+/**
+ * Reads rows that were written by {@link EntityDataSpillWriter}.
+ */
+public class EntityDataSpillReader implements Closeable {
+
+    final DataInputStream in;
+
+    final List<String> keys = new ArrayList<>();
+
+    public EntityDataSpillReader(File file) {
+        try {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+    }
+
+    /**
+     * Reads from a stream that the caller owns. Used to decode single values
+     * with {@link #readString} and {@link #readValue}.
+     */
+    EntityDataSpillReader(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    /**
+     * @return the next row or null if there are no more rows
+     */
+    public EntityData read() {
+        try {
+            if (in.readByte() != ROW) {
+                return null;
+            }
+            EntityData data = new EntityData();
+            byte changeType = in.readByte();
+            data.setChangeType(changeType >= 0 ? ChangeType.values()[changeType] : null);
+            int size = readVarInt();
+            for (int i = 0; i < size; i++) {
+                String key = readKey();
+                data.put(key, readValue());
+            }
+            return data;
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+    }
+
+    protected String readKey() throws IOException {
+        int id = readVarInt();
+        if ((id & 1) == 1) {
+            String key = readString();
+            keys.add(key);
+            return key;
+        } else {
+            return keys.get(id >>> 1);
+        }
+    }
+
+    protected Object readValue() throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString();
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case BIG_DECIMAL:
+                int scale = readVarInt();
+                return new BigDecimal(new BigInteger(readBytes()), scale);
+            case DOUBLE:
+                return in.readDouble();
+            case BOOLEAN:
+                return in.readBoolean();
+            case TIMESTAMP:
+                java.sql.Timestamp timestamp = new java.sql.Timestamp(in.readLong());
+                timestamp.setNanos(in.readInt());
+                return timestamp;
+            case DATE:
+                return new java.util.Date(in.readLong());
+            case SQL_DATE:
+                return new java.sql.Date(in.readLong());
+            case SQL_TIME:
+                return new java.sql.Time(in.readLong());
+            case BYTES:
+                return readBytes();
+            case FLOAT:
+                return in.readFloat();
+            case SHORT:
+                return in.readShort();
+            case BIG_INTEGER:
+                return new BigInteger(readBytes());
+            case SERIALIZED:
+                try (ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(readBytes()))) {
+                    return is.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+            default:
+                throw new IOException("Unexpected value type " + type);
+        }
+    }
+
+    protected String readString() throws IOException {
+        return new String(readBytes(), StandardCharsets.UTF_8);
+    }
+
+    protected byte[] readBytes() throws IOException {
+        byte[] bytes = new byte[readVarInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    protected int readVarInt() throws IOException {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+}
@@ -0,0 +1,225 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jumpmind.exception.IoException;
+
+/**
+ * Writes {@link EntityData} rows to a file in a compact binary format so that
+ * components can spill rows to disk when they do not fit in memory. Keys are
+ * written once per file and then referenced by number. Common value types are
+ * written without Java serialization. The file is read back with
+ * {@link EntityDataSpillReader}.
+ */
+public class EntityDataSpillWriter implements Closeable {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    static final byte ROW = 1;
+
+    static final byte END = 0;
+
+    static final byte NULL = 0;
+    static final byte STRING = 1;
+    static final byte INTEGER = 2;
+    static final byte LONG = 3;
+    static final byte BIG_DECIMAL = 4;
+    static final byte DOUBLE = 5;
+    static final byte BOOLEAN = 6;
+    static final byte TIMESTAMP = 7;
+    static final byte DATE = 8;
+    static final byte BYTES = 9;
+    static final byte FLOAT = 10;
+    static final byte SHORT = 11;
+    static final byte BIG_INTEGER = 12;
+    static final byte SQL_DATE = 13;
+    static final byte SQL_TIME = 14;
+    static final byte SERIALIZED = 99;
+
+    final File file;
+
+    final DataOutputStream out;
+
+    final Map<String, Integer> keyIds = new HashMap<>();
+
+    long rowCount;
+
+    boolean closed;
+
+    public EntityDataSpillWriter(File file) {
+        this.file = file;
+        try {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+    }
+
+    /**
+     * Writes to a stream that the caller owns. Used to encode single values
+     * with {@link #writeString} and {@link #writeValue}.
+     */
+    EntityDataSpillWriter(OutputStream out) {
+        this.file = null;
+        this.out = new DataOutputStream(out);
+    }
+
+    public void write(EntityData data) {
+        try {
+            out.writeByte(ROW);
+            out.writeByte(data.getChangeType() != null ? data.getChangeType().ordinal() : -1);
+            writeVarInt(data.size());
+            for (Map.Entry<String, Object> entry : data.entrySet()) {
+                writeKey(entry.getKey());
+                writeValue(entry.getValue());
+            }
+            rowCount++;
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.writeByte(END);
+            out.close();
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+    }
+
+    protected void writeKey(String key) throws IOException {
+        Integer id = keyIds.get(key);
+        if (id != null) {
+            writeVarInt(id << 1);
+        } else {
+            id = keyIds.size();
+            keyIds.put(key, id);
+            writeVarInt((id << 1) | 1);
+            writeString(key);
+        }
+    }
+
+    protected void writeValue(Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString((String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            out.writeByte(BIG_DECIMAL);
+            writeVarInt(decimal.scale());
+            writeBytes(decimal.unscaledValue().toByteArray());
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value.getClass().equals(java.sql.Timestamp.class)) {
+            java.sql.Timestamp timestamp = (java.sql.Timestamp) value;
+            out.writeByte(TIMESTAMP);
+            out.writeLong(timestamp.getTime());
+            out.writeInt(timestamp.getNanos());
+        } else if (value.getClass().equals(java.util.Date.class)) {
+            out.writeByte(DATE);
+            out.writeLong(((java.util.Date) value).getTime());
+        } else if (value.getClass().equals(java.sql.Date.class)) {
+            out.writeByte(SQL_DATE);
+            out.writeLong(((java.util.Date) value).getTime());
+        } else if (value.getClass().equals(java.sql.Time.class)) {
+            out.writeByte(SQL_TIME);
+            out.writeLong(((java.util.Date) value).getTime());
+        } else if (value instanceof byte[]) {
+            out.writeByte(BYTES);
+            writeBytes((byte[]) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof BigInteger) {
+            out.writeByte(BIG_INTEGER);
+            writeBytes(((BigInteger) value).toByteArray());
+        } else {
+            out.writeByte(SERIALIZED);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream os = new ObjectOutputStream(bytes)) {
+                os.writeObject(value);
+            }
+            writeBytes(bytes.toByteArray());
+        }
+    }
+
+    protected void writeString(String value) throws IOException {
+        writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected void writeBytes(byte[] bytes) throws IOException {
+        writeVarInt(bytes.length);
+        out.write(bytes);
+    }
+
+    protected void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+}
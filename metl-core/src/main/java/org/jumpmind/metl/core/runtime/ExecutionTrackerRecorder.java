@@ -66,6 +66,10 @@ public class ExecutionTrackerRecorder extends ExecutionTrackerLogger {
         threadService.execute(this.recorder);        
     }
 
+    public AsyncRecorder getRecorder() {
+        return recorder;
+    }
+
     @Override
     public void beforeFlow(String executionId, Map<String, String> flowParameters) {
         super.beforeFlow(executionId, flowParameters);
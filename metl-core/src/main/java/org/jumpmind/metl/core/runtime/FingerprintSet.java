@@ -0,0 +1,203 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.jumpmind.exception.IoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A set of strings that only remembers a 128 bit fingerprint of each string.
+ * The fingerprints are kept in an open addressing table of longs that stays
+ * on the heap until it would grow past the memory limit. After that the table
+ * is kept in a memory mapped temporary file.
+ * <p>
+ * Two different strings are treated as the same string when their
+ * fingerprints collide. With 128 bits that is not expected to happen for any
+ * realistic number of strings. The set must be closed to remove its
+ * temporary file.
+ */
+public class FingerprintSet implements Closeable {
+
+    final static Logger log = LoggerFactory.getLogger(FingerprintSet.class);
+
+    static final int INITIAL_CAPACITY = 1024;
+
+    final long memoryLimitInBytes;
+
+    long[] slots;
+
+    MappedLongArray mappedSlots;
+
+    File mappedFile;
+
+    long capacity;
+
+    long size;
+
+    public FingerprintSet(long memoryLimitInBytes) {
+        this.memoryLimitInBytes = memoryLimitInBytes;
+        clear();
+    }
+
+    /**
+     * @return true if the string was not in the set yet
+     */
+    public boolean add(String value) {
+        long high = hash(value, 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL);
+        long low = hash(value, 0xD6E8FEB86659FD93L, 0x165667B19E3779F9L);
+        if (high == 0 && low == 0) {
+            low = 1;
+        }
+        if (size >= capacity * 3 / 4) {
+            resize();
+        }
+        long mask = capacity - 1;
+        long slot = high & mask;
+        while (true) {
+            long currentHigh = get(slot * 2);
+            long currentLow = get(slot * 2 + 1);
+            if (currentHigh == 0 && currentLow == 0) {
+                set(slot * 2, high);
+                set(slot * 2 + 1, low);
+                size++;
+                return true;
+            } else if (currentHigh == high && currentLow == low) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isSpilled() {
+        return mappedSlots != null;
+    }
+
+    public void clear() {
+        close();
+        capacity = INITIAL_CAPACITY;
+        slots = new long[(int) capacity * 2];
+        size = 0;
+    }
+
+    @Override
+    public void close() {
+        slots = null;
+        if (mappedSlots != null) {
+            try {
+                mappedSlots.close();
+            } catch (IOException e) {
+                log.warn("Failed to close the fingerprint file", e);
+            }
+            mappedSlots = null;
+        }
+        if (mappedFile != null) {
+            FileUtils.deleteQuietly(mappedFile);
+            mappedFile = null;
+        }
+    }
+
+    protected long get(long index) {
+        return slots != null ? slots[(int) index] : mappedSlots.get(index);
+    }
+
+    protected void set(long index, long value) {
+        if (slots != null) {
+            slots[(int) index] = value;
+        } else {
+            mappedSlots.set(index, value);
+        }
+    }
+
+    protected void resize() {
+        long oldCapacity = capacity;
+        long[] oldSlots = slots;
+        MappedLongArray oldMappedSlots = mappedSlots;
+        File oldMappedFile = mappedFile;
+
+        capacity = oldCapacity * 2;
+        if (oldSlots != null && capacity * 16 <= memoryLimitInBytes && capacity * 2 <= Integer.MAX_VALUE - 8) {
+            slots = new long[(int) capacity * 2];
+        } else {
+            if (oldSlots != null) {
+                log.debug("Moving {} fingerprints to disk", size);
+            }
+            slots = null;
+            try {
+                mappedFile = File.createTempFile("metl-fingerprints", ".bin");
+                mappedSlots = new MappedLongArray(mappedFile);
+            } catch (IOException e) {
+                throw new IoException(e);
+            }
+        }
+
+        long mask = capacity - 1;
+        for (long i = 0; i < oldCapacity; i++) {
+            long high = oldSlots != null ? oldSlots[(int) i * 2] : oldMappedSlots.get(i * 2);
+            long low = oldSlots != null ? oldSlots[(int) i * 2 + 1] : oldMappedSlots.get(i * 2 + 1);
+            if (high != 0 || low != 0) {
+                long slot = high & mask;
+                while (get(slot * 2) != 0 || get(slot * 2 + 1) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                set(slot * 2, high);
+                set(slot * 2 + 1, low);
+            }
+        }
+
+        if (oldMappedSlots != null) {
+            try {
+                oldMappedSlots.close();
+            } catch (IOException e) {
+                log.warn("Failed to close the fingerprint file", e);
+            }
+            FileUtils.deleteQuietly(oldMappedFile);
+        }
+    }
+
+    /*
+     * A multiplicative hash over the characters that is finished with the
+     * MurmurHash3 mixing function. Different seeds and multipliers give the
+     * two halves of the fingerprint.
+     */
+    static long hash(String value, long seed, long multiplier) {
+        long h = seed ^ value.length();
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * multiplier;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
@@ -0,0 +1,11 @@
+package org.jumpmind.metl.core.runtime;
+
+import java.util.Map;
+
+import org.jumpmind.metl.core.runtime.resource.IResourceRuntime;
+
+public interface IDeployedResourcesAware {
+
+    public void setDeployedResources(Map<String, IResourceRuntime> deployedResources);
+    
+}
@@ -0,0 +1,346 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.ObjectUtils;
+import org.jumpmind.exception.IoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A map from string keys to values that stays on the heap until its estimated
+ * size reaches the memory limit. After that the entries are moved to an open
+ * addressing hash table in memory mapped temporary files, so the size of the
+ * table is bound by disk space and the operating system page cache instead
+ * of the heap. Putting a key again replaces its value.
+ * <p>
+ * Keys that are made of more than one value are built with {@link #toKey}.
+ * The table must be closed to remove its temporary files.
+ */
+public class LookupTable implements Closeable {
+
+    final static Logger log = LoggerFactory.getLogger(LookupTable.class);
+
+    static final char KEY_SEPARATOR = '\u0001';
+
+    final long memoryLimitInBytes;
+
+    Map<String, Object> memory = new HashMap<>();
+
+    long estimatedBytes;
+
+    DiskTable disk;
+
+    public LookupTable(long memoryLimitInBytes) {
+        this.memoryLimitInBytes = memoryLimitInBytes;
+    }
+
+    /**
+     * A single value is converted the same way ObjectUtils.toString does.
+     * The values of a composite key are joined with a separator that does not
+     * show up in normal data.
+     */
+    public static String toKey(Object... values) {
+        if (values.length == 1) {
+            return ObjectUtils.toString(values[0]);
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                key.append(KEY_SEPARATOR);
+            }
+            key.append(ObjectUtils.toString(values[i]));
+        }
+        return key.toString();
+    }
+
+    public void put(String key, Object value) {
+        if (disk != null) {
+            disk.put(key, value);
+        } else {
+            Object old = memory.put(key, value);
+            if (old == null) {
+                estimatedBytes += 48 + EntityDataSorter.estimateSize(key);
+            }
+            estimatedBytes += EntityDataSorter.estimateSize(value) - EntityDataSorter.estimateSize(old);
+            if (estimatedBytes >= memoryLimitInBytes) {
+                spill();
+            }
+        }
+    }
+
+    public Object get(String key) {
+        return disk != null ? disk.get(key) : memory.get(key);
+    }
+
+    public long size() {
+        return disk != null ? disk.size : memory.size();
+    }
+
+    public boolean isSpilled() {
+        return disk != null;
+    }
+
+    protected void spill() {
+        log.debug("Moving {} lookup entries to disk", memory.size());
+        disk = new DiskTable(Math.max(memory.size() * 2, 1024));
+        for (Map.Entry<String, Object> entry : memory.entrySet()) {
+            disk.put(entry.getKey(), entry.getValue());
+        }
+        memory = null;
+    }
+
+    @Override
+    public void close() {
+        if (disk != null) {
+            disk.close();
+            disk = null;
+        }
+        memory = new HashMap<>();
+        estimatedBytes = 0;
+    }
+
+    static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Entries are appended to a data file as a key and a value. The slots of
+     * the hash table hold the full hash of a key in the upper half and the
+     * record number plus one in the lower half, so the table can be resized
+     * without reading the keys back. A second array maps record numbers to
+     * their offset in the data file.
+     */
+    static class DiskTable implements Closeable {
+
+        static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+        final File dir;
+
+        final RandomAccessFile dataFile;
+
+        final FileChannel data;
+
+        final byte[] writeBuffer = new byte[WRITE_BUFFER_SIZE];
+
+        int writeBufferLength;
+
+        long flushedLength;
+
+        final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+
+        final EntityDataSpillWriter recordWriter = new EntityDataSpillWriter(recordBytes);
+
+        MappedLongArray slots;
+
+        long capacity;
+
+        final MappedLongArray offsets;
+
+        long size;
+
+        int recordCount;
+
+        int tableNumber;
+
+        DiskTable(long expectedSize) {
+            try {
+                dir = File.createTempFile("metl-lookup", "");
+                FileUtils.forceDelete(dir);
+                FileUtils.forceMkdir(dir);
+                dataFile = new RandomAccessFile(new File(dir, "data.bin"), "rw");
+                data = dataFile.getChannel();
+                offsets = new MappedLongArray(new File(dir, "offsets.bin"));
+                capacity = Long.highestOneBit(Math.max(expectedSize, 16) * 2);
+                slots = newTable(capacity);
+            } catch (IOException e) {
+                throw new IoException(e);
+            }
+        }
+
+        MappedLongArray newTable(long capacity) throws IOException {
+            return new MappedLongArray(new File(dir, "table" + (tableNumber++) + ".bin"));
+        }
+
+        void put(String key, Object value) {
+            if (size >= capacity * 3 / 4) {
+                resize();
+            }
+            int hash = hash(key);
+            int recordNumber = append(key, value);
+            long entry = ((long) hash << 32) | (recordNumber + 1L);
+            long mask = capacity - 1;
+            long slot = hash & mask;
+            while (true) {
+                long current = slots.get(slot);
+                if (current == 0) {
+                    slots.set(slot, entry);
+                    size++;
+                    return;
+                } else if ((int) (current >>> 32) == hash && key.equals(readKey(recordNumberOf(current)))) {
+                    slots.set(slot, entry);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        Object get(String key) {
+            int hash = hash(key);
+            long mask = capacity - 1;
+            long slot = hash & mask;
+            while (true) {
+                long current = slots.get(slot);
+                if (current == 0) {
+                    return null;
+                } else if ((int) (current >>> 32) == hash) {
+                    EntityDataSpillReader reader = read(recordNumberOf(current));
+                    try {
+                        if (key.equals(reader.readString())) {
+                            return reader.readValue();
+                        }
+                    } catch (IOException e) {
+                        throw new IoException(e);
+                    }
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        static int recordNumberOf(long entry) {
+            return (int) (entry & 0xFFFFFFFFL) - 1;
+        }
+
+        void resize() {
+            try {
+                long newCapacity = capacity * 2;
+                long mask = newCapacity - 1;
+                MappedLongArray newSlots = newTable(newCapacity);
+                for (long i = 0; i < capacity; i++) {
+                    long entry = slots.get(i);
+                    if (entry != 0) {
+                        long slot = (int) (entry >>> 32) & mask;
+                        while (newSlots.get(slot) != 0) {
+                            slot = (slot + 1) & mask;
+                        }
+                        newSlots.set(slot, entry);
+                    }
+                }
+                slots.close();
+                slots = newSlots;
+                capacity = newCapacity;
+            } catch (IOException e) {
+                throw new IoException(e);
+            }
+        }
+
+        int append(String key, Object value) {
+            if (recordCount == Integer.MAX_VALUE - 1) {
+                throw new IllegalStateException("The lookup table is full");
+            }
+            try {
+                recordBytes.reset();
+                recordWriter.writeString(key);
+                recordWriter.writeValue(value);
+                recordWriter.out.flush();
+                long offset = flushedLength + writeBufferLength;
+                offsets.set(recordCount, offset);
+                if (writeBufferLength + recordBytes.size() > writeBuffer.length) {
+                    flush();
+                }
+                if (recordBytes.size() > writeBuffer.length) {
+                    data.write(ByteBuffer.wrap(recordBytes.toByteArray()), flushedLength);
+                    flushedLength += recordBytes.size();
+                } else {
+                    byte[] bytes = recordBytes.toByteArray();
+                    System.arraycopy(bytes, 0, writeBuffer, writeBufferLength, bytes.length);
+                    writeBufferLength += bytes.length;
+                }
+                return recordCount++;
+            } catch (IOException e) {
+                throw new IoException(e);
+            }
+        }
+
+        void flush() throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(writeBuffer, 0, writeBufferLength);
+            while (buffer.hasRemaining()) {
+                data.write(buffer, flushedLength + buffer.position());
+            }
+            flushedLength += writeBufferLength;
+            writeBufferLength = 0;
+        }
+
+        String readKey(int recordNumber) {
+            try {
+                return read(recordNumber).readString();
+            } catch (IOException e) {
+                throw new IoException(e);
+            }
+        }
+
+        EntityDataSpillReader read(int recordNumber) {
+            long offset = offsets.get(recordNumber);
+            long end = recordNumber + 1 < recordCount ? offsets.get(recordNumber + 1) : flushedLength + writeBufferLength;
+            int length = (int) (end - offset);
+            if (offset >= flushedLength) {
+                return new EntityDataSpillReader(new ByteArrayInputStream(writeBuffer, (int) (offset - flushedLength), length));
+            }
+            try {
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                while (buffer.hasRemaining()) {
+                    if (data.read(buffer, offset + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of lookup data at " + offset);
+                    }
+                }
+                return new EntityDataSpillReader(new ByteArrayInputStream(buffer.array()));
+            } catch (IOException e) {
+                throw new IoException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                slots.close();
+                offsets.close();
+                dataFile.close();
+            } catch (IOException e) {
+                log.warn("Failed to close the lookup table files", e);
+            }
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jumpmind.exception.IoException;
+
+/**
+ * An array of longs in a memory mapped file that is mapped in chunks as it
+ * grows. Unused parts of the file are sparse and read as zero.
+ */
+class MappedLongArray implements Closeable {
+
+    static final int CHUNK_SHIFT = 20;
+
+    static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    final RandomAccessFile file;
+
+    final List<MappedByteBuffer> chunks = new ArrayList<>();
+
+    MappedLongArray(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+    }
+
+    long get(long index) {
+        int chunk = (int) (index >>> CHUNK_SHIFT);
+        if (chunk >= chunks.size()) {
+            return 0;
+        }
+        return chunks.get(chunk).getLong((int) (index & CHUNK_MASK) << 3);
+    }
+
+    void set(long index, long value) {
+        chunk((int) (index >>> CHUNK_SHIFT)).putLong((int) (index & CHUNK_MASK) << 3, value);
+    }
+
+    MappedByteBuffer chunk(int chunk) {
+        try {
+            while (chunk >= chunks.size()) {
+                long position = (long) chunks.size() << (CHUNK_SHIFT + 3);
+                chunks.add(file.getChannel().map(FileChannel.MapMode.READ_WRITE, position, 1L << (CHUNK_SHIFT + 3)));
+            }
+            return chunks.get(chunk);
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        chunks.clear();
+        file.close();
+    }
+
+}
@@ -32,7 +32,7 @@ public class ComponentRuntimeFactory implements IComponentRuntimeFactory {
     }
 
     @Override
-    synchronized public IComponentRuntime create(String projectVersionId, String id, ComponentContext context, int threadNumber) {
+    public IComponentRuntime create(String projectVersionId, String id, ComponentContext context, int threadNumber) {
         try {
             XMLComponentDefinition definition = componentDefinitionFactory.getComponentDefinition(projectVersionId, id);
             if (definition != null) {
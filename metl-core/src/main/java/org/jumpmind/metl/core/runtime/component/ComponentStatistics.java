@@ -20,128 +20,168 @@
  */
 package org.jumpmind.metl.core.runtime.component;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+/**
+ * Counts what a component did per thread number. Each thread number from 0 to
+ * the thread count of the step gets its own row of counters, so increments are
+ * exact when a step runs with more than one thread and do not allocate. Thread
+ * numbers outside of that range are rejected rather than growing the rows,
+ * because they are usually a count passed where the thread number belongs.
+ */
 public class ComponentStatistics {
 
-    private Map<Integer, Integer> numberInboundMessages = new ConcurrentHashMap<>();
-    private Map<Integer, Integer> numberOutboundMessages = new ConcurrentHashMap<>();
-    private Map<Integer, Integer> numberEntitiesProcessed = new ConcurrentHashMap<>();
-    private Map<Integer, Integer> numberInboundPayload = new ConcurrentHashMap<>();
-    private Map<Integer, Integer> numberOutboundPayload = new ConcurrentHashMap<>();
-    private Map<Integer, Long> timeSpentInHandle = new ConcurrentHashMap<>();
-    private Map<Integer, Long> timeSpentWaiting = new ConcurrentHashMap<>();
-    
-    
+    static final int INBOUND_MESSAGES = 0;
+    static final int OUTBOUND_MESSAGES = 1;
+    static final int ENTITIES_PROCESSED = 2;
+    static final int INBOUND_PAYLOAD = 3;
+    static final int OUTBOUND_PAYLOAD = 4;
+    static final int TIME_SPENT_IN_HANDLE = 5;
+    static final int TIME_SPENT_WAITING = 6;
+    static final int CACHE_HITS = 7;
+    static final int CACHE_MISSES = 8;
+
+    static final int ROW_SIZE = CACHE_MISSES + 1;
+
+    private final AtomicLongArray[] rows;
+
+    public ComponentStatistics() {
+        this(1);
+    }
+
+    public ComponentStatistics(int threadCount) {
+        AtomicLongArray[] rows = new AtomicLongArray[threadCount + 1];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new AtomicLongArray(ROW_SIZE);
+        }
+        this.rows = rows;
+    }
+
+    protected AtomicLongArray row(int thread) {
+        if (thread < 0 || thread >= rows.length) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid thread number: %d.  Expected a thread number from 0 to %d", thread, rows.length - 1));
+        }
+        return rows[thread];
+    }
+
+    protected long get(int thread, int counter) {
+        return thread >= 0 && thread < rows.length ? rows[thread].get(counter) : 0;
+    }
+
+    protected void add(int thread, int counter, long amount) {
+        row(thread).addAndGet(counter, amount);
+    }
+
+    protected void set(int thread, int counter, long value) {
+        row(thread).set(counter, value);
+    }
+
     public long getTimeSpentInHandle(int thread) {
-        Long number = timeSpentInHandle.get(thread);
-        return number != null ? number : 0;
+        return get(thread, TIME_SPENT_IN_HANDLE);
     }
     
     public long getTimeSpentWaiting(int thread) {
-        Long number = timeSpentWaiting.get(thread);
-        return number != null ? number : 0;
+        return get(thread, TIME_SPENT_WAITING);
     }
     
     public void incrementTimeSpentInHandle(int thread, long amount) {
         if (amount > 0) {
-            Long number = timeSpentInHandle.get(thread);
-            if (number != null) {
-                number = number + amount;
-            } else {
-                number = amount;
-            }
-            timeSpentInHandle.put(thread, number);
+            add(thread, TIME_SPENT_IN_HANDLE, amount);
         }
     }
 
     public void incrementTimeSpentWaiting(int thread, long amount) {
         if (amount > 0) {
-            Long number = timeSpentWaiting.get(thread);
-            if (number != null) {
-                number = number + amount;
-            } else {
-                number = amount;
-            }
-            timeSpentWaiting.put(thread, number);
+            add(thread, TIME_SPENT_WAITING, amount);
         }
     }
 
     public int getNumberInboundMessages(int thread) {
-        Integer number = numberInboundMessages.get(thread);
-        return number != null ? number : 0;
+        return (int) get(thread, INBOUND_MESSAGES);
     }
 
     public void setNumberInboundMessages(int thread, int numberInboundMessages) {
-        this.numberInboundMessages.put(thread, numberInboundMessages);
+        set(thread, INBOUND_MESSAGES, numberInboundMessages);
     }
 
     public void incrementInboundMessages(int thread) {
-        this.numberInboundMessages.put(thread, getNumberInboundMessages(thread)+1);
+        add(thread, INBOUND_MESSAGES, 1);
     }
 
     public void setNumberOutboundMessages(int thread, int numberOutboundMessages) {
-        this.numberOutboundMessages.put(thread, numberOutboundMessages);
+        set(thread, OUTBOUND_MESSAGES, numberOutboundMessages);
     }
 
     public int getNumberOutboundMessages(int thread) {
-        Integer number = numberOutboundMessages.get(thread);
-        return number != null ? number : 0;
+        return (int) get(thread, OUTBOUND_MESSAGES);
     }
 
     public void incrementOutboundMessages(int thread) {
-        this.numberOutboundMessages.put(thread, getNumberOutboundMessages(thread)+1);
+        add(thread, OUTBOUND_MESSAGES, 1);
     }
 
     public void setNumberEntitiesProcessed(int thread, int numberEntitiesProcessed) {
-        this.numberEntitiesProcessed.put(thread, getNumberEntitiesProcessed(thread)+1);
+        set(thread, ENTITIES_PROCESSED, numberEntitiesProcessed);
     }
 
     public int getNumberEntitiesProcessed(int thread) {
-        Integer number = numberEntitiesProcessed.get(thread);
-        return number != null ? number : 0;
+        return (int) get(thread, ENTITIES_PROCESSED);
     }
 
     public void incrementNumberEntitiesProcessed(int thread) {
-        this.numberEntitiesProcessed.put(thread, getNumberEntitiesProcessed(thread)+1);
+        add(thread, ENTITIES_PROCESSED, 1);
     }
 
     public void incrementNumberEntitiesProcessed(int thread, int count) {
-        this.numberEntitiesProcessed.put(thread, getNumberEntitiesProcessed(thread)+count);
+        add(thread, ENTITIES_PROCESSED, count);
     }
     
     public void setNumberInboundPayload(int thread, int numberInboundPayload) {
-        this.numberInboundPayload.put(thread, getNumberInboundPayload(thread)+1);
+        set(thread, INBOUND_PAYLOAD, numberInboundPayload);
     }
 
     public int getNumberInboundPayload(int thread) {
-        Integer number = numberInboundPayload.get(thread);
-        return number != null ? number : 0;
+        return (int) get(thread, INBOUND_PAYLOAD);
     }
 
     public void incrementNumberInboundPayload(int thread) {
-        this.numberInboundPayload.put(thread, getNumberInboundPayload(thread)+1);
+        add(thread, INBOUND_PAYLOAD, 1);
     }
 
     public void incrementNumberInboundPayload(int thread, int count) {
-        this.numberInboundPayload.put(thread, getNumberInboundPayload(thread)+count);
+        add(thread, INBOUND_PAYLOAD, count);
     }
     
     public void setNumberOutboundPayload(int thread, int numberOutboundPayload) {
-        this.numberOutboundPayload.put(thread, getNumberOutboundPayload(thread)+1);
+        set(thread, OUTBOUND_PAYLOAD, numberOutboundPayload);
     }
 
     public int getNumberOutboundPayload(int thread) {
-        Integer number = numberOutboundPayload.get(thread);
-        return number != null ? number : 0;
+        return (int) get(thread, OUTBOUND_PAYLOAD);
     }
 
     public void incrementNumberOutboundPayload(int thread) {
-        this.numberOutboundPayload.put(thread, getNumberOutboundPayload(thread)+1);
+        add(thread, OUTBOUND_PAYLOAD, 1);
     }
 
     public void incrementNumberOutboundPayload(int thread, int count) {
-        this.numberOutboundPayload.put(thread, getNumberOutboundPayload(thread)+count);
+        add(thread, OUTBOUND_PAYLOAD, count);
+    }
+
+    public long getNumberCacheHits(int thread) {
+        return get(thread, CACHE_HITS);
+    }
+
+    public void incrementNumberCacheHits(int thread) {
+        add(thread, CACHE_HITS, 1);
+    }
+
+    public long getNumberCacheMisses(int thread) {
+        return get(thread, CACHE_MISSES);
+    }
+
+    public void incrementNumberCacheMisses(int thread) {
+        add(thread, CACHE_MISSES, 1);
     }
 }
@@ -21,8 +21,10 @@
 package org.jumpmind.metl.core.runtime.component;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.jumpmind.metl.core.model.Component;
 import org.jumpmind.metl.core.model.ComponentAttributeSetting;
@@ -31,6 +33,10 @@ import org.jumpmind.metl.core.model.ModelAttribute;
 import org.jumpmind.metl.core.model.ModelEntity;
 import org.jumpmind.metl.core.runtime.EntityData;
 import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.EntityDataPartitions;
+import org.jumpmind.metl.core.runtime.EntityDataSorter;
+import org.jumpmind.metl.core.runtime.EntityDataSpillReader;
+import org.jumpmind.metl.core.runtime.FingerprintSet;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.MisconfiguredException;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
@@ -51,6 +57,20 @@ public class Deduper extends AbstractComponentRuntime {
     public final static String PRESERVE_RECORD = "preserve.record";
 
     public final static String ATTRIBUTE_DEDUPE_ENABLED = "dedupe.enabled";
+
+    public final static String STREAM_FIRST_RECORDS = "stream.first.records";
+
+    public final static String MEMORY_BUFFER_SIZE_MB = "memory.buffer.size.mb";
+
+    static final int PARTITION_COUNT = 32;
+
+    /*
+     * Spilled rows carry their key and the position of the first row with
+     * that key in attributes that cannot clash with attribute ids.
+     */
+    static final String KEY = "$dedupe.key";
+
+    static final String SEQUENCE = "$dedupe.sequence";
     
     int rowsPerMessage = 1000;
     
@@ -62,7 +82,19 @@ public class Deduper extends AbstractComponentRuntime {
     
     String preserveRecord = PRESERVE_FIRST;
 
-    LinkedHashMap<String, EntityData> deduped = new LinkedHashMap<String, EntityData>();
+    boolean streamFirstRecords;
+
+    long memoryBufferSizeInBytes;
+
+    LinkedHashMap<String, Deduped> deduped = new LinkedHashMap<String, Deduped>();
+
+    long estimatedBytes;
+
+    long sequence;
+
+    FingerprintSet seen;
+
+    EntityDataPartitions partitions;
 
     @Override
     public void start() {
@@ -70,6 +102,8 @@ public class Deduper extends AbstractComponentRuntime {
         rowsPerMessage = getComponent().getInt(ROWS_PER_MESSAGE, rowsPerMessage);
         dedupeType = properties.get(DEDUPE_TYPE);
         preserveRecord = properties.get(PRESERVE_RECORD);
+        streamFirstRecords = properties.is(STREAM_FIRST_RECORDS, false) && !PRESERVE_LAST.equals(preserveRecord);
+        memoryBufferSizeInBytes = properties.getLong(MEMORY_BUFFER_SIZE_MB, 128) * 1024 * 1024;
         Model inputModel = this.getComponent().getInputModel();
         if (inputModel == null) {
             throw new MisconfiguredException("The input model is not set and it is required");
@@ -103,52 +137,254 @@ public class Deduper extends AbstractComponentRuntime {
         return false;
     }
 
+    @Override
+    public void stop() {
+        if (seen != null) {
+            seen.close();
+            seen = null;
+        }
+        closePartitions();
+        deduped.clear();
+    }
+
     @Override
     public void handle(Message inputMessage, ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
         if (inputMessage instanceof EntityDataMessage) {
             ArrayList<EntityData> payload = ((EntityDataMessage)inputMessage).getPayload();
-            for (EntityData entityData : payload) {
-                String key = "";
-
-                if (DEDUPE_ATTRIBUTE.equals(dedupeType)) {
-                	for (String attributeId : dedupeKeyAttributeIdList) {
-                		key += entityData.get(attributeId);
-                	}
-                } else {
-                	key = entityData.toString();
-                }
-                
-                if (!deduped.containsKey(key)) {
-                    getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
-                    deduped.put(key, entityData);
-                } else {
-                    // else it exists, check if we need to save the first or last value and replace if necessary
-                	if (PRESERVE_LAST.equals(preserveRecord)) {
-                		deduped.put(key, entityData);
-                	}
+            if (streamFirstRecords) {
+                streamFirstRecords(payload, callback);
+            } else {
+                for (EntityData entityData : payload) {
+                    dedupe(getKey(entityData), entityData);
                 }
             }
         }
 
         if (unitOfWorkBoundaryReached) {
-            if (deduped.size() > 0) {
+            if (streamFirstRecords) {
+                if (seen != null) {
+                    seen.clear();
+                }
+            } else if (partitions != null) {
+                sendPartitions(callback);
+            } else if (deduped.size() > 0) {
                 int count = 0;
                 ArrayList<EntityData> payload = new ArrayList<EntityData>(rowsPerMessage);
-                for (EntityData data : deduped.values()) {
+                for (Deduped data : deduped.values()) {
                     if (count >= rowsPerMessage) {
                         callback.sendEntityDataMessage(null, payload);
                         payload = new ArrayList<EntityData>();
                         count = 0;
                     }
-                    payload.add(data);
+                    getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
+                    payload.add(data.data);
                     count++;
                 }
 
                 deduped.clear();
+                estimatedBytes = 0;
 
                 callback.sendEntityDataMessage(null, payload);
             }
         }
     }
 
+    protected String getKey(EntityData entityData) {
+        if (DEDUPE_ATTRIBUTE.equals(dedupeType)) {
+            StringBuilder key = new StringBuilder();
+            for (String attributeId : dedupeKeyAttributeIdList) {
+                key.append(entityData.get(attributeId));
+            }
+            return key.toString();
+        } else {
+            return entityData.toString();
+        }
+    }
+
+    /*
+     * Only the fingerprint of each key is remembered, so the first record of
+     * every key can be sent right away without holding on to any rows.
+     */
+    protected void streamFirstRecords(List<EntityData> datas, ISendMessageCallback callback) {
+        if (seen == null) {
+            seen = new FingerprintSet(memoryBufferSizeInBytes);
+        }
+        ArrayList<EntityData> payload = new ArrayList<EntityData>();
+        for (EntityData entityData : datas) {
+            if (seen.add(getKey(entityData))) {
+                getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
+                payload.add(entityData);
+                if (payload.size() >= rowsPerMessage) {
+                    callback.sendEntityDataMessage(null, payload);
+                    payload = new ArrayList<EntityData>();
+                }
+            }
+        }
+        if (payload.size() > 0) {
+            callback.sendEntityDataMessage(null, payload);
+        }
+    }
+
+    protected void dedupe(String key, EntityData entityData) {
+        long rowSequence = sequence++;
+        if (partitions != null) {
+            writeToPartition(key, rowSequence, entityData);
+            return;
+        }
+        Deduped existing = deduped.get(key);
+        if (existing == null) {
+            deduped.put(key, new Deduped(rowSequence, entityData));
+            estimatedBytes += 64 + EntityDataSorter.estimateSize(key) + EntityDataSorter.estimateSize(entityData);
+        } else if (PRESERVE_LAST.equals(preserveRecord)) {
+            // it exists, keep the position of the first record and the values of the last
+            estimatedBytes += EntityDataSorter.estimateSize(entityData) - EntityDataSorter.estimateSize(existing.data);
+            existing.data = entityData;
+        }
+        if (estimatedBytes >= memoryBufferSizeInBytes) {
+            spill();
+        }
+    }
+
+    /*
+     * Once the rows no longer fit in memory every row is written to one of a
+     * fixed number of partitions by the hash of its key, so that each
+     * partition can be deduped on its own when the unit of work is done.
+     */
+    protected void spill() {
+        info("Writing %d deduped records to disk", deduped.size());
+        partitions = new EntityDataPartitions(PARTITION_COUNT);
+        for (Map.Entry<String, Deduped> entry : deduped.entrySet()) {
+            writeToPartition(entry.getKey(), entry.getValue().sequence, entry.getValue().data);
+        }
+        deduped.clear();
+        estimatedBytes = 0;
+    }
+
+    protected void writeToPartition(String key, long rowSequence, EntityData entityData) {
+        EntityData row = entityData.copy();
+        row.put(KEY, key);
+        row.put(SEQUENCE, rowSequence);
+        partitions.write(key.hashCode(), row);
+    }
+
+    /*
+     * Each partition is deduped on its own. The surviving rows are then sorted
+     * by the position of the first row with their key so that they are sent
+     * in the same order as when everything fits in memory.
+     */
+    protected void sendPartitions(ISendMessageCallback callback) {
+        try (EntityDataSorter sorter = new EntityDataSorter(data -> new Object[] { data.get(SEQUENCE) }, memoryBufferSizeInBytes)) {
+            for (int i = 0; i < partitions.getPartitionCount(); i++) {
+                dedupePartition(i, sorter);
+            }
+            closePartitions();
+
+            ArrayList<EntityData> payload = new ArrayList<EntityData>(rowsPerMessage);
+            for (EntityData row : sorter) {
+                row.remove(KEY);
+                row.remove(SEQUENCE);
+                getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
+                payload.add(row);
+                if (payload.size() >= rowsPerMessage) {
+                    callback.sendEntityDataMessage(null, payload);
+                    payload = new ArrayList<EntityData>(rowsPerMessage);
+                }
+            }
+            if (payload.size() > 0) {
+                callback.sendEntityDataMessage(null, payload);
+            }
+        } finally {
+            closePartitions();
+        }
+    }
+
+    /*
+     * A partition is deduped in memory until the rows it keeps no longer fit.
+     * From then on the rows kept so far and the rest of the partition are
+     * sorted by key on disk. The sort is stable, so the rows of a key come
+     * back together and in the order they arrived, and each key is deduped
+     * as the rows are read back.
+     */
+    protected void dedupePartition(int partition, EntityDataSorter sorter) {
+        LinkedHashMap<Object, EntityData> rows = new LinkedHashMap<Object, EntityData>();
+        long partitionBytes = 0;
+        EntityDataSorter keySorter = null;
+        try {
+            try (EntityDataSpillReader reader = partitions.read(partition)) {
+                EntityData row = reader.read();
+                while (row != null) {
+                    if (keySorter != null) {
+                        keySorter.add(row);
+                    } else {
+                        Object key = row.get(KEY);
+                        EntityData existing = rows.get(key);
+                        EntityData kept = keep(existing, row);
+                        if (kept != existing) {
+                            partitionBytes += EntityDataSorter.estimateSize(kept)
+                                    - (existing != null ? EntityDataSorter.estimateSize(existing) : -64);
+                            rows.put(key, kept);
+                        }
+                        if (partitionBytes >= memoryBufferSizeInBytes) {
+                            info("Sorting partition %d on disk after deduping %d records", partition, rows.size());
+                            keySorter = new EntityDataSorter(data -> new Object[] { data.get(KEY) }, memoryBufferSizeInBytes);
+                            for (EntityData deduped : rows.values()) {
+                                keySorter.add(deduped);
+                            }
+                            rows.clear();
+                        }
+                    }
+                    row = reader.read();
+                }
+            }
+            if (keySorter != null) {
+                Iterator<EntityData> deduped = keySorter.iterator(this::keep);
+                while (deduped.hasNext()) {
+                    sorter.add(deduped.next());
+                }
+            } else {
+                for (EntityData row : rows.values()) {
+                    sorter.add(row);
+                }
+            }
+        } finally {
+            if (keySorter != null) {
+                keySorter.close();
+            }
+        }
+    }
+
+    /*
+     * Picks the row to keep for a key from the row kept so far and the next
+     * row with that key, keeping the position of the first row.
+     */
+    protected EntityData keep(EntityData existing, EntityData row) {
+        if (existing == null) {
+            return row;
+        } else if (PRESERVE_LAST.equals(preserveRecord)) {
+            row.put(SEQUENCE, existing.get(SEQUENCE));
+            return row;
+        } else {
+            return existing;
+        }
+    }
+
+    protected void closePartitions() {
+        if (partitions != null) {
+            partitions.close();
+            partitions = null;
+        }
+    }
+
+    static class Deduped {
+
+        final long sequence;
+
+        EntityData data;
+
+        Deduped(long sequence, EntityData data) {
+            this.sequence = sequence;
+            this.data = data;
+        }
+    }
+
 }
@@ -22,21 +22,39 @@ package org.jumpmind.metl.core.runtime.component;
 
 import static org.apache.commons.lang.StringUtils.isBlank;
 
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.lang.ObjectUtils;
+import javax.sql.DataSource;
+
+import org.apache.commons.lang.StringUtils;
+import org.jumpmind.exception.IoException;
+import org.jumpmind.metl.core.model.DataType;
 import org.jumpmind.metl.core.model.FlowStepLink;
+import org.jumpmind.metl.core.model.ModelAttribute;
 import org.jumpmind.metl.core.runtime.ControlMessage;
 import org.jumpmind.metl.core.runtime.EntityData;
 import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.EntityDataSorter;
+import org.jumpmind.metl.core.runtime.EntityDataSpillReader;
+import org.jumpmind.metl.core.runtime.EntityDataSpillWriter;
+import org.jumpmind.metl.core.runtime.LookupTable;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.MisconfiguredException;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
 import org.jumpmind.properties.TypedProperties;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 
 public class Lookup extends AbstractComponentRuntime {
 
@@ -44,46 +62,149 @@ public class Lookup extends AbstractComponentRuntime {
 
     public final static String SOURCE_STEP = "lookup.data.source.step";
     public final static String LOOKUP_KEY = "lookup.key.attribute";
+    public final static String LOOKUP_KEY_2 = "lookup.key.attribute.2";
+    public final static String LOOKUP_KEY_3 = "lookup.key.attribute.3";
     public final static String LOOKUP_VALUE = "lookup.value.attribute";
     public final static String REPLACEMENT_VALUE_ATTRIBUTE = "replacement.value.attribute";
     public final static String REPLACEMENT_KEY_ATTRIBUTE = "replacement.key.attribute";
+    public final static String REPLACEMENT_KEY_ATTRIBUTE_2 = "replacement.key.attribute.2";
+    public final static String REPLACEMENT_KEY_ATTRIBUTE_3 = "replacement.key.attribute.3";
+    public final static String MEMORY_BUFFER_SIZE_MB = "memory.buffer.size.mb";
+    public final static String LOOKUP_MODE = "lookup.mode";
+    public final static String LOOKUP_TABLE = "lookup.table";
+    public final static String LOOKUP_KEY_COLUMNS = "lookup.key.columns";
+    public final static String LOOKUP_VALUE_COLUMN = "lookup.value.column";
+    public final static String QUERY_BATCH_SIZE = "query.batch.size";
+    public final static String CACHE_SIZE = "cache.size";
+    public final static String CACHE_TTL_SECONDS = "cache.ttl.seconds";
+
+    public final static String MODE_SOURCE_STEP = "SOURCE STEP";
+    public final static String MODE_DATASOURCE = "DATASOURCE";
 
     boolean lookupInitialized = false;
 
     String sourceStepId;
-    String keyAttributeId;
+    String[] keyAttributeIds;
     String valueAttributeId;
-    String replacementKeyAttributeId;
+    String[] replacementKeyAttributeIds;
     String replacementValueAttributeId;
+    DataType[] keyDataTypes;
+    DataType[] replacementKeyDataTypes;
+
+    long memoryBufferSizeInBytes;
+
+    boolean queryDatasource;
+    String lookupTable;
+    String[] keyColumns;
+    String valueColumn;
+    int queryBatchSize;
+
+    LookupTable lookup;
+
+    LookupCache cache;
 
-    Map<Object, Object> lookup = new HashMap<Object, Object>();
+    JdbcTemplate jdbcTemplate;
 
     List<Message> queuedWhileWaitingForLookup = new ArrayList<Message>();
 
+    long queuedBytes;
+
+    EntityDataSpillWriter queuedSpillWriter;
+
+    List<Integer> queuedSpillMessageSizes = new ArrayList<Integer>();
+
     @Override
     public void start() {
         lookupInitialized = false;
         TypedProperties properties = getTypedProperties();
+        queryDatasource = MODE_DATASOURCE.equals(properties.get(LOOKUP_MODE, MODE_SOURCE_STEP));
         sourceStepId = properties.get(SOURCE_STEP);
-        keyAttributeId = properties.get(LOOKUP_KEY);
+        keyAttributeIds = getAttributeIds(properties, LOOKUP_KEY, LOOKUP_KEY_2, LOOKUP_KEY_3);
         valueAttributeId = properties.get(LOOKUP_VALUE);
-        replacementKeyAttributeId = properties.get(REPLACEMENT_KEY_ATTRIBUTE);
+        replacementKeyAttributeIds = getAttributeIds(properties, REPLACEMENT_KEY_ATTRIBUTE, REPLACEMENT_KEY_ATTRIBUTE_2,
+                REPLACEMENT_KEY_ATTRIBUTE_3);
         replacementValueAttributeId = properties.get(REPLACEMENT_VALUE_ATTRIBUTE);
+        memoryBufferSizeInBytes = properties.getLong(MEMORY_BUFFER_SIZE_MB, 128) * 1024 * 1024;
         
         if (getInputModel() == null) {
             throw new MisconfiguredException("The input model must be specified");
         }
         
-        if (isBlank(replacementKeyAttributeId) || 
-                isBlank(replacementValueAttributeId) || isBlank(keyAttributeId) || isBlank(valueAttributeId)) {
+        keyDataTypes = getDataTypes(keyAttributeIds);
+        replacementKeyDataTypes = getDataTypes(replacementKeyAttributeIds);
+
+        if (queryDatasource) {
+            startDatasourceLookup(properties);
+            return;
+        }
+
+        if (replacementKeyAttributeIds.length == 0 || 
+                isBlank(replacementValueAttributeId) || keyAttributeIds.length == 0 || isBlank(valueAttributeId)) {
             throw new MisconfiguredException("The lookup and replacement keys and values need to be configured");
         }
 
+        if (keyAttributeIds.length != replacementKeyAttributeIds.length) {
+            throw new MisconfiguredException("The lookup key has %d attributes but the replacement key has %d", keyAttributeIds.length,
+                    replacementKeyAttributeIds.length);
+        }
+
         FlowStepLink link = getFlow()
                 .findLinkBetweenSourceAndTarget(sourceStepId, this.getFlowStepId());
         if (link == null) {
             throw new MisconfiguredException("The lookup data source is missing"); 
         }
+
+        lookup = new LookupTable(memoryBufferSizeInBytes);
+    }
+
+    /*
+     * Values are queried from the datasource as they are needed, so there is
+     * nothing to wait for before input can be processed.
+     */
+    protected void startDatasourceLookup(TypedProperties properties) {
+        lookupTable = properties.get(LOOKUP_TABLE);
+        String keyColumnList = properties.get(LOOKUP_KEY_COLUMNS);
+        keyColumns = isBlank(keyColumnList) ? new String[0] : keyColumnList.trim().split("\\s*,\\s*");
+        valueColumn = properties.get(LOOKUP_VALUE_COLUMN);
+        queryBatchSize = Math.max(properties.getInt(QUERY_BATCH_SIZE, 500), 1);
+
+        if (getResourceRuntime() == null) {
+            throw new MisconfiguredException("A datasource resource is required when the lookup mode is %s", MODE_DATASOURCE);
+        }
+
+        if (isBlank(lookupTable) || keyColumns.length == 0 || isBlank(valueColumn) || replacementKeyAttributeIds.length == 0
+                || isBlank(replacementValueAttributeId)) {
+            throw new MisconfiguredException("The lookup table, key columns, value column and replacement keys and values need to be configured");
+        }
+
+        if (keyColumns.length != replacementKeyAttributeIds.length) {
+            throw new MisconfiguredException("The lookup key has %d columns but the replacement key has %d attributes", keyColumns.length,
+                    replacementKeyAttributeIds.length);
+        }
+
+        jdbcTemplate = new JdbcTemplate((DataSource) getResourceRuntime().reference());
+        cache = new LookupCache(Math.max(properties.getInt(CACHE_SIZE, 10000), 1), properties.getLong(CACHE_TTL_SECONDS, 600) * 1000);
+        lookupInitialized = true;
+    }
+
+    protected static String[] getAttributeIds(TypedProperties properties, String... settingNames) {
+        List<String> attributeIds = new ArrayList<String>();
+        for (String settingName : settingNames) {
+            String attributeId = properties.get(settingName);
+            if (!isBlank(attributeId)) {
+                attributeIds.add(attributeId);
+            }
+        }
+        return attributeIds.toArray(new String[attributeIds.size()]);
+    }
+
+    protected DataType[] getDataTypes(String[] attributeIds) {
+        DataType[] dataTypes = new DataType[attributeIds.length];
+        for (int i = 0; i < attributeIds.length; i++) {
+            ModelAttribute attribute = getInputModel().getAttributeById(attributeIds[i]);
+            dataTypes[i] = attribute != null ? attribute.getDataType() : null;
+        }
+        return dataTypes;
     }
 
     @Override
@@ -93,44 +214,183 @@ public class Lookup extends AbstractComponentRuntime {
     
     @Override
     public void flowCompleted(boolean cancelled) {
+        if (queryDatasource) {
+            ComponentStatistics statistics = getComponentStatistics();
+            info("Lookup cache had %d hits, %d misses and %d evictions", statistics.getNumberCacheHits(threadNumber),
+                    statistics.getNumberCacheMisses(threadNumber), cache.evictions);
+        }
         if (!cancelled && !lookupInitialized) {
             throw new MisconfiguredException("The flow completed without the lookup datasource being populated.  Please make sure that the lookup datasource is sending a control message");
         }
     }
 
+    @Override
+    public void stop() {
+        if (lookup != null) {
+            lookup.close();
+            lookup = null;
+        }
+        if (cache != null) {
+            /* keep the emptied cache so flowCompleted can still report its evictions */
+            cache.clear();
+        }
+        clearQueue();
+    }
+
     @Override
     public void handle(Message inputMessage, ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
-        if (sourceStepId.equals(inputMessage.getHeader().getOriginatingStepId())) {
+        if (!queryDatasource && sourceStepId.equals(inputMessage.getHeader().getOriginatingStepId())) {
             if (inputMessage instanceof EntityDataMessage) {
                 List<EntityData> datas = ((EntityDataMessage)inputMessage).getPayload();
                 for (EntityData entityData : datas) {
-                    lookup.put(ObjectUtils.toString(entityData.get(keyAttributeId)), entityData.get(valueAttributeId));
+                    lookup.put(getKey(entityData, keyAttributeIds, keyDataTypes), entityData.get(valueAttributeId));
                 }
             }
             lookupInitialized = inputMessage instanceof ControlMessage;
 
             if (lookupInitialized) {
-                Iterator<Message> messages = queuedWhileWaitingForLookup.iterator();
-                while (messages.hasNext()) {
-                    Message message = messages.next();
-                    if (message instanceof EntityDataMessage) {
-                        enhanceAndSend((EntityDataMessage)message, callback, unitOfWorkBoundaryReached);
-                    }
+                if (lookup.isSpilled()) {
+                    info("The lookup table has %d entries and was moved to disk", lookup.size());
                 }
+                sendQueued(callback, unitOfWorkBoundaryReached);
             }
         } else if (!lookupInitialized) {
-            queuedWhileWaitingForLookup.add(inputMessage);
+            queue(inputMessage);
         } else if (lookupInitialized && !(inputMessage instanceof ControlMessage)) {
             if (inputMessage instanceof EntityDataMessage) {
-                enhanceAndSend((EntityDataMessage)inputMessage, callback, unitOfWorkBoundaryReached);
+                enhanceAndSend(((EntityDataMessage)inputMessage).getPayload(), callback, unitOfWorkBoundaryReached);
             }
         }
     }
 
-    protected void enhanceAndSend(EntityDataMessage message, ISendMessageCallback callback, boolean unitOfWorkLastMessage) {
-        List<EntityData> datas = message.getPayload();
+    protected String getKey(EntityData data, String[] attributeIds, DataType[] dataTypes) {
+        if (attributeIds.length == 1) {
+            return LookupTable.toKey(toKeyValue(dataTypes[0], data.get(attributeIds[0])));
+        }
+        Object[] values = new Object[attributeIds.length];
+        for (int i = 0; i < attributeIds.length; i++) {
+            values[i] = toKeyValue(dataTypes[i], data.get(attributeIds[i]));
+        }
+        return LookupTable.toKey(values);
+    }
+
+    /*
+     * The same key can come in as different types, like a string from the
+     * input and an integer or a padded char from the datasource, or as
+     * decimals with a different scale. Both sides are converted to the data
+     * type of the key attribute so they make the same key.
+     */
+    protected static Object toKeyValue(DataType dataType, Object value) {
+        if (value == null || dataType == null) {
+            return value;
+        }
+        Object columnValue = EntityDataSorter.toColumnValue(dataType, value);
+        if (columnValue instanceof BigDecimal) {
+            BigDecimal number = (BigDecimal) columnValue;
+            return number.signum() == 0 ? "0" : number.stripTrailingZeros().toPlainString();
+        } else if (dataType.isBoolean() && columnValue instanceof Number) {
+            return ((Number) columnValue).intValue() != 0;
+        } else if (columnValue instanceof Date && !(columnValue instanceof Timestamp)) {
+            return new Timestamp(((Date) columnValue).getTime());
+        } else if (dataType.isString()) {
+            return StringUtils.stripEnd((String) columnValue, " ");
+        }
+        return columnValue;
+    }
+
+    /*
+     * Only entity messages are replayed once the lookup table is loaded, so
+     * those are the only ones that have to be kept. They stay in memory until
+     * they reach the memory buffer size and then they are written to disk in
+     * the order they arrived.
+     */
+    protected void queue(Message inputMessage) {
+        if (!(inputMessage instanceof EntityDataMessage)) {
+            return;
+        }
+        List<EntityData> datas = ((EntityDataMessage) inputMessage).getPayload();
+        if (datas == null) {
+            return;
+        }
+        if (queuedSpillWriter == null) {
+            queuedWhileWaitingForLookup.add(inputMessage);
+            for (EntityData data : datas) {
+                queuedBytes += EntityDataSorter.estimateSize(data);
+            }
+            if (queuedBytes >= memoryBufferSizeInBytes) {
+                spillQueue();
+            }
+        } else {
+            writeQueued(datas);
+        }
+    }
+
+    protected void spillQueue() {
+        try {
+            File file = File.createTempFile("metl-lookup-queue", ".bin");
+            queuedSpillWriter = new EntityDataSpillWriter(file);
+        } catch (IOException e) {
+            throw new IoException(e);
+        }
+        info("Writing %d messages that are waiting for the lookup table to disk", queuedWhileWaitingForLookup.size());
+        for (Message message : queuedWhileWaitingForLookup) {
+            writeQueued(((EntityDataMessage) message).getPayload());
+        }
+        queuedWhileWaitingForLookup.clear();
+        queuedBytes = 0;
+    }
+
+    protected void writeQueued(List<EntityData> datas) {
+        for (EntityData data : datas) {
+            queuedSpillWriter.write(data);
+        }
+        queuedSpillMessageSizes.add(datas.size());
+    }
+
+    protected void sendQueued(ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
+        try {
+            for (Message message : queuedWhileWaitingForLookup) {
+                enhanceAndSend(((EntityDataMessage) message).getPayload(), callback, unitOfWorkBoundaryReached);
+            }
+            if (queuedSpillWriter != null) {
+                queuedSpillWriter.close();
+                try (EntityDataSpillReader reader = new EntityDataSpillReader(queuedSpillWriter.getFile())) {
+                    for (int size : queuedSpillMessageSizes) {
+                        List<EntityData> datas = new ArrayList<EntityData>(size);
+                        for (int i = 0; i < size; i++) {
+                            datas.add(reader.read());
+                        }
+                        enhanceAndSend(datas, callback, unitOfWorkBoundaryReached);
+                    }
+                } finally {
+                    queuedSpillWriter.getFile().delete();
+                    queuedSpillWriter = null;
+                }
+            }
+        } finally {
+            clearQueue();
+        }
+    }
+
+    protected void clearQueue() {
+        queuedWhileWaitingForLookup.clear();
+        queuedSpillMessageSizes.clear();
+        queuedBytes = 0;
+        if (queuedSpillWriter != null) {
+            queuedSpillWriter.close();
+            queuedSpillWriter.getFile().delete();
+            queuedSpillWriter = null;
+        }
+    }
+
+    protected void enhanceAndSend(List<EntityData> datas, ISendMessageCallback callback, boolean unitOfWorkLastMessage) {
         if (datas != null) {
-            debug("Using lookup table: {}", lookup);
+            Map<String, Object> queried = null;
+            if (queryDatasource) {
+                queried = queryMisses(datas);
+            } else {
+                debug("Using lookup table with %d entries", lookup.size());
+            }
             ArrayList<EntityData> payload = new ArrayList<EntityData>();
             for (int j = 0; j < datas.size(); j++) {
                 getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
@@ -138,12 +398,104 @@ public class Lookup extends AbstractComponentRuntime {
                 EntityData newData = new EntityData();   
                 newData.setChangeType(oldData.getChangeType());
                 newData.putAll(oldData);
+                String key = getKey(oldData, replacementKeyAttributeIds, replacementKeyDataTypes);
                 newData.put(replacementValueAttributeId, 
-                        lookup.get(ObjectUtils.toString(oldData.get(replacementKeyAttributeId))));
+                        queried != null ? queried.get(key) : lookup.get(key));
                 payload.add(newData);
             }
             callback.sendEntityDataMessage(null, payload);
         }   
     }
 
+    /*
+     * Every distinct key of the message is resolved before any row is sent.
+     * Keys that are not cached are queried in batches with one IN list per
+     * batch, or with a list of ORed conditions when the key has more than one
+     * column. Keys that are not found are cached as null.
+     */
+    protected Map<String, Object> queryMisses(List<EntityData> datas) {
+        long now = System.currentTimeMillis();
+        ComponentStatistics statistics = getComponentStatistics();
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        Map<String, Object[]> misses = new LinkedHashMap<String, Object[]>();
+        for (EntityData data : datas) {
+            String key = getKey(data, replacementKeyAttributeIds, replacementKeyDataTypes);
+            if (values.containsKey(key) || misses.containsKey(key)) {
+                statistics.incrementNumberCacheHits(threadNumber);
+            } else {
+                LookupCache.CachedValue entry = cache.get(key, now);
+                if (entry != null) {
+                    statistics.incrementNumberCacheHits(threadNumber);
+                    values.put(key, entry.value);
+                } else {
+                    statistics.incrementNumberCacheMisses(threadNumber);
+                    Object[] keyValues = new Object[replacementKeyAttributeIds.length];
+                    for (int i = 0; i < keyValues.length; i++) {
+                        keyValues[i] = EntityDataSorter.toColumnValue(replacementKeyDataTypes[i],
+                                data.get(replacementKeyAttributeIds[i]));
+                    }
+                    misses.put(key, keyValues);
+                }
+            }
+        }
+
+        if (misses.size() > 0) {
+            List<Object[]> batch = new ArrayList<Object[]>(Math.min(misses.size(), queryBatchSize));
+            for (Object[] keyValues : misses.values()) {
+                batch.add(keyValues);
+                if (batch.size() == queryBatchSize) {
+                    query(batch, values);
+                    batch.clear();
+                }
+            }
+            if (batch.size() > 0) {
+                query(batch, values);
+            }
+            for (String key : misses.keySet()) {
+                if (!values.containsKey(key)) {
+                    values.put(key, null);
+                }
+                cache.put(key, values.get(key), now);
+            }
+        }
+        return values;
+    }
+
+    protected void query(List<Object[]> keys, final Map<String, Object> values) {
+        StringBuilder sql = new StringBuilder("select ");
+        for (String keyColumn : keyColumns) {
+            sql.append(keyColumn).append(", ");
+        }
+        sql.append(valueColumn).append(" from ").append(lookupTable).append(" where ");
+        List<Object> args = new ArrayList<Object>(keys.size() * keyColumns.length);
+        if (keyColumns.length == 1) {
+            sql.append(keyColumns[0]).append(" in (");
+            for (int i = 0; i < keys.size(); i++) {
+                sql.append(i > 0 ? ", ?" : "?");
+                args.add(keys.get(i)[0]);
+            }
+            sql.append(")");
+        } else {
+            for (int i = 0; i < keys.size(); i++) {
+                sql.append(i > 0 ? " or (" : "(");
+                for (int j = 0; j < keyColumns.length; j++) {
+                    sql.append(j > 0 ? " and " : "").append(keyColumns[j]).append(" = ?");
+                }
+                sql.append(")");
+                args.addAll(Arrays.asList(keys.get(i)));
+            }
+        }
+        debug("Looking up %d keys", keys.size());
+        jdbcTemplate.query(sql.toString(), args.toArray(), new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                Object[] keyValues = new Object[keyColumns.length];
+                for (int i = 0; i < keyValues.length; i++) {
+                    keyValues[i] = toKeyValue(replacementKeyDataTypes[i], rs.getObject(i + 1));
+                }
+                values.put(LookupTable.toKey(keyValues), rs.getObject(keyValues.length + 1));
+            }
+        });
+    }
+
 }
@@ -0,0 +1,94 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of lookup values. Keys that were looked up and
+ * not found are cached too so that they are not queried again. Entries expire
+ * after the time to live, which is disabled when it is not positive.
+ */
+class LookupCache {
+
+    final int maxSize;
+
+    final long timeToLiveInMs;
+
+    final LinkedHashMap<String, CachedValue> entries;
+
+    long evictions;
+
+    LookupCache(int maxSize, long timeToLiveInMs) {
+        this.maxSize = maxSize;
+        this.timeToLiveInMs = timeToLiveInMs;
+        this.entries = new LinkedHashMap<String, CachedValue>(Math.min(maxSize, 1024) * 2, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedValue> eldest) {
+                if (size() > LookupCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the cached entry or null if the key is not cached or expired
+     */
+    CachedValue get(String key, long now) {
+        CachedValue entry = entries.get(key);
+        if (entry != null && timeToLiveInMs > 0 && now - entry.loadTime >= timeToLiveInMs) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    void put(String key, Object value, long now) {
+        entries.put(key, new CachedValue(value, now));
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    static class CachedValue {
+
+        final Object value;
+
+        final long loadTime;
+
+        CachedValue(Object value, long loadTime) {
+            this.value = value;
+            this.loadTime = loadTime;
+        }
+    }
+
+}
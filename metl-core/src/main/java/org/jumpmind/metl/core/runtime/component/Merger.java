@@ -21,6 +21,7 @@
 package org.jumpmind.metl.core.runtime.component;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -31,6 +32,9 @@ import org.jumpmind.metl.core.model.ComponentAttributeSetting;
 import org.jumpmind.metl.core.model.Model;
 import org.jumpmind.metl.core.runtime.EntityData;
 import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.EntityDataPartitions;
+import org.jumpmind.metl.core.runtime.EntityDataSorter;
+import org.jumpmind.metl.core.runtime.EntityDataSpillReader;
 import org.jumpmind.metl.core.runtime.Message;
 import org.jumpmind.metl.core.runtime.flow.ISendMessageCallback;
 
@@ -40,10 +44,28 @@ public class Merger extends AbstractComponentRuntime {
 
     public final static String MERGE_ATTRIBUTE = "merge.attribute";
 
-    Map<Object, EntityData> mergedData = new LinkedHashMap<Object, EntityData>();
+    public final static String MEMORY_BUFFER_SIZE_MB = "memory.buffer.size.mb";
+
+    static final int PARTITION_COUNT = 32;
+
+    /*
+     * Spilled rows carry the position of the first row with their key in an
+     * attribute that cannot clash with attribute ids.
+     */
+    static final String SEQUENCE = "$merge.sequence";
+
+    Map<MergeKey, Merged> mergedData = new LinkedHashMap<MergeKey, Merged>();
 
     List<String> attributesToMergeOn = new ArrayList<String>();
 
+    long memoryBufferSizeInBytes;
+
+    long estimatedBytes;
+
+    long sequence;
+
+    EntityDataPartitions partitions;
+
     @Override
     public void start() {
         Component component = getComponent();
@@ -61,6 +83,8 @@ public class Merger extends AbstractComponentRuntime {
                 }
             }
         }
+
+        memoryBufferSizeInBytes = getTypedProperties().getLong(MEMORY_BUFFER_SIZE_MB, 128) * 1024 * 1024;
     }
 
     @Override
@@ -68,6 +92,12 @@ public class Merger extends AbstractComponentRuntime {
         return false;
     }
 
+    @Override
+    public void stop() {
+        closePartitions();
+        mergedData.clear();
+    }
+
     @Override
     public void handle(Message inputMessage, ISendMessageCallback callback, boolean unitOfWorkBoundaryReached) {
         if (inputMessage instanceof EntityDataMessage) {
@@ -76,40 +106,179 @@ public class Merger extends AbstractComponentRuntime {
         }
 
         if (unitOfWorkBoundaryReached) {
+            if (partitions != null) {
+                sendPartitions(callback);
+            } else {
+                ArrayList<EntityData> dataToSend = new ArrayList<EntityData>();
+                Iterator<Merged> itr = mergedData.values().iterator();
+                while (itr.hasNext()) {
+                    if (dataToSend.size() >= properties.getInt(ROWS_PER_MESSAGE)) {
+                        callback.sendEntityDataMessage(null, dataToSend);
+                        dataToSend = new ArrayList<EntityData>();
+                    }
+                    dataToSend.add(itr.next().data);
+                }
+                if (dataToSend != null && dataToSend.size() > 0) {
+                    callback.sendEntityDataMessage(null, dataToSend);
+                }
+            }
+            mergedData.clear();
+            estimatedBytes = 0;
+        }
+    }
+
+    private void join(ArrayList<EntityData> records) {
+        for (EntityData entityData : records) {
+            getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
+            MergeKey key = new MergeKey(entityData, attributesToMergeOn);
+            long rowSequence = sequence++;
+            if (partitions != null) {
+                writeToPartition(key, rowSequence, entityData);
+                continue;
+            }
+            Merged existingRecord = mergedData.get(key);
+            if (existingRecord != null) {
+                long sizeBefore = EntityDataSorter.estimateSize(existingRecord.data);
+                mergeRecords(entityData, existingRecord.data);
+                estimatedBytes += EntityDataSorter.estimateSize(existingRecord.data) - sizeBefore;
+            } else {
+                EntityData copy = entityData.copy();
+                mergedData.put(key, new Merged(rowSequence, copy));
+                estimatedBytes += 64 + 16 * attributesToMergeOn.size() + EntityDataSorter.estimateSize(copy);
+            }
+            if (estimatedBytes >= memoryBufferSizeInBytes) {
+                spill();
+            }
+        }
+    }
+
+    /*
+     * Once the merged rows no longer fit in memory every row is written to
+     * one of a fixed number of partitions by the hash of its key, so that each
+     * partition can be merged on its own when the unit of work is done.
+     */
+    private void spill() {
+        info("Writing %d merged records to disk", mergedData.size());
+        partitions = new EntityDataPartitions(PARTITION_COUNT);
+        for (Map.Entry<MergeKey, Merged> entry : mergedData.entrySet()) {
+            writeToPartition(entry.getKey(), entry.getValue().sequence, entry.getValue().data);
+        }
+        mergedData.clear();
+        estimatedBytes = 0;
+    }
+
+    private void writeToPartition(MergeKey key, long rowSequence, EntityData entityData) {
+        EntityData row = entityData.copy();
+        row.put(SEQUENCE, rowSequence);
+        partitions.write(key.hashCode(), row);
+    }
+
+    /*
+     * Rows are read back in the order they arrived, so merging each partition
+     * gives the same rows as merging in memory. The merged rows are sorted by
+     * the position of the first row with their key so that they are sent in
+     * the same order too.
+     */
+    private void sendPartitions(ISendMessageCallback callback) {
+        try (EntityDataSorter sorter = new EntityDataSorter(data -> new Object[] { data.get(SEQUENCE) }, memoryBufferSizeInBytes)) {
+            for (int i = 0; i < partitions.getPartitionCount(); i++) {
+                mergePartition(i, sorter);
+            }
+            closePartitions();
+
+            int rowsPerMessage = properties.getInt(ROWS_PER_MESSAGE);
             ArrayList<EntityData> dataToSend = new ArrayList<EntityData>();
-            Iterator<EntityData> itr = mergedData.values().iterator();
-            while (itr.hasNext()) {
-                if (dataToSend.size() >= properties.getInt(ROWS_PER_MESSAGE)) {
+            for (EntityData row : sorter) {
+                row.remove(SEQUENCE);
+                if (dataToSend.size() >= rowsPerMessage) {
                     callback.sendEntityDataMessage(null, dataToSend);
                     dataToSend = new ArrayList<EntityData>();
                 }
-                dataToSend.add(itr.next());
+                dataToSend.add(row);
             }
-            if (dataToSend != null && dataToSend.size() > 0) {
+            if (dataToSend.size() > 0) {
                 callback.sendEntityDataMessage(null, dataToSend);
             }
+        } finally {
+            closePartitions();
         }
     }
 
-    private void join(ArrayList<EntityData> records) {
-        for (EntityData entityData : records) {
-            getComponentStatistics().incrementNumberEntitiesProcessed(threadNumber);
-            StringBuilder key = new StringBuilder();
-            for (String attributeId : attributesToMergeOn) {
-                if (key.length() > 0) {
-                    key.append("&");
+    /*
+     * A partition is merged in memory until its merged rows no longer fit.
+     * From then on the rows merged so far and the rest of the partition are
+     * sorted by key on disk. The sort is stable, so the rows of a key come
+     * back together and in the order they arrived, and each key is merged as
+     * the rows are read back.
+     */
+    private void mergePartition(int partition, EntityDataSorter sorter) {
+        Map<MergeKey, EntityData> rows = new LinkedHashMap<MergeKey, EntityData>();
+        long partitionBytes = 0;
+        EntityDataSorter keySorter = null;
+        try {
+            try (EntityDataSpillReader reader = partitions.read(partition)) {
+                EntityData row = reader.read();
+                while (row != null) {
+                    if (keySorter != null) {
+                        keySorter.add(row);
+                    } else {
+                        MergeKey key = new MergeKey(row, attributesToMergeOn);
+                        EntityData existingRecord = rows.get(key);
+                        if (existingRecord != null) {
+                            long sizeBefore = EntityDataSorter.estimateSize(existingRecord);
+                            merge(existingRecord, row);
+                            partitionBytes += EntityDataSorter.estimateSize(existingRecord) - sizeBefore;
+                        } else {
+                            rows.put(key, row);
+                            partitionBytes += 64 + 16 * attributesToMergeOn.size() + EntityDataSorter.estimateSize(row);
+                        }
+                        if (partitionBytes >= memoryBufferSizeInBytes) {
+                            info("Sorting partition %d on disk after merging %d records", partition, rows.size());
+                            keySorter = new EntityDataSorter(data -> new MergeKey(data, attributesToMergeOn).values, memoryBufferSizeInBytes);
+                            for (EntityData merged : rows.values()) {
+                                keySorter.add(merged);
+                            }
+                            rows.clear();
+                        }
+                    }
+                    row = reader.read();
                 }
-                key.append(attributeId);
-                key.append("=");
-                key.append(entityData.get(attributeId));
             }
-            Object keyValue = key.toString();
-            EntityData existingRecord = mergedData.get(keyValue);
-            if (existingRecord != null) {
-                mergeRecords(entityData, existingRecord);
+            if (keySorter != null) {
+                Iterator<EntityData> merged = keySorter.iterator(this::merge);
+                while (merged.hasNext()) {
+                    sorter.add(merged.next());
+                }
             } else {
-                mergedData.put(keyValue, entityData.copy());
+                for (EntityData row : rows.values()) {
+                    sorter.add(row);
+                }
             }
+        } finally {
+            if (keySorter != null) {
+                keySorter.close();
+            }
+        }
+    }
+
+    /*
+     * Merges a row into the row merged from the earlier rows with its key,
+     * keeping the position of the first row.
+     */
+    private EntityData merge(EntityData mergedRecord, EntityData row) {
+        if (mergedRecord == null) {
+            return row;
+        }
+        Object firstSequence = mergedRecord.get(SEQUENCE);
+        mergeRecords(row, mergedRecord);
+        mergedRecord.put(SEQUENCE, firstSequence);
+        return mergedRecord;
+    }
+
+    private void closePartitions() {
+        if (partitions != null) {
+            partitions.close();
+            partitions = null;
         }
     }
 
@@ -124,4 +293,54 @@ public class Merger extends AbstractComponentRuntime {
             }
         }
     }
+
+    static class Merged {
+
+        final long sequence;
+
+        final EntityData data;
+
+        Merged(long sequence, EntityData data) {
+            this.sequence = sequence;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The values of the merge attributes of a row. Values are compared by
+     * their string form, the same as when the key was one concatenated
+     * string, so that rows from sources that use different types for an
+     * attribute still merge.
+     */
+    static class MergeKey {
+
+        final String[] values;
+
+        final int hash;
+
+        MergeKey(EntityData data, List<String> attributeIds) {
+            values = new String[attributeIds.size()];
+            for (int i = 0; i < values.length; i++) {
+                Object value = data.get(attributeIds.get(i));
+                values[i] = value != null ? value.toString() : null;
+            }
+            hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            } else if (!(obj instanceof MergeKey)) {
+                return false;
+            }
+            MergeKey other = (MergeKey) obj;
+            return hash == other.hash && Arrays.equals(values, other.values);
+        }
+    }
 }
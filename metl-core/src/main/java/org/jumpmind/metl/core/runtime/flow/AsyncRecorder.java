@@ -27,13 +27,21 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.StringUtils;
 import org.jumpmind.metl.core.model.AbstractObject;
+import org.jumpmind.metl.core.model.Execution;
+import org.jumpmind.metl.core.model.ExecutionStep;
 import org.jumpmind.metl.core.model.ExecutionStepLog;
 import org.jumpmind.metl.core.persist.IExecutionService;
 import org.jumpmind.metl.core.util.LogUtils;
@@ -43,30 +51,100 @@ import org.jumpmind.util.FormatUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Persists execution progress on a background thread. Objects that are
+ * recorded with the same id inside of {@link #coalesceWindowMs} are saved once
+ * with their latest state, and execution steps that were already saved are
+ * updated in one batch. Step logs are written to their log files and flushed
+ * once {@link #logFlushSize} characters were written or
+ * {@link #logFlushIntervalMs} has passed.
+ * <p>
+ * The queue is bounded so that a flow that logs faster than the recorder can
+ * persist blocks in {@link #record(AbstractObject)} instead of using up the
+ * heap.
+ */
 public class AsyncRecorder implements Runnable {
 
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
     final Logger log = LoggerFactory.getLogger(getClass());
 
     protected BlockingQueue<AbstractObject> inQueue;
 
     protected IExecutionService executionService;
 
-    protected boolean running = false;
+    protected volatile boolean running = false;
 
-    protected boolean stopping = false;
+    protected volatile boolean stopping = false;
 
     protected Map<String, CsvWriter> logWriters = new HashMap<>();
 
+    protected long coalesceWindowMs = 500;
+
+    protected int batchSize = 100;
+
+    protected long logFlushIntervalMs = 1000;
+
+    protected int logFlushSize = 64 * 1024;
+
+    protected long pollTimeoutMs = 50;
+
+    /*
+     * Steps that are in the queue and have not been picked up yet. Recording
+     * the same step again before then does not need another queue entry.
+     */
+    protected Map<String, AbstractObject> queuedSteps = new ConcurrentHashMap<>();
+
+    protected Map<String, AbstractObject> pendingSaves = new LinkedHashMap<>();
+
+    /*
+     * The execution ids of the steps that were saved, so they can be updated
+     * in a batch. They are dropped when their execution is saved as done.
+     */
+    protected Map<String, String> savedStepIds = new HashMap<>();
+
+    protected long firstPendingSaveTime;
+
+    protected long unflushedLogSize;
+
+    protected long lastLogFlushTime = System.currentTimeMillis();
+
+    protected AtomicLong updatesCoalesced = new AtomicLong();
+
+    protected AtomicLong timesBlocked = new AtomicLong();
+
+    protected volatile long objectsSaved;
+
+    protected volatile long batchesSaved;
+
+    protected volatile long timeSpentSavingMs;
+
+    protected volatile long logsWritten;
+
+    protected volatile long logFlushes;
+
     public AsyncRecorder(IExecutionService executionService) {
-        this.inQueue = new LinkedBlockingQueue<AbstractObject>();
+        this(executionService, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public AsyncRecorder(IExecutionService executionService, int queueCapacity) {
+        this.inQueue = new LinkedBlockingQueue<AbstractObject>(queueCapacity);
         this.executionService = executionService;
     }
 
     public void record(AbstractObject object) {
+        if (object instanceof ExecutionStep) {
+            AbstractObject queued = queuedSteps.put(object.getId(), object);
+            if (queued == object) {
+                updatesCoalesced.incrementAndGet();
+                return;
+            }
+        }
+
         try {
-            synchronized (inQueue) {
+            if (!inQueue.offer(object)) {
+                timesBlocked.incrementAndGet();
                 inQueue.put(object);
-                inQueue.notify();
             }
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
@@ -75,65 +153,116 @@ public class AsyncRecorder implements Runnable {
 
     protected void logAll() {
         try {
-            HashSet<String> processed = new HashSet<>();
             List<AbstractObject> toProcess = new ArrayList<>();
-            synchronized (inQueue) {
+            AbstractObject first = inQueue.poll(pollTimeoutMs, TimeUnit.MILLISECONDS);
+            if (first != null) {
+                toProcess.add(first);
                 inQueue.drainTo(toProcess);
-                if (toProcess.isEmpty()) {
-                    inQueue.wait();
-                }
-            }
-            
-            for (int i = toProcess.size() - 1; i >= 0; i--) {
-                AbstractObject object = toProcess.get(i);
-                if (object != null && !(object instanceof ExecutionStepLog)) {
-                    if (!processed.contains(object.getId())) {
-                        executionService.save(object);
-                        processed.add(object.getId());
-                    }
-                }
             }
 
-            for (int i = 0; i < toProcess.size(); i++) {
-                AbstractObject object = toProcess.get(i);
+            for (AbstractObject object : toProcess) {
                 if (object instanceof ExecutionStepLog) {
-                    ExecutionStepLog stepLog = (ExecutionStepLog) object;
-                    String executionStepId = stepLog.getExecutionStepId();
-                    CsvWriter writer = logWriters.get(executionStepId);
-                    if (writer == null) {
-                        File logFile = new File(LogUtils.getLogDir(), executionStepId + ".log");
-                        writer = new CsvWriter(logFile.getAbsolutePath(), '"',
-                                Charset.forName("UTF-8"));
-                        logWriters.put(executionStepId, writer);
+                    writeLog((ExecutionStepLog) object);
+                } else if (object != null) {
+                    if (object instanceof ExecutionStep) {
+                        queuedSteps.remove(object.getId(), object);
                     }
-                    try {
-                        writer.writeRecord(new String[] { stepLog.getLevel(),
-                                FormatUtils.TIMESTAMP_FORMATTER.format(stepLog.getCreateTime()),
-                                StringUtils.abbreviate(stepLog.getLogText(), 100000) });
-                        writer.flush();
-                    } catch (IOException e) {
-                        writer.close();
-                        logWriters.remove(executionStepId);
-                        log.error("", e);
+                    if (pendingSaves.isEmpty()) {
+                        firstPendingSaveTime = System.currentTimeMillis();
+                    }
+                    if (pendingSaves.put(object.getId(), object) != null) {
+                        updatesCoalesced.incrementAndGet();
                     }
                 }
             }
 
-            if (toProcess.size() == 0) {
-                AppUtils.sleep(5);
+            long now = System.currentTimeMillis();
+            if (pendingSaves.size() > 0
+                    && (stopping || pendingSaves.size() >= batchSize || now - firstPendingSaveTime >= coalesceWindowMs)) {
+                saveAll();
+            }
+
+            if (unflushedLogSize > 0 && (stopping || unflushedLogSize >= logFlushSize || now - lastLogFlushTime >= logFlushIntervalMs)) {
+                flushLogs();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected void saveAll() {
+        long ts = System.currentTimeMillis();
+        try {
+            List<ExecutionStep> updates = new ArrayList<>();
+            Set<String> finishedExecutionIds = new HashSet<>();
+            for (AbstractObject object : pendingSaves.values()) {
+                if (object instanceof ExecutionStep && savedStepIds.containsKey(object.getId())) {
+                    updates.add((ExecutionStep) object);
+                } else {
+                    executionService.save(object);
+                    if (object instanceof ExecutionStep) {
+                        savedStepIds.put(object.getId(), ((ExecutionStep) object).getExecutionId());
+                    } else if (object instanceof Execution && ((Execution) object).isDone()) {
+                        finishedExecutionIds.add(object.getId());
+                    }
+                }
             }
+            if (updates.size() > 0) {
+                executionService.updateExecutionSteps(updates);
+                batchesSaved++;
+            }
+            savedStepIds.values().removeAll(finishedExecutionIds);
+            objectsSaved += pendingSaves.size();
+        } finally {
+            pendingSaves.clear();
+            timeSpentSavingMs += System.currentTimeMillis() - ts;
+        }
+    }
 
-        } catch (Throwable e) {
-            log.error("Failed to persist log message", e);
+    protected void writeLog(ExecutionStepLog stepLog) {
+        String executionStepId = stepLog.getExecutionStepId();
+        CsvWriter writer = logWriters.get(executionStepId);
+        if (writer == null) {
+            File logFile = new File(LogUtils.getLogDir(), executionStepId + ".log");
+            writer = new CsvWriter(logFile.getAbsolutePath(), '"', Charset.forName("UTF-8"));
+            logWriters.put(executionStepId, writer);
+        }
+        try {
+            String logText = StringUtils.abbreviate(stepLog.getLogText(), 100000);
+            writer.writeRecord(new String[] { stepLog.getLevel(),
+                    FormatUtils.TIMESTAMP_FORMATTER.format(stepLog.getCreateTime()), logText });
+            unflushedLogSize += logText != null ? logText.length() : 0;
+            logsWritten++;
+        } catch (IOException e) {
+            writer.close();
+            logWriters.remove(executionStepId);
+            log.error("", e);
         }
     }
 
+    protected void flushLogs() {
+        Iterator<Map.Entry<String, CsvWriter>> writers = logWriters.entrySet().iterator();
+        while (writers.hasNext()) {
+            CsvWriter writer = writers.next().getValue();
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                writer.close();
+                writers.remove();
+                log.error("", e);
+            }
+        }
+        unflushedLogSize = 0;
+        lastLogFlushTime = System.currentTimeMillis();
+        logFlushes++;
+    }
+
     @Override
     public void run() {
         running = true;
 
         try {
-            while (!stopping || inQueue.size() > 0) {
+            while (!stopping || inQueue.size() > 0 || pendingSaves.size() > 0) {
                 try {
                     logAll();
                 } catch (Throwable e) {
@@ -157,6 +286,52 @@ public class AsyncRecorder implements Runnable {
         for (CsvWriter csvWriter : writers) {
             csvWriter.close();
         }
+
+        log.debug("Saved {} objects in {}ms ({} per second) with {} batched updates, coalesced {} updates, wrote {} log lines "
+                + "with {} flushes and blocked {} times on a full queue",
+                new Object[] { objectsSaved, timeSpentSavingMs, getObjectsSavedPerSecond(), batchesSaved, updatesCoalesced.get(),
+                        logsWritten, logFlushes, timesBlocked.get() });
+    }
+
+    public int getQueueDepth() {
+        return inQueue.size();
+    }
+
+    public int getQueueRemainingCapacity() {
+        return inQueue.remainingCapacity();
+    }
+
+    public long getObjectsSaved() {
+        return objectsSaved;
+    }
+
+    public long getBatchesSaved() {
+        return batchesSaved;
+    }
+
+    public long getTimeSpentSavingMs() {
+        return timeSpentSavingMs;
+    }
+
+    public long getObjectsSavedPerSecond() {
+        long timeSpent = timeSpentSavingMs;
+        return timeSpent > 0 ? objectsSaved * 1000 / timeSpent : objectsSaved;
+    }
+
+    public long getUpdatesCoalesced() {
+        return updatesCoalesced.get();
+    }
+
+    public long getTimesBlocked() {
+        return timesBlocked.get();
+    }
+
+    public long getLogsWritten() {
+        return logsWritten;
+    }
+
+    public long getLogFlushes() {
+        return logFlushes;
     }
 
 }
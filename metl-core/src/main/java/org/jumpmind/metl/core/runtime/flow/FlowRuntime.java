@@ -20,8 +20,6 @@
  */
 package org.jumpmind.metl.core.runtime.flow;
 
-import static org.apache.commons.lang.StringUtils.isNotBlank;
-
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
@@ -55,12 +53,10 @@ import org.jumpmind.metl.core.persist.IConfigurationService;
 import org.jumpmind.metl.core.persist.IExecutionService;
 import org.jumpmind.metl.core.persist.IOperationsService;
 import org.jumpmind.metl.core.plugin.IDefinitionFactory;
-import org.jumpmind.metl.core.plugin.XMLComponentDefinition;
 import org.jumpmind.metl.core.runtime.ControlMessage;
 import org.jumpmind.metl.core.runtime.ExecutionTrackerLogger;
 import org.jumpmind.metl.core.runtime.ExecutionTrackerRecorder;
 import org.jumpmind.metl.core.runtime.IExecutionTracker;
-import org.jumpmind.metl.core.runtime.component.AbstractComponentRuntime;
 import org.jumpmind.metl.core.runtime.component.ComponentContext;
 import org.jumpmind.metl.core.runtime.component.ComponentStatistics;
 import org.jumpmind.metl.core.runtime.component.IComponentRuntime;
@@ -137,12 +133,26 @@ public class FlowRuntime {
             IConfigurationService configurationService, IExecutionService executionService,
             Map<String, IResourceRuntime> deployedResources, List<Notification> notifications,
             Map<String, String> globalSettings, Map<String, String> runtimeParameters) {
-        
-        if (agent.isAutoRefresh() && configurationService != null && operationsService != null) {
-            deployment.setFlow(configurationService.findFlow(deployment.getFlow().getId()));
-            deployment.setAgentDeployment(operationsService.findAgentDeployment(deployment.getAgentDeployment().getId()));
-            operationsService.refreshAgentParameters(agent);
-        }
+        this(executionId, userId,
+                new FlowRuntimeTemplate(refresh(deployment, agent, operationsService, configurationService), definitionFactory,
+                        configurationService),
+                agent, componentRuntimeFactory, definitionFactory, threadService, configurationService, executionService,
+                deployedResources, notifications, globalSettings, runtimeParameters);
+    }
+
+    /**
+     * Creates a runtime from a template that was prepared when the flow was
+     * deployed. The template may be shared by executions that run at the same
+     * time.
+     */
+    public FlowRuntime(String executionId, String userId, FlowRuntimeTemplate template, Agent agent,
+            IComponentRuntimeFactory componentRuntimeFactory,
+            IDefinitionFactory definitionFactory,
+            ExecutorService threadService,
+            IConfigurationService configurationService, IExecutionService executionService,
+            Map<String, IResourceRuntime> deployedResources, List<Notification> notifications,
+            Map<String, String> globalSettings, Map<String, String> runtimeParameters) {
+        AgentProjectVersionFlowDeployment deployment = template.getDeployment();
         this.executionId = executionId;
         this.agentProjectVersionFlowDeployment = deployment;
         this.agent = agent;
@@ -169,51 +179,41 @@ public class FlowRuntime {
         }
         this.stepRuntimes = new HashMap<String, StepRuntime>();
 
-        manipulatedFlow = manipulateFlow(deployment.getFlow());
+        manipulatedFlow = template.getManipulatedFlow();
         
-        /* create a step runtime for every component in the flow */
-        for (FlowStep flowStep : manipulatedFlow.getFlowSteps()) {
-            boolean enabled = flowStep.getComponent().getBoolean(AbstractComponentRuntime.ENABLED,
-                    true);
-            if (enabled) {
-                ComponentContext context = new ComponentContext(deployment.getAgentDeployment(), flowStep,
-                        manipulatedFlow, executionTracker, deployedResources, flowParameters,
-                        globalSettings);
-                StepRuntime stepRuntime = new StepRuntime(componentRuntimeFactory,
-                        definitionFactory, context, this);
-                stepRuntimes.put(flowStep.getId(), stepRuntime);
-            }
+        /* create a step runtime for every enabled component in the flow */
+        for (FlowStep flowStep : template.getEnabledSteps()) {
+            ComponentContext context = new ComponentContext(deployment.getAgentDeployment(), flowStep,
+                    manipulatedFlow, executionTracker, deployedResources, flowParameters,
+                    globalSettings);
+            StepRuntime stepRuntime = new StepRuntime(componentRuntimeFactory,
+                    definitionFactory, context, this);
+            stepRuntimes.put(flowStep.getId(), stepRuntime);
         }
 
-        List<FlowStepLink> links = manipulatedFlow.getFlowStepLinks();
-
         /* for each step runtime, set their list of msgTarget step runtimes */
-        for (String stepId : stepRuntimes.keySet()) {
+        for (Map.Entry<String, StepRuntime> entry : stepRuntimes.entrySet()) {
             List<StepRuntime> targetStepRuntimes = new ArrayList<StepRuntime>();
-            List<StepRuntime> sourceStepRuntimes = new ArrayList<StepRuntime>();
-            for (FlowStepLink flowStepLink : links) {
-                if (stepId.equals(flowStepLink.getSourceStepId())) {
-                    StepRuntime runtime = stepRuntimes.get(flowStepLink.getTargetStepId());
-                    if (runtime != null) {
-                        targetStepRuntimes.add(runtime);
-                    }
-                }
-                if (stepId.equals(flowStepLink.getTargetStepId())) {
-                    StepRuntime runtime = stepRuntimes.get(flowStepLink.getSourceStepId());
-                    if (runtime != null) {
-                        sourceStepRuntimes.add(runtime);
-                    }
-                }
+            for (String targetStepId : template.getTargetStepIds(entry.getKey())) {
+                targetStepRuntimes.add(stepRuntimes.get(targetStepId));
             }
-            StepRuntime runtime = stepRuntimes.get(stepId);
-            if (runtime != null) {
-                runtime.setTargetStepRuntimes(targetStepRuntimes);
-                runtime.setSourceStepRuntimes(sourceStepRuntimes);
+            List<StepRuntime> sourceStepRuntimes = new ArrayList<StepRuntime>();
+            for (String sourceStepId : template.getSourceStepIds(entry.getKey())) {
+                sourceStepRuntimes.add(stepRuntimes.get(sourceStepId));
             }
+            entry.getValue().setTargetStepRuntimes(targetStepRuntimes);
+            entry.getValue().setSourceStepRuntimes(sourceStepRuntimes);
         }
+    }
 
-        /* start up each step runtime */
-        manipulatedFlow.calculateApproximateOrder();        
+    static AgentProjectVersionFlowDeployment refresh(AgentProjectVersionFlowDeployment deployment, Agent agent,
+            IOperationsService operationsService, IConfigurationService configurationService) {
+        if (agent.isAutoRefresh() && configurationService != null && operationsService != null) {
+            deployment.setFlow(configurationService.findFlow(deployment.getFlow().getId()));
+            deployment.setAgentDeployment(operationsService.findAgentDeployment(deployment.getAgentDeployment().getId()));
+            operationsService.refreshAgentParameters(agent);
+        }
+        return deployment;
     }
 
     public AgentProjectVersionFlowDeployment getAgentProjectVersionFlowDeployment() {
@@ -317,33 +317,6 @@ public class FlowRuntime {
         }
     }
 
-    protected Flow manipulateFlow(Flow flow) {        
-        Flow clone = (Flow)flow.clone();
-        clone.setFlowParameters(new ArrayList<>());
-        clone.getFlowParameters().addAll(flow.getFlowParameters());
-        clone.setFlowSteps(new ArrayList<>());
-        clone.getFlowSteps().addAll(flow.getFlowSteps());
-        clone.setFlowStepLinks(new ArrayList<>());
-        clone.getFlowStepLinks().addAll(flow.getFlowStepLinks());
-
-        for (FlowStep flowStep : new ArrayList<>(clone.getFlowSteps())) {
-            XMLComponentDefinition componentDefintion = definitionFactory.getComponentDefinition(flow.getProjectVersionId(), flowStep.getComponent().getType());
-            if (isNotBlank(componentDefintion.getFlowManipulatorClassName())) {
-                try {
-                    IFlowManipulator flowManipulator = (IFlowManipulator) Class
-                            .forName(componentDefintion.getFlowManipulatorClassName())
-                            .newInstance();
-                    clone = flowManipulator.manipulate(clone, flowStep, configurationService);
-                } catch (RuntimeException e) {
-                    throw e;
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        }
-        return clone;
-    }
-
     public static Map<String, String> getFlowParameters(Agent agent,
             AgentProjectVersionFlowDeployment agentDeployment) {
         Map<String, String> params = new HashMap<String, String>();
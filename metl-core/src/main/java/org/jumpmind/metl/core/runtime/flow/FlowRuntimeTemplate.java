@@ -0,0 +1,154 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.flow;
+
+import static org.apache.commons.lang.StringUtils.isNotBlank;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jumpmind.metl.core.model.AgentProjectVersionFlowDeployment;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.FlowStepLink;
+import org.jumpmind.metl.core.persist.IConfigurationService;
+import org.jumpmind.metl.core.plugin.IDefinitionFactory;
+import org.jumpmind.metl.core.plugin.XMLComponentDefinition;
+import org.jumpmind.metl.core.runtime.component.AbstractComponentRuntime;
+
+/**
+ * The part of a {@link FlowRuntime} that does not change from one execution
+ * of a deployment to the next: the flow after the flow manipulators have run,
+ * the enabled steps in their approximate order and the links between them.
+ * A template is prepared once when a flow is deployed so that each execution
+ * only has to bind its parameters and create its step runtimes.
+ * <p>
+ * Step and component runtimes are not part of the template because they hold
+ * the state of a single execution.
+ */
+public class FlowRuntimeTemplate {
+
+    final AgentProjectVersionFlowDeployment deployment;
+
+    final Flow manipulatedFlow;
+
+    final List<FlowStep> enabledSteps;
+
+    final Map<String, List<String>> targetStepIds;
+
+    final Map<String, List<String>> sourceStepIds;
+
+    public FlowRuntimeTemplate(AgentProjectVersionFlowDeployment deployment, IDefinitionFactory definitionFactory,
+            IConfigurationService configurationService) {
+        this.deployment = deployment;
+        this.manipulatedFlow = manipulateFlow(deployment.getFlow(), definitionFactory, configurationService);
+        this.manipulatedFlow.calculateApproximateOrder();
+
+        List<FlowStep> enabledSteps = new ArrayList<>();
+        Map<String, FlowStep> enabledStepsById = new HashMap<>();
+        for (FlowStep flowStep : manipulatedFlow.getFlowSteps()) {
+            if (flowStep.getComponent().getBoolean(AbstractComponentRuntime.ENABLED, true)) {
+                enabledSteps.add(flowStep);
+                enabledStepsById.put(flowStep.getId(), flowStep);
+            }
+        }
+
+        Map<String, List<String>> targetStepIds = new HashMap<>();
+        Map<String, List<String>> sourceStepIds = new HashMap<>();
+        for (FlowStep flowStep : enabledSteps) {
+            targetStepIds.put(flowStep.getId(), new ArrayList<>());
+            sourceStepIds.put(flowStep.getId(), new ArrayList<>());
+        }
+        for (FlowStepLink flowStepLink : manipulatedFlow.getFlowStepLinks()) {
+            String sourceStepId = flowStepLink.getSourceStepId();
+            String targetStepId = flowStepLink.getTargetStepId();
+            if (enabledStepsById.containsKey(sourceStepId) && enabledStepsById.containsKey(targetStepId)) {
+                targetStepIds.get(sourceStepId).add(targetStepId);
+                sourceStepIds.get(targetStepId).add(sourceStepId);
+            }
+        }
+
+        this.enabledSteps = Collections.unmodifiableList(enabledSteps);
+        this.targetStepIds = targetStepIds;
+        this.sourceStepIds = sourceStepIds;
+    }
+
+    public AgentProjectVersionFlowDeployment getDeployment() {
+        return deployment;
+    }
+
+    public Flow getManipulatedFlow() {
+        return manipulatedFlow;
+    }
+
+    public List<FlowStep> getEnabledSteps() {
+        return enabledSteps;
+    }
+
+    public List<String> getTargetStepIds(String stepId) {
+        List<String> ids = targetStepIds.get(stepId);
+        return ids != null ? ids : Collections.emptyList();
+    }
+
+    public List<String> getSourceStepIds(String stepId) {
+        List<String> ids = sourceStepIds.get(stepId);
+        return ids != null ? ids : Collections.emptyList();
+    }
+
+    /**
+     * @return true if the template was prepared from the flow that is
+     *         currently deployed
+     */
+    public boolean isPreparedFrom(AgentProjectVersionFlowDeployment deployment) {
+        return this.deployment == deployment && deployment != null && this.deployment.getFlow() == deployment.getFlow();
+    }
+
+    static Flow manipulateFlow(Flow flow, IDefinitionFactory definitionFactory, IConfigurationService configurationService) {
+        Flow clone = (Flow)flow.clone();
+        clone.setFlowParameters(new ArrayList<>());
+        clone.getFlowParameters().addAll(flow.getFlowParameters());
+        clone.setFlowSteps(new ArrayList<>());
+        clone.getFlowSteps().addAll(flow.getFlowSteps());
+        clone.setFlowStepLinks(new ArrayList<>());
+        clone.getFlowStepLinks().addAll(flow.getFlowStepLinks());
+
+        for (FlowStep flowStep : new ArrayList<>(clone.getFlowSteps())) {
+            XMLComponentDefinition componentDefintion = definitionFactory.getComponentDefinition(flow.getProjectVersionId(), flowStep.getComponent().getType());
+            if (isNotBlank(componentDefintion.getFlowManipulatorClassName())) {
+                try {
+                    IFlowManipulator flowManipulator = (IFlowManipulator) Class
+                            .forName(componentDefintion.getFlowManipulatorClassName())
+                            .newInstance();
+                    clone = flowManipulator.manipulate(clone, flowStep, configurationService);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return clone;
+    }
+
+}
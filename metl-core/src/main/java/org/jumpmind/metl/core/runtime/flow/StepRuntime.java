@@ -24,7 +24,6 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -36,6 +35,8 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
@@ -62,7 +63,6 @@ import org.jumpmind.metl.core.runtime.component.IComponentRuntime;
 import org.jumpmind.metl.core.runtime.component.IComponentRuntimeFactory;
 import org.jumpmind.metl.core.util.LogUtils;
 import org.jumpmind.metl.core.util.ThreadUtils;
-import org.jumpmind.util.AppUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -76,8 +76,24 @@ public class StepRuntime implements Runnable {
 
     public static final String UNIT_OF_WORK_FLOW = "Flow";
 
+    /*
+     * Upper bound on how long the step loop blocks waiting for a message before
+     * it re-checks its running and cancelled flags. Message arrival wakes the
+     * loop immediately.
+     */
+    static final long INBOX_WAIT_MS = 500;
+
     protected BlockingQueue<Message> inQueue;
 
+    /*
+     * Guards the active count and signals message arrival and state changes.
+     * A lock is used instead of the object monitor so that idle steps running
+     * on virtual threads unmount from their carrier thread while they wait.
+     */
+    final ReentrantLock lock = new ReentrantLock();
+
+    final Condition stateChanged = lock.newCondition();
+
     protected Executor componentRuntimeExecutor;
     
     boolean running = false;
@@ -177,6 +193,10 @@ public class StepRuntime implements Runnable {
         return sourceStepRuntimes;
     }
 
+    public XMLComponentDefinition getComponentDefintion() {
+        return componentDefintion;
+    }
+
     protected void queue(Message message) throws InterruptedException {
         if (inQueue.remainingCapacity() == 0
                 && message.getHeader().getOriginatingStepId().equalsIgnoreCase(componentContext.getFlowStep().getId())) {
@@ -189,16 +209,18 @@ public class StepRuntime implements Runnable {
                     throw new CancellationException();
                 }
             }
+            signalStateChanged();
         }
     }
 
     public void start() {
         try {
-            componentContext.setComponentStatistics(new ComponentStatistics());    
+            componentContext.setComponentStatistics(new ComponentStatistics(threadCount));    
             if (threadCount > 1) {
                 String prefix = String.format("%s-%s", LogUtils.normalizeName(flowRuntime.getAgent().getName()),
                         LogUtils.normalizeName(componentContext.getFlowStep().getName()));
-                this.componentRuntimeExecutor = ThreadUtils.createFixedThreadPool(prefix, queueCapacity, threadCount);
+                this.componentRuntimeExecutor = ThreadUtils.createFixedThreadPool(prefix, queueCapacity, threadCount,
+                        flowRuntime.getAgent().isVirtualThreads());
             }
             for(IComponentRuntime componentRuntime:componentContext.getComponentRuntimeByThread().values()) {
                 if (sourceStepRuntimes.size() == 0 && !componentRuntime.supportsStartupMessages()) {
@@ -264,26 +286,16 @@ public class StepRuntime implements Runnable {
              */
             while (running && !cancelled) {
                 /*
-                 * Continue to poll as long as the flow is running. other
-                 * components could be generating messages which could block if
-                 * we don't continue to poll
+                 * Continue to take messages as long as the flow is running.
+                 * other components could be generating messages which could
+                 * block if we don't continue to drain the queue
                  */
-                Message inputMessage = null;
-                synchronized (this) {
-                    inputMessage = inQueue.poll();
-                    if (inputMessage != null && !(inputMessage instanceof ShutdownMessage)) {
-                        activeCount++;
-                    }
-                }
-                if (running && !cancelled) {
-                    if (inputMessage != null) {
-                        if (inputMessage instanceof ShutdownMessage) {
-                            process((ShutdownMessage) inputMessage, target);
-                        } else {
-                            process(inputMessage, target);
-                        }
-                    } else if (running && !cancelled) {
-                        AppUtils.sleep(50);
+                Message inputMessage = takeNextMessage();
+                if (running && !cancelled && inputMessage != null) {
+                    if (inputMessage instanceof ShutdownMessage) {
+                        process((ShutdownMessage) inputMessage, target);
+                    } else {
+                        process(inputMessage, target);
                     }
                 }
             }
@@ -292,15 +304,70 @@ public class StepRuntime implements Runnable {
         }
     }
     
-    protected synchronized void decrementActiveCount() {
-        activeCount--;
+    /*
+     * Blocks until a message arrives, the wait times out or the step is woken
+     * up by a state change. The poll and the active count increment happen
+     * under the same lock so that a message is always accounted for in
+     * either the queue size or the active count. queue(Message)
+     * signals the lock's condition after a successful offer.
+     */
+    protected Message takeNextMessage() throws InterruptedException {
+        lock.lock();
+        try {
+            Message inputMessage = inQueue.poll();
+            if (inputMessage == null && running && !cancelled) {
+                stateChanged.await(INBOX_WAIT_MS, TimeUnit.MILLISECONDS);
+                inputMessage = inQueue.poll();
+            }
+            if (inputMessage != null && !(inputMessage instanceof ShutdownMessage)) {
+                activeCount++;
+            }
+            return inputMessage;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected void signalStateChanged() {
+        lock.lock();
+        try {
+            stateChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected void decrementActiveCount() {
+        lock.lock();
+        try {
+            activeCount--;
+            stateChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
     }
     
-    protected synchronized int getActiveCountPlusQueueSize() {
-        return activeCount + inQueue.size();
+    protected void waitForOtherThreadsToFinish() throws InterruptedException {
+        lock.lock();
+        try {
+            while (activeCount > 1) {
+                stateChanged.await(INBOX_WAIT_MS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    protected int getActiveCountPlusQueueSize() {
+        lock.lock();
+        try {
+            return activeCount + inQueue.size();
+        } finally {
+            lock.unlock();
+        }
     }
 
-    protected void process(Message inputMessage, SendMessageCallback target) {
+    protected void process(Message inputMessage, SendMessageCallback target) throws InterruptedException {
         boolean unitOfWorkBoundaryReached = calculateUnitOfWorkLastMessage(inputMessage);
         /*
          * If unitOfWorkBoundaryReached, we might want to consider waiting to
@@ -308,8 +375,8 @@ public class StepRuntime implements Runnable {
          * race conditions.
          */
         if (threadCount > 1) {
-            while (unitOfWorkBoundaryReached && activeCount > 1) {
-                AppUtils.sleep(5);
+            if (unitOfWorkBoundaryReached) {
+                waitForOtherThreadsToFinish();
             }
             this.componentRuntimeExecutor.execute(() -> processOnAnotherThread(inputMessage, unitOfWorkBoundaryReached, target));    
         } else {
@@ -378,8 +445,13 @@ public class StepRuntime implements Runnable {
         }
     }
 
-    protected synchronized boolean idle() {
-        return activeCount <= 0;
+    protected boolean idle() {
+        lock.lock();
+        try {
+            return activeCount <= 0;
+        } finally {
+            lock.unlock();
+        }
     }
 
     protected void process(ShutdownMessage shutdownMessage, SendMessageCallback target) {
@@ -498,6 +570,7 @@ public class StepRuntime implements Runnable {
         if (cancelling) {
             cancelled = true;
         }
+        signalStateChanged();
 
         recordFlowStepFinished();
     }
@@ -685,9 +758,37 @@ public class StepRuntime implements Runnable {
             return newMessage;
         }
 
+        private boolean isTarget(StepRuntime targetRuntime, String... targetFlowStepIds) {
+            return targetFlowStepIds == null || targetFlowStepIds.length == 0
+                    || ArrayUtils.contains(targetFlowStepIds, targetRuntime.getComponentContext().getFlowStep().getId());
+        }
+
+        /*
+         * The payload only needs to be copied if the sender might reuse it
+         * after it is sent or if one of the targets it is sent to might modify
+         * it. Targets that receive the same message always share the same
+         * payload instance.
+         */
+        private boolean isCopyRequired(String... targetFlowStepIds) {
+            if (componentDefintion == null || !componentDefintion.isHandsOffOutput()) {
+                return true;
+            }
+            for (StepRuntime targetRuntime : targetStepRuntimes) {
+                if (isTarget(targetRuntime, targetFlowStepIds)) {
+                    XMLComponentDefinition definition = targetRuntime.getComponentDefintion();
+                    if (definition == null || !definition.isReadOnlyInput()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
         @SuppressWarnings("unchecked")
-        private <T extends Serializable> T copy(T payload) {
-            if (payload instanceof ArrayList) {
+        private <T extends Serializable> T copy(T payload, String... targetFlowStepIds) {
+            if (!isCopyRequired(targetFlowStepIds)) {
+                return payload;
+            } else if (payload instanceof ArrayList) {
                 ArrayList<?> old = (ArrayList<?>) payload;
                 ArrayList<Object> copied = new ArrayList<>(old.size());
                 for (Object object : old) {
@@ -727,12 +828,8 @@ public class StepRuntime implements Runnable {
             
             long ts = System.currentTimeMillis();
 
-            Collection<String> targetStepIds = targetFlowStepIds != null ? Arrays.asList(targetFlowStepIds) : Collections.emptyList();
-
             for (StepRuntime targetRuntime : targetStepRuntimes) {
-                boolean forward = targetStepIds == null || targetStepIds.size() == 0
-                        || targetStepIds.contains(targetRuntime.getComponentContext().getFlowStep().getId());
-                if (forward) {
+                if (isTarget(targetRuntime, targetFlowStepIds)) {
                     try {
                         if (log.isDebugEnabled()) {
                             log.debug("Sending " + message.getClass().getSimpleName() + " to "
@@ -798,7 +895,7 @@ public class StepRuntime implements Runnable {
 
         @Override
         public void sendBinaryMessage(Map<String, Serializable> messageHeaders, byte[] payload, String... targetStepIds) {
-            payload = copy(payload);
+            payload = copy(payload, targetStepIds);
             FlowStep flowStep = componentContext.getFlowStep();
             sendMessage(createMessage(new BinaryMessage(flowStep.getId(), payload), messageHeaders), targetStepIds);
             contentMessagesSentCount++;
@@ -807,7 +904,7 @@ public class StepRuntime implements Runnable {
         @Override
         public void sendEntityDataMessage(Map<String, Serializable> messageHeaders, ArrayList<EntityData> payload, String... targetStepIds) {
             validateEntityData(payload);
-            payload = copy(payload);
+            payload = copy(payload, targetStepIds);
             FlowStep flowStep = componentContext.getFlowStep();
             sendMessage(createMessage(new EntityDataMessage(flowStep.getId(), payload), messageHeaders), targetStepIds);
             contentMessagesSentCount++;
@@ -822,7 +919,7 @@ public class StepRuntime implements Runnable {
 
         @Override
         public void sendTextMessage(Map<String, Serializable> messageHeaders, ArrayList<String> payload, String... targetStepIds) {
-            payload = copy(payload);
+            payload = copy(payload, targetStepIds);
             FlowStep flowStep = componentContext.getFlowStep();
             sendMessage(createMessage(new TextMessage(flowStep.getId(), payload), messageHeaders), targetStepIds);
             contentMessagesSentCount++;
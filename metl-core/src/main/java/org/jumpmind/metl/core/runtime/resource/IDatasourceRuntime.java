@@ -1,5 +1,7 @@
 package org.jumpmind.metl.core.runtime.resource;
 
+import java.util.concurrent.Callable;
+
 import org.jumpmind.db.model.Table;
 
 public interface IDatasourceRuntime extends IResourceRuntime {
@@ -7,5 +9,15 @@ public interface IDatasourceRuntime extends IResourceRuntime {
     public void putTableInCache(String catalogName, String schemaName, String tableName, Table table);
     
     public Table getTableFromCache(String catalogName, String schemaName, String tableName);
+
+    public void removeTableFromCache(String catalogName, String schemaName, String tableName);
+
+    public void clearTableCache();
+
+    /**
+     * Loads a table into the cache in the background unless it is already
+     * cached or being loaded.
+     */
+    public void warmTableCache(String catalogName, String schemaName, String tableName, Callable<Table> loader);
     
 }
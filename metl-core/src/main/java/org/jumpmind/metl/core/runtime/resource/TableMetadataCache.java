@@ -0,0 +1,207 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.resource;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.jumpmind.db.model.Table;
+import org.jumpmind.metl.core.util.ThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Table metadata that is shared by every flow that uses a datasource. Tables
+ * expire after the time to live, which is disabled when it is not positive,
+ * and the least recently used table is evicted when the cache is full.
+ * <p>
+ * Tables can be loaded ahead of time with {@link #warm}. The loads run on a
+ * small pool of threads and a lookup of a table that is being loaded waits
+ * for the load instead of reading the metadata again.
+ */
+public class TableMetadataCache {
+
+    final static Logger log = LoggerFactory.getLogger(TableMetadataCache.class);
+
+    final int maxSize;
+
+    final long timeToLiveInMs;
+
+    final int warmThreadCount;
+
+    final Map<String, CachedTable> tables = new ConcurrentHashMap<String, CachedTable>();
+
+    final Map<String, Future<Table>> loading = new ConcurrentHashMap<String, Future<Table>>();
+
+    ExecutorService warmExecutor;
+
+    public TableMetadataCache(int maxSize, long timeToLiveInMs, int warmThreadCount) {
+        this.maxSize = Math.max(maxSize, 1);
+        this.timeToLiveInMs = timeToLiveInMs;
+        this.warmThreadCount = Math.max(warmThreadCount, 1);
+    }
+
+    public Table get(String catalogName, String schemaName, String tableName) {
+        String key = Table.getFullyQualifiedTableName(catalogName, schemaName, tableName);
+        CachedTable cached = getFresh(key);
+        if (cached != null) {
+            return cached.table;
+        }
+        Future<Table> load = loading.get(key);
+        if (load != null) {
+            try {
+                return load.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                log.debug("Failed to load the metadata for {}", key, e.getCause());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A null table removes the table from the cache.
+     */
+    public void put(String catalogName, String schemaName, String tableName, Table table) {
+        String key = Table.getFullyQualifiedTableName(catalogName, schemaName, tableName);
+        if (table == null) {
+            tables.remove(key);
+        } else {
+            tables.put(key, new CachedTable(table));
+            if (tables.size() > maxSize) {
+                evict();
+            }
+        }
+    }
+
+    public void remove(String catalogName, String schemaName, String tableName) {
+        tables.remove(Table.getFullyQualifiedTableName(catalogName, schemaName, tableName));
+    }
+
+    public void clear() {
+        tables.clear();
+    }
+
+    public int size() {
+        return tables.size();
+    }
+
+    /**
+     * Loads the table in the background unless it is already cached or being
+     * loaded.
+     */
+    public void warm(String catalogName, String schemaName, String tableName, Callable<Table> loader) {
+        final String key = Table.getFullyQualifiedTableName(catalogName, schemaName, tableName);
+        if (getFresh(key) != null || loading.containsKey(key)) {
+            return;
+        }
+        FutureTask<Table> load = new FutureTask<Table>(() -> {
+            try {
+                Table table = loader.call();
+                put(catalogName, schemaName, tableName, table);
+                return table;
+            } finally {
+                loading.remove(key);
+            }
+        });
+        if (loading.putIfAbsent(key, load) == null) {
+            getWarmExecutor().execute(load);
+        }
+    }
+
+    public synchronized void close() {
+        if (warmExecutor != null) {
+            warmExecutor.shutdownNow();
+            warmExecutor = null;
+        }
+        loading.clear();
+        tables.clear();
+    }
+
+    protected synchronized ExecutorService getWarmExecutor() {
+        if (warmExecutor == null) {
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) ThreadUtils.createFixedThreadPool("table-metadata-cache",
+                    Integer.MAX_VALUE, warmThreadCount);
+            executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            warmExecutor = executor;
+        }
+        return warmExecutor;
+    }
+
+    protected CachedTable getFresh(String key) {
+        CachedTable cached = tables.get(key);
+        if (cached != null) {
+            long now = System.currentTimeMillis();
+            if (timeToLiveInMs > 0 && now - cached.loadTime >= timeToLiveInMs) {
+                tables.remove(key, cached);
+                return null;
+            }
+            cached.lastAccessTime = now;
+        }
+        return cached;
+    }
+
+    /*
+     * Eviction scans the cache, which is fine because it only happens when a
+     * table is added to a full cache and table counts are small.
+     */
+    protected void evict() {
+        while (tables.size() > maxSize) {
+            String oldestKey = null;
+            long oldestAccessTime = Long.MAX_VALUE;
+            for (Map.Entry<String, CachedTable> entry : tables.entrySet()) {
+                if (entry.getValue().lastAccessTime < oldestAccessTime) {
+                    oldestAccessTime = entry.getValue().lastAccessTime;
+                    oldestKey = entry.getKey();
+                }
+            }
+            if (oldestKey == null) {
+                break;
+            }
+            tables.remove(oldestKey);
+        }
+    }
+
+    static class CachedTable {
+
+        final Table table;
+
+        final long loadTime;
+
+        volatile long lastAccessTime;
+
+        CachedTable(Table table) {
+            this.table = table;
+            this.loadTime = System.currentTimeMillis();
+            this.lastAccessTime = loadTime;
+        }
+    }
+
+}
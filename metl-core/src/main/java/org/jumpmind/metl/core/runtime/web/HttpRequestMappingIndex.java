@@ -0,0 +1,237 @@
+package org.jumpmind.metl.core.runtime.web;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.util.AntPathMatcher;
+
+/**
+ * An immutable trie of the mappings for one HTTP method that is keyed by path
+ * segment. Literal segments are looked up in a map and are tried before
+ * segments that contain wildcards or uri template variables, so a lookup
+ * costs about one map lookup per segment of the path no matter how many
+ * mappings there are.
+ * <p>
+ * Segments are matched the way {@link AntPathMatcher} matches them. Patterns
+ * with a ** segment can match any number of segments, so they are not put in
+ * the trie. They are tried in order after the trie does not find a match.
+ */
+class HttpRequestMappingIndex {
+
+    static final Pattern GLOB_PATTERN = Pattern.compile("\\?|\\*|\\{((?:\\{[^/]+?\\}|[^/{}]|\\\\[{}])+?)\\}");
+
+    static final String MULTIPLE_SEGMENTS = "**";
+
+    final Node root = new Node();
+
+    final List<HttpRequestMapping> multipleSegmentMappings = new ArrayList<>();
+
+    final AntPathMatcher patternMatcher = new AntPathMatcher();
+
+    /**
+     * @param mappings
+     *            the mappings in the order they should be tried when more
+     *            than one matches at the same place in the trie
+     */
+    HttpRequestMappingIndex(Collection<HttpRequestMapping> mappings) {
+        for (HttpRequestMapping mapping : mappings) {
+            String[] segments = tokenize(mapping.getPath());
+            boolean multipleSegments = false;
+            for (String segment : segments) {
+                multipleSegments |= segment.equals(MULTIPLE_SEGMENTS);
+            }
+            if (multipleSegments) {
+                multipleSegmentMappings.add(mapping);
+            } else {
+                Node node = root;
+                for (String segment : segments) {
+                    node = node.child(segment);
+                }
+                node.mappings.add(mapping);
+            }
+        }
+        root.sort();
+    }
+
+    HttpRequestMapping findBestMatch(String path) {
+        if (path == null) {
+            return null;
+        }
+        HttpRequestMapping mapping = find(root, tokenize(path), 0, path);
+        if (mapping == null) {
+            for (HttpRequestMapping multipleSegmentMapping : multipleSegmentMappings) {
+                if (patternMatcher.match(multipleSegmentMapping.getPath(), path)) {
+                    return multipleSegmentMapping;
+                }
+            }
+        }
+        return mapping;
+    }
+
+    protected HttpRequestMapping find(Node node, String[] segments, int index, String path) {
+        if (index == segments.length) {
+            for (HttpRequestMapping mapping : node.mappings) {
+                if (isSameSeparators(mapping.getPath(), path)) {
+                    return mapping;
+                }
+            }
+            /* AntPathMatcher lets a trailing * match the empty segment after a trailing separator */
+            if (path.endsWith("/")) {
+                for (PatternNode pattern : node.patterns) {
+                    if (pattern.segment.equals("*")) {
+                        for (HttpRequestMapping mapping : pattern.node.mappings) {
+                            if (mapping.getPath().startsWith("/") == path.startsWith("/")) {
+                                return mapping;
+                            }
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        String segment = segments[index];
+        HttpRequestMapping mapping = null;
+        Node literal = node.literals.get(segment);
+        if (literal != null) {
+            mapping = find(literal, segments, index + 1, path);
+        }
+        for (int i = 0; mapping == null && i < node.patterns.size(); i++) {
+            PatternNode pattern = node.patterns.get(i);
+            if (pattern.regex.matcher(segment).matches()) {
+                mapping = find(pattern.node, segments, index + 1, path);
+            }
+        }
+        return mapping;
+    }
+
+    /*
+     * AntPathMatcher only matches a path if it starts and ends with a
+     * separator when the pattern does.
+     */
+    static boolean isSameSeparators(String pattern, String path) {
+        return pattern.startsWith("/") == path.startsWith("/") && pattern.endsWith("/") == path.endsWith("/");
+    }
+
+    static String[] tokenize(String path) {
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        while (start <= path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > start) {
+                segments.add(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    /**
+     * @return null if the segment does not have any wildcards or uri template
+     *         variables
+     */
+    static Pattern compile(String segment) {
+        Matcher matcher = GLOB_PATTERN.matcher(segment);
+        StringBuilder regex = new StringBuilder();
+        boolean literal = true;
+        int end = 0;
+        while (matcher.find()) {
+            literal = false;
+            regex.append(quote(segment, end, matcher.start()));
+            String match = matcher.group();
+            if ("?".equals(match)) {
+                regex.append('.');
+            } else if ("*".equals(match)) {
+                regex.append(".*");
+            } else {
+                int colon = match.indexOf(':');
+                regex.append(colon < 0 ? "(.*)" : "(" + match.substring(colon + 1, match.length() - 1) + ")");
+            }
+            end = matcher.end();
+        }
+        if (literal) {
+            return null;
+        }
+        regex.append(quote(segment, end, segment.length()));
+        return Pattern.compile(regex.toString());
+    }
+
+    static String quote(String segment, int start, int end) {
+        return start == end ? "" : Pattern.quote(segment.substring(start, end));
+    }
+
+    static class Node {
+
+        Map<String, Node> literals = Collections.emptyMap();
+
+        List<PatternNode> patterns = Collections.emptyList();
+
+        List<HttpRequestMapping> mappings = new ArrayList<>(1);
+
+        Node child(String segment) {
+            for (PatternNode pattern : patterns) {
+                if (pattern.segment.equals(segment)) {
+                    return pattern.node;
+                }
+            }
+            Node literal = literals.get(segment);
+            if (literal != null) {
+                return literal;
+            }
+
+            Node child = new Node();
+            Pattern regex = compile(segment);
+            if (regex == null) {
+                if (literals.isEmpty()) {
+                    literals = new HashMap<>();
+                }
+                literals.put(segment, child);
+            } else {
+                if (patterns.isEmpty()) {
+                    patterns = new ArrayList<>();
+                }
+                patterns.add(new PatternNode(segment, regex, child));
+            }
+            return child;
+        }
+
+        /*
+         * Pattern segments are tried in the order of their text, which is the
+         * order the mappings used to be tried in.
+         */
+        void sort() {
+            Collections.sort(patterns, (a, b) -> a.segment.compareTo(b.segment));
+            for (Node node : literals.values()) {
+                node.sort();
+            }
+            for (PatternNode pattern : patterns) {
+                pattern.node.sort();
+            }
+        }
+    }
+
+    static class PatternNode {
+
+        final String segment;
+
+        final Pattern regex;
+
+        final Node node;
+
+        PatternNode(String segment, Pattern regex, Node node) {
+            this.segment = segment;
+            this.regex = regex;
+            this.node = node;
+        }
+    }
+
+}
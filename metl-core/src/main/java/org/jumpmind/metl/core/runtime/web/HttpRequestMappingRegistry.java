@@ -7,38 +7,54 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jumpmind.metl.core.model.AgentDeployment;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.util.AntPathMatcher;
 
+/**
+ * Requests are matched against an index of the mappings for each HTTP
+ * method. The mappings are only changed while holding the registry's lock.
+ * A change drops the index for its method and the next request for that
+ * method builds a new one, so deploying many flows does not rebuild the
+ * index for each of them and requests are matched without locking.
+ */
 public class HttpRequestMappingRegistry implements IHttpRequestMappingRegistry {
 
     final Logger log = LoggerFactory.getLogger(getClass());
 
-    AntPathMatcher patternMatcher = new AntPathMatcher();
-    
     Map<HttpMethod, Set<HttpRequestMapping>> mappingsByHttpMethod = new HashMap<>();
     
     Map<AgentDeployment, Set<HttpRequestMapping>> mappingsByAgentDeployment = new HashMap<>();
+
+    Map<HttpMethod, HttpRequestMappingIndex> indexByHttpMethod = new ConcurrentHashMap<>();
     
     @Override
     public HttpRequestMapping findBestMatch(HttpMethod method, String path) {
-        Set<HttpRequestMapping> mappings = mappingsByHttpMethod.get(method);
-        if (mappings != null) {
-            for (HttpRequestMapping httpRequestMapping : mappings) {
-                log.info(String.format("Found available uri: %s",httpRequestMapping.getPath()));
-                if (patternMatcher.match(httpRequestMapping.getPath(), path)) {
-                    return httpRequestMapping;
-                }
-            }
+        HttpRequestMappingIndex index = indexByHttpMethod.get(method);
+        if (index == null) {
+            index = buildIndex(method);
+        }
+        HttpRequestMapping mapping = index.findBestMatch(path);
+        if (mapping != null) {
+            log.debug("Matched {} {} to {}", method, path, mapping.getPath());
+        }
+        return mapping;
+    }
+    
+    protected synchronized HttpRequestMappingIndex buildIndex(HttpMethod method) {
+        HttpRequestMappingIndex index = indexByHttpMethod.get(method);
+        if (index == null) {
+            Set<HttpRequestMapping> mappings = mappingsByHttpMethod.get(method);
+            index = new HttpRequestMappingIndex(mappings != null ? mappings : Collections.emptySet());
+            indexByHttpMethod.put(method, index);
         }
-        return null;
+        return index;
     }
     
     @Override
-    public List<HttpRequestMapping> getHttpRequestMappingsFor(AgentDeployment deployment) {
+    public synchronized List<HttpRequestMapping> getHttpRequestMappingsFor(AgentDeployment deployment) {
         Set<HttpRequestMapping> mappings = mappingsByAgentDeployment.get(deployment);
         if (mappings != null) {
             return new ArrayList<>(mappings);
@@ -48,13 +64,14 @@ public class HttpRequestMappingRegistry implements IHttpRequestMappingRegistry {
     }  
     
     @Override
-    public void register(HttpRequestMapping request) {
+    public synchronized void register(HttpRequestMapping request) {
         Set<HttpRequestMapping> mappings = mappingsByHttpMethod.get(request.getMethod());
         if (mappings == null) {
             mappings = new TreeSet<>();
             mappingsByHttpMethod.put(request.getMethod(), mappings);
         }
         mappings.add(request);        
+        indexByHttpMethod.remove(request.getMethod());
         
         mappings = mappingsByAgentDeployment.get(request.getDeployment());
         if (mappings == null) {
@@ -68,11 +85,12 @@ public class HttpRequestMappingRegistry implements IHttpRequestMappingRegistry {
     }
     
     @Override
-    public void unregister(HttpRequestMapping request) {
+    public synchronized void unregister(HttpRequestMapping request) {
         boolean unregistered = false;
         Set<HttpRequestMapping> mappings = mappingsByHttpMethod.get(request.getMethod());
         if (mappings != null) {            
             unregistered |= mappings.remove(request);
+            indexByHttpMethod.remove(request.getMethod());
         }
         
         mappings = mappingsByAgentDeployment.get(request.getDeployment());
@@ -20,6 +20,7 @@
  */
 package org.jumpmind.metl.core.util;
 
+import java.lang.reflect.Method;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -28,8 +29,20 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 final public class ThreadUtils {
 
+    private static final Logger log = LoggerFactory.getLogger(ThreadUtils.class);
+
+    /*
+     * The thread number is assigned by the thread factories below when the
+     * thread starts. It does not depend on the thread name, so it works for
+     * virtual threads too.
+     */
+    private static final ThreadLocal<Integer> threadNumber = new ThreadLocal<>();
+
     private ThreadUtils() {
     }
 
@@ -37,24 +50,24 @@ final public class ThreadUtils {
         if (maxThreads == 1) {
             return 1;
         } else {
-            int threadNumber = 1;
-            String name = Thread.currentThread().getName();
-            int lastIndex = name.lastIndexOf("-");
-            if (lastIndex >= 0) {
-                try {
-                    threadNumber = Integer.parseInt(name.substring(lastIndex + 1));
-                } catch (NumberFormatException e) {
-                }
-            }
-            return threadNumber;
+            Integer number = threadNumber.get();
+            return number != null ? number : 1;
         }
     }
 
+    public static boolean isVirtualThreadsSupported() {
+        return VirtualThreads.OF_VIRTUAL != null;
+    }
+
     public static ExecutorService createFixedThreadPool(String namePrefix, int queueCapacity, int threadCount) {
+        return createFixedThreadPool(namePrefix, queueCapacity, threadCount, false);
+    }
+
+    public static ExecutorService createFixedThreadPool(String namePrefix, int queueCapacity, int threadCount, boolean virtual) {
           ThreadPoolExecutor executor =  new ThreadPoolExecutor(threadCount, threadCount,
                 0L, TimeUnit.MILLISECONDS,
                 new LinkedBlockingQueue<Runnable>(queueCapacity),
-                new CustomThreadFactory(namePrefix));
+                createThreadFactory(namePrefix, virtual));
             executor.setRejectedExecutionHandler((r, e) -> {try {
                 e.getQueue().put(r);
             } catch (Exception e1) {
@@ -67,6 +80,45 @@ final public class ThreadUtils {
         return Executors.newCachedThreadPool(new CustomThreadFactory(namePrefix));
     }
 
+    /**
+     * Creates an executor that starts a new virtual thread for every task.
+     * Falls back to {@link #createUnboundedThreadPool(String)} when the JVM
+     * does not support virtual threads.
+     */
+    public static ExecutorService createVirtualThreadPool(String namePrefix) {
+        if (isVirtualThreadsSupported()) {
+            try {
+                return (ExecutorService) VirtualThreads.NEW_THREAD_PER_TASK_EXECUTOR.invoke(null,
+                        createThreadFactory(namePrefix, true));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            log.warn("Virtual threads are not supported by this JVM ({}).  Falling back to platform threads",
+                    System.getProperty("java.version"));
+            return createUnboundedThreadPool(namePrefix);
+        }
+    }
+
+    public static ThreadFactory createThreadFactory(String namePrefix, boolean virtual) {
+        if (virtual && isVirtualThreadsSupported()) {
+            return new VirtualThreadFactory(namePrefix);
+        } else {
+            return new CustomThreadFactory(namePrefix);
+        }
+    }
+
+    static Runnable withThreadNumber(int number, Runnable r) {
+        return () -> {
+            threadNumber.set(number);
+            try {
+                r.run();
+            } finally {
+                threadNumber.remove();
+            }
+        };
+    }
+
     static class CustomThreadFactory implements ThreadFactory {
 
         String namePrefix;
@@ -77,8 +129,9 @@ final public class ThreadUtils {
         }
 
         public Thread newThread(Runnable r) {
-            Thread t = new Thread(r);
-            t.setName(namePrefix + "-" + threadNumber.getAndIncrement());
+            int number = threadNumber.getAndIncrement();
+            Thread t = new Thread(withThreadNumber(number, r));
+            t.setName(namePrefix + "-" + number);
             if (t.isDaemon()) {
                 t.setDaemon(false);
             }
@@ -88,4 +141,53 @@ final public class ThreadUtils {
             return t;
         }
     }
+
+    /*
+     * Virtual threads are looked up reflectively so the runtime still compiles
+     * for and runs on JVMs that predate them
+     */
+    static class VirtualThreadFactory implements ThreadFactory {
+
+        String namePrefix;
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        public VirtualThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            int number = threadNumber.getAndIncrement();
+            try {
+                Object builder = VirtualThreads.OF_VIRTUAL.invoke(null);
+                Thread t = (Thread) VirtualThreads.UNSTARTED.invoke(builder, withThreadNumber(number, r));
+                t.setName(namePrefix + "-" + number);
+                return t;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    static class VirtualThreads {
+
+        static final Method OF_VIRTUAL;
+        static final Method UNSTARTED;
+        static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+        static {
+            Method ofVirtual = null;
+            Method unstarted = null;
+            Method newThreadPerTaskExecutor = null;
+            try {
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                unstarted = ofVirtual.getReturnType().getMethod("unstarted", Runnable.class);
+                newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            } catch (Exception e) {
+                ofVirtual = null;
+            }
+            OF_VIRTUAL = ofVirtual;
+            UNSTARTED = unstarted;
+            NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+        }
+    }
 }
@@ -0,0 +1,150 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ModelTest {
+
+    Model model;
+
+    ModelEntity person;
+
+    ModelAttribute personId;
+
+    ModelAttribute personName;
+
+    @Before
+    public void setup() {
+        model = new Model();
+        person = new ModelEntity("person", "PERSON");
+        personId = new ModelAttribute("person.id", person.getId(), "ID");
+        personName = new ModelAttribute("person.name", person.getId(), "NAME");
+        person.addModelAttribute(personId);
+        person.addModelAttribute(personName);
+        model.getModelEntities().add(person);
+    }
+
+    @Test
+    public void testLookupsIgnoreCase() {
+        assertSame(person, model.getEntityById("PERSON"));
+        assertSame(person, model.getEntityByName("person"));
+        assertSame(personName, model.getAttributeById("Person.Name"));
+        assertSame(personName, model.getAttributeByName("person", "name"));
+        assertSame(personName, person.getModelAttributeByName("Name"));
+        assertEquals(1, model.getAttributesByName("id").size());
+        assertNull(model.getAttributeById("person.missing"));
+        assertTrue(model.getAttributesByName("missing").isEmpty());
+    }
+
+    @Test
+    public void testAttributeAddedAfterIndexWasBuilt() {
+        assertNull(model.getAttributeById("person.age"));
+        assertNull(person.getModelAttributeByName("AGE"));
+
+        ModelAttribute age = new ModelAttribute("person.age", person.getId(), "AGE");
+        person.addModelAttribute(age);
+        assertSame(age, model.getAttributeById("person.age"));
+        assertSame(age, model.getAttributeByName("PERSON", "AGE"));
+        assertSame(age, person.getModelAttributeByName("age"));
+        assertEquals(1, model.getAttributesByName("AGE").size());
+
+        ModelAttribute email = new ModelAttribute();
+        email.setId("person.email");
+        email.setEntityId(person.getId());
+        email.setName("EMAIL");
+        person.getModelAttributes().add(email);
+        assertSame(email, model.getAttributeById("person.email"));
+        assertSame(email, model.getAttributesByName("EMAIL").get(0));
+    }
+
+    @Test
+    public void testAttributeRenamedAfterIndexWasBuilt() {
+        assertSame(personName, model.getAttributeByName("PERSON", "NAME"));
+        assertEquals(1, model.getAttributesByName("NAME").size());
+
+        personName.setName("FULL_NAME");
+        assertSame(personName, model.getAttributeByName("PERSON", "FULL_NAME"));
+        assertSame(personName, person.getModelAttributeByName("full_name"));
+        assertEquals(1, model.getAttributesByName("FULL_NAME").size());
+        assertNull(model.getAttributeByName("PERSON", "NAME"));
+        assertTrue(model.getAttributesByName("NAME").isEmpty());
+    }
+
+    @Test
+    public void testAttributeRemovedAfterIndexWasBuilt() {
+        assertSame(personName, model.getAttributeById("person.name"));
+        person.removeModelAttribute(personName);
+        assertNull(model.getAttributeById("person.name"));
+        assertNull(person.getModelAttributeByName("NAME"));
+    }
+
+    @Test
+    public void testEntityRenamedAfterIndexWasBuilt() {
+        assertSame(person, model.getEntityByName("PERSON"));
+        person.setName("CUSTOMER");
+        assertSame(person, model.getEntityByName("CUSTOMER"));
+        assertSame(personId, model.getAttributeByName("CUSTOMER", "ID"));
+        assertNull(model.getEntityByName("PERSON"));
+    }
+
+    @Test
+    public void testUnrelatedModelDoesNotRebuildIndex() {
+        assertSame(personName, model.getAttributeByName("PERSON", "NAME"));
+        Model.Index index = model.index;
+        CaseInsensitiveIndex<ModelAttribute> attributeIndex = person.attributesByName;
+
+        Model other = new Model();
+        ModelEntity order = new ModelEntity("order", "ORDER");
+        ModelAttribute orderId = new ModelAttribute("order.id", order.getId(), "ID");
+        order.addModelAttribute(orderId);
+        other.getModelEntities().add(order);
+        assertSame(orderId, other.getAttributeByName("ORDER", "ID"));
+        order.setName("PURCHASE");
+        orderId.setName("NUMBER");
+        assertSame(orderId, other.getAttributeByName("PURCHASE", "NUMBER"));
+
+        assertSame(personName, model.getAttributeByName("PERSON", "NAME"));
+        assertSame(personName, model.getAttributeById("person.name"));
+        assertSame(index, model.index);
+        assertSame(attributeIndex, person.attributesByName);
+    }
+
+    @Test
+    public void testEntityAddedAfterIndexWasBuilt() {
+        assertNull(model.getEntityById("order"));
+        ModelEntity order = new ModelEntity("order", "ORDER");
+        ModelAttribute orderId = new ModelAttribute("order.id", order.getId(), "ID");
+        order.addModelAttribute(orderId);
+        model.getModelEntities().add(order);
+        assertSame(order, model.getEntityById("order"));
+        assertSame(order, model.getEntityByName("order"));
+        assertSame(orderId, model.getAttributeById("ORDER.ID"));
+        assertEquals(2, model.getAttributesByName("ID").size());
+    }
+
+}
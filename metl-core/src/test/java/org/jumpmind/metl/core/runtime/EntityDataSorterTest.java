@@ -0,0 +1,146 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.jumpmind.metl.core.runtime.EntityData.ChangeType;
+import org.junit.Test;
+
+public class EntityDataSorterTest {
+
+    @Test
+    public void testSortInMemoryIsStable() {
+        try (EntityDataSorter sorter = new EntityDataSorter(data -> new Object[] { data.get("key") }, Long.MAX_VALUE)) {
+            sorter.add(row(2, 0));
+            sorter.add(row(1, 1));
+            sorter.add(row(2, 2));
+            sorter.add(row(1, 3));
+            assertEquals(0, sorter.getSpillCount());
+            assertOrder(sorter, 1, 3, 0, 2);
+        }
+    }
+
+    @Test
+    public void testSortWithSpillIsStable() {
+        try (EntityDataSorter sorter = new EntityDataSorter(data -> new Object[] { data.get("key") }, 1)) {
+            for (int i = 0; i < 100; i++) {
+                sorter.add(row(i % 3, i));
+            }
+            assertTrue(sorter.getSpillCount() > 0);
+            int[] expected = new int[100];
+            int index = 0;
+            for (int key = 0; key < 3; key++) {
+                for (int i = key; i < 100; i += 3) {
+                    expected[index++] = i;
+                }
+            }
+            assertOrder(sorter, expected);
+        }
+    }
+
+    @Test
+    public void testSpilledValuesAreRestored() {
+        Timestamp timestamp = new Timestamp(1000);
+        timestamp.setNanos(123456789);
+        EntityData data = new EntityData();
+        data.setChangeType(ChangeType.DEL);
+        data.put("key", 1);
+        data.put("string", "text \u00e9");
+        data.put("decimal", new BigDecimal("-12.345"));
+        data.put("long", Long.MAX_VALUE);
+        data.put("timestamp", timestamp);
+        data.put("null", null);
+        try (EntityDataSorter sorter = new EntityDataSorter(row -> new Object[] { row.get("key") }, 1)) {
+            sorter.add(data);
+            sorter.add(row(0, 0));
+            assertTrue(sorter.getSpillCount() > 0);
+            List<EntityData> rows = new ArrayList<>();
+            sorter.forEach(rows::add);
+            EntityData restored = rows.get(1);
+            assertEquals(ChangeType.DEL, restored.getChangeType());
+            assertEquals(data, restored);
+        }
+    }
+
+    @Test
+    public void testRowsWithTheSameKeyAreCombinedInOrderAcrossRuns() {
+        try (EntityDataSorter sorter = new EntityDataSorter(data -> new Object[] { data.get("key") }, 1)) {
+            for (int i = 0; i < 30; i++) {
+                sorter.add(row(i % 3, i));
+            }
+            assertTrue(sorter.getSpillCount() > 0);
+            List<String> combined = new ArrayList<>();
+            Iterator<EntityData> rows = sorter.iterator((current, next) -> {
+                /* every second row of key 1 removes the row, so none is left */
+                if (current != null && next.get("key").equals(1)) {
+                    return null;
+                }
+                EntityData data = current != null ? current : new EntityData();
+                data.put("key", next.get("key"));
+                data.put("sequences", (current != null ? current.get("sequences") + "," : "") + next.get("sequence"));
+                return data;
+            });
+            while (rows.hasNext()) {
+                EntityData data = rows.next();
+                combined.add(data.get("key") + ":" + data.get("sequences"));
+            }
+            assertEquals(Arrays.asList("0:0,3,6,9,12,15,18,21,24,27", "2:2,5,8,11,14,17,20,23,26,29"), combined);
+        }
+    }
+
+    @Test
+    public void testCompareValues() {
+        assertTrue(EntityDataSorter.compareValues(null, 1) < 0);
+        assertTrue(EntityDataSorter.compareValues(2, new BigDecimal("10.5")) < 0);
+        assertTrue(EntityDataSorter.compareValues(2L, 1.5d) > 0);
+        assertEquals(0, EntityDataSorter.compareValues(new BigDecimal("1.0"), 1));
+        assertTrue(EntityDataSorter.compareValues(10, "1") < 0);
+    }
+
+    protected EntityData row(int key, int sequence) {
+        EntityData data = new EntityData();
+        data.put("key", key);
+        data.put("sequence", sequence);
+        return data;
+    }
+
+    protected void assertOrder(EntityDataSorter sorter, int... sequences) {
+        List<Integer> actual = new ArrayList<>();
+        for (EntityData data : sorter) {
+            actual.add((Integer) data.get("sequence"));
+        }
+        List<Integer> expected = new ArrayList<>();
+        for (int sequence : sequences) {
+            expected.add(sequence);
+        }
+        assertEquals(expected, actual);
+    }
+
+}
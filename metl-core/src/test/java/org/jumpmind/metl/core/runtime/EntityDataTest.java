@@ -0,0 +1,210 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class EntityDataTest {
+
+    @Test
+    public void testCaseInsensitiveKeys() {
+        EntityData data = new EntityData();
+        data.put("EntityDataTest.Attr1", 1);
+        assertEquals(1, data.get("entitydatatest.attr1"));
+        assertTrue(data.containsKey("ENTITYDATATEST.ATTR1"));
+
+        EntityData other = new EntityData();
+        other.put("entitydatatest.attr1", 2);
+        assertEquals(2, other.get("EntityDataTest.Attr1"));
+        assertEquals(1, other.size());
+    }
+
+    @Test
+    public void testNullValues() {
+        EntityData data = new EntityData();
+        data.put("EntityDataTest.Attr2", null);
+        assertTrue(data.containsKey("EntityDataTest.Attr2"));
+        assertNull(data.get("EntityDataTest.Attr2"));
+        assertFalse(data.containsKey("EntityDataTest.Missing"));
+        assertEquals(1, data.size());
+    }
+
+    @Test
+    public void testCopyIsIndependent() {
+        EntityData data = new EntityData();
+        data.put("EntityDataTest.Attr3", "a");
+        EntityData copy = data.copy();
+        copy.put("EntityDataTest.Attr3", "b");
+        copy.setChangeType(EntityData.ChangeType.DEL);
+        assertEquals("a", data.get("EntityDataTest.Attr3"));
+        assertEquals("b", copy.get("EntityDataTest.Attr3"));
+        assertEquals(EntityData.ChangeType.ADD, data.getChangeType());
+    }
+
+    @Test
+    public void testRemoveAndIterate() {
+        EntityData data = new EntityData();
+        data.put("EntityDataTest.Attr4", "a");
+        data.put("EntityDataTest.Attr5", "b");
+        data.put("EntityDataTest.Attr6", "c");
+        assertEquals("b", data.remove("entitydatatest.attr5"));
+        Iterator<Map.Entry<String, Object>> i = data.entrySet().iterator();
+        assertEquals("EntityDataTest.Attr4", i.next().getKey());
+        Map.Entry<String, Object> entry = i.next();
+        assertEquals("EntityDataTest.Attr6", entry.getKey());
+        i.remove();
+        assertFalse(i.hasNext());
+        assertEquals(1, data.size());
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("EntityDataTest.Attr4", "a");
+        assertEquals(expected, data);
+    }
+
+    @Test
+    public void testKeysPastIndexLimitOverflow() {
+        EntityData data = new EntityData();
+        int count = EntityDataIndex.MAX_KEYS + 10;
+        for (int i = 0; i < count; i++) {
+            data.put("EntityDataTest.Overflow" + i, i);
+        }
+        assertEquals(count, data.size());
+        assertEquals(count - 1, data.get("entitydatatest.overflow" + (count - 1)));
+        int iterated = 0;
+        for (@SuppressWarnings("unused") Map.Entry<String, Object> entry : data.entrySet()) {
+            iterated++;
+        }
+        assertEquals(count, iterated);
+    }
+
+    @Test
+    public void testRowOnlyHoldsSlotsForItsKeys() {
+        EntityData wide = new EntityData();
+        for (int i = 0; i < 100; i++) {
+            wide.put("EntityDataTest.Wide" + i, i);
+        }
+        EntityData narrow = new EntityData();
+        narrow.put("EntityDataTest.Wide0", "a");
+        narrow.put("EntityDataTest.Wide99", "b");
+        assertSame(wide.index, narrow.index);
+        assertTrue(narrow.data.length <= 2);
+        assertEquals("b", narrow.get("entitydatatest.wide99"));
+        assertNull(narrow.get("EntityDataTest.Wide50"));
+        assertEquals(99, wide.get("EntityDataTest.Wide99"));
+        Iterator<Map.Entry<String, Object>> i = narrow.entrySet().iterator();
+        assertEquals("EntityDataTest.Wide0", i.next().getKey());
+        assertEquals("EntityDataTest.Wide99", i.next().getKey());
+        assertFalse(i.hasNext());
+    }
+
+    @Test
+    public void testIndexIsOnlySharedByRowsWithTheSameFirstKey() {
+        EntityData mapped = new EntityData();
+        mapped.put("EntityDataTest.Input", 1);
+        mapped.put("EntityDataTest.Output", 2);
+        EntityData output = new EntityData();
+        output.put("EntityDataTest.Output", 3);
+        output.put("EntityDataTest.Other", 4);
+        assertFalse(mapped.index == output.index);
+        assertEquals(2, mapped.index.size());
+        assertEquals(2, output.index.size());
+    }
+
+    @Test
+    public void testKeysPutOutOfOrderInCopies() {
+        EntityData data = new EntityData();
+        data.put("EntityDataTest.Order1", 1);
+        data.put("EntityDataTest.Order2", 2);
+        EntityData copy = data.copy();
+        data.put("EntityDataTest.Order4", 4);
+        copy.put("EntityDataTest.Order3", 3);
+        copy.put("EntityDataTest.Order4", 44);
+        EntityData reversed = new EntityData();
+        reversed.put("EntityDataTest.Order1", 1);
+        reversed.put("EntityDataTest.Order4", 4);
+        reversed.put("EntityDataTest.Order2", 2);
+        assertEquals(3, data.size());
+        assertNull(data.get("EntityDataTest.Order3"));
+        assertEquals(4, data.get("EntityDataTest.Order4"));
+        assertEquals(44, copy.get("EntityDataTest.Order4"));
+        assertEquals(3, copy.get("EntityDataTest.Order3"));
+        assertEquals(data, reversed);
+        Iterator<Map.Entry<String, Object>> i = reversed.entrySet().iterator();
+        assertEquals("EntityDataTest.Order1", i.next().getKey());
+        assertEquals("EntityDataTest.Order4", i.next().getKey());
+        assertEquals("EntityDataTest.Order2", i.next().getKey());
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        EntityData data = new EntityData();
+        data.put("EntityDataTest.Attr7", "a");
+        data.put("EntityDataTest.Attr8", null);
+        data.setChangeType(EntityData.ChangeType.CHG);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream os = new ObjectOutputStream(bytes)) {
+            os.writeObject(data);
+        }
+        try (ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            EntityData read = (EntityData) is.readObject();
+            assertEquals(data, read);
+            assertEquals(EntityData.ChangeType.CHG, read.getChangeType());
+        }
+    }
+
+    @Test
+    public void testUnusedIndexIsReleased() throws Exception {
+        EntityData data = new EntityData();
+        data.put("EntityDataTest.Released", 1);
+        WeakReference<EntityDataIndex> index = new WeakReference<>(EntityDataIndex.forKey("EntityDataTest.Released"));
+        assertNotNull(index.get());
+        data = null;
+        for (int i = 0; i < 50 && index.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull(index.get());
+        EntityDataIndex.expungeCollected();
+        assertFalse(EntityDataIndex.indexByKey.containsKey("EntityDataTest.Released"));
+        assertFalse(EntityDataIndex.indexByKey.containsKey("entitydatatest.released"));
+
+        EntityDataIndex recreated = EntityDataIndex.forKey("EntityDataTest.Released");
+        assertSame(recreated, EntityDataIndex.forKey("ENTITYDATATEST.RELEASED"));
+        assertEquals(0, recreated.ordinalOf("EntityDataTest.Released"));
+    }
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+
+import org.junit.Test;
+
+public class LookupTableTest {
+
+    @Test
+    public void testInMemory() {
+        try (LookupTable table = new LookupTable(Long.MAX_VALUE)) {
+            table.put("1", "one");
+            table.put("2", new BigDecimal("2.5"));
+            table.put("1", "uno");
+            assertFalse(table.isSpilled());
+            assertEquals(2, table.size());
+            assertEquals("uno", table.get("1"));
+            assertEquals(new BigDecimal("2.5"), table.get("2"));
+            assertNull(table.get("3"));
+        }
+    }
+
+    @Test
+    public void testSpilledToDisk() {
+        try (LookupTable table = new LookupTable(1024)) {
+            for (int i = 0; i < 100000; i++) {
+                table.put(Integer.toString(i), i % 10 == 0 ? null : "value " + i);
+            }
+            for (int i = 0; i < 100; i++) {
+                table.put(Integer.toString(i), "replaced " + i);
+            }
+            assertTrue(table.isSpilled());
+            assertEquals(100000, table.size());
+            assertEquals("replaced 5", table.get("5"));
+            assertEquals("value 99999", table.get("99999"));
+            assertNull(table.get("1000"));
+            assertNull(table.get("100000"));
+            assertNull(table.get("missing"));
+        }
+    }
+
+    @Test
+    public void testCompositeKeys() {
+        assertEquals("1", LookupTable.toKey(1));
+        assertEquals("", LookupTable.toKey((Object) null));
+        assertNotEquals(LookupTable.toKey("a", "bc"), LookupTable.toKey("ab", "c"));
+        try (LookupTable table = new LookupTable(0)) {
+            table.put(LookupTable.toKey("US", 1), "first");
+            table.put(LookupTable.toKey("US", 2), "second");
+            assertEquals("second", table.get(LookupTable.toKey("US", 2)));
+            assertNull(table.get(LookupTable.toKey("CA", 1)));
+        }
+    }
+
+}
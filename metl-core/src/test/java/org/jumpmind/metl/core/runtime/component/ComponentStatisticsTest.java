@@ -0,0 +1,77 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ComponentStatisticsTest {
+
+    @Test
+    public void testConcurrentIncrementsAreExact() throws Exception {
+        ComponentStatistics statistics = new ComponentStatistics(2);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 100000; j++) {
+                    statistics.incrementNumberEntitiesProcessed(1);
+                    statistics.incrementInboundMessages(2);
+                    statistics.incrementTimeSpentInHandle(1, 2);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800000, statistics.getNumberEntitiesProcessed(1));
+        assertEquals(800000, statistics.getNumberInboundMessages(2));
+        assertEquals(1600000, statistics.getTimeSpentInHandle(1));
+        assertEquals(0, statistics.getNumberInboundMessages(1));
+    }
+
+    @Test
+    public void testThreadNumbersBeyondTheThreadCountAreRejected() {
+        ComponentStatistics statistics = new ComponentStatistics();
+        assertEquals(0, statistics.getNumberOutboundPayload(5));
+        statistics.incrementNumberOutboundPayload(0, 2);
+        statistics.incrementNumberOutboundPayload(1, 3);
+        assertEquals(2, statistics.getNumberOutboundPayload(0));
+        assertEquals(3, statistics.getNumberOutboundPayload(1));
+        try {
+            statistics.incrementNumberEntitiesProcessed(2);
+            fail("Expected thread number 2 to be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            statistics.setNumberOutboundMessages(-1, 7);
+            fail("Expected thread number -1 to be rejected");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+}
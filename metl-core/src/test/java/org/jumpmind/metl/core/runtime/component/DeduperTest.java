@@ -0,0 +1,181 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.ComponentAttributeSetting;
+import org.jumpmind.metl.core.model.ComponentEntitySetting;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttribute;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeduperTest {
+
+    Flow flow;
+
+    FlowStep step;
+
+    @Before
+    public void setup() throws Exception {
+        flow = TestUtils.createFlow("TestFlow", null);
+        Setting[] settings = new Setting[] { new Setting(Deduper.DEDUPE_TYPE, Deduper.DEDUPE_ATTRIBUTE),
+                new Setting(Deduper.PRESERVE_RECORD, Deduper.PRESERVE_FIRST), new Setting(Deduper.ROWS_PER_MESSAGE, "2") };
+        Component component = TestUtils.createComponent(Deduper.TYPE, false, null, createInputModel(), null, null, null, settings);
+        component.setEntitySettings(new ArrayList<ComponentEntitySetting>());
+        component.setAttributeSettings(new ArrayList<ComponentAttributeSetting>());
+        component.addAttributeSetting(new ComponentAttributeSetting("id", Deduper.ATTRIBUTE_DEDUPE_ENABLED, "true"));
+        step = new FlowStep();
+        step.setComponent(component);
+        flow.getFlowSteps().add(step);
+    }
+
+    @Test
+    public void testPreserveFirstInMemory() {
+        assertEquals("1a 2a 3a 4a", dedupe());
+    }
+
+    @Test
+    public void testPreserveLastInMemory() {
+        step.getComponent().put(Deduper.PRESERVE_RECORD, Deduper.PRESERVE_LAST);
+        assertEquals("1c 2b 3a 4a", dedupe());
+    }
+
+    @Test
+    public void testPreserveFirstOnDisk() {
+        step.getComponent().put(Deduper.MEMORY_BUFFER_SIZE_MB, "0");
+        assertEquals("1a 2a 3a 4a", dedupe());
+    }
+
+    @Test
+    public void testPreserveLastOnDisk() {
+        step.getComponent().put(Deduper.PRESERVE_RECORD, Deduper.PRESERVE_LAST);
+        step.getComponent().put(Deduper.MEMORY_BUFFER_SIZE_MB, "0");
+        assertEquals("1c 2b 3a 4a", dedupe());
+    }
+
+    @Test
+    public void testPreserveLastOnDiskWithPartitionsThatFitInMemory() {
+        step.getComponent().put(Deduper.PRESERVE_RECORD, Deduper.PRESERVE_LAST);
+        assertEquals("1c 2b 3a 4a", dedupe(1000));
+    }
+
+    @Test
+    public void testPreserveFirstOnDiskWithPartitionsThatOutgrowMemory() {
+        assertEquals("1a 2a 3a 4a", dedupe(300));
+    }
+
+    @Test
+    public void testPreserveLastOnDiskWithPartitionsThatOutgrowMemory() {
+        step.getComponent().put(Deduper.PRESERVE_RECORD, Deduper.PRESERVE_LAST);
+        assertEquals("1c 2b 3a 4a", dedupe(300));
+    }
+
+    @Test
+    public void testStreamFirstRecords() {
+        step.getComponent().put(Deduper.STREAM_FIRST_RECORDS, "true");
+        SendMessageCallback<ArrayList<EntityData>> target = new SendMessageCallback<ArrayList<EntityData>>();
+        Deduper deduper = start();
+        deduper.handle(message(row(1, "a"), row(2, "a"), row(1, "b")), target, false);
+        assertEquals(1, target.getPayloadList().size());
+        deduper.handle(message(row(2, "b"), row(3, "a")), target, true);
+        deduper.handle(message(row(3, "b")), target, true);
+        deduper.stop();
+        assertEquals("1a 2a 3a 3b", toString(target.getPayloadList()));
+    }
+
+    protected String dedupe() {
+        return dedupe(-1);
+    }
+
+    protected String dedupe(long memoryBufferSizeInBytes) {
+        SendMessageCallback<ArrayList<EntityData>> target = new SendMessageCallback<ArrayList<EntityData>>();
+        Deduper deduper = start();
+        if (memoryBufferSizeInBytes >= 0) {
+            deduper.memoryBufferSizeInBytes = memoryBufferSizeInBytes;
+        }
+        deduper.handle(message(row(1, "a"), row(2, "a"), row(1, "b")), target, false);
+        deduper.handle(message(row(3, "a"), row(2, "b")), target, false);
+        deduper.handle(message(row(1, "c"), row(4, "a")), target, true);
+        deduper.stop();
+        for (ArrayList<EntityData> payload : target.getPayloadList()) {
+            assertEquals(true, payload.size() <= 2);
+        }
+        return toString(target.getPayloadList());
+    }
+
+    protected Deduper start() {
+        Deduper deduper = new Deduper();
+        deduper.setContext(new ComponentContext(null, step, flow, new ExecutionTrackerNoOp(), null, null, null));
+        deduper.start();
+        return deduper;
+    }
+
+    protected String toString(List<ArrayList<EntityData>> payloads) {
+        StringBuilder rows = new StringBuilder();
+        for (ArrayList<EntityData> payload : payloads) {
+            for (EntityData row : payload) {
+                rows.append(rows.length() > 0 ? " " : "").append(row.get("id")).append(row.get("value"));
+            }
+        }
+        return rows.toString();
+    }
+
+    protected EntityDataMessage message(EntityData... rows) {
+        EntityDataMessage message = new EntityDataMessage("source");
+        ArrayList<EntityData> payload = new ArrayList<EntityData>();
+        for (EntityData row : rows) {
+            payload.add(row);
+        }
+        message.setPayload(payload);
+        return message;
+    }
+
+    protected EntityData row(int id, String value) {
+        EntityData row = new EntityData();
+        row.put("id", id);
+        row.put("value", value);
+        return row;
+    }
+
+    protected Model createInputModel() {
+        ModelEntity entity = new ModelEntity("entity", "ENTITY");
+        entity.addModelAttribute(new ModelAttribute("id", entity.getId(), "ID"));
+        entity.addModelAttribute(new ModelAttribute("value", entity.getId(), "VALUE"));
+        Model model = new Model();
+        model.getModelEntities().add(entity);
+        return model;
+    }
+
+}
@@ -0,0 +1,228 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.ComponentAttributeSetting;
+import org.jumpmind.metl.core.model.ComponentEntitySetting;
+import org.jumpmind.metl.core.model.DataType;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.FlowStepLink;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttribute;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Resource;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.runtime.ControlMessage;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.runtime.resource.IResourceRuntime;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+public class LookupTest {
+
+    Flow flow;
+
+    FlowStep step;
+
+    @Before
+    public void setup() throws Exception {
+        flow = TestUtils.createFlow("TestFlow", null);
+        Setting[] settings = new Setting[] { new Setting(Lookup.SOURCE_STEP, "source"), new Setting(Lookup.LOOKUP_KEY, "code"),
+                new Setting(Lookup.LOOKUP_KEY_2, "region"), new Setting(Lookup.LOOKUP_VALUE, "name"),
+                new Setting(Lookup.REPLACEMENT_KEY_ATTRIBUTE, "codeRef"), new Setting(Lookup.REPLACEMENT_KEY_ATTRIBUTE_2, "regionRef"),
+                new Setting(Lookup.REPLACEMENT_VALUE_ATTRIBUTE, "nameRef") };
+        Component component = TestUtils.createComponent(Lookup.TYPE, false, null, new Model(), null, null, null, settings);
+        component.setEntitySettings(new ArrayList<ComponentEntitySetting>());
+        component.setAttributeSettings(new ArrayList<ComponentAttributeSetting>());
+        step = new FlowStep();
+        step.setId("lookup");
+        step.setComponent(component);
+        flow.getFlowSteps().add(step);
+        flow.getFlowStepLinks().add(new FlowStepLink("source", "lookup"));
+    }
+
+    @Test
+    public void testLookupInMemory() {
+        assertLookup();
+    }
+
+    @Test
+    public void testLookupAndQueueOnDisk() {
+        step.getComponent().put(Lookup.MEMORY_BUFFER_SIZE_MB, "0");
+        assertLookup();
+    }
+
+    @Test
+    public void testLookupFromDatasource() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:lookup;DB_CLOSE_DELAY=-1");
+        JdbcTemplate template = new JdbcTemplate(dataSource);
+        template.execute("drop table if exists region_name");
+        template.execute("create table region_name (code int, region varchar(10), name varchar(50))");
+        template.update("insert into region_name values (1, 'US', 'one'), (2, 'US', 'two'), (1, 'CA', 'un')");
+
+        step.getComponent().put(Lookup.CACHE_SIZE, "2");
+        Lookup lookup = createDatasourceLookup(dataSource);
+        SendMessageCallback<ArrayList<EntityData>> target = new SendMessageCallback<ArrayList<EntityData>>();
+        lookup.start();
+        try {
+            lookup.handle(message("input", row("codeRef", 1, "regionRef", "US"), row("codeRef", "1", "regionRef", "US"),
+                    row("codeRef", 3, "regionRef", "US")), target, false);
+            template.update("update region_name set name='ONE'");
+            lookup.handle(message("input", row("codeRef", 1, "regionRef", "US"), row("codeRef", 1, "regionRef", "CA")), target, true);
+        } finally {
+            lookup.stop();
+        }
+        lookup.flowCompleted(false);
+
+        List<ArrayList<EntityData>> payloads = target.getPayloadList();
+        assertEquals(2, payloads.size());
+        assertEquals("one", payloads.get(0).get(0).get("nameRef"));
+        assertEquals("one", payloads.get(0).get(1).get("nameRef"));
+        assertEquals(null, payloads.get(0).get(2).get("nameRef"));
+        assertEquals("one", payloads.get(1).get(0).get("nameRef"));
+        assertEquals("ONE", payloads.get(1).get(1).get("nameRef"));
+        ComponentStatistics statistics = lookup.getComponentStatistics();
+        assertEquals(2, statistics.getNumberCacheHits(0));
+        assertEquals(3, statistics.getNumberCacheMisses(0));
+    }
+
+    @Test
+    public void testLookupFromDatasourceWithDifferentKeyTypes() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:lookup;DB_CLOSE_DELAY=-1");
+        JdbcTemplate template = new JdbcTemplate(dataSource);
+        template.execute("drop table if exists region_name");
+        template.execute("create table region_name (code decimal(10,2), region char(4), name varchar(50))");
+        template.update("insert into region_name values (1, 'US', 'one'), (2.5, 'US', 'two'), (1, 'CA', 'un')");
+
+        ModelEntity entity = new ModelEntity("input", "INPUT");
+        entity.addModelAttribute(attribute(entity, "codeRef", DataType.NUMERIC));
+        entity.addModelAttribute(attribute(entity, "regionRef", DataType.CHAR));
+        entity.addModelAttribute(attribute(entity, "nameRef", DataType.VARCHAR));
+        Model model = new Model();
+        model.getModelEntities().add(entity);
+        step.getComponent().setInputModel(model);
+
+        Lookup lookup = createDatasourceLookup(dataSource);
+        SendMessageCallback<ArrayList<EntityData>> target = new SendMessageCallback<ArrayList<EntityData>>();
+        lookup.start();
+        try {
+            lookup.handle(message("input", row("codeRef", "1", "regionRef", "US"), row("codeRef", new BigDecimal("2.50"), "regionRef", "US"),
+                    row("codeRef", 1L, "regionRef", "CA  ")), target, true);
+        } finally {
+            lookup.stop();
+        }
+
+        ArrayList<EntityData> payload = target.getPayloadList().get(0);
+        assertEquals("one", payload.get(0).get("nameRef"));
+        assertEquals("two", payload.get(1).get("nameRef"));
+        assertEquals("un", payload.get(2).get("nameRef"));
+        assertEquals(3, lookup.getComponentStatistics().getNumberCacheMisses(0));
+    }
+
+    protected Lookup createDatasourceLookup(JdbcDataSource dataSource) {
+        Component component = step.getComponent();
+        component.put(Lookup.LOOKUP_MODE, Lookup.MODE_DATASOURCE);
+        component.put(Lookup.LOOKUP_TABLE, "region_name");
+        component.put(Lookup.LOOKUP_KEY_COLUMNS, "code, region");
+        component.put(Lookup.LOOKUP_VALUE_COLUMN, "name");
+        component.setResource(new Resource("db"));
+        IResourceRuntime resourceRuntime = mock(IResourceRuntime.class);
+        when(resourceRuntime.<Object> reference()).thenReturn(dataSource);
+
+        Lookup lookup = new Lookup();
+        lookup.setContext(new ComponentContext(null, step, flow, new ExecutionTrackerNoOp(),
+                Collections.singletonMap("db", resourceRuntime), null, null));
+        return lookup;
+    }
+
+    protected ModelAttribute attribute(ModelEntity entity, String id, DataType dataType) {
+        ModelAttribute attribute = new ModelAttribute(id, entity.getId(), id);
+        attribute.setDataType(dataType);
+        return attribute;
+    }
+
+    protected void assertLookup() {
+        Lookup lookup = new Lookup();
+        SendMessageCallback<ArrayList<EntityData>> target = new SendMessageCallback<ArrayList<EntityData>>();
+        lookup.setContext(new ComponentContext(null, step, flow, new ExecutionTrackerNoOp(), null, null, null));
+        lookup.start();
+        try {
+            lookup.handle(message("input", row("codeRef", 1, "regionRef", "US")), target, false);
+            lookup.handle(message("input", row("codeRef", 2, "regionRef", "US"), row("codeRef", 1, "regionRef", "CA")), target,
+                    false);
+            lookup.handle(message("source", row("code", "1", "region", "US", "name", "one"),
+                    row("code", 2, "region", "US", "name", "two")), target, false);
+            assertEquals(0, target.getPayloadList().size());
+            lookup.handle(new ControlMessage("source"), target, false);
+            lookup.handle(message("input", row("codeRef", 2, "regionRef", "US")), target, true);
+        } finally {
+            lookup.stop();
+        }
+
+        List<ArrayList<EntityData>> payloads = target.getPayloadList();
+        assertEquals(3, payloads.size());
+        assertEquals(1, payloads.get(0).size());
+        assertEquals("one", payloads.get(0).get(0).get("nameRef"));
+        assertEquals(2, payloads.get(1).size());
+        assertEquals("two", payloads.get(1).get(0).get("nameRef"));
+        assertEquals(null, payloads.get(1).get(1).get("nameRef"));
+        assertEquals("CA", payloads.get(1).get(1).get("regionRef"));
+        assertEquals("two", payloads.get(2).get(0).get("nameRef"));
+    }
+
+    protected EntityDataMessage message(String stepId, EntityData... rows) {
+        EntityDataMessage message = new EntityDataMessage(stepId);
+        ArrayList<EntityData> payload = new ArrayList<EntityData>();
+        for (EntityData row : rows) {
+            payload.add(row);
+        }
+        message.setPayload(payload);
+        return message;
+    }
+
+    protected EntityData row(Object... values) {
+        EntityData row = new EntityData();
+        for (int i = 0; i < values.length; i += 2) {
+            row.put((String) values[i], values[i + 1]);
+        }
+        return row;
+    }
+
+}
@@ -0,0 +1,153 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.component;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jumpmind.metl.core.model.Component;
+import org.jumpmind.metl.core.model.ComponentAttributeSetting;
+import org.jumpmind.metl.core.model.ComponentEntitySetting;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Model;
+import org.jumpmind.metl.core.model.ModelAttribute;
+import org.jumpmind.metl.core.model.ModelEntity;
+import org.jumpmind.metl.core.model.Setting;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MergerTest {
+
+    Flow flow;
+
+    FlowStep step;
+
+    @Before
+    public void setup() throws Exception {
+        flow = TestUtils.createFlow("TestFlow", null);
+        Setting[] settings = new Setting[] { new Setting(Merger.ROWS_PER_MESSAGE, "2") };
+        Component component = TestUtils.createComponent(Merger.TYPE, false, null, createInputModel(), null, null, null, settings);
+        component.setEntitySettings(new ArrayList<ComponentEntitySetting>());
+        component.setAttributeSettings(new ArrayList<ComponentAttributeSetting>());
+        component.addAttributeSetting(new ComponentAttributeSetting("id", Merger.MERGE_ATTRIBUTE, "true"));
+        component.addAttributeSetting(new ComponentAttributeSetting("type", Merger.MERGE_ATTRIBUTE, "true"));
+        step = new FlowStep();
+        step.setComponent(component);
+        flow.getFlowSteps().add(step);
+    }
+
+    @Test
+    public void testMergeInMemory() {
+        assertMerge();
+    }
+
+    @Test
+    public void testMergeOnDisk() {
+        step.getComponent().put(Merger.MEMORY_BUFFER_SIZE_MB, "0");
+        assertMerge();
+    }
+
+    @Test
+    public void testMergeOnDiskWithPartitionsThatFitInMemory() {
+        assertMerge(1000);
+    }
+
+    @Test
+    public void testMergeOnDiskWithPartitionsThatOutgrowMemory() {
+        assertMerge(400);
+    }
+
+    protected void assertMerge() {
+        assertMerge(-1);
+    }
+
+    protected void assertMerge(long memoryBufferSizeInBytes) {
+        SendMessageCallback<ArrayList<EntityData>> target = new SendMessageCallback<ArrayList<EntityData>>();
+        Merger merger = new Merger();
+        merger.setContext(new ComponentContext(null, step, flow, new ExecutionTrackerNoOp(), null, null, null));
+        merger.start();
+        if (memoryBufferSizeInBytes >= 0) {
+            merger.memoryBufferSizeInBytes = memoryBufferSizeInBytes;
+        }
+        EntityData first = row(1, "a", "name", "one");
+        merger.handle(message(first, row(2, "a", "name", "two"), row("1", "a", "city", "Columbus")), target, false);
+        merger.handle(message(row(3, "b", "name", "three"), row(new BigDecimal(2), "a", "name", null),
+                row(1, "b", "name", "uno"), row(1, "a", "name", "ONE")), target, true);
+        merger.stop();
+
+        assertEquals(1, first.get("id"));
+        assertEquals(null, first.get("city"));
+        List<EntityData> rows = new ArrayList<EntityData>();
+        for (ArrayList<EntityData> payload : target.getPayloadList()) {
+            assertEquals(true, payload.size() <= 2);
+            rows.addAll(payload);
+        }
+        assertEquals(4, rows.size());
+        assertEquals(1, rows.get(0).get("id"));
+        assertEquals("ONE", rows.get(0).get("name"));
+        assertEquals("Columbus", rows.get(0).get("city"));
+        assertEquals("two", rows.get(1).get("name"));
+        assertEquals(new BigDecimal(2), rows.get(1).get("id"));
+        assertEquals("three", rows.get(2).get("name"));
+        assertEquals("uno", rows.get(3).get("name"));
+        for (EntityData row : rows) {
+            assertEquals(false, row.containsKey(Merger.SEQUENCE));
+        }
+    }
+
+    protected EntityDataMessage message(EntityData... rows) {
+        EntityDataMessage message = new EntityDataMessage("source");
+        ArrayList<EntityData> payload = new ArrayList<EntityData>();
+        for (EntityData row : rows) {
+            payload.add(row);
+        }
+        message.setPayload(payload);
+        return message;
+    }
+
+    protected EntityData row(Object id, String type, String attributeId, Object value) {
+        EntityData row = new EntityData();
+        row.put("id", id);
+        row.put("type", type);
+        row.put(attributeId, value);
+        return row;
+    }
+
+    protected Model createInputModel() {
+        ModelEntity entity = new ModelEntity("entity", "ENTITY");
+        entity.addModelAttribute(new ModelAttribute("id", entity.getId(), "ID"));
+        entity.addModelAttribute(new ModelAttribute("type", entity.getId(), "TYPE"));
+        entity.addModelAttribute(new ModelAttribute("name", entity.getId(), "NAME"));
+        entity.addModelAttribute(new ModelAttribute("city", entity.getId(), "CITY"));
+        Model model = new Model();
+        model.getModelEntities().add(entity);
+        return model;
+    }
+
+}
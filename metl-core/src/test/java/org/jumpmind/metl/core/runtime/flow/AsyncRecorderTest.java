@@ -0,0 +1,132 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.flow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Collections;
+
+import org.jumpmind.metl.core.model.Execution;
+import org.jumpmind.metl.core.model.ExecutionStatus;
+import org.jumpmind.metl.core.model.ExecutionStep;
+import org.jumpmind.metl.core.persist.IExecutionService;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncRecorderTest {
+
+    IExecutionService executionService;
+
+    AsyncRecorder recorder;
+
+    @Before
+    public void setup() {
+        executionService = mock(IExecutionService.class);
+        recorder = new AsyncRecorder(executionService, 10);
+        recorder.coalesceWindowMs = Long.MAX_VALUE;
+        recorder.pollTimeoutMs = 1;
+    }
+
+    @Test
+    public void testUpdatesAreCoalescedUntilTheWindowCloses() throws Exception {
+        Execution execution = new Execution();
+        ExecutionStep step = new ExecutionStep();
+        recorder.record(execution);
+        for (int i = 0; i < 100; i++) {
+            step.setMessagesReceived(i);
+            recorder.record(step);
+        }
+        assertEquals(2, recorder.getQueueDepth());
+
+        recorder.logAll();
+        verify(executionService, never()).save(step);
+
+        recorder.stopping = true;
+        recorder.logAll();
+        verify(executionService, times(1)).save(execution);
+        verify(executionService, times(1)).save(step);
+        verify(executionService, never()).updateExecutionSteps(anyListOf(ExecutionStep.class));
+        assertEquals(2, recorder.getObjectsSaved());
+        assertEquals(99, recorder.getUpdatesCoalesced());
+    }
+
+    @Test
+    public void testSavedStepsAreUpdatedInABatch() throws Exception {
+        ExecutionStep step = new ExecutionStep();
+        recorder.stopping = true;
+        recorder.record(step);
+        recorder.logAll();
+
+        recorder.record(step);
+        recorder.logAll();
+        verify(executionService, times(1)).save(step);
+        verify(executionService, times(1)).updateExecutionSteps(Collections.singletonList(step));
+        assertEquals(1, recorder.getBatchesSaved());
+    }
+
+    @Test
+    public void testSavedStepsAreForgottenWhenTheExecutionIsDone() throws Exception {
+        Execution execution = new Execution(ExecutionStatus.RUNNING);
+        ExecutionStep step = new ExecutionStep();
+        step.setExecutionId(execution.getId());
+        recorder.stopping = true;
+        recorder.record(execution);
+        recorder.record(step);
+        recorder.logAll();
+        assertEquals(1, recorder.savedStepIds.size());
+
+        recorder.record(step);
+        execution.setExecutionStatus(ExecutionStatus.DONE);
+        recorder.record(execution);
+        recorder.logAll();
+        verify(executionService, times(1)).updateExecutionSteps(Collections.singletonList(step));
+        assertTrue(recorder.savedStepIds.isEmpty());
+    }
+
+    @Test
+    public void testRecordBlocksWhenTheQueueIsFull() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            recorder.record(new Execution());
+        }
+        assertEquals(0, recorder.getQueueRemainingCapacity());
+
+        Thread producer = new Thread(() -> recorder.record(new Execution()));
+        producer.start();
+        while (producer.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, recorder.getTimesBlocked());
+
+        Thread consumer = new Thread(recorder);
+        consumer.start();
+        producer.join();
+        recorder.shutdown();
+        consumer.join();
+        assertEquals(11, recorder.getObjectsSaved());
+    }
+
+}
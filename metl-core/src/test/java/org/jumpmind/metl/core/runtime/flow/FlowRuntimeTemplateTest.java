@@ -0,0 +1,128 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.flow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jumpmind.metl.core.model.Agent;
+import org.jumpmind.metl.core.model.AgentDeployment;
+import org.jumpmind.metl.core.model.AgentProjectVersionFlowDeployment;
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Folder;
+import org.jumpmind.metl.core.model.ProjectVersion;
+import org.jumpmind.metl.core.plugin.IDefinitionFactory;
+import org.jumpmind.metl.core.plugin.XMLComponentDefinition;
+import org.jumpmind.metl.core.plugin.XMLSettings;
+import org.jumpmind.metl.core.runtime.component.AbstractComponentRuntime;
+import org.jumpmind.metl.core.runtime.component.ComponentRuntimeFactory;
+import org.jumpmind.metl.core.runtime.component.NoOp;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FlowRuntimeTemplateTest {
+
+    IDefinitionFactory definitionFactory;
+
+    Agent agent;
+
+    AgentProjectVersionFlowDeployment deployment;
+
+    @Before
+    public void setup() {
+        XMLComponentDefinition definition = new XMLComponentDefinition();
+        definition.setId(NoOp.TYPE);
+        definition.setClassName(NoOp.class.getName());
+        definition.setClassLoader(getClass().getClassLoader());
+        definition.setSettings(new XMLSettings());
+        definitionFactory = mock(IDefinitionFactory.class);
+        when(definitionFactory.getComponentDefinition(anyString(), anyString())).thenReturn(definition);
+
+        Folder folder = TestUtils.createFolder("folder");
+        agent = TestUtils.createAgent("agent", folder);
+        Flow flow = TestUtils.createFlow("flow", folder);
+        FlowStep first = TestUtils.createNoOpProcessorFlowStep(flow, "first", folder);
+        FlowStep second = TestUtils.createNoOpProcessorFlowStep(flow, "second", folder);
+        FlowStep third = TestUtils.createNoOpProcessorFlowStep(flow, "third", folder);
+        FlowStep disabled = TestUtils.createNoOpProcessorFlowStep(flow, "disabled", folder);
+        disabled.getComponent().put(AbstractComponentRuntime.ENABLED, "false");
+        for (FlowStep step : Arrays.asList(first, second, third, disabled)) {
+            TestUtils.addStepToFlow(flow, step);
+        }
+        flow.getFlowStepLinks().add(TestUtils.createComponentLink(first, second));
+        flow.getFlowStepLinks().add(TestUtils.createComponentLink(first, third));
+        flow.getFlowStepLinks().add(TestUtils.createComponentLink(second, disabled));
+
+        AgentDeployment agentDeployment = new AgentDeployment();
+        agentDeployment.setId("deployment");
+        agentDeployment.setName("deployment");
+        ProjectVersion projectVersion = new ProjectVersion();
+        projectVersion.setVersionLabel("1.0");
+        deployment = new AgentProjectVersionFlowDeployment(agentDeployment, flow, projectVersion);
+    }
+
+    @Test
+    public void testDisabledStepsAndTheirLinksAreLeftOut() {
+        FlowRuntimeTemplate template = new FlowRuntimeTemplate(deployment, definitionFactory, null);
+        assertEquals(3, template.getEnabledSteps().size());
+        assertEquals(Arrays.asList("second", "third"), template.getTargetStepIds("first"));
+        assertEquals(Collections.emptyList(), template.getTargetStepIds("second"));
+        assertEquals(Arrays.asList("first"), template.getSourceStepIds("third"));
+        assertEquals(Collections.emptyList(), template.getSourceStepIds("disabled"));
+        assertTrue(template.isPreparedFrom(deployment));
+    }
+
+    @Test
+    public void testRuntimesShareTheTemplateButNotTheirSteps() throws Exception {
+        FlowRuntimeTemplate template = new FlowRuntimeTemplate(deployment, definitionFactory, null);
+        ComponentRuntimeFactory componentRuntimeFactory = new ComponentRuntimeFactory(definitionFactory);
+        ExecutorService threadService = Executors.newCachedThreadPool();
+        try {
+            FlowRuntime one = new FlowRuntime("1", "user", template, agent, componentRuntimeFactory, definitionFactory,
+                    threadService, null, null, new HashMap<>(), null, new HashMap<>(), null);
+            FlowRuntime two = new FlowRuntime("2", "user", template, agent, componentRuntimeFactory, definitionFactory,
+                    threadService, null, null, new HashMap<>(), null, new HashMap<>(), null);
+            assertSame(one.manipulatedFlow, two.manipulatedFlow);
+            assertEquals(3, one.stepRuntimes.size());
+            assertNotSame(one.stepRuntimes.get("first"), two.stepRuntimes.get("first"));
+            assertEquals(2, one.stepRuntimes.get("first").getTargetStepRuntimes().size());
+            assertSame(one.stepRuntimes.get("first"), one.stepRuntimes.get("third").getSourceStepRuntimes().get(0));
+            one.execute();
+            two.execute();
+        } finally {
+            threadService.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,308 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.flow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jumpmind.metl.core.model.Flow;
+import org.jumpmind.metl.core.model.FlowStep;
+import org.jumpmind.metl.core.model.Folder;
+import org.jumpmind.metl.core.plugin.IDefinitionFactory;
+import org.jumpmind.metl.core.plugin.XMLComponentDefinition;
+import org.jumpmind.metl.core.plugin.XMLSettings;
+import org.jumpmind.metl.core.runtime.ControlMessage;
+import org.jumpmind.metl.core.runtime.EntityData;
+import org.jumpmind.metl.core.runtime.EntityDataMessage;
+import org.jumpmind.metl.core.runtime.ExecutionTrackerNoOp;
+import org.jumpmind.metl.core.runtime.Message;
+import org.jumpmind.metl.core.runtime.ShutdownMessage;
+import org.jumpmind.metl.core.runtime.component.ComponentContext;
+import org.jumpmind.metl.core.runtime.component.ComponentRuntimeFactory;
+import org.jumpmind.metl.core.runtime.component.ComponentStatistics;
+import org.jumpmind.metl.core.runtime.component.NoOp;
+import org.jumpmind.metl.core.util.ThreadUtils;
+import org.jumpmind.metl.core.utils.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StepRuntimeTest {
+
+    IDefinitionFactory definitionFactory;
+
+    Flow flow;
+
+    Folder folder;
+
+    @Before
+    public void setup() {
+        XMLComponentDefinition definition = new XMLComponentDefinition();
+        definition.setId(NoOp.TYPE);
+        definition.setClassName(NoOp.class.getName());
+        definition.setClassLoader(getClass().getClassLoader());
+        definition.setSettings(new XMLSettings());
+        definitionFactory = mock(IDefinitionFactory.class);
+        when(definitionFactory.getComponentDefinition(anyString(), anyString())).thenReturn(definition);
+        folder = TestUtils.createFolder("folder");
+        flow = TestUtils.createFlow("flow", folder);
+    }
+
+    @Test
+    public void testMessageWakesIdleStep() throws Exception {
+        RecordingStepRuntime stepRuntime = createStepRuntime("target");
+        Thread thread = start(stepRuntime);
+        try {
+            Thread.sleep(100);
+            long ts = System.currentTimeMillis();
+            stepRuntime.queue(new ControlMessage("source"));
+            assertNotNull(stepRuntime.handled.poll(StepRuntime.INBOX_WAIT_MS / 2, TimeUnit.MILLISECONDS));
+            assertTrue(System.currentTimeMillis() - ts < StepRuntime.INBOX_WAIT_MS);
+        } finally {
+            stepRuntime.cancel();
+            thread.join(5000);
+        }
+    }
+
+    @Test
+    public void testShutdownMessageStopsStep() throws Exception {
+        RecordingStepRuntime stepRuntime = createStepRuntime("target");
+        Thread thread = start(stepRuntime);
+        Thread.sleep(100);
+        stepRuntime.queue(new ShutdownMessage("source"));
+        thread.join(StepRuntime.INBOX_WAIT_MS / 2);
+        assertFalse(thread.isAlive());
+        assertFalse(stepRuntime.isRunning());
+        assertTrue(stepRuntime.finished);
+        assertFalse(stepRuntime.cancelled);
+    }
+
+    @Test
+    public void testCancelStopsIdleStep() throws Exception {
+        RecordingStepRuntime stepRuntime = createStepRuntime("target");
+        Thread thread = start(stepRuntime);
+        Thread.sleep(100);
+        stepRuntime.cancel();
+        thread.join(StepRuntime.INBOX_WAIT_MS / 2);
+        assertFalse(thread.isAlive());
+        assertTrue(stepRuntime.cancelled);
+        assertEquals(0, stepRuntime.handled.size());
+    }
+
+    @Test
+    public void testFinishedThreadWakesUnitOfWorkBarrier() throws Exception {
+        RecordingStepRuntime stepRuntime = createStepRuntime("target");
+        stepRuntime.activeCount = 2;
+        CountDownLatch done = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                stepRuntime.waitForOtherThreadsToFinish();
+                done.countDown();
+            } catch (InterruptedException e) {
+            }
+        });
+        thread.start();
+        Thread.sleep(100);
+        assertEquals(1, done.getCount());
+        stepRuntime.decrementActiveCount();
+        assertTrue(done.await(StepRuntime.INBOX_WAIT_MS / 2, TimeUnit.MILLISECONDS));
+    }
+
+    /*
+     * More idle steps than the virtual thread scheduler has carrier threads.
+     * If waiting for a message pinned the carrier, the steps that never got
+     * a carrier would not see their messages.
+     */
+    @Test
+    public void testIdleStepsOnVirtualThreads() throws Exception {
+        int count = 300;
+        ExecutorService executor = ThreadUtils.createVirtualThreadPool("test-step");
+        List<RecordingStepRuntime> stepRuntimes = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                RecordingStepRuntime stepRuntime = createStepRuntime("target" + i);
+                stepRuntime.startRunning();
+                stepRuntimes.add(stepRuntime);
+                futures.add(executor.submit(stepRuntime));
+            }
+            Thread.sleep(StepRuntime.INBOX_WAIT_MS);
+            for (RecordingStepRuntime stepRuntime : stepRuntimes) {
+                stepRuntime.queue(new ControlMessage("source"));
+            }
+            for (RecordingStepRuntime stepRuntime : stepRuntimes) {
+                assertNotNull(stepRuntime.handled.poll(10, TimeUnit.SECONDS));
+                if (ThreadUtils.isVirtualThreadsSupported()) {
+                    assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(stepRuntime.handledBy));
+                }
+            }
+            for (RecordingStepRuntime stepRuntime : stepRuntimes) {
+                stepRuntime.queue(new ShutdownMessage("source"));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPayloadIsCopiedWhenSenderReusesIt() throws Exception {
+        StepRuntime target = createTarget(true);
+        StepRuntime sender = createSender(false, target);
+        ArrayList<EntityData> rows = new ArrayList<>();
+        rows.add(row("1"));
+        sender.createSendMessageCallback().sendEntityDataMessage(null, rows);
+        rows.clear();
+        rows.add(row("2"));
+
+        ArrayList<EntityData> received = ((EntityDataMessage) target.inQueue.poll()).getPayload();
+        assertNotSame(rows, received);
+        assertEquals(1, received.size());
+        assertEquals("1", received.get(0).get("id"));
+    }
+
+    @Test
+    public void testHandedOffPayloadIsSharedWithReadOnlyTargets() throws Exception {
+        StepRuntime first = createTarget(true);
+        StepRuntime second = createTarget(true);
+        StepRuntime sender = createSender(true, first, second);
+        ArrayList<EntityData> rows = new ArrayList<>();
+        rows.add(row("1"));
+        sender.createSendMessageCallback().sendEntityDataMessage(null, rows);
+
+        assertSame(rows, ((EntityDataMessage) first.inQueue.poll()).getPayload());
+        assertSame(rows, ((EntityDataMessage) second.inQueue.poll()).getPayload());
+    }
+
+    @Test
+    public void testHandedOffPayloadIsCopiedForTargetThatModifiesIt() throws Exception {
+        StepRuntime readOnly = createTarget(true);
+        StepRuntime modifies = createTarget(false);
+        StepRuntime sender = createSender(true, readOnly, modifies);
+        ArrayList<EntityData> rows = new ArrayList<>();
+        rows.add(row("1"));
+        sender.createSendMessageCallback().sendEntityDataMessage(null, rows);
+
+        ArrayList<EntityData> received = ((EntityDataMessage) modifies.inQueue.poll()).getPayload();
+        assertNotSame(rows, received);
+        assertNotSame(rows.get(0), received.get(0));
+        assertSame(received, ((EntityDataMessage) readOnly.inQueue.poll()).getPayload());
+    }
+
+    protected StepRuntime createSender(boolean handsOffOutput, StepRuntime... targets) {
+        StepRuntime sender = createStepRuntime("sender", definition(false, handsOffOutput));
+        sender.setSourceStepRuntimes(Collections.emptyList());
+        sender.setTargetStepRuntimes(Arrays.asList(targets));
+        sender.getComponentContext().setComponentStatistics(new ComponentStatistics(1));
+        return sender;
+    }
+
+    protected StepRuntime createTarget(boolean readOnlyInput) {
+        StepRuntime target = createStepRuntime("target" + readOnlyInput, definition(readOnlyInput, false));
+        target.startRunning();
+        return target;
+    }
+
+    protected StepRuntime createStepRuntime(String name, XMLComponentDefinition definition) {
+        FlowStep step = TestUtils.createNoOpProcessorFlowStep(flow, name, folder);
+        StepRuntime stepRuntime = new StepRuntime(new ComponentRuntimeFactory(definitionFactory), definitionFactory,
+                new ComponentContext(null, step, flow, new ExecutionTrackerNoOp(), null, new HashMap<>(), null), null);
+        stepRuntime.componentDefintion = definition;
+        return stepRuntime;
+    }
+
+    protected XMLComponentDefinition definition(boolean readOnlyInput, boolean handsOffOutput) {
+        XMLComponentDefinition definition = new XMLComponentDefinition();
+        definition.setId(NoOp.TYPE);
+        definition.setReadOnlyInput(readOnlyInput);
+        definition.setHandsOffOutput(handsOffOutput);
+        return definition;
+    }
+
+    protected EntityData row(String id) {
+        EntityData row = new EntityData();
+        row.put("id", id);
+        return row;
+    }
+
+    protected Thread start(StepRuntime stepRuntime) {
+        stepRuntime.startRunning();
+        Thread thread = new Thread(stepRuntime);
+        thread.start();
+        return thread;
+    }
+
+    protected RecordingStepRuntime createStepRuntime(String name) {
+        FlowStep step = TestUtils.createNoOpProcessorFlowStep(flow, name, folder);
+        ComponentContext context = new ComponentContext(null, step, flow, new ExecutionTrackerNoOp(), null,
+                new HashMap<>(), null);
+        ComponentRuntimeFactory componentRuntimeFactory = new ComponentRuntimeFactory(definitionFactory);
+        FlowStep sourceStep = TestUtils.createNoOpProcessorFlowStep(flow, "source", folder);
+        StepRuntime source = new StepRuntime(componentRuntimeFactory, definitionFactory,
+                new ComponentContext(null, sourceStep, flow, new ExecutionTrackerNoOp(), null, new HashMap<>(), null), null);
+        source.setSourceStepRuntimes(Collections.emptyList());
+        source.setTargetStepRuntimes(Collections.emptyList());
+
+        RecordingStepRuntime stepRuntime = new RecordingStepRuntime(componentRuntimeFactory, context);
+        stepRuntime.setSourceStepRuntimes(Collections.singletonList(source));
+        stepRuntime.setTargetStepRuntimes(Collections.emptyList());
+        stepRuntime.start();
+        return stepRuntime;
+    }
+
+    class RecordingStepRuntime extends StepRuntime {
+
+        BlockingQueue<Message> handled = new LinkedBlockingQueue<>();
+
+        volatile Thread handledBy;
+
+        RecordingStepRuntime(ComponentRuntimeFactory componentRuntimeFactory, ComponentContext context) {
+            super(componentRuntimeFactory, definitionFactory, context, null);
+        }
+
+        @Override
+        protected void process(Message inputMessage, SendMessageCallback target) throws InterruptedException {
+            handledBy = Thread.currentThread();
+            handled.add(inputMessage);
+        }
+    }
+
+}
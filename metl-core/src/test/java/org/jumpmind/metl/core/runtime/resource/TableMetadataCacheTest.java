@@ -0,0 +1,100 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.runtime.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jumpmind.db.model.Table;
+import org.junit.Test;
+
+public class TableMetadataCacheTest {
+
+    @Test
+    public void testPutGetAndRemove() {
+        TableMetadataCache cache = new TableMetadataCache(10, 0, 1);
+        Table table = new Table("ORDERS");
+        cache.put(null, "SALES", "ORDERS", table);
+        assertSame(table, cache.get(null, "SALES", "ORDERS"));
+        assertNull(cache.get(null, null, "ORDERS"));
+        cache.remove(null, "SALES", "ORDERS");
+        assertNull(cache.get(null, "SALES", "ORDERS"));
+        cache.put(null, "SALES", "ORDERS", table);
+        cache.put(null, "SALES", "ORDERS", null);
+        assertEquals(0, cache.size());
+        cache.close();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        TableMetadataCache cache = new TableMetadataCache(2, 0, 1);
+        cache.put(null, null, "A", new Table("A"));
+        Thread.sleep(5);
+        cache.put(null, null, "B", new Table("B"));
+        Thread.sleep(5);
+        cache.get(null, null, "A");
+        cache.put(null, null, "C", new Table("C"));
+        assertEquals(2, cache.size());
+        assertNull(cache.get(null, null, "B"));
+        cache.close();
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        TableMetadataCache cache = new TableMetadataCache(10, 20, 1);
+        cache.put(null, null, "A", new Table("A"));
+        Thread.sleep(40);
+        assertNull(cache.get(null, null, "A"));
+        cache.close();
+    }
+
+    @Test
+    public void testGetWaitsForWarm() throws Exception {
+        TableMetadataCache cache = new TableMetadataCache(10, 0, 2);
+        CountDownLatch loading = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        Table table = new Table("A");
+        cache.warm(null, null, "A", () -> {
+            loads.incrementAndGet();
+            loading.await();
+            return table;
+        });
+        cache.warm(null, null, "A", () -> {
+            loads.incrementAndGet();
+            return table;
+        });
+        new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+            }
+            loading.countDown();
+        }).start();
+        assertSame(table, cache.get(null, null, "A"));
+        assertEquals(1, loads.get());
+        cache.close();
+    }
+
+}
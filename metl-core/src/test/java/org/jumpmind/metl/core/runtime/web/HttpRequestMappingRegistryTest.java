@@ -0,0 +1,100 @@
+package org.jumpmind.metl.core.runtime.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.jumpmind.metl.core.model.AgentDeployment;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.AntPathMatcher;
+
+public class HttpRequestMappingRegistryTest {
+
+    HttpRequestMappingRegistry registry;
+
+    @Before
+    public void setup() {
+        registry = new HttpRequestMappingRegistry();
+    }
+
+    @Test
+    public void testLiteralSegmentsArePreferred() {
+        register(HttpMethod.GET, "/orders/{id}");
+        register(HttpMethod.GET, "/orders/*");
+        register(HttpMethod.GET, "/orders/recent");
+        register(HttpMethod.GET, "/orders/{id}/lines");
+        register(HttpMethod.POST, "/orders/recent/lines");
+
+        assertEquals("/orders/recent", findPath(HttpMethod.GET, "/orders/recent"));
+        assertEquals("/orders/*", findPath(HttpMethod.GET, "/orders/42"));
+        assertEquals("/orders/{id}/lines", findPath(HttpMethod.GET, "/orders/recent/lines"));
+        assertEquals("/orders/recent/lines", findPath(HttpMethod.POST, "/orders/recent/lines"));
+        assertNull(registry.findBestMatch(HttpMethod.POST, "/orders/recent"));
+        assertNull(registry.findBestMatch(HttpMethod.DELETE, "/orders/recent"));
+    }
+
+    @Test
+    public void testMatchesLikeAntPathMatcher() {
+        List<String> patterns = Arrays.asList("/a", "/a/", "/a/b", "/a/{x}", "/a/*", "/a/b*", "/a/?c", "/a/{x:\\d+}/c",
+                "/a/**/d", "/b/**", "/c/{x}-{y}.json", "/d/{x}/{y}/");
+        for (String pattern : patterns) {
+            register(HttpMethod.GET, pattern);
+        }
+        AntPathMatcher matcher = new AntPathMatcher();
+        List<String> paths = Arrays.asList("/a", "/a/", "a", "/a/b", "/a/bb", "/a/bc", "/a/xc", "/a/12/c", "/a/x/c", "/a/x/y/d",
+                "/a/d", "/b", "/b/x/y", "/c/1-2.json", "/c/1.json", "/d/1/2/", "/d/1/2", "//a//b", "/z");
+        for (String path : paths) {
+            HttpRequestMapping mapping = registry.findBestMatch(HttpMethod.GET, path);
+            boolean anyMatch = false;
+            for (String pattern : patterns) {
+                anyMatch |= matcher.match(pattern, path);
+            }
+            assertEquals(path, anyMatch, mapping != null);
+            if (mapping != null) {
+                assertTrue(path + " " + mapping.getPath(), matcher.match(mapping.getPath(), path));
+            }
+        }
+    }
+
+    @Test
+    public void testThousandRoutes() {
+        for (int i = 0; i < 1000; i++) {
+            register(HttpMethod.GET, "/service" + i + "/{id}/items");
+        }
+        register(HttpMethod.GET, "/service500/latest/items");
+        assertEquals("/service999/{id}/items", findPath(HttpMethod.GET, "/service999/7/items"));
+        assertEquals("/service500/latest/items", findPath(HttpMethod.GET, "/service500/latest/items"));
+        assertNull(registry.findBestMatch(HttpMethod.GET, "/service1000/7/items"));
+    }
+
+    @Test
+    public void testUnregister() {
+        HttpRequestMapping mapping = register(HttpMethod.GET, "/orders/{id}");
+        assertEquals(1, registry.getHttpRequestMappingsFor(mapping.getDeployment()).size());
+        registry.unregister(mapping);
+        assertNull(registry.findBestMatch(HttpMethod.GET, "/orders/1"));
+        assertEquals(0, registry.getHttpRequestMappingsFor(mapping.getDeployment()).size());
+    }
+
+    protected String findPath(HttpMethod method, String path) {
+        HttpRequestMapping mapping = registry.findBestMatch(method, path);
+        return mapping != null ? mapping.getPath() : null;
+    }
+
+    protected HttpRequestMapping register(HttpMethod method, String path) {
+        AgentDeployment deployment = new AgentDeployment();
+        deployment.setId(method + path);
+        deployment.setName(path);
+        HttpRequestMapping mapping = new HttpRequestMapping();
+        mapping.setMethod(method);
+        mapping.setPath(path);
+        mapping.setDeployment(deployment);
+        registry.register(mapping);
+        return mapping;
+    }
+
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed to JumpMind Inc under one or more contributor
+ * license agreements.  See the NOTICE file distributed
+ * with this work for additional information regarding
+ * copyright ownership.  JumpMind Inc licenses this file
+ * to you under the GNU General Public License, version 3.0 (GPLv3)
+ * (the "License"); you may not use this file except in compliance
+ * with the License.
+ *
+ * You should have received a copy of the GNU General Public License,
+ * version 3.0 (GPLv3) along with this library; if not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jumpmind.metl.core.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ThreadUtilsTest {
+
+    @Test
+    public void testThreadNumbersOfPlatformThreadPool() throws Exception {
+        assertEquals(expectedThreadNumbers(3), threadNumbers(false));
+    }
+
+    @Test
+    public void testThreadNumbersOfVirtualThreadPool() throws Exception {
+        assertEquals(expectedThreadNumbers(3), threadNumbers(true));
+    }
+
+    @Test
+    public void testVirtualThreadPoolRunsOnVirtualThreads() throws Exception {
+        ExecutorService executor = ThreadUtils.createVirtualThreadPool("test");
+        try {
+            Thread thread = executor.submit(() -> Thread.currentThread()).get(10, TimeUnit.SECONDS);
+            assertTrue(thread.getName().startsWith("test-"));
+            if (ThreadUtils.isVirtualThreadsSupported()) {
+                assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(thread));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    protected Set<Integer> threadNumbers(boolean virtual) throws Exception {
+        int threadCount = 3;
+        ExecutorService executor = ThreadUtils.createFixedThreadPool("test", 10, threadCount, virtual);
+        try {
+            /* Hold every task until all of them have started so each lands on its own thread */
+            CountDownLatch started = new CountDownLatch(threadCount);
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                futures.add(executor.submit((Callable<Integer>) () -> {
+                    started.countDown();
+                    started.await(10, TimeUnit.SECONDS);
+                    return ThreadUtils.getThreadNumber(threadCount);
+                }));
+            }
+            Set<Integer> numbers = new TreeSet<>();
+            for (Future<Integer> future : futures) {
+                numbers.add(future.get(10, TimeUnit.SECONDS));
+            }
+            return numbers;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    protected Set<Integer> expectedThreadNumbers(int threadCount) {
+        Set<Integer> numbers = new TreeSet<>();
+        for (int i = 1; i <= threadCount; i++) {
+            numbers.add(i);
+        }
+        return numbers;
+    }
+
+}
@@ -168,6 +168,17 @@ public class EditAgentPanel extends VerticalLayout implements IUiPanel, IBackgro
         editAgentLayout.addComponent(autoRefresh);
         editAgentLayout.setComponentAlignment(autoRefresh, Alignment.BOTTOM_LEFT);
 
+        CheckBox virtualThreads = new CheckBox("Virtual Threads?", Boolean.valueOf(agent.isVirtualThreads()));
+        virtualThreads.setImmediate(true);
+        virtualThreads.setDescription("Run flow steps on virtual threads?  Requires a JVM that supports virtual threads.");
+        virtualThreads.addValueChangeListener(event -> {
+            agent.setVirtualThreads(virtualThreads.getValue());
+            EditAgentPanel.this.context.getOperationsSerivce().save((AbstractObject) agent);
+            EditAgentPanel.this.context.getAgentManager().refresh(agent);
+        });
+        editAgentLayout.addComponent(virtualThreads);
+        editAgentLayout.setComponentAlignment(virtualThreads, Alignment.BOTTOM_LEFT);
+
         CheckBox showInExploreViewField = new CheckBox("Explore?", Boolean.valueOf(agent.isShowResourcesInExploreView()));
         showInExploreViewField.setDescription("Show resources deployed to this agent in the explore view");
         showInExploreViewField.setImmediate(true);
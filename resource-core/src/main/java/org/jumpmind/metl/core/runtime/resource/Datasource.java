@@ -20,8 +20,7 @@
  */
 package org.jumpmind.metl.core.runtime.resource;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.jumpmind.db.model.Table;
 import org.jumpmind.db.util.BasicDataSourceFactory;
@@ -67,15 +66,23 @@ public class Datasource extends AbstractResourceRuntime implements IDatasourceRu
     public final static String DB_QUERY_TIMEOUT = "db.query.timeout";
     
     public final static String DB_CONNECTION_PROPERTIES = "db.connection.properties";
+
+    public final static String DB_TABLE_CACHE_SIZE = "db.table.cache.size";
+
+    public final static String DB_TABLE_CACHE_TTL_SECONDS = "db.table.cache.ttl.seconds";
+
+    public final static String DB_TABLE_CACHE_WARM_THREADS = "db.table.cache.warm.threads";
     
     ResettableBasicDataSource dataSource = new ResettableBasicDataSource();
     
-    protected Map<String, Table> tableCache = new HashMap<String, Table>();
+    protected TableMetadataCache tableCache = new TableMetadataCache(1000, 3600000, 4);
     
     @Override
     protected void start(TypedProperties properties) {
         this.dataSource = BasicDataSourceFactory
                 .create(properties);
+        this.tableCache = new TableMetadataCache(properties.getInt(DB_TABLE_CACHE_SIZE, 1000),
+                properties.getLong(DB_TABLE_CACHE_TTL_SECONDS, 3600) * 1000, properties.getInt(DB_TABLE_CACHE_WARM_THREADS, 4));
     }
 
     @Override
@@ -85,6 +92,7 @@ public class Datasource extends AbstractResourceRuntime implements IDatasourceRu
         } catch (Exception e) {
         } finally {
             dataSource = null;
+            tableCache.close();
         }
     }
 
@@ -95,15 +103,23 @@ public class Datasource extends AbstractResourceRuntime implements IDatasourceRu
     }
     
     public void putTableInCache(String catalogName, String schemaName, String tableName, Table table) {
-        String key = Table.getFullyQualifiedTableName(catalogName, schemaName, tableName);
-        tableCache.put(key, table);
+        tableCache.put(catalogName, schemaName, tableName, table);
     }
     
     public Table getTableFromCache(String catalogName, String schemaName, String tableName) {
-        String key = Table.getFullyQualifiedTableName(catalogName, schemaName, tableName);
-        return tableCache.get(key);
+        return tableCache.get(catalogName, schemaName, tableName);
     }
 
-    
+    public void removeTableFromCache(String catalogName, String schemaName, String tableName) {
+        tableCache.remove(catalogName, schemaName, tableName);
+    }
+
+    public void clearTableCache() {
+        tableCache.clear();
+    }
+
+    public void warmTableCache(String catalogName, String schemaName, String tableName, Callable<Table> loader) {
+        tableCache.warm(catalogName, schemaName, tableName, loader);
+    }
 
 }
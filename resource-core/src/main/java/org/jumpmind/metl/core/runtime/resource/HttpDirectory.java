@@ -54,6 +54,7 @@ public class HttpDirectory implements IDirectory {
     public static final String HTTP_METHOD_GET = "GET";
     public static final String HTTP_METHOD_PUT = "PUT";
     public static final String HTTP_METHOD_POST = "POST";
+    public static final String HTTP_METHOD_DELETE = "DELETE";
 
     public static final String SECURITY_NONE = "None";
     public static final String SECURITY_BASIC = "Basic Auth";
@@ -98,6 +99,10 @@ public class HttpDirectory implements IDirectory {
         this.oa1Realm = oa1Realm;
     }
 
+    public String getHttpMethod() {
+        return httpMethod;
+    }
+
     @Override
     public FileInfo listFile(String relativePath) {
         throw new UnsupportedOperationException();
@@ -188,7 +193,7 @@ public class HttpDirectory implements IDirectory {
                 }
                 return in;
             } else {
-                throw new IoException("Received an unexpected response code of " + responseCode);
+                throw new HttpResponseException(responseCode, "Received an unexpected response code of " + responseCode);
             }
 
         } catch (IOException e) {
@@ -96,7 +96,7 @@ public class HttpOutputStream extends OutputStream implements IOutputStreamWithR
             IOUtils.closeQuietly(in);
         }
         if (responseCode != 200) {
-            throw new IoException(String.format(
+            throw new HttpResponseException(responseCode, String.format(
                     "Received an unexpected response code of %d with error content of: %s",
                     responseCode, response.toString()));
         }